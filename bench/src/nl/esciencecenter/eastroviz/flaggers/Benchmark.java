@@ -0,0 +1,72 @@
+/*
+ * Copyright 2013 Netherlands eScience Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.esciencecenter.eastroviz.flaggers;
+
+import java.util.Random;
+
+/**
+ * One benchmark of {@link FlaggerBenchmarks}. The runner calls {@link #setUp(int, float)} once for every combination of parameters,
+ * and then {@link #run()} many times. The flags that a benchmark starts with have the given fraction of the samples flagged. Flaggers
+ * add flags, so benchmarks that flag restore the initial flags at the start of every run; that copy is part of the measured time.
+ */
+public abstract class Benchmark {
+    private final String name;
+
+    protected Benchmark(final String name) {
+        this.name = name;
+    }
+
+    public final String getName() {
+        return name;
+    }
+
+    /**
+     * Creates the samples and flags for nrChannels channels, with about flaggedFraction of them flagged.
+     */
+    public abstract void setUp(int nrChannels, float flaggedFraction);
+
+    /**
+     * @return a value that depends on the result, so the work cannot be optimized away.
+     */
+    public abstract long run();
+
+    /**
+     * @return the number of samples that one {@link #run()} processes, to calculate the time per sample.
+     */
+    public abstract int getNrSamples();
+
+    protected static float[] createSamples(final Random random, final int nrSamples) {
+        final float[] samples = new float[nrSamples];
+        for (int i = 0; i < nrSamples; i++) {
+            samples[i] = 100.0f + 10.0f * (float) random.nextGaussian();
+        }
+        // some RFI
+        for (int i = 0; i < nrSamples / 32; i++) {
+            samples[random.nextInt(nrSamples)] *= 10.0f;
+        }
+        return samples;
+    }
+
+    protected static FlagMask createFlags(final Random random, final int nrSamples, final float flaggedFraction) {
+        final FlagMask flags = new FlagMask(nrSamples);
+        for (int i = 0; i < nrSamples; i++) {
+            if (random.nextFloat() < flaggedFraction) {
+                flags.set(i);
+            }
+        }
+        return flags;
+    }
+}
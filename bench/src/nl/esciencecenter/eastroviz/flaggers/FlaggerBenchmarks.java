@@ -0,0 +1,538 @@
+/*
+ * Copyright 2013 Netherlands eScience Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.esciencecenter.eastroviz.flaggers;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Benchmarks of the flagger kernels and of all flaggers, for several numbers of channels and fractions of initially flagged samples.
+ * Every benchmark is measured in the way JMH does it in "average time" mode: a number of warmup iterations, and then a number of
+ * measurement iterations of a fixed time each, with a single thread and a single fork. The results are printed as a table, and
+ * written as JSON in the same format as JMH writes with "-rf json", so they can be compared across changes with the usual JMH
+ * tools. Besides the time per call, the time per sample is given as a secondary metric.
+ * <p>
+ * Run it with "ant benchmark", or directly:
+ *
+ * <pre>
+ * FlaggerBenchmarks [-channels 16,256,1024,4096] [-flagged 0,0.1,0.5] [-warmup n] [-iterations n] [-time ms] [-filter text]
+ *                   [-output file.json] [-list]
+ * </pre>
+ */
+public final class FlaggerBenchmarks {
+    static final float SENSITIVITY = 1.0f;
+    static final float SIR_VALUE = 0.4f;
+    static final int NR_POLARIZATIONS = 2;
+    static final int NR_CROSS_POLARIZATIONS = NR_POLARIZATIONS * NR_POLARIZATIONS;
+
+    private static final int[] DEFAULT_NR_CHANNELS = { 16, 256, 1024, 4096 };
+    private static final float[] DEFAULT_FLAGGED_FRACTIONS = { 0.0f, 0.1f, 0.5f };
+    private static final int DEFAULT_WARMUP_ITERATIONS = 3;
+    private static final int DEFAULT_MEASUREMENT_ITERATIONS = 5;
+    private static final int DEFAULT_ITERATION_TIME = 100; // ms
+    private static final String DEFAULT_OUTPUT = "reports/benchmarks.json";
+
+    /** The 99.95% quantiles of Student's t-distribution for 1 .. 30 degrees of freedom, for a 99.9% confidence interval. */
+    private static final double[] STUDENT_T_9995 = { 636.62, 31.599, 12.924, 8.610, 6.869, 5.959, 5.408, 5.041, 4.781, 4.587,
+            4.437, 4.318, 4.221, 4.140, 4.073, 4.015, 3.965, 3.922, 3.883, 3.850, 3.819, 3.792, 3.768, 3.745, 3.725, 3.707, 3.690,
+            3.674, 3.659, 3.646 };
+    private static final double NORMAL_9995 = 3.291;
+
+    /** Results of the benchmarks go here, so the JIT cannot remove the work. */
+    static volatile long sink;
+
+    private final int warmupIterations;
+    private final int measurementIterations;
+    private final int iterationTime;
+
+    private static final class Result {
+        final Benchmark benchmark;
+        final int nrChannels;
+        final float flaggedFraction;
+        final int nrSamples; // per op
+        final double[] nsPerOp;
+
+        Result(final Benchmark benchmark, final int nrChannels, final float flaggedFraction, final int nrSamples,
+                final double[] nsPerOp) {
+            this.benchmark = benchmark;
+            this.nrChannels = nrChannels;
+            this.flaggedFraction = flaggedFraction;
+            this.nrSamples = nrSamples;
+            this.nsPerOp = nsPerOp;
+        }
+
+        double getScore() {
+            double sum = 0.0;
+            for (final double v : nsPerOp) {
+                sum += v;
+            }
+            return sum / nsPerOp.length;
+        }
+
+        /** The half width of the 99.9% confidence interval of the score. */
+        double getScoreError() {
+            final int n = nsPerOp.length;
+            if (n < 2) {
+                return Double.NaN;
+            }
+            final double mean = getScore();
+            double variance = 0.0;
+            for (final double v : nsPerOp) {
+                variance += (v - mean) * (v - mean);
+            }
+            variance /= n - 1;
+            final double t = n - 1 <= STUDENT_T_9995.length ? STUDENT_T_9995[n - 2] : NORMAL_9995;
+            return t * Math.sqrt(variance / n);
+        }
+    }
+
+    public FlaggerBenchmarks(final int warmupIterations, final int measurementIterations, final int iterationTime) {
+        this.warmupIterations = warmupIterations;
+        this.measurementIterations = measurementIterations;
+        this.iterationTime = iterationTime;
+    }
+
+    /**
+     * Runs the benchmark for iterationTime ms, and returns the average time per call in ns.
+     */
+    private double iteration(final Benchmark benchmark) {
+        final long end = System.nanoTime() + iterationTime * 1000000L;
+        long ops = 0;
+        long result = 0;
+        int batch = 1;
+        final long start = System.nanoTime();
+        long now;
+        do {
+            for (int i = 0; i < batch; i++) {
+                result += benchmark.run();
+            }
+            ops += batch;
+            if (batch < 1024) {
+                batch *= 2;
+            }
+            now = System.nanoTime();
+        } while (now < end);
+        sink += result;
+        return (double) (now - start) / ops;
+    }
+
+    private Result measure(final Benchmark benchmark, final int nrChannels, final float flaggedFraction) {
+        benchmark.setUp(nrChannels, flaggedFraction);
+        for (int i = 0; i < warmupIterations; i++) {
+            iteration(benchmark);
+        }
+        final double[] nsPerOp = new double[measurementIterations];
+        for (int i = 0; i < measurementIterations; i++) {
+            nsPerOp[i] = iteration(benchmark);
+        }
+        return new Result(benchmark, nrChannels, flaggedFraction, benchmark.getNrSamples(), nsPerOp);
+    }
+
+    static List<Benchmark> createBenchmarks() {
+        final List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+
+        for (final StatisticsType type : StatisticsType.values()) {
+            benchmarks.add(new SamplesBenchmark("calculateStatistics_" + type) {
+                @Override
+                protected void setUp(final BeamFormedFlagger flagger) {
+                    flagger.setStatisticsType(type);
+                }
+
+                @Override
+                public long run() {
+                    return Float.floatToIntBits(flagger.calculateStatistics(samples, flags).getMedian());
+                }
+            });
+        }
+
+        benchmarks.add(new SamplesBenchmark("sumThreshold1D") {
+            private final Statistics statistics = new Statistics();
+
+            @Override
+            protected void setUp(final BeamFormedFlagger flagger) {
+                statistics.copyFrom(flagger.calculateStatistics(samples, initialFlags));
+            }
+
+            @Override
+            public long run() {
+                flags.copyFrom(initialFlags);
+                flagger.sumThreshold1D(samples, flags, statistics);
+                return flags.getWords()[0];
+            }
+        });
+
+        benchmarks.add(new SamplesBenchmark("SIROperator") {
+            @Override
+            public long run() {
+                flags.copyFrom(initialFlags);
+                flagger.SIROperator(flags);
+                return flags.getWords()[0];
+            }
+        });
+
+        benchmarks.add(new SamplesBenchmark("oneDimensionalGausConvolution") {
+            @Override
+            public long run() {
+                return Float.floatToIntBits(Flagger.oneDimensionalGausConvolution(samples, 2.0f)[0]);
+            }
+        });
+
+        benchmarks.add(new SamplesBenchmark("gausConvolution") {
+            @Override
+            public long run() {
+                return Float.floatToIntBits(flagger.gausConvolution(samples, 2.0f)[0]);
+            }
+        });
+
+        benchmarks.add(new SamplesBenchmark("BeamFormedFlagger_flag") {
+            @Override
+            public long run() {
+                flags.copyFrom(initialFlags);
+                flagger.flag(samples, flags);
+                return flags.getWords()[0];
+            }
+        });
+
+        benchmarks.add(new SamplesBenchmark("BeamFormedFlagger_flagSmooth") {
+            @Override
+            public long run() {
+                flags.copyFrom(initialFlags);
+                flagger.flagSmooth(samples, flags);
+                return flags.getWords()[0];
+            }
+        });
+
+        benchmarks.add(new IntermediateBenchmark("IntermediateFlagger_flag", false));
+        benchmarks.add(new IntermediateBenchmark("IntermediateFlagger_flagSmooth", true));
+
+        benchmarks.add(new PostCorrelationBenchmark("PostCorrelationThresholdFlagger_flag") {
+            @Override
+            protected PostCorrelationFlagger createFlagger(final int nrChannels) {
+                return new PostCorrelationThresholdFlagger(nrChannels, SENSITIVITY, SIR_VALUE);
+            }
+        });
+        benchmarks.add(new PostCorrelationBenchmark("PostCorrelationSumThresholdFlagger_flag") {
+            @Override
+            protected PostCorrelationFlagger createFlagger(final int nrChannels) {
+                return new PostCorrelationSumThresholdFlagger(nrChannels, SENSITIVITY, SIR_VALUE);
+            }
+        });
+        benchmarks.add(new PostCorrelationBenchmark("PostCorrelationSmoothedSumThresholdFlagger_flag") {
+            @Override
+            protected PostCorrelationFlagger createFlagger(final int nrChannels) {
+                return new PostCorrelationSmoothedSumThresholdFlagger(nrChannels, SENSITIVITY, SIR_VALUE);
+            }
+        });
+        benchmarks.add(new PostCorrelationBenchmark("PostCorrelationHistorySumThresholdFlagger_flag") {
+            @Override
+            protected PostCorrelationFlagger createFlagger(final int nrChannels) {
+                return new PostCorrelationHistorySumThresholdFlagger(nrChannels, SENSITIVITY, SIR_VALUE);
+            }
+        });
+        benchmarks.add(new PostCorrelationBenchmark("PostCorrelationHistorySmoothedSumThresholdFlagger_flag") {
+            @Override
+            protected PostCorrelationFlagger createFlagger(final int nrChannels) {
+                return new PostCorrelationHistorySmoothedSumThresholdFlagger(nrChannels, SENSITIVITY, SIR_VALUE);
+            }
+        });
+
+        return benchmarks;
+    }
+
+    /**
+     * A benchmark on one array of samples, with a {@link BeamFormedFlagger} for the kernels of {@link Flagger}.
+     */
+    private abstract static class SamplesBenchmark extends Benchmark {
+        protected BeamFormedFlagger flagger;
+        protected float[] samples;
+        protected FlagMask initialFlags;
+        protected FlagMask flags;
+
+        SamplesBenchmark(final String name) {
+            super(name);
+        }
+
+        @Override
+        public final void setUp(final int nrChannels, final float flaggedFraction) {
+            final Random random = new Random(nrChannels);
+            flagger = new BeamFormedFlagger(SENSITIVITY, SIR_VALUE);
+            samples = createSamples(random, nrChannels);
+            initialFlags = createFlags(random, nrChannels, flaggedFraction);
+            flags = new FlagMask(initialFlags);
+            setUp(flagger);
+        }
+
+        protected void setUp(final BeamFormedFlagger flagger) {
+        }
+
+        @Override
+        public int getNrSamples() {
+            return samples.length;
+        }
+    }
+
+    private static final class IntermediateBenchmark extends Benchmark {
+        private final boolean smooth;
+        private IntermediateFlagger flagger;
+        private float[][] samples; // [nrPolarizations][nrChannels]
+        private FlagMask initialFlags;
+        private FlagMask flags;
+
+        IntermediateBenchmark(final String name, final boolean smooth) {
+            super(name);
+            this.smooth = smooth;
+        }
+
+        @Override
+        public void setUp(final int nrChannels, final float flaggedFraction) {
+            final Random random = new Random(nrChannels);
+            flagger = new IntermediateFlagger(SENSITIVITY, SIR_VALUE);
+            samples = new float[NR_POLARIZATIONS][];
+            for (int pol = 0; pol < NR_POLARIZATIONS; pol++) {
+                samples[pol] = createSamples(random, nrChannels);
+            }
+            initialFlags = createFlags(random, nrChannels, flaggedFraction);
+            flags = new FlagMask(initialFlags);
+        }
+
+        @Override
+        public long run() {
+            flags.copyFrom(initialFlags);
+            if (smooth) {
+                flagger.flagSmooth(samples[0], flags);
+            } else {
+                flagger.flag(samples, flags);
+            }
+            return flags.getWords()[0];
+        }
+
+        @Override
+        public int getNrSamples() {
+            return smooth ? samples[0].length : NR_POLARIZATIONS * samples[0].length;
+        }
+    }
+
+    /**
+     * Flags one second of a subband with all cross polarizations. The history flaggers get the same second over and over, so their
+     * history is full after the warmup.
+     */
+    private abstract static class PostCorrelationBenchmark extends Benchmark {
+        private PostCorrelationFlagger flagger;
+        private float[][] samples; // [nrChannels][nrCrossPolarizations]
+        private FlagMask initialFlags;
+        private FlagMask flags;
+
+        PostCorrelationBenchmark(final String name) {
+            super(name);
+        }
+
+        protected abstract PostCorrelationFlagger createFlagger(int nrChannels);
+
+        @Override
+        public void setUp(final int nrChannels, final float flaggedFraction) {
+            final Random random = new Random(nrChannels);
+            flagger = createFlagger(nrChannels);
+            samples = new float[nrChannels][NR_CROSS_POLARIZATIONS];
+            for (int pol = 0; pol < NR_CROSS_POLARIZATIONS; pol++) {
+                final float[] s = createSamples(random, nrChannels);
+                for (int channel = 0; channel < nrChannels; channel++) {
+                    samples[channel][pol] = s[channel];
+                }
+            }
+            initialFlags = createFlags(random, nrChannels, flaggedFraction);
+            flags = new FlagMask(initialFlags);
+        }
+
+        @Override
+        public long run() {
+            flags.copyFrom(initialFlags);
+            flagger.flag(samples, flags);
+            return flags.getWords()[0];
+        }
+
+        @Override
+        public int getNrSamples() {
+            return samples.length * NR_CROSS_POLARIZATIONS;
+        }
+    }
+
+    private List<Result> run(final List<Benchmark> benchmarks, final int[] nrChannels, final float[] flaggedFractions) {
+        final List<Result> results = new ArrayList<Result>();
+        System.out.println(String.format(Locale.US, "%-56s %9s %8s %14s %12s %10s", "benchmark", "channels", "flagged", "ns/op",
+                "error", "ns/sample"));
+        for (final Benchmark benchmark : benchmarks) {
+            for (final int channels : nrChannels) {
+                for (final float fraction : flaggedFractions) {
+                    final Result result = measure(benchmark, channels, fraction);
+                    results.add(result);
+                    System.out.println(String.format(Locale.US, "%-56s %9d %8.2f %14.1f %12.1f %10.3f", benchmark.getName(),
+                            channels, fraction, result.getScore(), result.getScoreError(), result.getScore()
+                                    / result.nrSamples));
+                }
+            }
+        }
+        return results;
+    }
+
+    private static String json(final double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            return "\"NaN\"";
+        }
+        return String.format(Locale.US, "%.6f", value);
+    }
+
+    private void writeJson(final List<Result> results, final String fileName) throws IOException {
+        final File file = new File(fileName);
+        if (file.getParentFile() != null) {
+            file.getParentFile().mkdirs();
+        }
+        final PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+        try {
+            out.println("[");
+            for (int r = 0; r < results.size(); r++) {
+                final Result result = results.get(r);
+                final double score = result.getScore();
+                final double error = result.getScoreError();
+                final int nrSamples = result.nrSamples;
+
+                out.println("    {");
+                out.println("        \"benchmark\" : \"" + FlaggerBenchmarks.class.getName() + "." + result.benchmark.getName() + "\",");
+                out.println("        \"mode\" : \"avgt\",");
+                out.println("        \"threads\" : 1,");
+                out.println("        \"forks\" : 1,");
+                out.println("        \"jvm\" : \"" + System.getProperty("java.home").replace("\\", "\\\\") + "\",");
+                out.println("        \"jdkVersion\" : \"" + System.getProperty("java.version") + "\",");
+                out.println("        \"warmupIterations\" : " + warmupIterations + ",");
+                out.println("        \"warmupTime\" : \"" + iterationTime + " ms\",");
+                out.println("        \"measurementIterations\" : " + measurementIterations + ",");
+                out.println("        \"measurementTime\" : \"" + iterationTime + " ms\",");
+                out.println("        \"params\" : {");
+                out.println("            \"nrChannels\" : \"" + result.nrChannels + "\",");
+                out.println("            \"flaggedFraction\" : \"" + result.flaggedFraction + "\"");
+                out.println("        },");
+                out.println("        \"primaryMetric\" : {");
+                out.println("            \"score\" : " + json(score) + ",");
+                out.println("            \"scoreError\" : " + json(error) + ",");
+                out.println("            \"scoreConfidence\" : [ " + json(score - error) + ", " + json(score + error) + " ],");
+                out.println("            \"scoreUnit\" : \"ns/op\",");
+                final StringBuilder raw = new StringBuilder();
+                for (int i = 0; i < result.nsPerOp.length; i++) {
+                    raw.append(i == 0 ? "" : ", ").append(json(result.nsPerOp[i]));
+                }
+                out.println("            \"rawData\" : [ [ " + raw + " ] ]");
+                out.println("        },");
+                out.println("        \"secondaryMetrics\" : {");
+                out.println("            \"ns/sample\" : {");
+                out.println("                \"score\" : " + json(score / nrSamples) + ",");
+                out.println("                \"scoreError\" : " + json(error / nrSamples) + ",");
+                out.println("                \"scoreUnit\" : \"ns/sample\",");
+                out.println("                \"samplesPerOp\" : " + nrSamples);
+                out.println("            }");
+                out.println("        }");
+                out.println(r < results.size() - 1 ? "    }," : "    }");
+            }
+            out.println("]");
+        } finally {
+            out.close();
+        }
+    }
+
+    private static int[] parseInts(final String s) {
+        final String[] parts = s.split(",");
+        final int[] result = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            result[i] = Integer.parseInt(parts[i].trim());
+        }
+        return result;
+    }
+
+    private static float[] parseFloats(final String s) {
+        final String[] parts = s.split(",");
+        final float[] result = new float[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            result[i] = Float.parseFloat(parts[i].trim());
+        }
+        return result;
+    }
+
+    public static void main(final String[] args) throws IOException {
+        int[] nrChannels = DEFAULT_NR_CHANNELS;
+        float[] flaggedFractions = DEFAULT_FLAGGED_FRACTIONS;
+        int warmupIterations = DEFAULT_WARMUP_ITERATIONS;
+        int measurementIterations = DEFAULT_MEASUREMENT_ITERATIONS;
+        int iterationTime = DEFAULT_ITERATION_TIME;
+        String filter = null;
+        String output = DEFAULT_OUTPUT;
+        boolean list = false;
+
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-channels")) {
+                i++;
+                nrChannels = parseInts(args[i]);
+            } else if (args[i].equals("-flagged")) {
+                i++;
+                flaggedFractions = parseFloats(args[i]);
+            } else if (args[i].equals("-warmup")) {
+                i++;
+                warmupIterations = Integer.parseInt(args[i]);
+            } else if (args[i].equals("-iterations")) {
+                i++;
+                measurementIterations = Integer.parseInt(args[i]);
+            } else if (args[i].equals("-time")) {
+                i++;
+                iterationTime = Integer.parseInt(args[i]);
+            } else if (args[i].equals("-filter")) {
+                i++;
+                filter = args[i];
+            } else if (args[i].equals("-output")) {
+                i++;
+                output = args[i];
+            } else if (args[i].equals("-list")) {
+                list = true;
+            } else {
+                System.err.println("Usage: FlaggerBenchmarks [-channels 16,256,1024,4096] [-flagged 0,0.1,0.5] [-warmup n] "
+                        + "[-iterations n] [-time ms] [-filter text] [-output file.json] [-list]");
+                System.exit(1);
+            }
+        }
+
+        final List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+        for (final Benchmark benchmark : createBenchmarks()) {
+            if (filter == null || benchmark.getName().contains(filter)) {
+                benchmarks.add(benchmark);
+            }
+        }
+
+        if (list) {
+            for (final Benchmark benchmark : benchmarks) {
+                System.out.println(benchmark.getName());
+            }
+            return;
+        }
+
+        final FlaggerBenchmarks runner = new FlaggerBenchmarks(warmupIterations, measurementIterations, iterationTime);
+        final List<Result> results = runner.run(benchmarks, nrChannels, flaggedFractions);
+        runner.writeJson(results, output);
+        System.out.println("results written to " + output);
+    }
+}
@@ -1,6 +1,7 @@
 package nl.esciencecenter.eastroviz;
 
 import nl.esciencecenter.eastroviz.dataformats.DataProvider;
+import nl.esciencecenter.eastroviz.dataformats.FlagCube;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -43,7 +44,7 @@ public class Dedispersion {
         return shifts;
     }
 
-    public static void dedisperse(float[][][] data, boolean[][][] flagged, float nrSamplesPerSecond, double lowFreq, double freqStep, float dm) {
+    public static void dedisperse(float[][][] data, FlagCube flagged, float nrSamplesPerSecond, double lowFreq, double freqStep, float dm) {
         int nrTimes = data.length;
         int nrSubbands = data[0].length;
         int nrChannels = data[0][0].length;
@@ -71,10 +72,10 @@ public class Dedispersion {
                 int posX = time + shifts[freq];
                 if (posX < nrTimes) {
                     data[time][subband][channel] = data[posX][subband][channel];
-                    flagged[time][subband][channel] = flagged[posX][subband][channel];
+                    flagged.set(time, subband, channel, flagged.get(posX, subband, channel));
                 } else {
                     data[time][subband][channel] = 0.0f;
-                    flagged[time][subband][channel] = true;
+                    flagged.set(time, subband, channel);
                 }
             }
         }
@@ -85,7 +86,7 @@ public class Dedispersion {
                 int count = 0;
                 for (int subband = 1; subband < nrSubbands; subband++) {
                     for (int channel = 0; channel < nrChannels; channel++) {
-                        if (!flagged[time][subband][channel]) {
+                        if (!flagged.get(time, subband, channel)) {
                             data[time][0][0] += data[time][subband][channel];
                             count++;
                         }
@@ -115,7 +116,7 @@ public class Dedispersion {
         }
     }
 
-    public static float[] fold(float[][][] data, boolean[][][] flagged, float nrSamplesPerSecond, float period) {
+    public static float[] fold(float[][][] data, FlagCube flagged, float nrSamplesPerSecond, float period) {
         int nrTimes = data.length;
         int nrSubbands = data[0].length;
         int nrChannels = data[0][0].length;
@@ -137,7 +138,7 @@ public class Dedispersion {
             }
             for (int subband = 0; subband < nrSubbands; subband++) {
                 for (int channel = 0; channel < nrChannels; channel++) {
-                    if (!flagged[time][subband][channel]) {
+                    if (!flagged.get(time, subband, channel)) {
                         res[mod] += data[time][subband][channel];
                         count[mod]++;
                     }
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2013 Netherlands eScience Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.esciencecenter.eastroviz;
+
+import java.io.IOException;
+
+import nl.esciencecenter.eastroviz.dataformats.DataProvider;
+import nl.esciencecenter.eastroviz.dataformats.visibility.VisibilityData;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Flags a visibility data set with 1 .. N threads, and logs the time and speedup for each number of threads. It also checks that
+ * the flags are the same for every number of threads.
+ */
+public final class FlaggingSpeedup {
+    private static final Logger LOGGER = LoggerFactory.getLogger(FlaggingSpeedup.class);
+    private static final int DEFAULT_REPETITIONS = 5;
+
+    private FlaggingSpeedup() {
+    }
+
+    private static long flagTime(final DataProvider data, final int repetitions) {
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < repetitions; i++) {
+            final long start = System.nanoTime();
+            data.flag();
+            final long time = System.nanoTime() - start;
+            if (time < best) {
+                best = time;
+            }
+        }
+        return best;
+    }
+
+    private static long flagHash(final DataProvider data) {
+        long hash = 1;
+        for (int x = 0; x < data.getSizeX(); x++) {
+            for (int y = 0; y < data.getSizeY(); y++) {
+                hash = hash * 31 + (data.isFlagged(x, y) ? 1 : 0);
+            }
+        }
+        return hash;
+    }
+
+    public static void main(final String[] args) throws IOException {
+        String fileName = null;
+        String flagger = "HistorySmoothedSumThreshold";
+        int maxThreads = Runtime.getRuntime().availableProcessors();
+        int repetitions = DEFAULT_REPETITIONS;
+        int station1 = 0;
+        int station2 = 1;
+
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-flagger")) {
+                i++;
+                flagger = args[i];
+            } else if (args[i].equals("-maxThreads")) {
+                i++;
+                maxThreads = Integer.parseInt(args[i]);
+            } else if (args[i].equals("-repetitions")) {
+                i++;
+                repetitions = Integer.parseInt(args[i]);
+            } else if (args[i].equals("-stations")) {
+                station1 = Integer.parseInt(args[i + 1]);
+                station2 = Integer.parseInt(args[i + 2]);
+                i += 2;
+            } else {
+                fileName = args[i];
+            }
+        }
+
+        if (fileName == null) {
+            LOGGER.info("Usage: FlaggingSpeedup [-flagger name] [-maxThreads n] [-repetitions n] [-stations s1 s2] <visibilities file>");
+            System.exit(1);
+        }
+
+        final VisibilityData data = new VisibilityData(fileName, station1, station2, 0, -1, -1);
+        data.read();
+        data.setNrFlaggerThreads(1);
+        data.setFlagger(flagger);
+
+        // warm up
+        flagTime(data, repetitions);
+
+        final long serialHash = flagHash(data);
+        long serialTime = 0;
+        LOGGER.info("threads    time (ms)    speedup");
+        for (int threads = 1; threads <= maxThreads; threads++) {
+            data.setNrFlaggerThreads(threads);
+            final long time = flagTime(data, repetitions);
+            if (threads == 1) {
+                serialTime = time;
+            }
+            if (flagHash(data) != serialHash) {
+                LOGGER.error("flags with " + threads + " threads differ from the serial flags!");
+                System.exit(1);
+            }
+            LOGGER.info(String.format("%7d %12.2f %10.2f", threads, time / 1.0E6, (double) serialTime / time));
+        }
+    }
+}
@@ -2,19 +2,21 @@ package nl.esciencecenter.eastroviz;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.FloatBuffer;
 
 import nl.esciencecenter.eastroviz.dataformats.DataProvider;
+import nl.esciencecenter.eastroviz.dataformats.beamformed.BeamFormedBlockHandler;
 import nl.esciencecenter.eastroviz.dataformats.beamformed.BeamFormedDataReader;
 import nl.esciencecenter.eastroviz.dataformats.beamformed.BeamFormedMetaData;
-import nl.esciencecenter.eastroviz.dataformats.beamformed.BeamFormedSampleHandler;
 
 /**
- * compute the pulse profile in full resolution from a data set.
+ * compute the pulse profile in full resolution from a data set. The samples are folded a time step at a time; the dispersion
+ * shift of every frequency is computed once, in periods, so folding a sample only takes a subtraction and a floor.
  * 
  * @author rob
  * 
  */
-public final class PulseProfile implements BeamFormedSampleHandler {
+public final class PulseProfile implements BeamFormedBlockHandler {
     private BeamFormedMetaData m;
 
     public static final int NR_BINS = 512;
@@ -25,7 +27,9 @@ public final class PulseProfile implements BeamFormedSampleHandler {
     // pulsar parameters.
     private final double dm = 12.455;
     private final double period = 1.3373021601895;
-    private double[] shifts;
+    private double[] shiftsInPeriods; // per frequency
+    private double periodsPerSample;
+    private float[] timeStep; // the samples of the current time step
 
     private double[] bins = new double[NR_BINS];
     private long[] counts = new long[NR_BINS];
@@ -73,8 +77,14 @@ public final class PulseProfile implements BeamFormedSampleHandler {
         m = reader.readMetaData();
         double sampleRate = m.totalNrSamples / m.totalIntegrationTime;
 
-        shifts = Dedispersion.computeShiftsInSeconds(m.nrSubbands, m.nrChannels, sampleRate, m.minFrequency, m.channelWidth, dm);
-        reader.read(m, this);
+        double[] shifts =
+                Dedispersion.computeShiftsInSeconds(m.nrSubbands, m.nrChannels, sampleRate, m.minFrequency, m.channelWidth, dm);
+        shiftsInPeriods = new double[shifts.length];
+        for (int freq = 0; freq < shifts.length; freq++) {
+            shiftsInPeriods[freq] = shifts[freq] / period;
+        }
+        periodsPerSample = 1.0 / (sampleRate * period);
+        reader.readTimeSteps(m, this);
     }
 
     public static void main(String[] args) {
@@ -116,40 +126,39 @@ public final class PulseProfile implements BeamFormedSampleHandler {
     }
 
     @Override
-    public void handleSample(int second, int minorTime, int subband, int channel, float sample) {
-        totalSamples++;
-
-        if (sample <= 0.0f) {
-            // flagged sample
-            flaggedSamples++;
-            return;
-        }
-
-        int freq = subband * m.nrChannels + channel;
-        double sampleRate = m.totalNrSamples / m.totalIntegrationTime;
-
-        long samplePos = second * m.nrSamplesPerTimeStep + minorTime;
-        double time = samplePos / sampleRate;
-        double shiftedTime = time - shifts[freq];
-
-        if (time < 0.0) {
-            //            return;
+    public void handleTimeStep(int second, long firstSample, FloatBuffer samples, int nrSamples, int nrSubbands, int nrChannels) {
+        final int nrFrequencies = nrSubbands * nrChannels;
+        final int size = nrSamples * nrFrequencies;
+        if (timeStep == null || timeStep.length < size) {
+            timeStep = new float[size];
         }
+        samples.get(timeStep, 0, size);
+        totalSamples += size;
+
+        int index = 0;
+        for (int sample = 0; sample < nrSamples; sample++) {
+            final double samplePhase = (firstSample + sample) * periodsPerSample;
+            for (int freq = 0; freq < nrFrequencies; freq++, index++) {
+                final float value = timeStep[index];
+                if (value <= 0.0f) {
+                    // flagged sample
+                    flaggedSamples++;
+                    continue;
+                }
 
-        double phase = shiftedTime / period;
-        phase -= Math.floor(phase);
+                double phase = samplePhase - shiftsInPeriods[freq];
+                phase -= Math.floor(phase);
 
-        int bin = (int) (phase * NR_BINS);
+                int bin = (int) (phase * NR_BINS);
+                if (bin < 0) {
+                    bin = 0;
+                } else if (bin >= NR_BINS) {
+                    bin = NR_BINS - 1;
+                }
 
-        if (bin < 0) {
-            bin = 0;
-        } else if (bin >= NR_BINS) {
-            bin = NR_BINS - 1;
+                bins[bin] += value;
+                counts[bin]++;
+            }
         }
-
-        //       System.out.println("handle, second = " + second + ", minor = " + minorTime + ", subband = " + subband +  ", channel = " + channel + ", freq = "+ freq + ", time = " + time + ", shifted = " + shiftedTime);
-
-        bins[bin] += sample;
-        counts[bin]++;
     }
 }
@@ -18,6 +18,8 @@ package nl.esciencecenter.eastroviz;
 import java.io.File;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -30,9 +32,11 @@ import nl.esciencecenter.eastroviz.dataformats.preprocessed.intermediate.Interme
 import nl.esciencecenter.eastroviz.dataformats.raw.RawData;
 import nl.esciencecenter.eastroviz.dataformats.raw.RawDataFrame;
 import nl.esciencecenter.eastroviz.dataformats.raw.RawDataReader;
+import nl.esciencecenter.eastroviz.dataformats.visibility.BrokenStationDetector;
 import nl.esciencecenter.eastroviz.dataformats.visibility.MSMetaData;
 import nl.esciencecenter.eastroviz.dataformats.visibility.MSReader;
 import nl.esciencecenter.eastroviz.dataformats.visibility.VisibilityData;
+import nl.esciencecenter.eastroviz.dataformats.visibility.VisibilityWindow;
 import nl.esciencecenter.eastroviz.gui.BeamFormedFrame;
 import nl.esciencecenter.eastroviz.gui.PreProcessedFrame;
 import nl.esciencecenter.eastroviz.gui.RawFrame;
@@ -59,6 +63,9 @@ public final class Viz {
     private boolean visibilities = false;
     private final int integrationFactor;
     private String flaggingType = "none";
+    private final boolean detectBrokenStations;
+    private final boolean autoCorrelationsOnly;
+    private final VisibilityWindow window;
     
     public static final class ExtFilter implements FilenameFilter {
         private final String ext;
@@ -75,7 +82,8 @@ public final class Viz {
 
     public Viz(final String fileName, final boolean batch, final boolean raw, boolean visibilities, final boolean beamFormed,
             final boolean intermediate, final boolean filtered, final boolean compressedBeamFormed, final int integrationFactor,
-            final int maxSeqNo, final int maxSubbands, final String flaggingType) {
+            final int maxSeqNo, final int maxSubbands, final String flaggingType, final boolean detectBrokenStations,
+            final boolean autoCorrelationsOnly, final VisibilityWindow window) {
         this.fileName = fileName;
         this.batch = batch;
         this.raw = raw;
@@ -88,6 +96,9 @@ public final class Viz {
         this.maxSequenceNr = maxSeqNo;
         this.maxSubbands = maxSubbands;
         this.flaggingType = flaggingType;
+        this.detectBrokenStations = detectBrokenStations;
+        this.autoCorrelationsOnly = autoCorrelationsOnly;
+        this.window = window;
 /*
         // Use the platform's native look and feel.
         try {
@@ -239,15 +250,49 @@ public final class Viz {
                 // batch processing mode
                 final MSMetaData meta = MSReader.getMetaData(fileName);
                 final int nrStations = meta.getNrStations();
+                boolean[] brokenStations = new boolean[nrStations];
+                if (detectBrokenStations) {
+                    final BrokenStationDetector detector = new BrokenStationDetector(fileName, maxSequenceNr, maxSubbands);
+                    detector.detect();
+                    LOGGER.info("station health report:\n" + detector.getReport());
+                    brokenStations = detector.getBrokenStations();
+                }
+                final List<Integer> baselines = new ArrayList<Integer>();
                 for (int station2 = 0; station2 < nrStations; station2++) {
-                    for (int station1 = 0; station1 < nrStations; station1++) {
-                        final VisibilityData visibilityData =
-                                new VisibilityData(fileName, station1, station2, 0, maxSequenceNr, maxSubbands);
-                        visibilityData.read();
+                    for (int station1 = 0; station1 <= station2; station1++) {
+                        if (autoCorrelationsOnly && station1 != station2) {
+                            continue;
+                        }
+                        if (brokenStations[station1] || brokenStations[station2]) {
+                            LOGGER.info("skipping baseline " + station1 + "-" + station2 + ", it has a broken station");
+                            continue;
+                        }
+                        baselines.add(VisibilityData.baseline(station1, station2));
+                    }
+                }
+
+                // read as many baselines per pass over the data as fit in half of the memory
+                final long sizePerBaseline = VisibilityData.getSizePerBaseline(fileName, window);
+                final int baselinesPerPass =
+                        (int) Math.max(1, Math.min(baselines.size(), Runtime.getRuntime().maxMemory() / 2 / sizePerBaseline));
+                LOGGER.info("reading " + baselines.size() + " baselines, " + baselinesPerPass + " per pass");
+
+                for (int first = 0; first < baselines.size(); first += baselinesPerPass) {
+                    final int[] pass = new int[Math.min(baselinesPerPass, baselines.size() - first)];
+                    for (int i = 0; i < pass.length; i++) {
+                        pass[i] = baselines.get(first + i);
+                    }
+                    final VisibilityData[] data =
+                            VisibilityData.read(fileName, pass, maxSequenceNr, maxSubbands, window, Runtime.getRuntime()
+                                    .availableProcessors());
+                    for (int i = 0; i < data.length; i++) {
+                        final VisibilityData visibilityData = data[i];
+                        data[i] = null; // so it can be collected once it is saved
                         for (int pol = 0; pol < NR_POLARIZATIONS * NR_POLARIZATIONS; pol++) {
                             final VisibilityFrame vizFrame = new VisibilityFrame(this, visibilityData, pol);
                             final String fileName =
-                                    "outputVisibilities-baseline-" + station1 + "-" + station2 + "-polarization-"
+                                    "outputVisibilities-baseline-" + visibilityData.getStation1() + "-"
+                                            + visibilityData.getStation2() + "-polarization-"
                                             + visibilityData.polarizationToString(pol) + ".bmp";
                             LOGGER.info("writing file: " + fileName);
                             vizFrame.save(fileName);
@@ -257,7 +302,7 @@ public final class Viz {
                 }
                 System.exit(0);
             } else {
-                final VisibilityData visibilityData = new VisibilityData(fileName, 1, 0, 0, maxSequenceNr, maxSubbands);
+                final VisibilityData visibilityData = new VisibilityData(fileName, 1, 0, 0, maxSequenceNr, maxSubbands, window);
                 visibilityData.read();
                 final VisibilityFrame vizFrame = new VisibilityFrame(this, visibilityData, 0 /*pol*/);
                 vizFrame.pack();
@@ -274,6 +319,25 @@ public final class Viz {
         LOGGER.info("unknwon file type!");
     }
 
+    /**
+     * @return the first number of an inclusive range "first-last". A range without a last number, "first-", goes up to the end.
+     */
+    private static int parseFirst(final String range) {
+        final int dash = range.indexOf('-');
+        return Integer.parseInt(dash < 0 ? range : range.substring(0, dash));
+    }
+
+    private static int parseLast(final String range) {
+        final int dash = range.indexOf('-');
+        if (dash < 0) {
+            return Integer.parseInt(range);
+        }
+        if (dash == range.length() - 1) {
+            return Integer.MAX_VALUE;
+        }
+        return Integer.parseInt(range.substring(dash + 1));
+    }
+
     public static void main(final String[] args) {
         String fileName = null;
         boolean batch = false;
@@ -287,9 +351,12 @@ public final class Viz {
         int maxSubbands = Integer.MAX_VALUE;
         int integrationFactor = 1;
         String flaggingType = "none";
+        boolean detectBrokenStations = false;
+        boolean autoCorrelationsOnly = false;
+        VisibilityWindow window = VisibilityWindow.ALL;
 
         if (args.length < 1) {
-            LOGGER.info("Usage: Viz [-batch] [-maxSeqNo] [-flaggingType] [-data format] <dataset directory or raw file>");
+            LOGGER.info("Usage: Viz [-batch] [-maxSeqNo] [-flaggingType] [-detectBrokenStations] [-autoCorrelations] [-seconds first-last] [-subbands first-last] [-channels first-last] [-data format] <dataset directory or raw file>");
             System.exit(1);
         }
 
@@ -310,6 +377,19 @@ public final class Viz {
             } else if (args[i].equals("-flaggingType")) {
                 i++;
                 flaggingType = args[i];
+            } else if (args[i].equals("-detectBrokenStations")) {
+                detectBrokenStations = true;
+            } else if (args[i].equals("-autoCorrelations")) {
+                autoCorrelationsOnly = true;
+            } else if (args[i].equals("-seconds")) {
+                i++;
+                window = window.withSeconds(parseFirst(args[i]), parseLast(args[i]));
+            } else if (args[i].equals("-subbands")) {
+                i++;
+                window = window.withSubbands(parseFirst(args[i]), parseLast(args[i]));
+            } else if (args[i].equals("-channels")) {
+                i++;
+                window = window.withChannels(parseFirst(args[i]), parseLast(args[i]));
             } else {
                 // it must be the filename
                 if (fileName != null) {
@@ -339,7 +419,8 @@ public final class Viz {
 
         try {
             new Viz(fileName, batch, raw, visibilities, beamFormed, intermediate, filtered, compressedBeamFormed,
-                    integrationFactor, maxSeqNo, maxSubbands, flaggingType).start();
+                    integrationFactor, maxSeqNo, maxSubbands, flaggingType, detectBrokenStations, autoCorrelationsOnly, window)
+                    .start();
         } catch (final IOException e) {
             e.printStackTrace();
             System.exit(1);
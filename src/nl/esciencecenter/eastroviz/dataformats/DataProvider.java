@@ -17,6 +17,10 @@ package nl.esciencecenter.eastroviz.dataformats;
 
 import java.util.Arrays;
 
+import nl.esciencecenter.eastroviz.flaggers.CompressedFlagMask;
+import nl.esciencecenter.eastroviz.flaggers.StatisticsCache;
+import nl.esciencecenter.eastroviz.flaggers.StatisticsType;
+
 /**
  * @author rob
  * 
@@ -24,6 +28,7 @@ import java.util.Arrays;
 public abstract class DataProvider {
 
     public static final int SIZE_OF_FLOAT = 4;
+    public static final long DEFAULT_FLAG_CACHE_SIZE = 64L * 1024 * 1024;
 
     private String flaggerType;
     private float flaggerSensitivity = 1.0f;
@@ -33,6 +38,9 @@ public abstract class DataProvider {
     private String fileName;
     private int maxSequenceNr;
     private int maxSubbands;
+    private int nrFlaggerThreads = Runtime.getRuntime().availableProcessors();
+    private StatisticsCache statisticsCache;
+    private final FlagCache flagCache = new FlagCache(DEFAULT_FLAG_CACHE_SIZE);
 
     protected DataProvider() {
     }
@@ -125,7 +133,7 @@ public abstract class DataProvider {
         for (final String element : flaggerList) {
             if (name.equals(element)) {
                 flaggerType = element;
-                flag();
+                flagCached();
                 return;
             }
         }
@@ -150,7 +158,103 @@ public abstract class DataProvider {
             return;
         }
         this.flaggerSensitivity = flaggerSensitivity;
+        flagCached();
+    }
+
+    /**
+     * @return the flags of this data set, or null if the provider does not support caching them. Override this to let
+     *         {@link #setFlagger(String)} and {@link #setFlaggerSensitivity(float)} reuse the flags of earlier settings.
+     */
+    protected FlagCube getFlagCube() {
+        return null;
+    }
+
+    /**
+     * Flags the data with the current settings, or restores the flags from the cache if these settings were used before.
+     */
+    private void flagCached() {
+        final FlagCube flags = getFlagCube();
+        if (flags == null) {
+            flag();
+            return;
+        }
+
+        final FlagCache.Key key =
+                new FlagCache.Key(flaggerType, flaggerSensitivity, flaggerSIRValue, getStation1(), getStation2(), maxSequenceNr,
+                        maxSubbands);
+        final CompressedFlagMask cached = flagCache.get(key);
+        if (cached != null && cached.size() == flags.size()) {
+            flags.copyFrom(cached);
+            return;
+        }
+
         flag();
+        flagCache.put(key, getFlagCube().compress());
+    }
+
+    /**
+     * Flags the data again with the current flagger, after other data was read. The first flagger of the list does not flag, so
+     * then the initial flags are kept.
+     */
+    protected final void reflag() {
+        if (!flaggerType.equals(flaggerList[0])) {
+            flagCached();
+        }
+    }
+
+    public final long getFlagCacheSize() {
+        return flagCache.getMaxSizeInBytes();
+    }
+
+    /**
+     * Set the maximum amount of memory used to cache the flags of earlier flagger settings. Use 0 to disable the cache.
+     */
+    public final void setFlagCacheSize(final long maxSizeInBytes) {
+        flagCache.setMaxSizeInBytes(maxSizeInBytes);
+    }
+
+    public int getNrFlaggerThreads() {
+        return nrFlaggerThreads;
+    }
+
+    /**
+     * Set the number of threads used for flagging. The flags do not depend on the number of threads, so the data is not flagged
+     * again.
+     */
+    public void setNrFlaggerThreads(final int nrFlaggerThreads) {
+        if (nrFlaggerThreads < 1) {
+            throw new IllegalArgumentException("need at least one flagger thread, got " + nrFlaggerThreads);
+        }
+        this.nrFlaggerThreads = nrFlaggerThreads;
+    }
+
+    /**
+     * @return the cache for the first-pass statistics of the flaggers, so changing the sensitivity does not recalculate them. A new
+     *         cache is created if there is none yet, or if its size does not match.
+     */
+    protected final StatisticsCache getStatisticsCache(final int nrCells, final int nrPolarizations) {
+        if (statisticsCache == null || statisticsCache.getNrCells() != nrCells
+                || statisticsCache.getNrPolarizations() != nrPolarizations) {
+            statisticsCache = new StatisticsCache(nrCells, nrPolarizations, StatisticsType.STDDEV_MAD);
+        }
+        return statisticsCache;
+    }
+
+    /**
+     * Forget the cached flagger statistics. Call this whenever the data or the initial flags change, for instance after reading
+     * another station.
+     */
+    protected final void invalidateStatisticsCache() {
+        statisticsCache = null;
+    }
+
+    /**
+     * Forget the cached statistics and flags. The flags are cached per station, so only call this if the data changes without
+     * selecting another station, for instance after dedispersion.
+     */
+    protected final void invalidateFlaggerCaches() {
+        statisticsCache = null;
+        flagCache.clear();
     }
 
     public String[] getPolarizationNames() {
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2013 Netherlands eScience Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.esciencecenter.eastroviz.dataformats;
+
+import nl.esciencecenter.eastroviz.flaggers.CompressedFlagMask;
+
+/**
+ * Remembers the flags for recently used flagger settings, so switching back to a flagger or sensitivity that was used before does
+ * not run the flagger again. The flags are stored compressed, and the least recently used entries are dropped when the cache uses
+ * more than the maximum number of bytes.
+ */
+public final class FlagCache extends SizeBoundedCache<FlagCache.Key, CompressedFlagMask> {
+    /**
+     * The settings that determine the flags of a data set.
+     */
+    public static final class Key {
+        private final String flagger;
+        private final float sensitivity;
+        private final float SIRValue;
+        private final int station1;
+        private final int station2;
+        private final int maxSequenceNr;
+        private final int maxSubbands;
+
+        public Key(final String flagger, final float sensitivity, final float SIRValue, final int station1, final int station2,
+                final int maxSequenceNr, final int maxSubbands) {
+            this.flagger = flagger;
+            this.sensitivity = sensitivity;
+            this.SIRValue = SIRValue;
+            this.station1 = station1;
+            this.station2 = station2;
+            this.maxSequenceNr = maxSequenceNr;
+            this.maxSubbands = maxSubbands;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) obj;
+            return flagger.equals(other.flagger) && Float.floatToIntBits(sensitivity) == Float.floatToIntBits(other.sensitivity)
+                    && Float.floatToIntBits(SIRValue) == Float.floatToIntBits(other.SIRValue) && station1 == other.station1
+                    && station2 == other.station2 && maxSequenceNr == other.maxSequenceNr && maxSubbands == other.maxSubbands;
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = flagger.hashCode();
+            hash = 31 * hash + Float.floatToIntBits(sensitivity);
+            hash = 31 * hash + Float.floatToIntBits(SIRValue);
+            hash = 31 * hash + station1;
+            hash = 31 * hash + station2;
+            hash = 31 * hash + maxSequenceNr;
+            hash = 31 * hash + maxSubbands;
+            return hash;
+        }
+
+        @Override
+        public String toString() {
+            return flagger + ", sensitivity " + sensitivity + ", SIR " + SIRValue + ", stations (" + station1 + ", " + station2
+                    + ")";
+        }
+    }
+
+    public FlagCache(final long maxSizeInBytes) {
+        super(maxSizeInBytes);
+    }
+
+    @Override
+    protected long sizeOf(final CompressedFlagMask flags) {
+        return flags.getSizeInBytes();
+    }
+}
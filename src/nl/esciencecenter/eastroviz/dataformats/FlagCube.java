@@ -0,0 +1,149 @@
+/*
+ * Copyright 2013 Netherlands eScience Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.esciencecenter.eastroviz.dataformats;
+
+import nl.esciencecenter.eastroviz.flaggers.CompressedFlagMask;
+import nl.esciencecenter.eastroviz.flaggers.FlagMask;
+
+/**
+ * The flags of a data set, [time][subband][channel], stored as one bit per sample. The channels of a subband are consecutive,
+ * followed by the next subband. Every time step starts at a word boundary, so different time steps never share a word, and can be
+ * written by different threads.
+ * <p>
+ * Optionally, every subband starts at a word boundary as well. Then different subbands can be written by different threads too.
+ * This costs some memory if the number of channels is not a multiple of 64.
+ */
+public final class FlagCube {
+    private final int nrTimes;
+    private final int nrSubbands;
+    private final int nrChannels;
+    private final long subbandStride;
+    private final long timeStride;
+    private final FlagMask mask;
+
+    public FlagCube(final int nrTimes, final int nrSubbands, final int nrChannels) {
+        this(nrTimes, nrSubbands, nrChannels, false);
+    }
+
+    public FlagCube(final int nrTimes, final int nrSubbands, final int nrChannels, final boolean alignSubbands) {
+        this.nrTimes = nrTimes;
+        this.nrSubbands = nrSubbands;
+        this.nrChannels = nrChannels;
+        if (alignSubbands) {
+            subbandStride = FlagMask.wordAligned(nrChannels);
+            timeStride = nrSubbands * subbandStride;
+        } else {
+            subbandStride = nrChannels;
+            timeStride = FlagMask.wordAligned((long) nrSubbands * nrChannels);
+        }
+        mask = new FlagMask(nrTimes * timeStride);
+    }
+
+    public FlagCube(final FlagCube other) {
+        nrTimes = other.nrTimes;
+        nrSubbands = other.nrSubbands;
+        nrChannels = other.nrChannels;
+        subbandStride = other.subbandStride;
+        timeStride = other.timeStride;
+        mask = new FlagMask(other.mask);
+    }
+
+    public int getNrTimes() {
+        return nrTimes;
+    }
+
+    public int getNrSubbands() {
+        return nrSubbands;
+    }
+
+    public int getNrChannels() {
+        return nrChannels;
+    }
+
+    private long index(final int time, final int subband, final int channel) {
+        return time * timeStride + subband * subbandStride + channel;
+    }
+
+    public boolean get(final int time, final int subband, final int channel) {
+        return mask.get(index(time, subband, channel));
+    }
+
+    public void set(final int time, final int subband, final int channel) {
+        mask.set(index(time, subband, channel));
+    }
+
+    public void set(final int time, final int subband, final int channel, final boolean value) {
+        mask.set(index(time, subband, channel), value);
+    }
+
+    /**
+     * Clears all flags.
+     */
+    public void clear() {
+        mask.clear();
+    }
+
+    /**
+     * Makes these flags equal to other, which must have the same dimensions.
+     */
+    public void copyFrom(final FlagCube other) {
+        mask.copyFrom(other.mask);
+    }
+
+    /**
+     * @return a compressed copy of the flags, which can be restored with {@link #copyFrom(CompressedFlagMask)}.
+     */
+    public CompressedFlagMask compress() {
+        return CompressedFlagMask.compress(mask);
+    }
+
+    /**
+     * Makes these flags equal to flags that were compressed from a cube with the same dimensions.
+     */
+    public void copyFrom(final CompressedFlagMask compressed) {
+        compressed.decompressTo(mask);
+    }
+
+    /**
+     * @return the number of flags, including the padding that aligns time steps and subbands.
+     */
+    public long size() {
+        return mask.size();
+    }
+
+    /**
+     * @return the number of flagged samples.
+     */
+    public long cardinality() {
+        return mask.cardinality();
+    }
+
+    /**
+     * Copies dest.size() flags, starting at channel 0 of the given time and subband, to dest. Usually dest holds the channels of
+     * one subband. If there is only one channel and the subbands are not aligned, it can also hold all subbands of a time step.
+     */
+    public void copyTo(final int time, final int subband, final FlagMask dest) {
+        mask.copyTo(index(time, subband, 0), dest);
+    }
+
+    /**
+     * The opposite of {@link #copyTo(int, int, FlagMask)}: stores the flags in src, starting at channel 0 of the given time and
+     * subband.
+     */
+    public void copyFrom(final FlagMask src, final int time, final int subband) {
+        mask.copyFrom(src, index(time, subband, 0));
+    }
+}
@@ -0,0 +1,315 @@
+/*
+ * Copyright 2013 Netherlands eScience Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.esciencecenter.eastroviz.dataformats;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import nl.esciencecenter.eastroviz.flaggers.BeamFormedFlagger;
+import nl.esciencecenter.eastroviz.flaggers.FlagMask;
+import nl.esciencecenter.eastroviz.flaggers.IntermediateFlagger;
+import nl.esciencecenter.eastroviz.flaggers.PreCorrelationFlagger;
+import nl.esciencecenter.eastroviz.flaggers.PreCorrelationNoChannelsFlagger;
+import nl.esciencecenter.eastroviz.flaggers.StatisticsCache;
+
+/**
+ * Flags the time steps of a data set in parallel. This only works for flaggers without state across time, such as the
+ * {@link IntermediateFlagger} and the {@link BeamFormedFlagger}: then every time step can be flagged independently. The time range
+ * is split recursively into chunks, which are executed by a fork/join pool, so idle threads steal chunks from busy ones. Every
+ * thread gets its own {@link Worker}, with its own flaggers and scratch buffers. The time steps of a {@link FlagCube} never share
+ * a word, so the threads can write their flags without locking, and the result does not depend on the number of threads.
+ */
+public final class FlagEngine {
+    /** Aim for this many chunks per thread, so work stealing can even out the load. */
+    private static final int CHUNKS_PER_THREAD = 8;
+
+    /**
+     * Flags time steps. A worker is only used by one thread.
+     */
+    public interface Worker {
+        void flag(int time);
+    }
+
+    public interface WorkerFactory {
+        Worker createWorker();
+    }
+
+    private FlagEngine() {
+    }
+
+    /**
+     * Flags time steps 0 .. nrTimes-1 with nrThreads threads. With one thread, the calling thread does all the work. The index
+     * passed to the workers can also be a block of time steps, as long as different indices write different time steps.
+     */
+    public static void flag(final int nrTimes, final int nrThreads, final WorkerFactory factory) {
+        if (nrTimes <= 0) {
+            return;
+        }
+        if (nrThreads <= 1) {
+            final Worker worker = factory.createWorker();
+            for (int time = 0; time < nrTimes; time++) {
+                worker.flag(time);
+            }
+            return;
+        }
+
+        final int chunkSize = Math.max(1, nrTimes / (nrThreads * CHUNKS_PER_THREAD));
+        final ThreadLocal<Worker> workers = new ThreadLocal<Worker>() {
+            @Override
+            protected Worker initialValue() {
+                return factory.createWorker();
+            }
+        };
+
+        final ForkJoinPool pool = new ForkJoinPool(nrThreads);
+        try {
+            pool.invoke(new FlagTask(0, nrTimes, chunkSize, workers));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static final class FlagTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int from;
+        private final int to;
+        private final int chunkSize;
+        private final transient ThreadLocal<Worker> workers;
+
+        FlagTask(final int from, final int to, final int chunkSize, final ThreadLocal<Worker> workers) {
+            this.from = from;
+            this.to = to;
+            this.chunkSize = chunkSize;
+            this.workers = workers;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= chunkSize) {
+                final Worker worker = workers.get();
+                for (int time = from; time < to; time++) {
+                    worker.flag(time);
+                }
+                return;
+            }
+
+            final int middle = (from + to) >>> 1;
+            invokeAll(new FlagTask(from, middle, chunkSize, workers), new FlagTask(middle, to, chunkSize, workers));
+        }
+    }
+
+    /**
+     * Flags data with a {@link BeamFormedFlagger}, on top of the flags that are already set. If there are multiple channels, the
+     * channels of every subband are flagged. If there is only one channel, the subbands of every time step are flagged together.
+     *
+     * @param data
+     *            [time][nrSubbands][nrChannels]
+     * @param statisticsCache
+     *            cache for the first-pass statistics, with nrTimes * nrSubbands cells and one polarization, or null.
+     */
+    public static void flagBeamFormed(final float[][][] data, final FlagCube flagged, final int nrTimes, final int nrSubbands,
+            final int nrChannels, final float sensitivity, final float SIRValue, final int nrThreads,
+            final StatisticsCache statisticsCache) {
+        flag(nrTimes, nrThreads, new WorkerFactory() {
+            @Override
+            public Worker createWorker() {
+                final BeamFormedFlagger flagger = new BeamFormedFlagger(sensitivity, SIRValue);
+                flagger.setStatisticsCache(statisticsCache);
+
+                if (nrChannels > 1) {
+                    final FlagMask cellFlags = new FlagMask(nrChannels);
+                    return new Worker() {
+                        @Override
+                        public void flag(final int time) {
+                            for (int sb = 0; sb < nrSubbands; sb++) {
+                                flagger.setStatisticsCacheCell(time * nrSubbands + sb);
+                                flagged.copyTo(time, sb, cellFlags);
+                                flagger.flag(data[time][sb], cellFlags);
+                                flagged.copyFrom(cellFlags, time, sb);
+                            }
+                        }
+                    };
+                }
+
+                final float[] tmp = new float[nrSubbands];
+                final FlagMask tmpFlags = new FlagMask(nrSubbands);
+                return new Worker() {
+                    @Override
+                    public void flag(final int time) {
+                        flagger.setStatisticsCacheCell(time);
+                        tmpFlags.clear();
+                        for (int sb = 0; sb < nrSubbands; sb++) {
+                            tmp[sb] = data[time][sb][0];
+                        }
+
+                        flagger.flag(tmp, tmpFlags);
+                        flagged.copyFrom(tmpFlags, time, 0); // with one channel, the subbands of a time step are consecutive
+                    }
+                };
+            }
+        });
+    }
+
+    /**
+     * Flags data with an {@link IntermediateFlagger}, on top of the flags that are already set. If there are multiple channels,
+     * the channels of every subband are flagged. If there is only one channel, the subbands of every time step are flagged
+     * together.
+     *
+     * @param data
+     *            [time][nrSubbands][nrPolarizations][nrChannels]
+     * @param statisticsCache
+     *            cache for the first-pass statistics, with nrTimes * nrSubbands cells and nrPolarizations polarizations, or null.
+     */
+    public static void flagIntermediate(final float[][][][] data, final FlagCube flagged, final int nrTimes,
+            final int nrSubbands, final int nrChannels, final int nrPolarizations, final float sensitivity, final float SIRValue,
+            final int nrThreads, final StatisticsCache statisticsCache) {
+        flag(nrTimes, nrThreads, new WorkerFactory() {
+            @Override
+            public Worker createWorker() {
+                final IntermediateFlagger flagger = new IntermediateFlagger(sensitivity, SIRValue);
+                flagger.setStatisticsCache(statisticsCache);
+
+                if (nrChannels > 1) {
+                    final FlagMask cellFlags = new FlagMask(nrChannels);
+                    return new Worker() {
+                        @Override
+                        public void flag(final int time) {
+                            for (int sb = 0; sb < nrSubbands; sb++) {
+                                flagger.setStatisticsCacheCell(time * nrSubbands + sb);
+                                flagged.copyTo(time, sb, cellFlags);
+                                flagger.flag(data[time][sb], cellFlags);
+                                flagged.copyFrom(cellFlags, time, sb);
+                            }
+                        }
+                    };
+                }
+
+                final float[][] tmp = new float[nrPolarizations][nrSubbands];
+                final FlagMask tmpFlags = new FlagMask(nrSubbands);
+                return new Worker() {
+                    @Override
+                    public void flag(final int time) {
+                        flagger.setStatisticsCacheCell(time);
+                        tmpFlags.clear();
+                        for (int pol = 0; pol < nrPolarizations; pol++) {
+                            for (int sb = 0; sb < nrSubbands; sb++) {
+                                tmp[pol][sb] = data[time][sb][pol][0];
+                            }
+                        }
+                        flagger.flag(tmp, tmpFlags);
+                        flagged.copyFrom(tmpFlags, time, 0); // with one channel, the subbands of a time step are consecutive
+                    }
+                };
+            }
+        });
+    }
+
+    /**
+     * Flags data with a {@link PreCorrelationFlagger}, on top of the flags that are already set. The time steps are flagged in
+     * blocks of nrTimesPerBlock; the last block may be shorter.
+     *
+     * @param data
+     *            [time][nrSubbands][nrPolarizations][nrChannels]
+     */
+    public static void flagPreCorrelation(final float[][][][] data, final FlagCube flagged, final int nrTimes,
+            final int nrSubbands, final int nrChannels, final int nrPolarizations, final int nrTimesPerBlock,
+            final float sensitivity, final float SIRValue, final int nrThreads) {
+        final int nrBlocks = (nrTimes + nrTimesPerBlock - 1) / nrTimesPerBlock;
+
+        flag(nrBlocks, nrThreads, new WorkerFactory() {
+            @Override
+            public Worker createWorker() {
+                final PreCorrelationFlagger flagger =
+                        new PreCorrelationFlagger(nrChannels, nrPolarizations, nrTimesPerBlock, 0, sensitivity, SIRValue);
+                final float[][][] blockSamples = new float[nrTimesPerBlock][][];
+                final FlagMask[] blockFlags = new FlagMask[nrTimesPerBlock];
+                for (int i = 0; i < nrTimesPerBlock; i++) {
+                    blockFlags[i] = new FlagMask(nrChannels);
+                }
+
+                return new Worker() {
+                    @Override
+                    public void flag(final int block) {
+                        final int startTime = block * nrTimesPerBlock;
+                        final int blockSize = Math.min(nrTimesPerBlock, nrTimes - startTime);
+                        for (int sb = 0; sb < nrSubbands; sb++) {
+                            for (int i = 0; i < blockSize; i++) {
+                                blockSamples[i] = data[startTime + i][sb];
+                                flagged.copyTo(startTime + i, sb, blockFlags[i]);
+                            }
+                            flagger.flag(blockSamples, blockFlags, blockSize);
+                            for (int i = 0; i < blockSize; i++) {
+                                flagged.copyFrom(blockFlags[i], startTime + i, sb);
+                            }
+                        }
+                    }
+                };
+            }
+        });
+    }
+
+    /**
+     * Flags data with a {@link PreCorrelationNoChannelsFlagger}, on top of the flags that are already set. The time steps are flagged
+     * in blocks of fftSize * integrationFactor; the last block may be shorter. Every channel is flagged as a separate time series; the
+     * LOFAR flagger is meant for data with one channel.
+     *
+     * @param data
+     *            [time][nrSubbands][nrPolarizations][nrChannels]
+     */
+    public static void flagPreCorrelationNoChannels(final float[][][][] data, final FlagCube flagged, final int nrTimes,
+            final int nrSubbands, final int nrChannels, final int nrPolarizations, final int fftSize, final int integrationFactor,
+            final float sensitivity, final float SIRValue, final int nrThreads) {
+        final int nrTimesPerBlock = fftSize * integrationFactor;
+        final int nrBlocks = (nrTimes + nrTimesPerBlock - 1) / nrTimesPerBlock;
+
+        flag(nrBlocks, nrThreads, new WorkerFactory() {
+            @Override
+            public Worker createWorker() {
+                final PreCorrelationNoChannelsFlagger flagger =
+                        new PreCorrelationNoChannelsFlagger(fftSize, nrPolarizations, integrationFactor, sensitivity, SIRValue);
+                final float[][] blockSamples = new float[nrPolarizations][nrTimesPerBlock];
+                final FlagMask blockFlags = new FlagMask(nrTimesPerBlock);
+
+                return new Worker() {
+                    @Override
+                    public void flag(final int block) {
+                        final int startTime = block * nrTimesPerBlock;
+                        final int blockSize = Math.min(nrTimesPerBlock, nrTimes - startTime);
+                        for (int sb = 0; sb < nrSubbands; sb++) {
+                            for (int channel = 0; channel < nrChannels; channel++) {
+                                blockFlags.clear();
+                                for (int i = 0; i < blockSize; i++) {
+                                    final float[][] sample = data[startTime + i][sb];
+                                    for (int pol = 0; pol < nrPolarizations; pol++) {
+                                        blockSamples[pol][i] = sample[pol][channel];
+                                    }
+                                    blockFlags.set(i, flagged.get(startTime + i, sb, channel));
+                                }
+                                flagger.flag(blockSamples, blockFlags, blockSize);
+                                for (int i = 0; i < blockSize; i++) {
+                                    if (blockFlags.get(i)) {
+                                        flagged.set(startTime + i, sb, channel);
+                                    }
+                                }
+                            }
+                        }
+                    }
+                };
+            }
+        });
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2013 Netherlands eScience Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.esciencecenter.eastroviz.dataformats;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A cache that drops the least recently used entries when its values use more than the maximum number of bytes. Subclasses say
+ * how large a value is. All methods are synchronized, so a cache can be filled by a background thread.
+ *
+ * @param <K>
+ *            the type of the keys
+ * @param <V>
+ *            the type of the values
+ */
+public abstract class SizeBoundedCache<K, V> {
+    private static final Logger logger = LoggerFactory.getLogger(SizeBoundedCache.class);
+
+    private final LinkedHashMap<K, V> entries = new LinkedHashMap<K, V>(16, 0.75f, true);
+    private long maxSizeInBytes;
+    private long sizeInBytes;
+
+    protected SizeBoundedCache(final long maxSizeInBytes) {
+        setMaxSizeInBytes(maxSizeInBytes);
+    }
+
+    /**
+     * @return the number of bytes the value uses.
+     */
+    protected abstract long sizeOf(V value);
+
+    /**
+     * @return the value of the key, or null if it is not in the cache.
+     */
+    public synchronized V get(final K key) {
+        return entries.get(key);
+    }
+
+    /**
+     * Adds the value, and drops the least recently used entries if the cache gets too large. A value that is larger than the whole
+     * cache is not added.
+     */
+    public synchronized void put(final K key, final V value) {
+        final V old = entries.remove(key);
+        if (old != null) {
+            sizeInBytes -= sizeOf(old);
+        }
+        final long size = sizeOf(value);
+        if (size > maxSizeInBytes) {
+            return;
+        }
+
+        entries.put(key, value);
+        sizeInBytes += size;
+        evict();
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("cached " + key + ", " + entries.size() + " entries, " + sizeInBytes + " bytes");
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        sizeInBytes = 0;
+    }
+
+    public synchronized int getNrEntries() {
+        return entries.size();
+    }
+
+    public synchronized long getSizeInBytes() {
+        return sizeInBytes;
+    }
+
+    public synchronized long getMaxSizeInBytes() {
+        return maxSizeInBytes;
+    }
+
+    /**
+     * Set the maximum amount of memory used by the cache. Entries are dropped, least recently used first, until it fits. Use 0 to
+     * disable the cache.
+     */
+    public synchronized void setMaxSizeInBytes(final long maxSizeInBytes) {
+        if (maxSizeInBytes < 0) {
+            throw new IllegalArgumentException("negative cache size: " + maxSizeInBytes);
+        }
+        this.maxSizeInBytes = maxSizeInBytes;
+        evict();
+    }
+
+    private void evict() {
+        final Iterator<Map.Entry<K, V>> it = entries.entrySet().iterator();
+        while (sizeInBytes > maxSizeInBytes && it.hasNext()) {
+            sizeInBytes -= sizeOf(it.next().getValue());
+            it.remove();
+        }
+    }
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright 2013 Netherlands eScience Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.esciencecenter.eastroviz.dataformats.beamformed;
+
+import java.nio.FloatBuffer;
+
+/**
+ * Receives the raw samples of a beam formed data set a time step at a time, see
+ * {@link BeamFormedDataReader#readTimeSteps(BeamFormedMetaData, BeamFormedBlockHandler)}. The time steps arrive in the order of
+ * the file, on a single thread.
+ */
+public interface BeamFormedBlockHandler {
+    /**
+     * @param second
+     *            the index of the time step
+     * @param firstSample
+     *            the index of the first sample of the time step, counted from the start of the observation
+     * @param samples
+     *            the samples of the time step, as [nrSamples][nrSubbands][nrChannels], starting at the current position. The
+     *            buffer is reused for later time steps, so it is only valid during the call.
+     */
+    void handleTimeStep(int second, long firstSample, FloatBuffer samples, int nrSamples, int nrSubbands, int nrChannels);
+}
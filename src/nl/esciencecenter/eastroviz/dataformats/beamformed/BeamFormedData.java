@@ -19,7 +19,8 @@ import nl.esciencecenter.eastroviz.AntennaBandpass;
 import nl.esciencecenter.eastroviz.AntennaType;
 import nl.esciencecenter.eastroviz.Dedispersion;
 import nl.esciencecenter.eastroviz.dataformats.DataProvider;
-import nl.esciencecenter.eastroviz.flaggers.BeamFormedFlagger;
+import nl.esciencecenter.eastroviz.dataformats.FlagCube;
+import nl.esciencecenter.eastroviz.dataformats.FlagEngine;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -31,8 +32,8 @@ public final class BeamFormedData extends DataProvider {
     public static final boolean CORRECT_ANTENNA_BANDPASS = false;
 
     private float[][][] data; // [second][subband][channel]
-    private boolean[][][] initialFlagged; // [second][subband][channel]
-    private boolean[][][] flagged; // [second][nrSubbands][nrChannels]
+    private FlagCube initialFlagged; // [second][subband][channel]
+    private FlagCube flagged; // [second][nrSubbands][nrChannels]
 
     private final int zoomFactor;
     private BeamFormedMetaData m;
@@ -43,22 +44,19 @@ public final class BeamFormedData extends DataProvider {
     private int stoke = 0;
 
     public BeamFormedData(final String fileName, final int maxSequenceNr, final int maxSubbands, int zoomFactor,
-            float[][][] data, boolean[][][] initialFlagged, BeamFormedMetaData m) {
+            float[][][] data, FlagCube initialFlagged, BeamFormedMetaData m) {
 
         super();
         init(fileName, maxSequenceNr, maxSubbands, new String[] { "I" }, new String[] { "none", "BeamFormed" });
 
         this.data = data;
         this.initialFlagged = initialFlagged;
-        flagged = new boolean[m.nrTimes][m.nrSubbands][m.nrChannels];
-        for (int second = 0; second < m.nrTimes; second++) {
-            for (int subband = 0; subband < m.nrSubbands; subband++) {
-                for (int channel = 0; channel < m.nrChannels; channel++) {
-                    flagged[second][subband][channel] = initialFlagged[second][subband][channel]; 
-                }
-            }
+        if (initialFlagged != null) {
+            flagged = new FlagCube(initialFlagged);
+        } else {
+            flagged = new FlagCube(m.nrTimes, m.nrSubbands, m.nrChannels);
         }
-        
+
         this.zoomFactor = zoomFactor;
         this.m = m;
 
@@ -94,7 +92,7 @@ public final class BeamFormedData extends DataProvider {
         for (int second = 0; second < m.nrTimes; second++) {
             for (int subband = 0; subband < m.nrSubbands; subband++) {
                 for (int channel = 0; channel < m.nrChannels; channel++) {
-                    if (initialFlagged[second][subband][channel]) {
+                    if (initialFlagged.get(second, subband, channel)) {
                         initialFlaggedCount++;
                     } else {
                         if (data[second][subband][channel] < minVal) {
@@ -116,6 +114,7 @@ public final class BeamFormedData extends DataProvider {
 
     public void dedisperse(float dm) {
         Dedispersion.dedisperse(data, flagged, zoomFactor, m.minFrequency, m.channelWidth, dm);
+        invalidateFlaggerCaches();
         calculateStatistics();
     }
 
@@ -193,56 +192,30 @@ public final class BeamFormedData extends DataProvider {
         return data[x][getSubbandIndex(y)][getChannelIndex(y)];
     }
 
+    @Override
+    protected FlagCube getFlagCube() {
+        return flagged;
+    }
+
     @Override
     public boolean isFlagged(final int x, final int y) {
-        return flagged[x][getSubbandIndex(y)][getChannelIndex(y)];
+        return flagged.get(x, getSubbandIndex(y), getChannelIndex(y));
     }
 
     public float[][][] getData() {
         return data;
     }
 
-    // TODO the code below is identical to compressedBeamFormedData.flag
     @Override
     public void flag() {
-        for (int time = 0; time < m.nrTimes; time++) {
-            for (int sb = 0; sb < m.nrSubbands; sb++) {
-                for (int ch = 0; ch < m.nrChannels; ch++) {
-                    flagged[time][sb][ch] = initialFlagged[time][sb][ch];
-                }
-            }
-        }
+        flagged.copyFrom(initialFlagged);
 
         if (getFlaggerType().equals("none")) {
             return;
         }
 
-        if (m.nrChannels > 1) {
-            final BeamFormedFlagger[] flaggers = new BeamFormedFlagger[m.nrSubbands];
-            for (int i = 0; i < m.nrSubbands; i++) {
-                flaggers[i] = new BeamFormedFlagger(getFlaggerSensitivity(), getFlaggerSIRValue());
-            }
-
-            for (int time = 0; time < m.nrTimes; time++) {
-                for (int sb = 0; sb < m.nrSubbands; sb++) {
-                    flaggers[sb].flag(data[time][sb], flagged[time][sb]);
-                }
-            }
-        } else {
-            final BeamFormedFlagger flagger = new BeamFormedFlagger(getFlaggerSensitivity(), getFlaggerSIRValue());
-            for (int time = 0; time < m.nrTimes; time++) {
-                final float[] tmp = new float[m.nrSubbands];
-                final boolean[] tmpFlags = new boolean[m.nrSubbands];
-                for (int sb = 0; sb < m.nrSubbands; sb++) {
-                    tmp[sb] = data[time][sb][0];
-                }
-
-                flagger.flag(tmp, tmpFlags);
-                for (int sb = 0; sb < m.nrSubbands; sb++) {
-                    flagged[time][sb][0] = tmpFlags[sb];
-                }
-            }
-        }
+        FlagEngine.flagBeamFormed(data, flagged, m.nrTimes, m.nrSubbands, m.nrChannels, getFlaggerSensitivity(),
+                getFlaggerSIRValue(), getNrFlaggerThreads(), getStatisticsCache(m.nrTimes * m.nrSubbands, 1));
     }
 
     public double getSubbandWidth() {
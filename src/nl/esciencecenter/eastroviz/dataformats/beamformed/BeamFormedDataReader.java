@@ -7,11 +7,21 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.FloatBuffer;
 import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import nl.esciencecenter.eastroviz.Viz;
+import nl.esciencecenter.eastroviz.dataformats.FlagCube;
 import ucar.nc2.Group;
 import ucar.nc2.NetcdfFile;
 import ucar.nc2.Variable;
@@ -25,6 +35,7 @@ public class BeamFormedDataReader {
     final int maxSequenceNr;
     final int maxSubbands;
     final int zoomFactor;
+    private int nrIntegrationThreads = Runtime.getRuntime().availableProcessors();
 
     BeamFormedMetaData m = new BeamFormedMetaData();
 
@@ -143,92 +154,261 @@ public class BeamFormedDataReader {
         return m;
     }
 
+    public int getNrIntegrationThreads() {
+        return nrIntegrationThreads;
+    }
+
+    /**
+     * @param nrIntegrationThreads
+     *            the number of threads that integrate the time steps, while another thread reads the next ones. With 0, reading
+     *            and integrating alternate on the calling thread. The result is the same either way. If there is a sample
+     *            handler, it is always called by a single thread, in the order of the file.
+     */
+    public void setNrIntegrationThreads(final int nrIntegrationThreads) {
+        if (nrIntegrationThreads < 0) {
+            throw new IllegalArgumentException("negative number of integration threads: " + nrIntegrationThreads);
+        }
+        this.nrIntegrationThreads = nrIntegrationThreads;
+    }
+
     public BeamFormedData read() throws IOException {
-        return read(null, null);
+        return readTimeSteps(null, null);
     }
 
-    public BeamFormedData read(BeamFormedMetaData m, BeamFormedSampleHandler handler) throws IOException {
+    /**
+     * Like {@link #readTimeSteps(BeamFormedMetaData, BeamFormedBlockHandler)}, but gives the samples to the handler one by one.
+     */
+    public BeamFormedData read(final BeamFormedMetaData m, final BeamFormedSampleHandler handler) throws IOException {
+        return readTimeSteps(m, handler == null ? null : new BeamFormedSampleHandlerAdapter(handler));
+    }
+
+    /**
+     * Reads the data set. Without a handler, the samples of every time step are integrated. With a handler, the time steps are
+     * given to it instead, and the returned data set has no samples.
+     * 
+     * @param m
+     *            the meta data, or null to read it from the hdf5 file.
+     */
+    public BeamFormedData readTimeSteps(BeamFormedMetaData m, final BeamFormedBlockHandler handler) throws IOException {
         if (m == null) {
             m = readMetaData();
         }
 
         float[][][] samples = null;
-        boolean[][][] initialFlagged = null;
+        FlagCube initialFlagged = null;
 
         if (handler == null) {
             samples = new float[m.nrTimes][m.nrSubbands][m.nrChannels];
-            initialFlagged = new boolean[m.nrTimes][m.nrSubbands][m.nrChannels];
+            initialFlagged = new FlagCube(m.nrTimes, m.nrSubbands, m.nrChannels);
         }
 
-        int second = 0;
+        final long start = System.currentTimeMillis();
+        FileInputStream fin = null;
+        try {
+            fin = new FileInputStream(new File(rawFileName));
+            final FileChannel ch = fin.getChannel();
+            if (nrIntegrationThreads == 0) {
+                readSerial(ch, m, samples, initialFlagged, handler);
+            } else {
+                readPipelined(ch, m, samples, initialFlagged, handler);
+            }
+        } finally {
+            if (fin != null) {
+                try {
+                    fin.close();
+                    fin = null;
+                } catch (final IOException e) {
+                    // ignore
+                }
+            }
+        }
+        final long end = System.currentTimeMillis();
 
-        final ByteBuffer bb = ByteBuffer.allocateDirect(m.nrSamplesPerTimeStep * m.nrSubbands * m.nrChannels * 4);
-        bb.order(ByteOrder.LITTLE_ENDIAN);
-        final FloatBuffer fb = bb.asFloatBuffer();
+        final double size = ((double) m.nrTimes * getTimeStepSize(m)) / (1024.0 * 1024.0);
+        final double time = (end - start) / 1000.0;
+        LOGGER.info("read " + m.nrTimes + " time steps, " + size + " MB, in " + time + " s, speed = " + (size / time) + " MB/s");
 
-        FileInputStream fin = null;
+        return new BeamFormedData(fileName, maxSequenceNr, maxSubbands, zoomFactor, samples, initialFlagged, m);
+    }
 
-        try {
-            final File f = new File(rawFileName);
-            fin = new FileInputStream(f);
+    private static int getTimeStepSize(final BeamFormedMetaData m) {
+        return m.nrSamplesPerTimeStep * m.nrSubbands * m.nrChannels * 4;
+    }
 
-            final FileChannel ch = fin.getChannel();
+    /**
+     * Reads one time step into the buffer. A time step that is cut off by the end of the file is not used.
+     * 
+     * @return false at the end of the file.
+     */
+    private static boolean readTimeStep(final FileChannel ch, final ByteBuffer bb) throws IOException {
+        bb.clear();
+        while (bb.hasRemaining()) {
+            if (ch.read(bb) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
 
+    private void readSerial(final FileChannel ch, final BeamFormedMetaData m, final float[][][] samples,
+            final FlagCube initialFlagged, final BeamFormedBlockHandler handler) {
+        final ByteBuffer bb = ByteBuffer.allocateDirect(getTimeStepSize(m));
+        bb.order(ByteOrder.LITTLE_ENDIAN);
+        final FloatBuffer fb = bb.asFloatBuffer();
+
+        int second = 0;
+        try {
             // boost::extents[nrSamples | 2][nrSubbands][nrChannels] 
             // the | 2 extra samples are not written to disk, only kept in memory!
             for (second = 0; second < m.nrTimes; second++) {
                 if (second > maxSequenceNr) {
                     break;
                 }
-                final double size = (m.nrSamplesPerTimeStep * m.nrSubbands * m.nrChannels * 4) / (1024.0 * 1024.0);
-                LOGGER.debug("reading second " + second + ", size = " + size + " MB");
-                final long start = System.currentTimeMillis();
-
-                bb.rewind();
-                fb.rewind();
-                final int res = ch.read(bb);
-                if (res < 0) {
+                if (!readTimeStep(ch, bb)) {
                     m.nrTimes = second;
                     break;
                 }
+                fb.rewind();
+                handleTimeStep(fb, second, m, samples, initialFlagged, handler);
+            }
+        } catch (final IOException e) {
+            m.nrTimes = second; // oops, we read less data...
+        }
+    }
 
-                for (int sample = 0; sample < m.nrSamplesPerTimeStep; sample++) {
-                    for (int subband = 0; subband < m.nrSubbands; subband++) {
-                        for (int channel = 0; channel < m.nrChannels; channel++) {
-                            final float val = fb.get();
-                            if (handler != null) {
-                                handler.handleSample(second, sample, subband, channel, val);
-                            } else {
-                                if (!initialFlagged[second][subband][channel]) {
-                                    if (val <= 0.0f) {
-                                        // we integrate; if one sample in the integration time was flagged, flag everything.
-                                        initialFlagged[second][subband][channel] = true;
-                                    } else {
-                                        samples[second][subband][channel] += val;
-                                    }
-                                }
-                            }
+    private static void handleTimeStep(final FloatBuffer fb, final int second, final BeamFormedMetaData m,
+            final float[][][] samples, final FlagCube initialFlagged, final BeamFormedBlockHandler handler) {
+        if (handler != null) {
+            handler.handleTimeStep(second, (long) second * m.nrSamplesPerTimeStep, fb, m.nrSamplesPerTimeStep, m.nrSubbands,
+                    m.nrChannels);
+            return;
+        }
+
+        for (int sample = 0; sample < m.nrSamplesPerTimeStep; sample++) {
+            for (int subband = 0; subband < m.nrSubbands; subband++) {
+                for (int channel = 0; channel < m.nrChannels; channel++) {
+                    final float val = fb.get();
+                    if (!initialFlagged.get(second, subband, channel)) {
+                        if (val <= 0.0f) {
+                            // we integrate; if one sample in the integration time was flagged, flag everything.
+                            initialFlagged.set(second, subband, channel);
+                        } else {
+                            samples[second][subband][channel] += val;
                         }
                     }
                 }
-                final long end = System.currentTimeMillis();
-                final double time = (end - start) / 1000.0;
-                final double speed = size / time;
-                LOGGER.debug("read rook " + time + " s, speed = " + speed + " MB/s");
             }
-        } catch (final IOException e) {
-            m.nrTimes = second; // oops, we read less data...
-        } finally {
-            if (fin != null) {
-                try {
-                    fin.close();
-                    fin = null;
-                } catch (final IOException e) {
-                    // ignore
+        }
+    }
+
+    /**
+     * A time step in one of the buffers of the pool.
+     */
+    private static final class TimeStep {
+        final ByteBuffer bytes;
+        final FloatBuffer floats;
+        int second;
+
+        TimeStep(final int size) {
+            bytes = ByteBuffer.allocateDirect(size);
+            bytes.order(ByteOrder.LITTLE_ENDIAN);
+            floats = bytes.asFloatBuffer();
+        }
+    }
+
+    /**
+     * Reads the time steps on the calling thread, into a pool of buffers, while the integration threads integrate the time steps
+     * that were read already. Every time step goes to a single integration thread, and the time steps of the flags are word
+     * aligned, so the threads never write to the same word. So, the result is identical to reading serially.
+     */
+    private void readPipelined(final FileChannel ch, final BeamFormedMetaData m, final float[][][] samples,
+            final FlagCube initialFlagged, final BeamFormedBlockHandler handler) throws IOException {
+        final int nrThreads = handler == null ? nrIntegrationThreads : 1;
+        final int poolSize = nrThreads + 2;
+        final BlockingQueue<TimeStep> free = new ArrayBlockingQueue<TimeStep>(poolSize);
+        final BlockingQueue<TimeStep> full = new ArrayBlockingQueue<TimeStep>(poolSize + 1);
+        for (int i = 0; i < poolSize; i++) {
+            free.add(new TimeStep(getTimeStepSize(m)));
+        }
+        final TimeStep end = new TimeStep(0);
+
+        final List<Callable<Void>> workers = new ArrayList<Callable<Void>>(nrThreads);
+        for (int i = 0; i < nrThreads; i++) {
+            workers.add(new Callable<Void>() {
+                @Override
+                public Void call() throws InterruptedException {
+                    Throwable error = null;
+                    while (true) {
+                        final TimeStep step = full.take();
+                        if (step == end) {
+                            full.put(end); // for the other workers
+                            break;
+                        }
+                        // after an error, keep returning the buffers, so the reader does not wait forever
+                        if (error == null) {
+                            try {
+                                step.floats.rewind();
+                                handleTimeStep(step.floats, step.second, m, samples, initialFlagged, handler);
+                            } catch (final RuntimeException e) {
+                                error = e;
+                            } catch (final Error e) {
+                                error = e;
+                            }
+                        }
+                        free.put(step);
+                    }
+                    if (error instanceof Error) {
+                        throw (Error) error;
+                    } else if (error != null) {
+                        throw (RuntimeException) error;
+                    }
+                    return null;
                 }
+            });
+        }
+
+        final ExecutorService pool = Executors.newFixedThreadPool(nrThreads);
+        int second = 0;
+        try {
+            final List<Future<Void>> results = new ArrayList<Future<Void>>(nrThreads);
+            for (final Callable<Void> worker : workers) {
+                results.add(pool.submit(worker));
             }
+
+            try {
+                for (second = 0; second < m.nrTimes; second++) {
+                    if (second > maxSequenceNr) {
+                        break;
+                    }
+                    final TimeStep step = free.take();
+                    if (!readTimeStep(ch, step.bytes)) {
+                        m.nrTimes = second;
+                        break;
+                    }
+                    step.second = second;
+                    full.put(step);
+                }
+            } catch (final IOException e) {
+                m.nrTimes = second; // oops, we read less data...
+            } finally {
+                full.put(end);
             }
 
-        return new BeamFormedData(fileName, maxSequenceNr, maxSubbands, zoomFactor, samples, initialFlagged, m);
+            for (final Future<Void> result : results) {
+                result.get();
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while reading", e);
+        } catch (final ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            } else if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw new RuntimeException("integration failed", e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
     }
 }
@@ -0,0 +1,41 @@
+/*
+ * Copyright 2013 Netherlands eScience Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.esciencecenter.eastroviz.dataformats.beamformed;
+
+import java.nio.FloatBuffer;
+
+/**
+ * Passes the samples of every time step one by one to a {@link BeamFormedSampleHandler}, for handlers that are not block based.
+ */
+public final class BeamFormedSampleHandlerAdapter implements BeamFormedBlockHandler {
+    private final BeamFormedSampleHandler handler;
+
+    public BeamFormedSampleHandlerAdapter(final BeamFormedSampleHandler handler) {
+        this.handler = handler;
+    }
+
+    @Override
+    public void handleTimeStep(final int second, final long firstSample, final FloatBuffer samples, final int nrSamples,
+            final int nrSubbands, final int nrChannels) {
+        for (int sample = 0; sample < nrSamples; sample++) {
+            for (int subband = 0; subband < nrSubbands; subband++) {
+                for (int channel = 0; channel < nrChannels; channel++) {
+                    handler.handleSample(second, sample, subband, channel, samples.get());
+                }
+            }
+        }
+    }
+}
@@ -24,9 +24,11 @@ import java.nio.FloatBuffer;
 import java.nio.channels.FileChannel;
 
 import nl.esciencecenter.eastroviz.dataformats.DataProvider;
+import nl.esciencecenter.eastroviz.dataformats.FlagCube;
+import nl.esciencecenter.eastroviz.dataformats.FlagEngine;
 import nl.esciencecenter.eastroviz.dataformats.MinMaxVals;
 import nl.esciencecenter.eastroviz.flaggers.Flagger;
-import nl.esciencecenter.eastroviz.flaggers.IntermediateFlagger;
+import nl.esciencecenter.eastroviz.flaggers.PreCorrelationNoChannelsFlagger;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -42,11 +44,20 @@ public abstract class PreprocessedData extends DataProvider {
     private static final boolean SHOW_SMOOTH = false;
     private static final boolean SHOW_SMOOTH_DIFF = false;
 
+    /** The number of time steps the pre-correlation flagger flags together, like one integration time of the real-time flagger. */
+    public static final int PRE_CORRELATION_TIMES_PER_BLOCK = 256;
+
+    /** The FFT size of the pre-correlation flagger for data without channels. */
+    public static final int PRE_CORRELATION_NO_CHANNELS_FFT_SIZE = PreCorrelationNoChannelsFlagger.DEFAULT_FFT_SIZE;
+
+    /** The number of FFTs the pre-correlation flagger for data without channels integrates. */
+    public static final int PRE_CORRELATION_NO_CHANNELS_INTEGRATION_FACTOR = 1;
+
     private static final Logger logger = LoggerFactory.getLogger(PreprocessedData.class);
 
     private float[][][][] data; // [time][nrSubbands][nrPolarizations][nrChannels]
-    private boolean[][][] initialFlagged; // [time][nrSubbands][nrChannels]
-    private boolean[][][] flagged; // [time][nrSubbands][nrChannels]
+    private FlagCube initialFlagged; // [time][nrSubbands][nrChannels]
+    private FlagCube flagged; // [time][nrSubbands][nrChannels]
     private int nrStations;
     private int nrSubbands;
     private int nrChannels;
@@ -63,7 +74,8 @@ public abstract class PreprocessedData extends DataProvider {
     public PreprocessedData(final String fileName, final int integrationFactor, final int maxSequenceNr, final int maxSubbands, final String[] polList,
             final int station, final int pol) {
         super();
-        init(fileName, maxSequenceNr, maxSubbands, polList, new String[] { "none", "Intermediate" });
+        init(fileName, maxSequenceNr, maxSubbands, polList, new String[] { "none", "Intermediate", "PreCorrelation",
+                "PreCorrelationNoChannels" });
         this.integrationFactor = integrationFactor;
         this.station1 = station;
         this.pol = pol;
@@ -74,6 +86,8 @@ public abstract class PreprocessedData extends DataProvider {
         final FileInputStream fin = new FileInputStream(getFileName());
         final DataInputStream din = new DataInputStream(fin);
         
+        invalidateStatisticsCache();
+
         nrStations = din.readInt();
         nrTimes = din.readInt() / integrationFactor;
         final int nrSubbandsInFile = din.readInt();
@@ -93,8 +107,8 @@ public abstract class PreprocessedData extends DataProvider {
         }
 
         data = new float[nrTimes][nrSubbands][nrPolarizations][nrChannels];
-        flagged = new boolean[nrTimes][nrSubbands][nrChannels];
-        initialFlagged = new boolean[nrTimes][nrSubbands][nrChannels];
+        flagged = new FlagCube(nrTimes, nrSubbands, nrChannels);
+        initialFlagged = new FlagCube(nrTimes, nrSubbands, nrChannels);
 
         int stationBlockSize = integrationFactor * nrSubbandsInFile * nrChannels * nrPolarizations * DataProvider.SIZE_OF_FLOAT;
 
@@ -129,8 +143,8 @@ public abstract class PreprocessedData extends DataProvider {
                             float sample = fb.get();
                             if (sb < getMaxSubbands()) {
                                 if (sample < 0.0f) {
-                                    initialFlagged[second][sb][ch] = true;
-                                    flagged[second][sb][ch] = true;
+                                    initialFlagged.set(second, sb, ch);
+                                    flagged.set(second, sb, ch);
                                 } else {
                                     data[second][sb][pol][ch] += sample;
                                 }
@@ -188,7 +202,7 @@ public abstract class PreprocessedData extends DataProvider {
             for (int sb = 0; sb < nrSubbands; sb++) {
                 for (int ch = 0; ch < nrChannels; ch++) {
                     for (int pol = 0; pol < nrPolarizations; pol++) {
-                        if (initialFlagged[time][sb][ch]) {
+                        if (initialFlagged.get(time, sb, ch)) {
                             data[time][sb][pol][ch] = 0.0f;
                             initialFlaggedCount++;
                         } else {
@@ -210,13 +224,7 @@ public abstract class PreprocessedData extends DataProvider {
 
     @Override
     public void flag() {
-        for (int time = 0; time < nrTimes; time++) {
-            for (int sb = 0; sb < nrSubbands; sb++) {
-                for (int ch = 0; ch < nrChannels; ch++) {
-                    flagged[time][sb][ch] = initialFlagged[time][sb][ch];
-                }
-            }
-        }
+        flagged.copyFrom(initialFlagged);
 
         if (getFlaggerType().equals("none")) {
             return;
@@ -224,33 +232,16 @@ public abstract class PreprocessedData extends DataProvider {
 
         long start = System.currentTimeMillis();
 
-        if (nrChannels > 1) {
-            final IntermediateFlagger[] flaggers = new IntermediateFlagger[nrSubbands];
-            for (int i = 0; i < nrSubbands; i++) {
-                flaggers[i] = new IntermediateFlagger(getFlaggerSensitivity(), getFlaggerSIRValue());
-            }
-
-            for (int time = 0; time < nrTimes; time++) {
-                for (int sb = 0; sb < nrSubbands; sb++) {
-                    flaggers[sb].flag(data[time][sb], flagged[time][sb]);
-                }
-            }
+        if (getFlaggerType().equals("PreCorrelation")) {
+            FlagEngine.flagPreCorrelation(data, flagged, nrTimes, nrSubbands, nrChannels, nrPolarizations,
+                    PRE_CORRELATION_TIMES_PER_BLOCK, getFlaggerSensitivity(), getFlaggerSIRValue(), getNrFlaggerThreads());
+        } else if (getFlaggerType().equals("PreCorrelationNoChannels")) {
+            FlagEngine.flagPreCorrelationNoChannels(data, flagged, nrTimes, nrSubbands, nrChannels, nrPolarizations,
+                    PRE_CORRELATION_NO_CHANNELS_FFT_SIZE, PRE_CORRELATION_NO_CHANNELS_INTEGRATION_FACTOR, getFlaggerSensitivity(),
+                    getFlaggerSIRValue(), getNrFlaggerThreads());
         } else {
-            final IntermediateFlagger flagger = new IntermediateFlagger(getFlaggerSensitivity(), getFlaggerSIRValue());
-            for (int time = 0; time < nrTimes; time++) {
-                final boolean[] tmpFlags = new boolean[nrSubbands];
-                final float[][] tmp = new float[nrPolarizations][nrSubbands];
-
-                for (int pol = 0; pol < nrPolarizations; pol++) {
-                    for (int sb = 0; sb < nrSubbands; sb++) {
-                        tmp[pol][sb] = data[time][sb][pol][0];
-                    }
-                }
-                flagger.flag(tmp, tmpFlags);
-                for (int sb = 0; sb < nrSubbands; sb++) {
-                    flagged[time][sb][0] = tmpFlags[sb];
-                }
-            }
+            FlagEngine.flagIntermediate(data, flagged, nrTimes, nrSubbands, nrChannels, nrPolarizations, getFlaggerSensitivity(),
+                    getFlaggerSIRValue(), getNrFlaggerThreads(), getStatisticsCache(nrTimes * nrSubbands, nrPolarizations));
         }
 
         long end = System.currentTimeMillis();
@@ -307,11 +298,16 @@ public abstract class PreprocessedData extends DataProvider {
         }
     }
 
+    @Override
+    protected FlagCube getFlagCube() {
+        return flagged;
+    }
+
     @Override
     public final boolean isFlagged(final int x, final int y) {
         final int subband = y / nrChannels;
         final int channel = y % nrChannels;
-        return flagged[x][subband][channel];
+        return flagged.get(x, subband, channel);
     }
 
     public int getNrStations() {
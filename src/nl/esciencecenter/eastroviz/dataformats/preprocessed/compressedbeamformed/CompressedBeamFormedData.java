@@ -25,8 +25,9 @@ import java.nio.channels.FileChannel;
 
 import nl.esciencecenter.eastroviz.Dedispersion;
 import nl.esciencecenter.eastroviz.dataformats.DataProvider;
+import nl.esciencecenter.eastroviz.dataformats.FlagCube;
+import nl.esciencecenter.eastroviz.dataformats.FlagEngine;
 import nl.esciencecenter.eastroviz.dataformats.MinMaxVals;
-import nl.esciencecenter.eastroviz.flaggers.BeamFormedFlagger;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -37,8 +38,8 @@ public final class CompressedBeamFormedData extends DataProvider {
     private static final Logger logger = LoggerFactory.getLogger(CompressedBeamFormedData.class);
 
     private float[][][] data; // [time][nrSubbands][nrChannels]
-    private boolean[][][] initialFlagged; // [time][nrSubbands][nrChannels]
-    private boolean[][][] flagged; // [time][nrSubbands][nrChannels]
+    private FlagCube initialFlagged; // [time][nrSubbands][nrChannels]
+    private FlagCube flagged; // [time][nrSubbands][nrChannels]
     private int nrSubbands;
     private int nrChannels;
     private int nrTimes;
@@ -62,6 +63,8 @@ public final class CompressedBeamFormedData extends DataProvider {
         final FileInputStream fin = new FileInputStream(getFileName());
         final DataInputStream din = new DataInputStream(fin);
 
+        invalidateStatisticsCache();
+
         nrTimes = din.readInt() / integrationFactor;
         nrSubbands = din.readInt();
         nrChannels = din.readInt();
@@ -75,8 +78,8 @@ public final class CompressedBeamFormedData extends DataProvider {
         }
 
         data = new float[nrTimes][nrSubbands][nrChannels];
-        flagged = new boolean[nrTimes][nrSubbands][nrChannels];
-        initialFlagged = new boolean[nrTimes][nrSubbands][nrChannels];
+        flagged = new FlagCube(nrTimes, nrSubbands, nrChannels);
+        initialFlagged = new FlagCube(nrTimes, nrSubbands, nrChannels);
 
         final long start = System.currentTimeMillis();
 
@@ -105,8 +108,8 @@ public final class CompressedBeamFormedData extends DataProvider {
                     for (int ch = 0; ch < nrChannels; ch++) {
                         float sample = fb.get();
                         if (sample < 0.0f) {
-                            initialFlagged[second][sb][ch] = true;
-                            flagged[second][sb][ch] = true;
+                            initialFlagged.set(second, sb, ch);
+                            flagged.set(second, sb, ch);
                         } else {
                             data[second][sb][ch] += sample;
                         }
@@ -134,7 +137,7 @@ public final class CompressedBeamFormedData extends DataProvider {
         for (int time = 0; time < nrTimes; time++) {
             for (int sb = 0; sb < nrSubbands; sb++) {
                 for (int ch = 0; ch < nrChannels; ch++) {
-                    if (initialFlagged[time][sb][ch]) {
+                    if (initialFlagged.get(time, sb, ch)) {
                         data[time][sb][ch] = 0.0f;
                     } else {
                         final float sample = data[time][sb][ch];
@@ -149,44 +152,14 @@ public final class CompressedBeamFormedData extends DataProvider {
 
     @Override
     public void flag() {
-        for (int time = 0; time < nrTimes; time++) {
-            for (int sb = 0; sb < nrSubbands; sb++) {
-                for (int ch = 0; ch < nrChannels; ch++) {
-                    flagged[time][sb][ch] = initialFlagged[time][sb][ch];
-                }
-            }
-        }
+        flagged.copyFrom(initialFlagged);
 
         if (getFlaggerType().equals("none")) {
             return;
         }
 
-        if (nrChannels > 1) {
-            final BeamFormedFlagger[] flaggers = new BeamFormedFlagger[nrSubbands];
-            for (int i = 0; i < nrSubbands; i++) {
-                flaggers[i] = new BeamFormedFlagger(getFlaggerSensitivity(), getFlaggerSIRValue());
-            }
-
-            for (int time = 0; time < nrTimes; time++) {
-                for (int sb = 0; sb < nrSubbands; sb++) {
-                    flaggers[sb].flag(data[time][sb], flagged[time][sb]);
-                }
-            }
-        } else {
-            final BeamFormedFlagger flagger = new BeamFormedFlagger(getFlaggerSensitivity(), getFlaggerSIRValue());
-            for (int time = 0; time < nrTimes; time++) {
-                final float[] tmp = new float[nrSubbands];
-                final boolean[] tmpFlags = new boolean[nrSubbands];
-                for (int sb = 0; sb < nrSubbands; sb++) {
-                    tmp[sb] = data[time][sb][0];
-                }
-
-                flagger.flag(tmp, tmpFlags);
-                for (int sb = 0; sb < nrSubbands; sb++) {
-                    flagged[time][sb][0] = tmpFlags[sb];
-                }
-            }
-        }
+        FlagEngine.flagBeamFormed(data, flagged, nrTimes, nrSubbands, nrChannels, getFlaggerSensitivity(), getFlaggerSIRValue(),
+                getNrFlaggerThreads(), getStatisticsCache(nrTimes * nrSubbands, 1));
     }
 
     public final float[][][] getData() {
@@ -242,15 +215,21 @@ public final class CompressedBeamFormedData extends DataProvider {
         }
     }
 
+    @Override
+    protected FlagCube getFlagCube() {
+        return flagged;
+    }
+
     @Override
     public final boolean isFlagged(final int x, final int y) {
         final int subband = y / nrChannels;
         final int channel = y % nrChannels;
-        return flagged[x][subband][channel];
+        return flagged.get(x, subband, channel);
     }
 
     public void dedisperse(float nrSamplesPerSecond, float lowFreq, float freqStep, float dm) {
         Dedispersion.dedisperse(getData(), flagged, nrSamplesPerSecond, lowFreq, freqStep, dm);
+        invalidateFlaggerCaches();
         calculateStatistics();
     }
 
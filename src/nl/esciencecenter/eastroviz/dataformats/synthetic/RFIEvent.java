@@ -0,0 +1,104 @@
+/*
+ * Copyright 2013 Netherlands eScience Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.esciencecenter.eastroviz.dataformats.synthetic;
+
+import java.util.Locale;
+
+/**
+ * RFI that the {@link SyntheticDataGenerator} injects: extra power in a block of seconds, subbands and channels. In every subband of
+ * the block, the same channels are affected. The strength is the extra power, relative to the mean power of the noise. The events of
+ * a data set are written next to it, as the ground truth for the flaggers.
+ */
+public final class RFIEvent {
+    private final int firstSecond;
+    private final int lastSecond;
+    private final int firstSubband;
+    private final int lastSubband;
+    private final int firstChannel;
+    private final int lastChannel;
+    private final float strength;
+
+    /**
+     * All ranges are inclusive.
+     */
+    public RFIEvent(final int firstSecond, final int lastSecond, final int firstSubband, final int lastSubband,
+            final int firstChannel, final int lastChannel, final float strength) {
+        if (firstSecond > lastSecond || firstSubband > lastSubband || firstChannel > lastChannel) {
+            throw new IllegalArgumentException("empty RFI event");
+        }
+        this.firstSecond = firstSecond;
+        this.lastSecond = lastSecond;
+        this.firstSubband = firstSubband;
+        this.lastSubband = lastSubband;
+        this.firstChannel = firstChannel;
+        this.lastChannel = lastChannel;
+        this.strength = strength;
+    }
+
+    public boolean covers(final int second, final int subband, final int channel) {
+        return covers(second, subband) && channel >= firstChannel && channel <= lastChannel;
+    }
+
+    public boolean covers(final int second, final int subband) {
+        return second >= firstSecond && second <= lastSecond && subband >= firstSubband && subband <= lastSubband;
+    }
+
+    public int getFirstSecond() {
+        return firstSecond;
+    }
+
+    public int getLastSecond() {
+        return lastSecond;
+    }
+
+    public int getFirstSubband() {
+        return firstSubband;
+    }
+
+    public int getLastSubband() {
+        return lastSubband;
+    }
+
+    public int getFirstChannel() {
+        return firstChannel;
+    }
+
+    public int getLastChannel() {
+        return lastChannel;
+    }
+
+    public float getStrength() {
+        return strength;
+    }
+
+    /**
+     * @return the event as one line of the ground truth file, which {@link #parse(String)} reads back.
+     */
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "%d %d %d %d %d %d %g", firstSecond, lastSecond, firstSubband, lastSubband, firstChannel,
+                lastChannel, strength);
+    }
+
+    public static RFIEvent parse(final String line) {
+        final String[] parts = line.trim().split("\\s+");
+        if (parts.length != 7) {
+            throw new IllegalArgumentException("not an RFI event: " + line);
+        }
+        return new RFIEvent(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]), Integer.parseInt(parts[2]),
+                Integer.parseInt(parts[3]), Integer.parseInt(parts[4]), Integer.parseInt(parts[5]), Float.parseFloat(parts[6]));
+    }
+}
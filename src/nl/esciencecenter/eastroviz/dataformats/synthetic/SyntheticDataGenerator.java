@@ -0,0 +1,643 @@
+/*
+ * Copyright 2013 Netherlands eScience Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.esciencecenter.eastroviz.dataformats.synthetic;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import nl.esciencecenter.eastroviz.dataformats.visibility.VisibilityData;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes synthetic data sets in all formats that eAstroViz reads, of any size, so the readers and flaggers can be tested and
+ * benchmarked without observations. The data is noise with a bandpass, with RFI injected at known positions. The RFI is written
+ * next to the data set as ground truth: "rfi.txt" in a data set directory, or the file name with ".rfi" appended. Every line is one
+ * {@link RFIEvent}.
+ * <p>
+ * The data is streamed to disk in large blocks, and the noise is taken from a precomputed table with a fast random generator, so
+ * the speed is mostly limited by the disk. The formats are:
+ * <ul>
+ * <li>visibilities: a directory with an SBxxx.MS directory per subband, each with the table.f0meta and table.f0data files of the
+ * LOFAR storage manager. Channel 0 is flagged, like in LOFAR data.</li>
+ * <li>intermediate and filtered: one big endian file of [station][time][subband][channel][polarization] powers.</li>
+ * <li>compressedBeamFormed: one big endian file of [time][subband][channel] powers.</li>
+ * <li>beamFormed: a directory with the little endian .raw file of [time][subband][channel] powers. The HDF5 file with the meta
+ * data is not written, there is no HDF5 writer in the class path.</li>
+ * </ul>
+ * All formats except visibilities have timeStepsPerSecond time steps per second.
+ */
+public final class SyntheticDataGenerator {
+    private static final Logger LOGGER = LoggerFactory.getLogger(SyntheticDataGenerator.class);
+
+    public static final int DEFAULT_NR_STATIONS = 5;
+    public static final int DEFAULT_NR_SUBBANDS = 32;
+    public static final int DEFAULT_NR_CHANNELS = 16;
+    public static final int DEFAULT_NR_SECONDS = 48;
+    public static final float DEFAULT_NOISE_LEVEL = 100.0f;
+    public static final float DEFAULT_RFI_STRENGTH = 20.0f;
+
+    /** The number of samples that are integrated per second, in the nrValidSamples of the visibilities. */
+    public static final int INTEGRATION_TIME = 768;
+    public static final int ALIGNMENT = 512;
+    public static final int MAGIC = 0x0000DA7A;
+    public static final String GROUND_TRUTH_FILE = "rfi.txt";
+
+    private static final int NR_POLARIZATIONS = 2;
+    private static final int NR_CROSS_POLARIZATIONS = NR_POLARIZATIONS * NR_POLARIZATIONS;
+    private static final int NOISE_TABLE_BITS = 16;
+    private static final int BUFFER_SIZE = 4 * 1024 * 1024;
+
+    private final int nrStations;
+    private final int nrSubbands;
+    private final int nrChannels;
+    private final int nrSeconds;
+    private final long seed;
+    private int timeStepsPerSecond = 1;
+    private float noiseLevel = DEFAULT_NOISE_LEVEL;
+    private boolean bandpass = true;
+    private boolean bigEndianVisibilities = false;
+    private final boolean[] deadStations;
+    private final List<RFIEvent> rfi = new ArrayList<RFIEvent>();
+
+    private final float[] gaussianTable = new float[1 << NOISE_TABLE_BITS];
+    private long randomState;
+    private final float[] bandpassGains;
+    private final float[] rfiPowers; // [nrChannels], of the current second and subband
+
+    public SyntheticDataGenerator(final int nrStations, final int nrSubbands, final int nrChannels, final int nrSeconds,
+            final long seed) {
+        this.nrStations = nrStations;
+        this.nrSubbands = nrSubbands;
+        this.nrChannels = nrChannels;
+        this.nrSeconds = nrSeconds;
+        this.seed = seed;
+        deadStations = new boolean[nrStations];
+        rfiPowers = new float[nrChannels];
+
+        final Random random = new Random(seed);
+        for (int i = 0; i < gaussianTable.length; i++) {
+            gaussianTable[i] = (float) random.nextGaussian();
+        }
+
+        // a polyphase filter bank has a lower response at the edges of the subband
+        bandpassGains = new float[nrChannels];
+        for (int channel = 0; channel < nrChannels; channel++) {
+            final float x = nrChannels == 1 ? 0.0f : 2.0f * channel / (nrChannels - 1) - 1.0f;
+            bandpassGains[channel] = 1.0f - 0.3f * x * x * x * x;
+        }
+    }
+
+    // Noise
+
+    private void resetRandom(final long stream) {
+        randomState = seed * 0x9E3779B97F4A7C15L + stream * 0xBF58476D1CE4E5B9L + 1;
+    }
+
+    /** xorshift64*, with a table of normally distributed values. */
+    private float nextGaussian() {
+        randomState ^= randomState >>> 12;
+        randomState ^= randomState << 25;
+        randomState ^= randomState >>> 27;
+        return gaussianTable[(int) ((randomState * 0x2545F4914F6CDD1DL) >>> (64 - NOISE_TABLE_BITS))];
+    }
+
+    /** A noise power with the given mean: the power of a complex gaussian, which is exponentially distributed. */
+    private float nextPower(final float mean) {
+        final float re = nextGaussian();
+        final float im = nextGaussian();
+        return 0.5f * mean * (re * re + im * im);
+    }
+
+    private float getGain(final int channel) {
+        return bandpass ? bandpassGains[channel] : 1.0f;
+    }
+
+    // RFI
+
+    public void addRFI(final RFIEvent event) {
+        rfi.add(event);
+    }
+
+    /**
+     * Adds nrEvents random RFI events: narrow band RFI in one channel during a range of seconds, broad band RFI in all channels of
+     * all subbands during one second, and blobs of a few channels and seconds.
+     */
+    public void addRandomRFI(final int nrEvents, final float strength) {
+        final Random random = new Random(seed + 1);
+        for (int i = 0; i < nrEvents; i++) {
+            final int second = random.nextInt(nrSeconds);
+            final int subband = random.nextInt(nrSubbands);
+            final int channel = random.nextInt(nrChannels);
+            final float s = strength * (0.5f + random.nextFloat());
+            switch (random.nextInt(3)) {
+            case 0:
+                final int duration = 1 + random.nextInt(Math.max(1, nrSeconds / 4));
+                rfi.add(new RFIEvent(second, Math.min(nrSeconds - 1, second + duration - 1), subband, subband, channel, channel, s));
+                break;
+            case 1:
+                rfi.add(new RFIEvent(second, second, 0, nrSubbands - 1, 0, nrChannels - 1, s));
+                break;
+            default:
+                rfi.add(new RFIEvent(second, Math.min(nrSeconds - 1, second + random.nextInt(4)), subband, subband, channel, Math.min(
+                        nrChannels - 1, channel + random.nextInt(4)), s));
+                break;
+            }
+        }
+    }
+
+    public List<RFIEvent> getRFI() {
+        return Collections.unmodifiableList(rfi);
+    }
+
+    /** Fills rfiPowers with the extra power of every channel in this second and subband. */
+    private void calculateRFIPowers(final int second, final int subband) {
+        for (int channel = 0; channel < nrChannels; channel++) {
+            rfiPowers[channel] = 0.0f;
+        }
+        for (final RFIEvent event : rfi) {
+            if (event.covers(second, subband)) {
+                for (int channel = event.getFirstChannel(); channel <= Math.min(event.getLastChannel(), nrChannels - 1); channel++) {
+                    rfiPowers[channel] += event.getStrength() * noiseLevel;
+                }
+            }
+        }
+    }
+
+    public void writeGroundTruth(final File file) throws IOException {
+        final PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+        try {
+            out.println("# synthetic RFI: firstSecond lastSecond firstSubband lastSubband firstChannel lastChannel strength");
+            out.println("# stations " + nrStations + ", subbands " + nrSubbands + ", channels " + nrChannels + ", seconds "
+                    + nrSeconds + ", time steps per second " + timeStepsPerSecond + ", noise level " + noiseLevel);
+            for (final RFIEvent event : rfi) {
+                out.println(event);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    public static List<RFIEvent> readGroundTruth(final File file) throws IOException {
+        final List<RFIEvent> result = new ArrayList<RFIEvent>();
+        final BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (!line.startsWith("#") && line.trim().length() > 0) {
+                    result.add(RFIEvent.parse(line));
+                }
+            }
+        } finally {
+            in.close();
+        }
+        return result;
+    }
+
+    // Output
+
+    /**
+     * Writes numbers to a file through a large direct buffer.
+     */
+    private static final class Output {
+        private final FileOutputStream out;
+        private final FileChannel channel;
+        private final ByteBuffer buffer;
+        private long nrBytes;
+
+        Output(final File file, final ByteOrder order) throws IOException {
+            out = new FileOutputStream(file);
+            channel = out.getChannel();
+            buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            buffer.order(order);
+        }
+
+        private void makeRoom(final int bytes) throws IOException {
+            if (buffer.remaining() < bytes) {
+                flush();
+            }
+        }
+
+        void putFloat(final float value) throws IOException {
+            makeRoom(4);
+            buffer.putFloat(value);
+        }
+
+        void putInt(final int value) throws IOException {
+            makeRoom(4);
+            buffer.putInt(value);
+        }
+
+        void putShort(final int value) throws IOException {
+            makeRoom(2);
+            buffer.putShort((short) value);
+        }
+
+        /** Writes zeros up to the next multiple of alignment, counted from the start of the file. */
+        void align(final int alignment) throws IOException {
+            final long position = nrBytes + buffer.position();
+            final int padding = (int) ((alignment - position % alignment) % alignment);
+            for (int i = 0; i < padding; i++) {
+                makeRoom(1);
+                buffer.put((byte) 0);
+            }
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                nrBytes += channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        long close() throws IOException {
+            flush();
+            out.close();
+            return nrBytes;
+        }
+    }
+
+    private void logSpeed(final String what, final long nrBytes, final long start) {
+        final double seconds = (System.currentTimeMillis() - start) / 1000.0;
+        final double mb = nrBytes / (1024.0 * 1024.0);
+        LOGGER.info("wrote " + what + ": " + mb + " MB in " + seconds + " s, speed = " + (mb / seconds) + " MB/s");
+    }
+
+    // Visibilities
+
+    /**
+     * Writes a measurement set directory with one SBxxx.MS directory per subband.
+     */
+    public void writeVisibilities(final File dir) throws IOException {
+        final long start = System.currentTimeMillis();
+        long nrBytes = 0;
+        mkdirs(dir);
+        for (int subband = 0; subband < nrSubbands; subband++) {
+            final File subbandDir = new File(dir, String.format("SB%03d.MS", subband));
+            mkdirs(subbandDir);
+            writeMeta(new File(subbandDir, "table.f0meta"));
+            nrBytes += writeVisibilityData(new File(subbandDir, "table.f0data"), subband);
+        }
+        writeGroundTruth(new File(dir, GROUND_TRUTH_FILE));
+        logSpeed(dir.getPath(), nrBytes, start);
+    }
+
+    private static void mkdirs(final File dir) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("could not create directory " + dir);
+        }
+    }
+
+    private static void writeString(final DataOutputStream out, final String s) throws IOException {
+        out.writeInt(s.length());
+        out.writeBytes(s);
+    }
+
+    private static void writeIntBlock(final DataOutputStream out, final int[] values) throws IOException {
+        out.writeInt(4 + 4 + "Block".length() + 8 + 4 * values.length); // the length of the object, which is skipped
+        writeString(out, "Block");
+        out.writeInt(1);
+        out.writeInt(values.length);
+        for (final int value : values) {
+            out.writeInt(value);
+        }
+    }
+
+    /**
+     * The meta data of the LOFAR storage manager, version 2, as MSReader reads it.
+     */
+    private void writeMeta(final File file) throws IOException {
+        final int nrBaselines = nrStations * (nrStations + 1) / 2;
+        final int[] antenna1 = new int[nrBaselines];
+        final int[] antenna2 = new int[nrBaselines];
+        for (int baseline = 0; baseline < nrBaselines; baseline++) {
+            antenna1[baseline] = VisibilityData.baselineToStation2(baseline);
+            antenna2[baseline] = VisibilityData.baselineToStation1(baseline);
+        }
+
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            out.writeInt(0xbebebebe);
+            out.writeInt(0xbebebebe);
+            writeString(out, "LofarStMan");
+            out.writeInt(2); // version
+            writeIntBlock(out, antenna1);
+            writeIntBlock(out, antenna2);
+            out.writeDouble(4.8e9); // start time
+            out.writeDouble((double) INTEGRATION_TIME / 12207.03125); // ION integration time, for 200 MHz clock
+            out.writeInt(nrChannels);
+            out.writeInt(NR_CROSS_POLARIZATIONS);
+            out.writeDouble(INTEGRATION_TIME);
+            out.writeInt(ALIGNMENT);
+            out.writeByte(bigEndianVisibilities ? 1 : 0); // the byte order of the data
+            out.writeInt(2); // bytes per nrValidSamples
+        } finally {
+            out.close();
+        }
+    }
+
+    private long writeVisibilityData(final File file, final int subband) throws IOException {
+        final int nrBaselines = nrStations * (nrStations + 1) / 2;
+        final Output out = new Output(file, bigEndianVisibilities ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+        resetRandom(subband);
+
+        for (int second = 0; second < nrSeconds; second++) {
+            calculateRFIPowers(second, subband);
+
+            out.putInt(MAGIC);
+            out.putInt(second);
+            out.align(ALIGNMENT);
+
+            for (int baseline = 0; baseline < nrBaselines; baseline++) {
+                final int station1 = VisibilityData.baselineToStation1(baseline);
+                final int station2 = VisibilityData.baselineToStation2(baseline);
+                final float stationGain = deadStations[station1] || deadStations[station2] ? 0.0f : 1.0f;
+                final boolean auto = station1 == station2;
+
+                for (int channel = 0; channel < nrChannels; channel++) {
+                    final float gain = stationGain * getGain(channel);
+                    final float sigma = (float) Math.sqrt(gain * noiseLevel / 2.0f);
+                    final float rfiAmplitude = stationGain * (float) Math.sqrt(rfiPowers[channel]);
+                    for (int pol = 0; pol < NR_CROSS_POLARIZATIONS; pol++) {
+                        final boolean parallel = pol == 0 || pol == NR_CROSS_POLARIZATIONS - 1; // XX or YY
+                        float re = sigma * nextGaussian();
+                        float im = sigma * nextGaussian();
+                        if (auto && parallel) {
+                            re = gain * noiseLevel * nrStations + 0.1f * re + stationGain * rfiPowers[channel];
+                            im = 0.0f;
+                        } else if (parallel) {
+                            re += rfiAmplitude;
+                        }
+                        out.putFloat(re);
+                        out.putFloat(im);
+                    }
+                }
+            }
+            out.align(ALIGNMENT);
+
+            for (int baseline = 0; baseline < nrBaselines; baseline++) {
+                for (int channel = 0; channel < nrChannels; channel++) {
+                    out.putShort(channel == 0 && nrChannels > 1 ? 0 : INTEGRATION_TIME);
+                }
+            }
+            out.align(ALIGNMENT);
+        }
+
+        return out.close();
+    }
+
+    // Pre-processed data
+
+    /**
+     * Writes intermediate or filtered data, which have the same format.
+     */
+    public void writePreprocessed(final File file) throws IOException {
+        final long start = System.currentTimeMillis();
+        final Output out = new Output(file, ByteOrder.BIG_ENDIAN);
+        out.putInt(nrStations);
+        out.putInt(nrSeconds * timeStepsPerSecond);
+        out.putInt(nrSubbands);
+        out.putInt(nrChannels);
+        out.putInt(NR_POLARIZATIONS);
+
+        for (int station = 0; station < nrStations; station++) {
+            resetRandom(station);
+            final float stationGain = deadStations[station] ? 0.0f : 1.0f;
+            for (int second = 0; second < nrSeconds; second++) {
+                for (int step = 0; step < timeStepsPerSecond; step++) {
+                    for (int subband = 0; subband < nrSubbands; subband++) {
+                        calculateRFIPowers(second, subband);
+                        for (int channel = 0; channel < nrChannels; channel++) {
+                            final float mean = stationGain * getGain(channel) * noiseLevel;
+                            for (int pol = 0; pol < NR_POLARIZATIONS; pol++) {
+                                out.putFloat(nextPower(mean) + stationGain * rfiPowers[channel]);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        logSpeed(file.getPath(), out.close(), start);
+        writeGroundTruth(new File(file.getPath() + ".rfi"));
+    }
+
+    // Beam formed data
+
+    public void writeCompressedBeamFormed(final File file) throws IOException {
+        final long start = System.currentTimeMillis();
+        final Output out = new Output(file, ByteOrder.BIG_ENDIAN);
+        out.putInt(nrSeconds * timeStepsPerSecond);
+        out.putInt(nrSubbands);
+        out.putInt(nrChannels);
+        out.putInt(timeStepsPerSecond);
+        writeStokesI(out);
+        logSpeed(file.getPath(), out.close(), start);
+        writeGroundTruth(new File(file.getPath() + ".rfi"));
+    }
+
+    /**
+     * Writes the raw file of a beam formed data set. The HDF5 meta data file must be added to read it.
+     */
+    public void writeBeamFormedRaw(final File dir) throws IOException {
+        final long start = System.currentTimeMillis();
+        mkdirs(dir);
+        final Output out = new Output(new File(dir, "L00000_SAP000_B000_S0_P000_bf.raw"), ByteOrder.LITTLE_ENDIAN);
+        writeStokesI(out);
+        logSpeed(dir.getPath(), out.close(), start);
+        writeGroundTruth(new File(dir, GROUND_TRUTH_FILE));
+    }
+
+    /** Stokes I of the beam formed by all stations that are not dead, [time][subband][channel]. */
+    private void writeStokesI(final Output out) throws IOException {
+        int nrLiveStations = 0;
+        for (int station = 0; station < nrStations; station++) {
+            if (!deadStations[station]) {
+                nrLiveStations++;
+            }
+        }
+
+        resetRandom(0);
+        for (int second = 0; second < nrSeconds; second++) {
+            for (int step = 0; step < timeStepsPerSecond; step++) {
+                for (int subband = 0; subband < nrSubbands; subband++) {
+                    calculateRFIPowers(second, subband);
+                    for (int channel = 0; channel < nrChannels; channel++) {
+                        final float mean = nrLiveStations * getGain(channel) * noiseLevel;
+                        // keep the samples positive, 0 and negative samples are flagged
+                        out.putFloat(Math.max(Float.MIN_NORMAL, nextPower(mean) + nrLiveStations * rfiPowers[channel]));
+                    }
+                }
+            }
+        }
+    }
+
+    // Parameters
+
+    public void setTimeStepsPerSecond(final int timeStepsPerSecond) {
+        this.timeStepsPerSecond = timeStepsPerSecond;
+    }
+
+    public int getTimeStepsPerSecond() {
+        return timeStepsPerSecond;
+    }
+
+    /**
+     * @param noiseLevel
+     *            the mean power of the noise, in the middle of the band.
+     */
+    public void setNoiseLevel(final float noiseLevel) {
+        this.noiseLevel = noiseLevel;
+    }
+
+    public float getNoiseLevel() {
+        return noiseLevel;
+    }
+
+    public void setBandpass(final boolean bandpass) {
+        this.bandpass = bandpass;
+    }
+
+    /**
+     * @param bigEndian
+     *            write the visibilities in big endian byte order, and say so in the meta data. The default is little endian, like the
+     *            LOFAR data.
+     */
+    public void setBigEndianVisibilities(final boolean bigEndian) {
+        this.bigEndianVisibilities = bigEndian;
+    }
+
+    /**
+     * A dead station has no signal at all, in all of its baselines.
+     */
+    public void setDeadStation(final int station, final boolean dead) {
+        deadStations[station] = dead;
+    }
+
+    public boolean isDeadStation(final int station) {
+        return deadStations[station];
+    }
+
+    public static void main(final String[] args) throws IOException {
+        String format = "visibilities";
+        String fileName = null;
+        int nrStations = DEFAULT_NR_STATIONS;
+        int nrSubbands = DEFAULT_NR_SUBBANDS;
+        int nrChannels = DEFAULT_NR_CHANNELS;
+        int nrSeconds = DEFAULT_NR_SECONDS;
+        int timeStepsPerSecond = 1;
+        float noiseLevel = DEFAULT_NOISE_LEVEL;
+        int nrRFIEvents = 0;
+        float rfiStrength = DEFAULT_RFI_STRENGTH;
+        String deadStations = null;
+        boolean bandpass = true;
+        boolean bigEndian = false;
+        long seed = 42;
+
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-format")) {
+                i++;
+                format = args[i];
+            } else if (args[i].equals("-stations")) {
+                i++;
+                nrStations = Integer.parseInt(args[i]);
+            } else if (args[i].equals("-subbands")) {
+                i++;
+                nrSubbands = Integer.parseInt(args[i]);
+            } else if (args[i].equals("-channels")) {
+                i++;
+                nrChannels = Integer.parseInt(args[i]);
+            } else if (args[i].equals("-seconds")) {
+                i++;
+                nrSeconds = Integer.parseInt(args[i]);
+            } else if (args[i].equals("-timeStepsPerSecond")) {
+                i++;
+                timeStepsPerSecond = Integer.parseInt(args[i]);
+            } else if (args[i].equals("-noise")) {
+                i++;
+                noiseLevel = Float.parseFloat(args[i]);
+            } else if (args[i].equals("-rfi")) {
+                i++;
+                nrRFIEvents = Integer.parseInt(args[i]);
+            } else if (args[i].equals("-rfiStrength")) {
+                i++;
+                rfiStrength = Float.parseFloat(args[i]);
+            } else if (args[i].equals("-deadStations")) {
+                i++;
+                deadStations = args[i];
+            } else if (args[i].equals("-noBandpass")) {
+                bandpass = false;
+            } else if (args[i].equals("-bigEndian")) {
+                bigEndian = true;
+            } else if (args[i].equals("-seed")) {
+                i++;
+                seed = Long.parseLong(args[i]);
+            } else {
+                fileName = args[i];
+            }
+        }
+
+        if (fileName == null) {
+            System.err.println("Usage: SyntheticDataGenerator [-format visibilities|intermediate|filtered|compressedBeamFormed|beamFormed]"
+                    + " [-stations n] [-subbands n] [-channels n] [-seconds n] [-timeStepsPerSecond n] [-noise level] [-noBandpass] [-bigEndian]"
+                    + " [-rfi nrEvents] [-rfiStrength s] [-deadStations s1,s2,...] [-seed n] <output file or directory>");
+            System.exit(1);
+        }
+
+        final SyntheticDataGenerator generator = new SyntheticDataGenerator(nrStations, nrSubbands, nrChannels, nrSeconds, seed);
+        generator.setTimeStepsPerSecond(timeStepsPerSecond);
+        generator.setNoiseLevel(noiseLevel);
+        generator.setBandpass(bandpass);
+        generator.setBigEndianVisibilities(bigEndian);
+        if (deadStations != null) {
+            for (final String station : deadStations.split(",")) {
+                generator.setDeadStation(Integer.parseInt(station.trim()), true);
+            }
+        }
+        generator.addRandomRFI(nrRFIEvents, rfiStrength);
+
+        final File file = new File(fileName);
+        if (format.equals("visibilities")) {
+            generator.writeVisibilities(file);
+        } else if (format.equals("intermediate") || format.equals("filtered")) {
+            generator.writePreprocessed(file);
+        } else if (format.equals("compressedBeamFormed")) {
+            generator.writeCompressedBeamFormed(file);
+        } else if (format.equals("beamFormed")) {
+            generator.writeBeamFormedRaw(file);
+        } else {
+            System.err.println("unknown format: " + format);
+            System.exit(1);
+        }
+    }
+}
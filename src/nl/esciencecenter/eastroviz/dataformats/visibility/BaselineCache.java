@@ -0,0 +1,128 @@
+/*
+ * Copyright 2013 Netherlands eScience Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.esciencecenter.eastroviz.dataformats.visibility;
+
+import nl.esciencecenter.eastroviz.dataformats.FlagCube;
+import nl.esciencecenter.eastroviz.dataformats.SizeBoundedCache;
+
+/**
+ * Remembers the data of recently viewed baselines, so switching back to a baseline, or to one that was prefetched, does not read
+ * it again. The least recently used baselines are dropped when the cache uses more than the maximum number of bytes. The cache is
+ * used by the GUI thread and by the prefetcher, so all methods are synchronized. Only baselines of the current window are kept.
+ */
+final class BaselineCache extends SizeBoundedCache<Integer, BaselineCache.Entry> {
+    /**
+     * The data of one baseline, as it was read. The arrays are not changed after reading, so they can be shared with the
+     * {@link VisibilityData} that shows them. The flags are the initial ones, before flagging.
+     */
+    static final class Entry {
+        private final VisibilityWindow window;
+        private final float[][][][] powers;
+        private final int[][][] nrValidSamples;
+        private final FlagCube initialFlags;
+        private final int[] nrTimesPerSubband;
+        private final int nrSeconds;
+
+        Entry(final VisibilityWindow window, final float[][][][] powers, final int[][][] nrValidSamples,
+                final FlagCube initialFlags, final int[] nrTimesPerSubband, final int nrSeconds) {
+            this.window = window;
+            this.powers = powers;
+            this.nrValidSamples = nrValidSamples;
+            this.initialFlags = initialFlags;
+            this.nrTimesPerSubband = nrTimesPerSubband;
+            this.nrSeconds = nrSeconds;
+        }
+
+        VisibilityWindow getWindow() {
+            return window;
+        }
+
+        float[][][][] getPowers() {
+            return powers;
+        }
+
+        int[][][] getNrValidSamples() {
+            return nrValidSamples;
+        }
+
+        FlagCube getInitialFlags() {
+            return initialFlags;
+        }
+
+        int[] getNrTimesPerSubband() {
+            return nrTimesPerSubband;
+        }
+
+        int getNrSeconds() {
+            return nrSeconds;
+        }
+
+        long getSizeInBytes() {
+            if (powers.length == 0) {
+                return 0;
+            }
+            final long nrCells = (long) powers.length * powers[0].length * powers[0][0].length;
+            return nrCells * (powers[0][0][0].length * 4 + 4) + initialFlags.size() / 8;
+        }
+    }
+
+    private VisibilityWindow window;
+
+    BaselineCache(final long maxSizeInBytes, final VisibilityWindow window) {
+        super(maxSizeInBytes);
+        this.window = window;
+    }
+
+    @Override
+    protected long sizeOf(final Entry entry) {
+        return entry.getSizeInBytes();
+    }
+
+    /**
+     * @return the data of the baseline, or null if it is not in the cache, or was read for another window.
+     */
+    synchronized Entry get(final int baseline, final VisibilityWindow entryWindow) {
+        final Entry entry = get(baseline);
+        if (entry == null || entry.getWindow() != entryWindow) {
+            return null;
+        }
+        return entry;
+    }
+
+    synchronized boolean contains(final int baseline, final VisibilityWindow entryWindow) {
+        return get(baseline, entryWindow) != null;
+    }
+
+    /**
+     * Adds the data of a baseline, unless it was read for another window than the current one. That happens if a prefetch was
+     * already running when the window moved.
+     */
+    @Override
+    public synchronized void put(final Integer baseline, final Entry entry) {
+        if (entry.getWindow() != window) {
+            return;
+        }
+        super.put(baseline, entry);
+    }
+
+    /**
+     * Drops all baselines, and only accepts baselines of the given window from now on.
+     */
+    synchronized void setWindow(final VisibilityWindow newWindow) {
+        clear();
+        window = newWindow;
+    }
+}
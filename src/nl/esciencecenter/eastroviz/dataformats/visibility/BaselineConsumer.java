@@ -0,0 +1,44 @@
+/*
+ * Copyright 2013 Netherlands eScience Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.esciencecenter.eastroviz.dataformats.visibility;
+
+/**
+ * Receives the data of one baseline from {@link MSReader#read(int[], BaselineConsumer[], int, long)}, which reads all selected
+ * baselines in a single pass over the files.
+ */
+public interface BaselineConsumer {
+    /**
+     * Called for every second of a subband, in order. The arrays are owned by the reader, and only valid during the call.
+     * 
+     * @param timeIndex
+     *            the index of the second in the file of the subband
+     * @param visibilities
+     *            [nrChannels][nrCrossPolarizations][real/imag]
+     * @param powers
+     *            [nrChannels][nrCrossPolarizations], the powers of the visibilities
+     * @param nrValidSamples
+     *            [nrChannels]
+     */
+    void addSecond(int subband, int timeIndex, long sequenceNr, float[][][] visibilities, float[][] powers, int[] nrValidSamples);
+
+    /**
+     * Called after the last second of a subband.
+     * 
+     * @param nrTimes
+     *            the number of seconds that were read, including the read that found the end of the file.
+     */
+    void endSubband(int subband, int nrTimes);
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright 2013 Netherlands eScience Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.esciencecenter.eastroviz.dataformats.visibility;
+
+import java.io.IOException;
+
+import nl.esciencecenter.eastroviz.Viz;
+import nl.esciencecenter.eastroviz.flaggers.FlagMask;
+import nl.esciencecenter.eastroviz.flaggers.Statistics;
+import nl.esciencecenter.eastroviz.flaggers.StatisticsCalculator;
+import nl.esciencecenter.eastroviz.flaggers.StatisticsType;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Finds broken stations in a measurement set, in the style of detectBrokenStations in the LOFAR correlator. The measurement set is
+ * read once, with all baselines of a second at a time. For every subband and second, the powers of all cross-correlations of a
+ * station are summed, over all channels that have valid samples. A station is broken in that second if its summed power is an
+ * outlier compared to the other stations, too high or too low, so dead stations are found as well. A station that is broken in more
+ * than half of the seconds is reported as broken, together with all its baselines.
+ */
+public final class BrokenStationDetector {
+    private static final Logger LOGGER = LoggerFactory.getLogger(BrokenStationDetector.class);
+
+    /** The distance to the median summed power of all stations, in standard deviations, above which a station is broken. */
+    public static final float DEFAULT_THRESHOLD = 5.0f;
+
+    /** The fraction of the seconds a station must be broken in to report it. */
+    public static final float BROKEN_FRACTION = 0.5f;
+
+    private final String fileName;
+    private final int maxSequenceNr;
+    private final int maxSubbands;
+    private final float threshold;
+
+    private int nrStations;
+    private int nrChannels;
+    private int nrCrossPolarizations;
+
+    private float[] stationPowers; // [nrStations], of the current second
+    private FlagMask noFlags;
+    private final StatisticsCalculator calculator = new StatisticsCalculator(StatisticsType.STDDEV_MAD);
+    private final Statistics statistics = new Statistics();
+
+    private double[] totalPowers; // [nrStations]
+    private int[] nrBrokenSeconds; // [nrStations]
+    private int nrSeconds; // the number of seconds of all subbands together
+
+    public BrokenStationDetector(final String fileName, final int maxSequenceNr, final int maxSubbands) throws IOException {
+        this(fileName, maxSequenceNr, maxSubbands, DEFAULT_THRESHOLD);
+    }
+
+    public BrokenStationDetector(final String fileName, final int maxSequenceNr, final int maxSubbands, final float threshold)
+            throws IOException {
+        this.fileName = fileName;
+        this.maxSequenceNr = maxSequenceNr;
+        this.maxSubbands = maxSubbands;
+        this.threshold = threshold;
+
+        final MSMetaData meta = MSReader.getMetaData(fileName);
+        if (meta == null) {
+            throw new IOException("could not read the meta data of " + fileName);
+        }
+        init(meta.getNrStations(), meta.getNrChannels(), meta.getNrCrossPolarizations());
+    }
+
+    /**
+     * For testing without a measurement set, the seconds are added with {@link #addSecond(float[][][][], int[][])}.
+     */
+    BrokenStationDetector(final int nrStations, final int nrChannels, final int nrCrossPolarizations, final float threshold) {
+        this.fileName = null;
+        this.maxSequenceNr = Integer.MAX_VALUE;
+        this.maxSubbands = Integer.MAX_VALUE;
+        this.threshold = threshold;
+        init(nrStations, nrChannels, nrCrossPolarizations);
+    }
+
+    private void init(final int nrStations, final int nrChannels, final int nrCrossPolarizations) {
+        this.nrStations = nrStations;
+        this.nrChannels = nrChannels;
+        this.nrCrossPolarizations = nrCrossPolarizations;
+        stationPowers = new float[nrStations];
+        noFlags = new FlagMask(nrStations);
+        totalPowers = new double[nrStations];
+        nrBrokenSeconds = new int[nrStations];
+    }
+
+    /**
+     * Reads all subbands of the measurement set once, up to and including the first second with a sequence number of at least
+     * maxSequenceNr, like {@link MSReader#readSubband(int, int[], BaselineConsumer[], long)}.
+     */
+    public void detect() throws IOException {
+        final MSReader r = new MSReader(fileName);
+        final int nrSubbands = Math.min(r.getNrSubbands(), maxSubbands);
+        final long start = System.currentTimeMillis();
+
+        for (int subband = 0; subband < nrSubbands; subband++) {
+            r.openSubband(subband);
+            try {
+                while (true) {
+                    r.readSecond();
+                    if (r.getSequenceNr() >= 0) {
+                        addSecond(r.getAllVisibilities(), r.getNrValidSamples());
+                    }
+                    if (r.getSequenceNr() < 0 || r.getSequenceNr() >= maxSequenceNr) {
+                        break;
+                    }
+                }
+            } finally {
+                r.close();
+            }
+        }
+
+        final long end = System.currentTimeMillis();
+        LOGGER.info("Broken station detection of " + nrSubbands + " subbands took " + ((end - start) / 1000.0) + " seconds.");
+    }
+
+    /**
+     * Adds one second of one subband.
+     *
+     * @param vis
+     *            [nrBaselines][nrChannels][nrCrossPolarizations][real/imag]
+     * @param nrValidSamples
+     *            [nrBaselines][nrChannels]
+     */
+    void addSecond(final float[][][][] vis, final int[][] nrValidSamples) {
+        // channel 0 is not valid in LOFAR data
+        final int firstChannel = nrChannels > 1 ? 1 : 0;
+
+        for (int station = 0; station < nrStations; station++) {
+            stationPowers[station] = 0.0f;
+        }
+
+        for (int station2 = 0; station2 < nrStations; station2++) {
+            for (int station1 = 0; station1 < station2; station1++) {
+                final int baseline = VisibilityData.baseline(station1, station2);
+                float power = 0.0f;
+                for (int channel = firstChannel; channel < nrChannels; channel++) {
+                    if (nrValidSamples[baseline][channel] == 0) {
+                        continue;
+                    }
+                    for (int pol = 0; pol < nrCrossPolarizations; pol++) {
+                        final float real = vis[baseline][channel][pol][Viz.REAL];
+                        final float imag = vis[baseline][channel][pol][Viz.IMAG];
+                        power += real * real + imag * imag;
+                    }
+                }
+                stationPowers[station1] += power;
+                stationPowers[station2] += power;
+            }
+        }
+
+        calculator.calculate(stationPowers, noFlags, statistics);
+        final float maxDistance = threshold * statistics.getStdDev();
+
+        for (int station = 0; station < nrStations; station++) {
+            totalPowers[station] += stationPowers[station];
+            if (maxDistance > 0.0f && Math.abs(stationPowers[station] - statistics.getMedian()) > maxDistance) {
+                nrBrokenSeconds[station]++;
+            }
+        }
+        nrSeconds++;
+    }
+
+    public boolean isBroken(final int station) {
+        return nrSeconds > 0 && nrBrokenSeconds[station] > BROKEN_FRACTION * nrSeconds;
+    }
+
+    /**
+     * @return for every station, if it is broken.
+     */
+    public boolean[] getBrokenStations() {
+        final boolean[] result = new boolean[nrStations];
+        for (int station = 0; station < nrStations; station++) {
+            result[station] = isBroken(station);
+        }
+        return result;
+    }
+
+    /**
+     * @return a mask over all baselines, including the autocorrelations, in which all baselines with a broken station are set.
+     */
+    public FlagMask getBrokenBaselines() {
+        final FlagMask result = new FlagMask(nrStations * (nrStations + 1) / 2);
+        for (int station2 = 0; station2 < nrStations; station2++) {
+            for (int station1 = 0; station1 <= station2; station1++) {
+                if (isBroken(station1) || isBroken(station2)) {
+                    result.set(VisibilityData.baseline(station1, station2));
+                }
+            }
+        }
+        return result;
+    }
+
+    public int getNrBrokenSeconds(final int station) {
+        return nrBrokenSeconds[station];
+    }
+
+    /**
+     * @return the number of seconds that were checked, of all subbands together.
+     */
+    public int getNrSeconds() {
+        return nrSeconds;
+    }
+
+    public int getNrStations() {
+        return nrStations;
+    }
+
+    /**
+     * @return a table with the mean summed power of every station, and in how many seconds it was broken.
+     */
+    public String getReport() {
+        final StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%-8s %16s %20s  %s%n", "station", "mean power", "broken seconds", "status"));
+        for (int station = 0; station < nrStations; station++) {
+            final double meanPower = nrSeconds == 0 ? 0.0 : totalPowers[station] / nrSeconds;
+            final double percentage = nrSeconds == 0 ? 0.0 : 100.0 * nrBrokenSeconds[station] / nrSeconds;
+            sb.append(String.format("%-8d %16.6e %11d (%5.1f%%)  %s%n", station, meanPower, nrBrokenSeconds[station], percentage,
+                    isBroken(station) ? "BROKEN" : "ok"));
+        }
+        return sb.toString();
+    }
+}
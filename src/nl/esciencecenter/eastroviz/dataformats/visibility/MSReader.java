@@ -21,12 +21,24 @@ import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 
 import nl.esciencecenter.eastroviz.Viz;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Reads the visibilities of a measurement set of the LOFAR storage manager, one subband at a time. The data file of a subband
+ * consists of blocks of a fixed size, one per second: a header with the sequence number, the visibilities of all baselines, and the
+ * number of valid samples of all baselines, each part padded to the alignment. The file is memory mapped, so reading one baseline
+ * only touches the pages of that baseline, instead of streaming through the data of all others. Files over 2 GB are mapped in
+ * segments of whole seconds. The data is decoded by a {@link VisibilityDecoder}, in the byte order of the meta data, which also
+ * calculates the powers.
+ */
 @SuppressWarnings("unused")
 public final class MSReader {
     private static boolean NEW_FORMAT = true;
@@ -34,19 +46,33 @@ public final class MSReader {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(MSReader.class);
 
+    /** The maximum size of one mapping of the data file. */
+    static final long MAX_SEGMENT_SIZE = 1L << 30;
+
     private final String filename;
+    private final long maxSegmentSize;
     private final int nrSubbands;
     private long sequenceNr;
-    private DataInputStream in;
     private int subband;
     private MSMetaData metaData;
     private float[][][][] visData; // [nrBaselines][nrChannels][NR_CROSS_POLARIZATIONS][real/imag]
+    private float[][][] powerData; // [nrBaselines][nrChannels][NR_CROSS_POLARIZATIONS]
     private int[][] nrValidSamples; // [nrBaselines][nrChannels]
 
     private long maxFileSize;
     private long maxSecondsOfData;
     private int sizePerSecond;
 
+    private FileChannel channel;
+    private MappedByteBuffer[] segments; // mapped when they are first needed
+    private long blockSize; // the size of the data of one second, including the padding
+    private int visibilitiesOffset; // from the start of a block
+    private int nrValidSamplesOffset; // from the start of a block
+    private int secondsPerSegment;
+    private int nrSecondsInFile;
+    private int second; // the index of the next second to read
+    private VisibilityDecoder decoder;
+
     public static MSMetaData getMetaData(final String fileName) {
         MSReader r = null;
         try {
@@ -69,7 +95,16 @@ public final class MSReader {
     }
 
     public MSReader(final String filename) throws IOException {
+        this(filename, MAX_SEGMENT_SIZE);
+    }
+
+    /**
+     * @param maxSegmentSize
+     *            the maximum size of one mapping, to test the segmentation on small files.
+     */
+    MSReader(final String filename, final long maxSegmentSize) throws IOException {
         this.filename = filename;
+        this.maxSegmentSize = maxSegmentSize;
 
         int tmp = 0;
         final File f = new File(filename);
@@ -109,15 +144,42 @@ public final class MSReader {
         final File f = new File(dirName + File.separator + "table.f0data");
 
         if (VERBOSE) {
-            LOGGER.debug("reading file: " + f.getCanonicalPath());
+            LOGGER.debug("mapping file: " + f.getCanonicalPath());
         }
-        final FileInputStream fin = new FileInputStream(f);
-        final BufferedInputStream bin = new BufferedInputStream(fin, 10*1024*1024);
-        in = new DataInputStream(bin);
+
+        final int alignment = metaData.getAlignment();
+        final long visibilitiesSize =
+                (long) metaData.getNrBaselines() * metaData.getNrChannels() * metaData.getNrCrossPolarizations() * 2 * 4;
+        final long nrValidSamplesSize = (long) metaData.getNrBaselines() * metaData.getNrChannels() * metaData.getNrBytesPerValidSamples();
+        blockSize = alignment + align(visibilitiesSize, alignment) + align(nrValidSamplesSize, alignment);
+        if (blockSize > maxSegmentSize) {
+            throw new IOException("the data of one second does not fit in a mapping: " + blockSize + " bytes");
+        }
+        visibilitiesOffset = alignment;
+        nrValidSamplesOffset = (int) (alignment + align(visibilitiesSize, alignment));
+        secondsPerSegment = (int) (maxSegmentSize / blockSize);
+
+        close(); // the file of the previous subband
+        final RandomAccessFile file = new RandomAccessFile(f, "r");
+        channel = file.getChannel();
+        nrSecondsInFile = (int) (channel.size() / blockSize); // an incomplete last second is ignored
+        segments = new MappedByteBuffer[(nrSecondsInFile + secondsPerSegment - 1) / secondsPerSegment];
+        second = 0;
+    }
+
+    private static long align(final long size, final int alignment) {
+        return (size + alignment - 1) / alignment * alignment;
     }
 
+    /**
+     * Closes the data file. The mappings are released by the garbage collector.
+     */
     public void close() throws IOException {
-        in.close();
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+        segments = null;
     }
 
     /**
@@ -126,88 +188,204 @@ public final class MSReader {
      * @param baseline
      */
     public void readSecond(final int requiredBaseline) {
+        try {
+            final MappedByteBuffer segment = startSecond();
+            if (segment == null) {
+                return;
+            }
 
-        // 32 bit sequence number
+            final int block = blockOffset();
+            readVisibilities(segment, block, requiredBaseline);
+            readFlags(segment, block, requiredBaseline);
+            second++;
+        } catch (final IOException e) {
+            sequenceNr = -1;
+            return;
+        }
+    }
+
+    /**
+     * Read all baselines of the next second.
+     */
+    public void readSecond() {
         try {
-            readSequenceNr();
-            if (sequenceNr < 0) {
+            final MappedByteBuffer segment = startSecond();
+            if (segment == null) {
                 return;
             }
 
-            readVisibilities(requiredBaseline);
-            readFlags(requiredBaseline);
+            final int block = blockOffset();
+            for (int baseline = 0; baseline < metaData.getNrBaselines(); baseline++) {
+                readVisibilities(segment, block, baseline);
+                readFlags(segment, block, baseline);
+            }
+            second++;
         } catch (final IOException e) {
             sequenceNr = -1;
             return;
         }
     }
 
-    private void readFlags(final int requiredBaseline) throws IOException {
-        for (int channel = 0; channel < metaData.getNrChannels(); channel++) {
-            int nr = 0;
+    /**
+     * Read only the given baselines of the next second.
+     */
+    public void readSecond(final int[] baselines) {
+        try {
+            final MappedByteBuffer segment = startSecond();
+            if (segment == null) {
+                return;
+            }
 
-            if (metaData.getNrBytesPerValidSamples() == 1) {
-                nr = readuint8(in);
-            } else if (metaData.getNrBytesPerValidSamples() == 2) {
-                nr = readuint16(in);
-            } else {
-                throw new RuntimeException("unsupported nr bytes per nrValidsamples: " + metaData.getNrBytesPerValidSamples());
+            final int block = blockOffset();
+            for (final int baseline : baselines) {
+                readVisibilities(segment, block, baseline);
+                readFlags(segment, block, baseline);
             }
-            nrValidSamples[requiredBaseline][channel] = nr;
+            second++;
+        } catch (final IOException e) {
+            sequenceNr = -1;
+            return;
         }
-        int baselineFlagDataToSkip =
-                (metaData.getNrBaselines() - requiredBaseline - 1) * metaData.getNrChannels()
-                        * metaData.getNrBytesPerValidSamples();
+    }
 
-        int alignmentToSkip =
-                metaData.getAlignment()
-                        - ((metaData.getNrBaselines() * metaData.getNrChannels() * metaData.getNrBytesPerValidSamples()) % metaData
-                                .getAlignment());
-        if (alignmentToSkip == metaData.getAlignment()) {
-            alignmentToSkip = 0;
+    /**
+     * Reads the given baselines of the first nrSubbands subbands in a single pass over the files, and gives the data of
+     * baselines[i] to consumers[i]. See {@link #readSubband(int, int[], BaselineConsumer[], long)}.
+     */
+    public void read(final int[] baselines, final BaselineConsumer[] consumers, final int nrSubbands, final long maxSequenceNr)
+            throws IOException {
+        for (int sb = 0; sb < Math.min(nrSubbands, this.nrSubbands); sb++) {
+            readSubband(sb, baselines, consumers, maxSequenceNr);
         }
+    }
 
-        skip(in, baselineFlagDataToSkip + alignmentToSkip);
+    /**
+     * Reads the given baselines of one subband, and gives the data of baselines[i] to consumers[i]. The seconds are read until the
+     * end of the file, or up to and including the first second with a sequence number of at least maxSequenceNr. So, this reads
+     * the same seconds as reading the subband one baseline at a time, but only once for all baselines. Different subbands can be
+     * read in parallel, by different readers.
+     */
+    public void readSubband(final int subband, final int[] baselines, final BaselineConsumer[] consumers,
+            final long maxSequenceNr) throws IOException {
+        readSubband(subband, 0, Integer.MAX_VALUE, baselines, consumers, maxSequenceNr);
     }
 
-    private void readVisibilities(final int requiredBaseline) throws IOException {
-        skip(in, requiredBaseline * metaData.getNrChannels() * metaData.getNrCrossPolarizations() * 2 * 4);
-        for (int channel = 0; channel < metaData.getNrChannels(); channel++) {
-            for (int pol = 0; pol < metaData.getNrCrossPolarizations(); pol++) {
-                visData[requiredBaseline][channel][pol][Viz.REAL] = readFloat(in);
-                visData[requiredBaseline][channel][pol][Viz.IMAG] = readFloat(in);
+    /**
+     * Like {@link #readSubband(int, int[], BaselineConsumer[], long)}, but only reads the seconds [firstSecond, firstSecond +
+     * nrSeconds) of the file. The reader seeks straight to firstSecond, so the seconds before it cost nothing. The time indices
+     * given to the consumers are counted from the start of the file, not from firstSecond.
+     */
+    public void readSubband(final int subband, final int firstSecond, final int nrSeconds, final int[] baselines,
+            final BaselineConsumer[] consumers, final long maxSequenceNr) throws IOException {
+        if (baselines.length != consumers.length) {
+            throw new IllegalArgumentException("need one consumer per baseline");
+        }
+
+        openSubband(subband);
+        for (final int baseline : baselines) {
+            if (baseline < 0 || baseline >= metaData.getNrBaselines()) {
+                close();
+                throw new IOException("illegal baseline: " + baseline);
             }
         }
-        int baselineDataToSkip =
-                (metaData.getNrBaselines() - requiredBaseline - 1) * metaData.getNrChannels()
-                        * metaData.getNrCrossPolarizations() * 2 * 4;
 
-        int processed = metaData.getNrBaselines() * metaData.getNrChannels() * metaData.getNrCrossPolarizations() * 2 * 4;
-        int alignmentToSkip = metaData.getAlignment() - (processed % metaData.getAlignment());
-        if (alignmentToSkip == metaData.getAlignment()) {
-            alignmentToSkip = 0;
+        seek(firstSecond);
+        final long endSecond = (long) firstSecond + nrSeconds;
+        int timeIndex = firstSecond;
+        while (timeIndex < endSecond) {
+            readSecond(baselines);
+            if (sequenceNr >= 0) {
+                for (int i = 0; i < baselines.length; i++) {
+                    final int baseline = baselines[i];
+                    consumers[i].addSecond(subband, timeIndex, sequenceNr, visData[baseline], powerData[baseline],
+                            nrValidSamples[baseline]);
+                }
+            }
+            timeIndex++;
+            if (sequenceNr < 0 || sequenceNr >= maxSequenceNr) {
+                break;
+            }
         }
+        close();
 
-        int baselineFlagDataToSkip = requiredBaseline * metaData.getNrChannels() * metaData.getNrBytesPerValidSamples();
+        for (int i = 0; i < baselines.length; i++) {
+            consumers[i].endSubband(subband, timeIndex);
+        }
+    }
 
-        skip(in, baselineDataToSkip + alignmentToSkip + baselineFlagDataToSkip);
+    /**
+     * Sets the second that the next readSecond reads, counted from the start of the file of the current subband. This is not
+     * the sequence number: if seconds were dropped, the sequence numbers skip them.
+     */
+    public void seek(final int second) {
+        if (second < 0) {
+            throw new IllegalArgumentException("illegal second: " + second);
+        }
+        this.second = second;
     }
 
-    private void readSequenceNr() throws IOException {
+    /**
+     * @return the number of complete seconds in the file of the current subband.
+     */
+    public int getNrSecondsInSubband() {
+        return nrSecondsInFile;
+    }
+
+    /**
+     * Reads the sequence number of the current second.
+     * 
+     * @return the segment that contains the current second, or null if there are no more seconds.
+     */
+    private MappedByteBuffer startSecond() throws IOException {
+        if (second >= nrSecondsInFile) {
+            sequenceNr = -1;
+            return null;
+        }
+
+        final MappedByteBuffer segment = getSegment(second / secondsPerSegment);
+        final int block = blockOffset();
         if (NEW_FORMAT) {
-            final long magic = readuint32(in, false);
+            final long magic = VisibilityDecoder.getUInt32(segment, block);
             if (magic != 0x0000DA7A) {
                 LOGGER.info("data corrupted, magic is wrong! val = " + magic);
                 sequenceNr = -1;
                 throw new RuntimeException("data corrupted, magic is wrong!");
             }
 
-            sequenceNr = readuint32(in, false);
-            skip(in, metaData.getAlignment() - 8);
+            sequenceNr = VisibilityDecoder.getUInt32(segment, block + 4);
         } else {
-            sequenceNr = readuint32(in, true);
-            skip(in, metaData.getAlignment() - 4);
+            final int value = segment.getInt(block);
+            sequenceNr = (segment.order() == ByteOrder.BIG_ENDIAN ? value : Integer.reverseBytes(value)) & 0xFFFFFFFFL; // big endian
+        }
+        return segment;
+    }
+
+    /**
+     * @return the offset of the current second in its segment.
+     */
+    private int blockOffset() {
+        return (int) ((second % secondsPerSegment) * blockSize);
+    }
+
+    private MappedByteBuffer getSegment(final int index) throws IOException {
+        if (segments[index] == null) {
+            final long start = (long) index * secondsPerSegment * blockSize;
+            final int nrSeconds = Math.min(secondsPerSegment, nrSecondsInFile - index * secondsPerSegment);
+            final MappedByteBuffer segment = channel.map(FileChannel.MapMode.READ_ONLY, start, nrSeconds * blockSize);
+            segment.order(decoder.getByteOrder());
+            segments[index] = segment;
         }
+        return segments[index];
+    }
+
+    private void readVisibilities(final MappedByteBuffer segment, final int block, final int baseline) {
+        decoder.decodeVisibilities(segment, block + visibilitiesOffset + baseline * decoder.getVisibilitiesSize(), visData[baseline],
+                powerData[baseline]);
+    }
+
+    private void readFlags(final MappedByteBuffer segment, final int block, final int baseline) {
+        decoder.decodeNrValidSamples(segment, block + nrValidSamplesOffset + baseline * decoder.getNrValidSamplesSize(),
+                nrValidSamples[baseline]);
     }
 
     private void readMeta(final String dirName) throws IOException {
@@ -267,7 +445,7 @@ public final class MSReader {
             LOGGER.debug("alignment : " + alignment);
         }
 
-        final boolean isBigEndian = din.readByte() == 0 ? true : false;
+        final boolean isBigEndian = din.readByte() != 0;
         if (VERBOSE) {
             LOGGER.debug("big endian = " + isBigEndian);
         }
@@ -285,6 +463,8 @@ public final class MSReader {
 
         visData = new float[metaData.getNrBaselines()][nrChannels][nrCrossPolarizations][2];
         nrValidSamples = new int[metaData.getNrBaselines()][nrChannels];
+        powerData = new float[metaData.getNrBaselines()][nrChannels][nrCrossPolarizations];
+        decoder = new VisibilityDecoder(metaData);
 
         sizePerSecond = metaData.getAlignment(); // header
         sizePerSecond += metaData.getNrBaselines() * metaData.getNrChannels() * metaData.getNrCrossPolarizations() * 2 * 4; // samples
@@ -343,19 +523,6 @@ public final class MSReader {
         }
     }
 
-    private float readFloat(final DataInputStream in) throws IOException {
-        final int ch0 = in.read();
-        final int ch1 = in.read();
-        final int ch2 = in.read();
-        final int ch3 = in.read();
-        if ((ch0 | ch1 | ch2 | ch3) < 0) {
-            throw new EOFException();
-        }
-        final float val = Float.intBitsToFloat((ch3 << 24) + (ch2 << 16) + (ch1 << 8) + (ch0 << 0));
-
-        return val;
-    }
-
     private long readuint32(final DataInputStream in, final boolean bigEndian) throws IOException {
         final int ch0 = in.read();
         final int ch1 = in.read();
@@ -372,29 +539,22 @@ public final class MSReader {
         }
     }
 
-    private int readuint16(final DataInputStream in) throws IOException {
-        final int ch0 = in.read();
-        final int ch1 = in.read();
-        if ((ch0 | ch1) < 0) {
-            throw new EOFException();
-        }
-
-        final int res = (ch1 << 8) + (ch0 << 0);
-
-        return res;
+    public float[][][] getVisibilities(final int baseline) {
+        return visData[baseline];
     }
 
-    private int readuint8(final DataInputStream in) throws IOException {
-        final int ch0 = in.read();
-        if ((ch0) < 0) {
-            throw new EOFException();
-        }
-
-        return ch0;
+    /**
+     * @return the visibilities of all baselines, only all valid after {@link #readSecond()}.
+     */
+    public float[][][][] getAllVisibilities() {
+        return visData;
     }
 
-    public float[][][] getVisibilities(final int baseline) {
-        return visData[baseline];
+    /**
+     * @return the powers of the visibilities of the baseline, [nrChannels][nrCrossPolarizations].
+     */
+    public float[][] getPowers(final int baseline) {
+        return powerData[baseline];
     }
 
     public int[][] getNrValidSamples() {
@@ -16,77 +16,142 @@
 package nl.esciencecenter.eastroviz.dataformats.visibility;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
-import nl.esciencecenter.eastroviz.Viz;
 import nl.esciencecenter.eastroviz.dataformats.DataProvider;
+import nl.esciencecenter.eastroviz.dataformats.FlagCube;
+import nl.esciencecenter.eastroviz.flaggers.FlagMask;
 import nl.esciencecenter.eastroviz.flaggers.PostCorrelationFlagger;
 import nl.esciencecenter.eastroviz.flaggers.PostCorrelationHistorySmoothedSumThresholdFlagger;
 import nl.esciencecenter.eastroviz.flaggers.PostCorrelationHistorySumThresholdFlagger;
 import nl.esciencecenter.eastroviz.flaggers.PostCorrelationSmoothedSumThresholdFlagger;
 import nl.esciencecenter.eastroviz.flaggers.PostCorrelationSumThresholdFlagger;
 import nl.esciencecenter.eastroviz.flaggers.PostCorrelationThresholdFlagger;
+import nl.esciencecenter.eastroviz.flaggers.StatisticsCache;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * Represents all time samples and frequencies of a given baseline.
+ * Represents the time samples and frequencies of a given baseline. Only the seconds, subbands and channels of a
+ * {@link VisibilityWindow} are read and kept in memory, so a long observation can be viewed a part at a time. The time and
+ * frequency indices of the data provider are relative to the start of the window.
  */
 public final class VisibilityData extends DataProvider {
     public static final boolean REMOVE_CHANNEL_0_FROM_VIEW = true;
 
     private static final Logger LOGGER = LoggerFactory.getLogger(VisibilityData.class);
 
-    private final MSReader r;
-    private final float[][][][] powers; // [time][nrSubbands][nrChannels][nrCrossPolarizations]
-    private final int[][][] nrValidSamples; // [time][nrSubbands][nrChannels]
-    private final boolean[][][] flagged; // [time][nrSubbands][nrChannels]
+    private float[][][][] powers; // [time][nrSubbands][nrChannels][nrCrossPolarizations], of the window
+    private int[][][] nrValidSamples; // [time][nrSubbands][nrChannels]
+    private FlagCube flagged; // [time][nrSubbands][nrChannels], subbands are word aligned so they can be flagged in parallel
+    private FlagCube initialFlags; // the flags of the data set itself, before flagging
     private int baseline;
     private int station1;
     private int station2;
     private int pol;
-    private final int nrChannels;
+    private final int totalNrSeconds;
+    private final int totalNrSubbands;
+    private final int totalNrChannels;
     private final int integrationTime;
     private final int nrStations;
     private final int nrBaselines;
-    private final int nrSubbands;
     private final int nrCrossPolarizations;
+    private VisibilityWindow window;
+    private int firstSecond;
+    private int firstSubband;
+    private int firstChannel;
+    private int nrSubbands; // in the window
+    private int nrChannels; // in the window
     private int nrSeconds;
+    private final int[] nrTimesPerSubband; // the end of the seconds read from each subband, counted from the start of the file
+    private int nrReaderThreads = Runtime.getRuntime().availableProcessors();
+
+    // the baselines that were viewed or prefetched, and the prefetches that are still running
+    private final BaselineCache baselineCache;
+    private final Map<Integer, Future<BaselineCache.Entry>> prefetches = new HashMap<Integer, Future<BaselineCache.Entry>>();
+    private ExecutorService prefetcher;
+    private boolean prefetchNeighbours = true;
+    private boolean hasData; // false until the data of the current baseline is read
 
     public VisibilityData(final String fileName, final int station1, final int station2, final int pol, final int maxSequenceNr,
             final int maxSubbands) throws IOException {
+        this(fileName, station1, station2, pol, maxSequenceNr, maxSubbands, VisibilityWindow.ALL);
+    }
+
+    /**
+     * @param window
+     *            the part of the data set that is read and kept in memory, see {@link #setWindow(VisibilityWindow)}.
+     */
+    public VisibilityData(final String fileName, final int station1, final int station2, final int pol, final int maxSequenceNr,
+            final int maxSubbands, final VisibilityWindow window) throws IOException {
         super();
         init(fileName, maxSequenceNr, maxSubbands, new String[] { "XX", "XY", "YX", "YY" }, new String[] { "none", "Threshold",
                 "SumThreshold", "SmoothedSumThreshold", "HistorySumThreshold", "HistorySmoothedSumThreshold" });
         this.station1 = station1;
         this.station2 = station2;
-        this.baseline = baseline(station1, station2);
+        this.baseline = sortedBaseline(station1, station2);
         this.pol = pol;
 
-        r = new MSReader(fileName);
-        nrSubbands = r.getNrSubbands();
+        final MSReader r = new MSReader(fileName);
+        totalNrSubbands = Math.min(r.getNrSubbands(), getMaxSubbands());
+        nrTimesPerSubband = new int[totalNrSubbands];
 
         // open subband 0, to read the metadata
         r.openSubband(0);
-        this.nrChannels = r.getMetaData().getNrChannels();
+        this.totalNrChannels = r.getMetaData().getNrChannels();
         this.nrBaselines = r.getMetaData().getNrBaselines();
         this.integrationTime = r.getMetaData().getIntegrationTimeProd();
         this.nrCrossPolarizations = r.getMetaData().getNrCrossPolarizations();
         this.nrStations = r.getMetaData().getNrStations();
-        this.nrSeconds = r.getMaxNrSecondsOfData();
+        this.totalNrSeconds = r.getMaxNrSecondsOfData();
         r.close();
 
-        powers = new float[nrSeconds][nrSubbands][nrChannels][nrCrossPolarizations];
-        nrValidSamples = new int[nrSeconds][nrSubbands][nrChannels];
-        flagged = new boolean[nrSeconds][nrSubbands][nrChannels];
-
         if (baseline >= nrBaselines) {
             throw new IOException("illegal baseline");
         }
 
-        LOGGER.info("nrSubbands = " + nrSubbands + ", nrChannels = " + nrChannels + ", nrBaseLines = " + nrBaselines
+        allocate(window);
+        nrSeconds = powers.length;
+        baselineCache = new BaselineCache(Runtime.getRuntime().maxMemory() / 4, window);
+
+        LOGGER.info("nrSubbands = " + totalNrSubbands + ", nrChannels = " + totalNrChannels + ", nrBaseLines = " + nrBaselines
                 + ", integrationTime = " + integrationTime + ", pols = " + nrCrossPolarizations + ", nrStations = " + nrStations
-                + ", nrSeconds = " + nrSeconds);
+                + ", nrSeconds = " + totalNrSeconds + ", window = " + window);
+    }
+
+    /**
+     * Allocates the arrays for the given window, and makes it the current one.
+     */
+    private void allocate(final VisibilityWindow newWindow) throws IOException {
+        final int newNrSubbands = newWindow.getNrSubbands(totalNrSubbands);
+        final int newNrChannels = newWindow.getNrChannels(totalNrChannels);
+        if (newNrSubbands == 0 || newNrChannels == 0) {
+            throw new IOException("window " + newWindow + " is outside the data set");
+        }
+
+        window = newWindow;
+        firstSecond = newWindow.getFirstSecond();
+        firstSubband = newWindow.getFirstSubband();
+        firstChannel = newWindow.getFirstChannel();
+        nrSubbands = newNrSubbands;
+        nrChannels = newNrChannels;
+
+        final int nrSecondsInWindow = newWindow.getNrSeconds(totalNrSeconds);
+        powers = new float[nrSecondsInWindow][nrSubbands][nrChannels][nrCrossPolarizations];
+        nrValidSamples = new int[nrSecondsInWindow][nrSubbands][nrChannels];
+        flagged = new FlagCube(nrSecondsInWindow, nrSubbands, nrChannels, true);
     }
 
     public static int baseline(final int station1, final int station2) {
@@ -94,6 +159,14 @@ public final class VisibilityData extends DataProvider {
         return station2 * (station2 + 1) / 2 + station1;
     }
 
+    /**
+     * @return the baseline of the two stations, in either order. The visibilities of (station2, station1) are the complex
+     *         conjugates of those of (station1, station2), so they have the same powers.
+     */
+    private static int sortedBaseline(final int station1, final int station2) {
+        return baseline(Math.min(station1, station2), Math.max(station1, station2));
+    }
+
     public static int baselineToStation1(final int baseline) {
         int station2 = baselineToStation2(baseline);
         return baseline - station2 * (station2 + 1) / 2;
@@ -108,51 +181,465 @@ public final class VisibilityData extends DataProvider {
     }
 
     public void read() throws IOException {
-        for (int i = 0; i < nrSubbands; i++) {
-            readSubband(i);
+        invalidateStatisticsCache();
+        LOGGER.info("Reading data for stations (" + station1 + ", " + station2 + "), baseline " + baseline + "...");
+        final long start = System.currentTimeMillis();
+        Arrays.fill(nrTimesPerSubband, 0);
+        readSubbands(getFileName(), new int[] { baseline }, new VisibilityData[] { this }, getWindowReads(), getMaxSequenceNr(),
+                nrReaderThreads);
+        updateNrSeconds();
+        initialFlags = new FlagCube(flagged);
+        hasData = true;
+        final long end = System.currentTimeMillis();
+        LOGGER.info("Read " + nrSeconds + " time samples of data. Read took " + ((end - start) / 1000.0) + " seconds.");
+    }
+
+    /**
+     * Reads the data of many baselines in a single pass over the files, instead of a pass per baseline.
+     * 
+     * @param baselines
+     *            the baselines to read, see {@link #baseline(int, int)}
+     * @param nrThreads
+     *            the number of subbands that are read in parallel
+     * @return the data of every baseline, with polarization 0 selected
+     */
+    public static VisibilityData[] read(final String fileName, final int[] baselines, final int maxSequenceNr,
+            final int maxSubbands, final int nrThreads) throws IOException {
+        return read(fileName, baselines, maxSequenceNr, maxSubbands, VisibilityWindow.ALL, nrThreads);
+    }
+
+    /**
+     * Like {@link #read(String, int[], int, int, int)}, but only reads the given window of every baseline.
+     */
+    public static VisibilityData[] read(final String fileName, final int[] baselines, final int maxSequenceNr,
+            final int maxSubbands, final VisibilityWindow window, final int nrThreads) throws IOException {
+        final VisibilityData[] result = new VisibilityData[baselines.length];
+        for (int i = 0; i < baselines.length; i++) {
+            result[i] =
+                    new VisibilityData(fileName, baselineToStation1(baselines[i]), baselineToStation2(baselines[i]), 0,
+                            maxSequenceNr, maxSubbands, window);
+            result[i].invalidateStatisticsCache();
+        }
+        if (baselines.length == 0) {
+            return result;
+        }
+
+        LOGGER.info("Reading data for " + baselines.length + " baselines...");
+        final long start = System.currentTimeMillis();
+        readSubbands(fileName, baselines, result, result[0].getWindowReads(), maxSequenceNr, nrThreads);
+        for (final VisibilityData d : result) {
+            d.updateNrSeconds();
+            d.initialFlags = new FlagCube(d.flagged);
+            d.hasData = true;
+        }
+        final long end = System.currentTimeMillis();
+        LOGGER.info("Read " + baselines.length + " baselines. Read took " + ((end - start) / 1000.0) + " seconds.");
+        return result;
+    }
+
+    /**
+     * Moves or resizes the window. The data that the old and the new window have in common is kept, and only the rest is read:
+     * expanding or scrolling the window in time only reads the extra seconds. A subband that was not in the old window, or that
+     * needs channels that were not in it, is read completely. All data gets its initial flags back, and is flagged again with the
+     * current flagger. The cached flags of earlier flagger settings are of the old window, so they are dropped.
+     */
+    public void setWindow(final VisibilityWindow newWindow) throws IOException {
+        final float[][][][] oldPowers = powers;
+        final int[][][] oldNrValidSamples = nrValidSamples;
+        final FlagCube oldInitialFlags = initialFlags;
+        final int oldFirstSecond = firstSecond;
+        final int oldFirstSubband = firstSubband;
+        final int oldFirstChannel = firstChannel;
+        final int oldNrSubbands = nrSubbands;
+        final int oldNrChannels = nrChannels;
+
+        allocate(newWindow);
+        invalidateFlaggerCaches();
+        cancelPrefetches();
+        baselineCache.setWindow(window);
+        if (!hasData) {
+            return; // nothing to keep, read() reads the new window
+        }
+
+        final int endSecond = firstSecond + powers.length;
+        final List<int[]> reads = new ArrayList<int[]>();
+        for (int sb = firstSubband; sb < firstSubband + nrSubbands; sb++) {
+            final boolean kept =
+                    sb >= oldFirstSubband && sb < oldFirstSubband + oldNrSubbands && firstChannel >= oldFirstChannel
+                            && firstChannel + nrChannels <= oldFirstChannel + oldNrChannels;
+            if (!kept) {
+                nrTimesPerSubband[sb] = 0;
+                reads.add(new int[] { sb, firstSecond, getNrSecondsToRead(firstSecond) });
+                continue;
+            }
+
+            final int subband = sb - firstSubband;
+            final int oldSubband = sb - oldFirstSubband;
+            final int loadedEnd = Math.min(nrTimesPerSubband[sb], oldFirstSecond + oldPowers.length);
+            for (int second = Math.max(firstSecond, oldFirstSecond); second < Math.min(endSecond, loadedEnd); second++) {
+                final int time = second - firstSecond;
+                final int oldTime = second - oldFirstSecond;
+                for (int channel = 0; channel < nrChannels; channel++) {
+                    final int oldChannel = channel + firstChannel - oldFirstChannel;
+                    System.arraycopy(oldPowers[oldTime][oldSubband][oldChannel], 0, powers[time][subband][channel], 0,
+                            nrCrossPolarizations);
+                    nrValidSamples[time][subband][channel] = oldNrValidSamples[oldTime][oldSubband][oldChannel];
+                    flagged.set(time, subband, channel, oldInitialFlags.get(oldTime, oldSubband, oldChannel));
+                }
+            }
+
+            if (firstSecond < oldFirstSecond) {
+                reads.add(new int[] { sb, firstSecond, Math.min(oldFirstSecond, endSecond) - firstSecond });
+            }
+            if (endSecond > loadedEnd) {
+                final int start = Math.max(firstSecond, loadedEnd);
+                reads.add(new int[] { sb, start, getNrSecondsToRead(start) });
+            }
+        }
+
+        final long start = System.currentTimeMillis();
+        if (!reads.isEmpty()) {
+            readSubbands(getFileName(), new int[] { baseline }, new VisibilityData[] { this },
+                    reads.toArray(new int[reads.size()][]), getMaxSequenceNr(), nrReaderThreads);
+        }
+        updateNrSeconds();
+        initialFlags = new FlagCube(flagged);
+        final long end = System.currentTimeMillis();
+        LOGGER.info("Moved the window to " + window + ", " + reads.size() + " read(s) took " + ((end - start) / 1000.0)
+                + " seconds.");
+        reflag();
+    }
+
+    /**
+     * Selects another baseline. Its data is taken from the cache of recently viewed and prefetched baselines if it is there, and
+     * read otherwise. The data is flagged with the current flagger, or gets the cached flags if the baseline was flagged with these
+     * settings before. Then, the neighbouring baselines (one station up or down) are prefetched in the background, so stepping
+     * through the baselines does not wait for the disk.
+     */
+    public void setStations(final int newStation1, final int newStation2) throws IOException {
+        final int newBaseline = sortedBaseline(newStation1, newStation2);
+        if (newBaseline >= nrBaselines) {
+            throw new IOException("illegal baseline");
         }
+        station1 = newStation1;
+        station2 = newStation2;
+        if (newBaseline == baseline) {
+            return;
+        }
+
+        if (hasData) {
+            baselineCache.put(baseline, getEntry());
+        }
+        baseline = newBaseline;
+
+        BaselineCache.Entry entry = baselineCache.get(newBaseline, window);
+        if (entry == null) {
+            entry = waitForPrefetch(newBaseline);
+        }
+        if (entry != null) {
+            LOGGER.info("Using cached data for stations (" + station1 + ", " + station2 + "), baseline " + baseline);
+            setEntry(entry);
+        } else {
+            // the current arrays are in the cache now, so read into new ones
+            allocate(window);
+            read();
+        }
+        reflag();
+
+        prefetchNeighbours();
     }
 
-    private void readSubband(final int subband) {
+    private BaselineCache.Entry getEntry() {
+        return new BaselineCache.Entry(window, powers, nrValidSamples, initialFlags, nrTimesPerSubband.clone(), nrSeconds);
+    }
+
+    private void setEntry(final BaselineCache.Entry entry) {
+        invalidateStatisticsCache();
+        powers = entry.getPowers();
+        nrValidSamples = entry.getNrValidSamples();
+        System.arraycopy(entry.getNrTimesPerSubband(), 0, nrTimesPerSubband, 0, nrTimesPerSubband.length);
+        nrSeconds = entry.getNrSeconds();
+        hasData = true;
+
+        initialFlags = entry.getInitialFlags();
+        flagged = new FlagCube(initialFlags);
+    }
+
+    /**
+     * @return the data of the baseline if it is being prefetched, or null if it is not, or the prefetch failed.
+     */
+    private BaselineCache.Entry waitForPrefetch(final int newBaseline) {
+        final Future<BaselineCache.Entry> prefetch = prefetches.remove(newBaseline);
+        if (prefetch == null) {
+            return null;
+        }
         try {
-            r.openSubband(subband);
-        } catch (final IOException e) {
-            e.printStackTrace();
+            final BaselineCache.Entry entry = prefetch.get();
+            return entry.getWindow() == window ? entry : null;
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (final ExecutionException e) {
+            LOGGER.warn("prefetch of baseline " + newBaseline + " failed: " + e.getCause());
+            return null;
+        }
+    }
+
+    private void prefetchNeighbours() {
+        final Iterator<Future<BaselineCache.Entry>> it = prefetches.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().isDone()) {
+                it.remove();
+            }
         }
+        if (!prefetchNeighbours || baselineCache.getMaxSizeInBytes() == 0) {
+            return;
+        }
+
+        final int[][] neighbours =
+                { { station1 - 1, station2 }, { station1 + 1, station2 }, { station1, station2 - 1 }, { station1, station2 + 1 } };
+        for (final int[] neighbour : neighbours) {
+            if (neighbour[0] < 0 || neighbour[0] >= nrStations || neighbour[1] < 0 || neighbour[1] >= nrStations) {
+                continue;
+            }
+            final int neighbourBaseline = sortedBaseline(neighbour[0], neighbour[1]);
+            if (neighbourBaseline == baseline || prefetches.containsKey(neighbourBaseline)
+                    || baselineCache.contains(neighbourBaseline, window)) {
+                continue;
+            }
+            prefetches.put(neighbourBaseline, getPrefetcher().submit(new Prefetch(neighbour[0], neighbour[1], window)));
+        }
+    }
 
-        LOGGER.info("Reading data for stations (" + station1 + ", " + station2 + "), baseline " + baseline + ", subband "
-                + subband + "...");
-        long start = System.currentTimeMillis();
+    /**
+     * Reads a baseline on the prefetcher thread, into a data set of its own, and puts it in the cache.
+     */
+    private final class Prefetch implements Callable<BaselineCache.Entry> {
+        private final int prefetchStation1;
+        private final int prefetchStation2;
+        private final VisibilityWindow prefetchWindow;
 
-        long sequenceNr = 0;
-        int timeIndex = 0;
-        do {
-            sequenceNr = readSecond(subband, timeIndex);
-            timeIndex++;
-        } while (sequenceNr >= 0 && sequenceNr < getMaxSequenceNr());
-        try {
-            r.close();
-        } catch (final IOException e) {
-            e.printStackTrace();
+        Prefetch(final int prefetchStation1, final int prefetchStation2, final VisibilityWindow prefetchWindow) {
+            this.prefetchStation1 = prefetchStation1;
+            this.prefetchStation2 = prefetchStation2;
+            this.prefetchWindow = prefetchWindow;
         }
-        long end = System.currentTimeMillis();
-        nrSeconds = timeIndex;
-        LOGGER.info("Read " + nrSeconds + " time samples of data. Read took " + ((end - start) / 1000.0) + " seconds.");
+
+        @Override
+        public BaselineCache.Entry call() throws IOException {
+            final VisibilityData data =
+                    new VisibilityData(getFileName(), prefetchStation1, prefetchStation2, pol, getMaxSequenceNr(), getMaxSubbands(),
+                            prefetchWindow);
+            data.setNrReaderThreads(1);
+            data.setPrefetchNeighbours(false);
+            data.read();
+            final BaselineCache.Entry entry = data.getEntry();
+            baselineCache.put(data.baseline, entry);
+            return entry;
+        }
+    }
+
+    private ExecutorService getPrefetcher() {
+        if (prefetcher == null) {
+            prefetcher = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable r) {
+                    final Thread thread = new Thread(r, "baseline prefetcher");
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                }
+            });
+        }
+        return prefetcher;
+    }
+
+    private void cancelPrefetches() {
+        for (final Future<BaselineCache.Entry> prefetch : prefetches.values()) {
+            prefetch.cancel(false);
+        }
+        prefetches.clear();
+    }
+
+    public boolean getPrefetchNeighbours() {
+        return prefetchNeighbours;
     }
 
-    private long readSecond(final int subband, final int timeIndex) {
-        r.readSecond(baseline);
-        if (r.getSequenceNr() >= 0) {
-            addSecond(subband, r.getVisibilities(baseline), r.getNrValidSamples(baseline), r.getSequenceNr(), timeIndex);
+    /**
+     * @param prefetchNeighbours
+     *            whether changing the stations prefetches the neighbouring baselines in the background.
+     */
+    public void setPrefetchNeighbours(final boolean prefetchNeighbours) {
+        this.prefetchNeighbours = prefetchNeighbours;
+        if (!prefetchNeighbours) {
+            cancelPrefetches();
         }
-        return r.getSequenceNr();
     }
 
-    private void addSecond(final int subband, final float[][][] vis, // [nrChannels][nrCrossPolarizations][2]
+    public long getBaselineCacheSize() {
+        return baselineCache.getMaxSizeInBytes();
+    }
+
+    /**
+     * Set the maximum amount of memory used to cache the data of other baselines than the current one. Use 0 to disable the cache,
+     * and with it the prefetching.
+     */
+    public void setBaselineCacheSize(final long maxSizeInBytes) {
+        baselineCache.setMaxSizeInBytes(maxSizeInBytes);
+    }
+
+    /**
+     * @return the number of baselines in the cache, not counting the current one.
+     */
+    public int getNrCachedBaselines() {
+        return baselineCache.getNrEntries();
+    }
+
+    public VisibilityWindow getWindow() {
+        return window;
+    }
+
+    /**
+     * @return the reads of the complete window: the seconds of the window, of every subband in it.
+     */
+    private int[][] getWindowReads() {
+        final int[][] reads = new int[nrSubbands][];
+        for (int i = 0; i < nrSubbands; i++) {
+            reads[i] = new int[] { firstSubband + i, firstSecond, getNrSecondsToRead(firstSecond) };
+        }
+        return reads;
+    }
+
+    /**
+     * @return the number of seconds to read from the given second to the end of the window. If the window reaches the end of the
+     *         data set, the subband is read up to the end of its file, like the reading of the whole data set always did.
+     */
+    private int getNrSecondsToRead(final int start) {
+        if (firstSecond + powers.length >= totalNrSeconds) {
+            return Integer.MAX_VALUE;
+        }
+        return firstSecond + powers.length - start;
+    }
+
+    /**
+     * Like reading the subbands in order, the number of seconds is that of the last subband.
+     */
+    private void updateNrSeconds() {
+        nrSeconds = Math.max(0, Math.min(nrTimesPerSubband[firstSubband + nrSubbands - 1] - firstSecond, powers.length));
+    }
+
+    /**
+     * Every subband is a separate file, and its data goes to separate parts of the arrays, so the subbands can be read in parallel.
+     * Every subband is read by its own reader. The flags of the subbands are word aligned, so the threads never write to the same
+     * word.
+     * 
+     * @param reads
+     *            the ranges to read, as { subband, first second, number of seconds }. The reads of a subband must be next to each
+     *            other; they are done in order, by the same thread.
+     */
+    private static void readSubbands(final String fileName, final int[] baselines, final VisibilityData[] data,
+            final int[][] reads, final int maxSequenceNr, final int nrThreads) throws IOException {
+        final BaselineConsumer[] consumers = new BaselineConsumer[data.length];
+        for (int i = 0; i < data.length; i++) {
+            consumers[i] = data[i].consumer;
+        }
+
+        final List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (int first = 0; first < reads.length;) {
+            int last = first;
+            while (last + 1 < reads.length && reads[last + 1][0] == reads[first][0]) {
+                last++;
+            }
+            final int sb = reads[first][0];
+            final int[][] subbandReads = Arrays.copyOfRange(reads, first, last + 1);
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    final long start = System.currentTimeMillis();
+                    final MSReader reader = new MSReader(fileName);
+                    for (final int[] read : subbandReads) {
+                        reader.readSubband(sb, read[1], read[2], baselines, consumers, maxSequenceNr);
+                    }
+                    final long end = System.currentTimeMillis();
+                    LOGGER.info("Read subband " + sb + ", up to time " + data[0].nrTimesPerSubband[sb] + ", in "
+                            + ((end - start) / 1000.0) + " seconds.");
+                    return null;
+                }
+            });
+            first = last + 1;
+        }
+
+        if (nrThreads <= 1 || tasks.size() <= 1) {
+            for (final Callable<Void> task : tasks) {
+                try {
+                    task.call();
+                } catch (final IOException e) {
+                    throw e;
+                } catch (final Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        } else {
+            final ExecutorService pool = Executors.newFixedThreadPool(Math.min(nrThreads, tasks.size()));
+            try {
+                for (final Future<Void> result : pool.invokeAll(tasks)) {
+                    result.get();
+                }
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("interrupted while reading", e);
+            } catch (final ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new RuntimeException("reading failed", e.getCause());
+            } finally {
+                pool.shutdown();
+            }
+        }
+    }
+
+    /**
+     * @return the approximate number of bytes that the data of one baseline takes in memory.
+     */
+    public static long getSizePerBaseline(final String fileName) throws IOException {
+        return getSizePerBaseline(fileName, VisibilityWindow.ALL);
+    }
+
+    /**
+     * @return the approximate number of bytes that the given window of one baseline takes in memory.
+     */
+    public static long getSizePerBaseline(final String fileName, final VisibilityWindow window) throws IOException {
+        final MSReader reader = new MSReader(fileName);
+        reader.openSubband(0);
+        final MSMetaData meta = reader.getMetaData();
+        final long nrCells =
+                (long) window.getNrSeconds(reader.getMaxNrSecondsOfData()) * window.getNrSubbands(reader.getNrSubbands())
+                        * window.getNrChannels(meta.getNrChannels());
+        reader.close();
+        return nrCells * (meta.getNrCrossPolarizations() * 4 + 4) + nrCells / 8; // powers, nrValidSamples, flags
+    }
+
+    private final BaselineConsumer consumer = new BaselineConsumer() {
+        @Override
+        public void addSecond(final int subband, final int timeIndex, final long sequenceNr, final float[][][] visibilities,
+                final float[][] powers, final int[] nrValidSamples) {
+            VisibilityData.this.addSecond(subband, powers, nrValidSamples, sequenceNr, timeIndex);
+        }
+
+        @Override
+        public void endSubband(final int subband, final int nrTimes) {
+            nrTimesPerSubband[subband] = Math.max(nrTimesPerSubband[subband], nrTimes);
+        }
+    };
+
+    private void addSecond(final int subband, final float[][] powersIn, // [nrChannels][nrCrossPolarizations]
             final int[] nrValidSamplesIn, // [nrChannels]
             final long sequenceNr, final int timeIndex) {
 
-        if (timeIndex >= powers.length) {
+        final int time = timeIndex - firstSecond;
+        final int sb = subband - firstSubband;
+        if (time < 0 || time >= powers.length || sb < 0 || sb >= nrSubbands) {
             return;
         }
 
@@ -162,7 +649,7 @@ public final class VisibilityData extends DataProvider {
         }
 
         if (LOGGER.isTraceEnabled()) {
-            for (int channel = 1; channel < nrChannels; channel++) {
+            for (int channel = 1; channel < totalNrChannels; channel++) {
                 if (nrValidSamplesIn[channel] != integrationTime) {
                     LOGGER.trace("WARNING, DATA WAS FLAGGED, sequenceNr = " + sequenceNr + ", baseline = " + baseline
                             + ", channel = " + channel + ", samples is only " + nrValidSamplesIn[channel] + ", expected "
@@ -172,16 +659,11 @@ public final class VisibilityData extends DataProvider {
         }
 
         for (int channel = 0; channel < nrChannels; channel++) {
-            for (int pol = 0; pol < nrCrossPolarizations; pol++) {
-                final float real = vis[channel][pol][Viz.REAL];
-                final float imag = vis[channel][pol][Viz.IMAG];
-                final float power = real * real + imag * imag;
-                powers[timeIndex][subband][channel][pol] = power;
-            }
-            nrValidSamples[timeIndex][subband][channel] = nrValidSamplesIn[channel];
+            System.arraycopy(powersIn[firstChannel + channel], 0, powers[time][sb][channel], 0, nrCrossPolarizations);
+            nrValidSamples[time][sb][channel] = nrValidSamplesIn[firstChannel + channel];
 
-            if(nrValidSamplesIn[channel] == 0) {
-                flagged[timeIndex][subband][channel] = true;
+            if(nrValidSamplesIn[firstChannel + channel] == 0) {
+                flagged.set(time, sb, channel);
             }
         }
     }
@@ -194,22 +676,16 @@ public final class VisibilityData extends DataProvider {
             for (int subband = 0; subband < nrSubbands; subband++) {
                 for (int channel = 0; channel < nrChannels; channel++) {
                     if(nrValidSamples[time][subband][channel] == 0) {
-                        flagged[time][subband][channel] = true;
+                        flagged.set(time, subband, channel, true);
                     } else {
-                        flagged[time][subband][channel] = false;
+                        flagged.set(time, subband, channel, false);
                     }
                 }
             }
         }
 */
-        for (int time = 0; time < nrSeconds; time++) {
-            for (int subband = 0; subband < nrSubbands; subband++) {
-                for (int channel = 0; channel < nrChannels; channel++) {
-                    flagged[time][subband][channel] = false;
-                }
-            }
-        }
-        
+        flagged.clear();
+
         if (getFlaggerType() == null || getFlaggerType().equals("none")) {
             return;
         }
@@ -217,6 +693,7 @@ public final class VisibilityData extends DataProvider {
         final long start = System.currentTimeMillis();
 
         final PostCorrelationFlagger[] flaggers = new PostCorrelationFlagger[nrSubbands];
+        final StatisticsCache statisticsCache = getStatisticsCache(nrSeconds * nrSubbands, nrCrossPolarizations);
 
         for (int i = 0; i < nrSubbands; i++) {
             if (getFlaggerType().equals(getFlaggerList()[1])) {
@@ -236,55 +713,109 @@ public final class VisibilityData extends DataProvider {
             } else {
                 throw new RuntimeException("illegal flagger selected: " + getFlaggerType());
             }
+            flaggers[i].setStatisticsCache(statisticsCache);
         }
         LOGGER.info("Selected " + getFlaggerType().getClass().getName());
 
-        for (int time = 0; time < nrSeconds; time++) {
-            for (int subband = 0; subband < nrSubbands; subband++) {
-                flaggers[subband].flag(powers[time][subband], flagged[time][subband]);
+        final int nrThreads = Math.min(getNrFlaggerThreads(), nrSubbands);
+        if (nrThreads <= 1) {
+            final FlagMask cellFlags = new FlagMask(nrChannels);
+            for (int time = 0; time < nrSeconds; time++) {
+                for (int subband = 0; subband < nrSubbands; subband++) {
+                    flagCell(flaggers[subband], time, subband, cellFlags);
+                }
             }
+        } else {
+            flagParallel(flaggers, nrThreads);
         }
 
         final long end = System.currentTimeMillis();
-        LOGGER.info("Flagging with " + getFlaggerType() + ", sensitivity " + getFlaggerSensitivity() + " took " + (end - start)
-                + " ms.");
+        LOGGER.info("Flagging with " + getFlaggerType() + ", sensitivity " + getFlaggerSensitivity() + " on " + nrThreads
+                + " thread(s) took " + (end - start) + " ms.");
+    }
+
+    /**
+     * Every subband has its own flagger, and the history flaggers only need the seconds of a subband in order. So, we flag the
+     * subbands in parallel, each one in time order. The subbands of the flags are word aligned, so the threads never write to the
+     * same word, and the result is identical to flagging serially.
+     */
+    private void flagParallel(final PostCorrelationFlagger[] flaggers, final int nrThreads) {
+        final List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(nrSubbands);
+        for (int subband = 0; subband < nrSubbands; subband++) {
+            final int sb = subband;
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    final FlagMask cellFlags = new FlagMask(nrChannels);
+                    for (int time = 0; time < nrSeconds; time++) {
+                        flagCell(flaggers[sb], time, sb, cellFlags);
+                    }
+                    return null;
+                }
+            });
+        }
+
+        final ExecutorService pool = Executors.newFixedThreadPool(nrThreads);
+        try {
+            for (final Future<Void> result : pool.invokeAll(tasks)) {
+                result.get();
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("interrupted while flagging", e);
+        } catch (final ExecutionException e) {
+            throw new RuntimeException("flagging failed", e.getCause());
+        } finally {
+            pool.shutdown();
+        }
     }
 
-    @Override
-    public int getNrChannels() {
-        if (REMOVE_CHANNEL_0_FROM_VIEW && nrChannels > 1) {
-            return nrChannels - 1;
-        } else {
+    private void flagCell(final PostCorrelationFlagger flagger, final int time, final int subband, final FlagMask cellFlags) {
+        flagger.setStatisticsCacheCell(time * nrSubbands + subband);
+        flagged.copyTo(time, subband, cellFlags);
+        flagger.flag(powers[time][subband], cellFlags);
+        flagged.copyFrom(cellFlags, time, subband);
+    }
+
+    /**
+     * @return 1 if channel 0 is in the window but not in the view, 0 otherwise.
+     */
+    private int getFirstChannelInView() {
+        if (REMOVE_CHANNEL_0_FROM_VIEW && firstChannel == 0 && nrChannels > 1) {
             return 1;
+        } else {
+            return 0;
         }
     }
 
+    @Override
+    public int getNrChannels() {
+        return nrChannels - getFirstChannelInView();
+    }
+
     private int getSubbandIndex(int frequency) {
-        if (REMOVE_CHANNEL_0_FROM_VIEW && nrChannels > 1) {
-            return frequency / (nrChannels - 1);
-        } else {
-            return frequency / nrChannels;
-        }
+        return frequency / getNrChannels();
     }
 
     private int getChannelIndex(int frequency) {
-        if (REMOVE_CHANNEL_0_FROM_VIEW && nrChannels > 1) {
-            return frequency % (nrChannels - 1) + 1;
-        } else {
-            return frequency % nrChannels;
-        }
+        return frequency % getNrChannels() + getFirstChannelInView();
     }
 
     public float getPower(final int time, final int frequency) {
         return powers[time][getSubbandIndex(frequency)][getChannelIndex(frequency)][pol];
     }
 
+    @Override
+    protected FlagCube getFlagCube() {
+        return flagged;
+    }
+
     @Override
     public boolean isFlagged(final int time, final int frequency) {
         if (flagged == null) {
             return false;
         }
-        return flagged[time][getSubbandIndex(frequency)][getChannelIndex(frequency)];
+        return flagged.get(time, getSubbandIndex(frequency), getChannelIndex(frequency));
     }
 
     public int getNrValidSamples(final int time, final int frequency) {
@@ -304,6 +835,21 @@ public final class VisibilityData extends DataProvider {
         return nrStations;
     }
 
+    public int getNrReaderThreads() {
+        return nrReaderThreads;
+    }
+
+    /**
+     * @param nrReaderThreads
+     *            the number of subbands that {@link #read()} reads in parallel.
+     */
+    public void setNrReaderThreads(final int nrReaderThreads) {
+        if (nrReaderThreads < 1) {
+            throw new IllegalArgumentException("need at least one reader thread, got " + nrReaderThreads);
+        }
+        this.nrReaderThreads = nrReaderThreads;
+    }
+
     @Override
     public int getSizeX() {
         return nrSeconds;
@@ -311,11 +857,7 @@ public final class VisibilityData extends DataProvider {
 
     @Override
     public int getSizeY() {
-        if (REMOVE_CHANNEL_0_FROM_VIEW && nrChannels > 1) {
-            return nrSubbands * (nrChannels - 1);
-        } else {
-            return nrSubbands * nrChannels;
-        }
+        return nrSubbands * getNrChannels();
     }
 
     public float[][][][] getData() {
@@ -348,10 +890,8 @@ public final class VisibilityData extends DataProvider {
             return this.station1;
         }
 
-        this.station1 = station1;
-        this.baseline = baseline(station1, station2);
         try {
-            read();
+            setStations(station1, station2);
         } catch (IOException e) {
             LOGGER.error("" + e);
             throw new RuntimeException(e);
@@ -365,10 +905,8 @@ public final class VisibilityData extends DataProvider {
             return this.station2;
         }
 
-        this.station2 = station2;
-        this.baseline = baseline(station1, station2);
         try {
-            read();
+            setStations(station1, station2);
         } catch (IOException e) {
             LOGGER.error("" + e);
             throw new RuntimeException(e);
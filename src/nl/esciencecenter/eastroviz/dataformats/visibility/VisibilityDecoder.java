@@ -0,0 +1,122 @@
+/*
+ * Copyright 2013 Netherlands eScience Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.esciencecenter.eastroviz.dataformats.visibility;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import nl.esciencecenter.eastroviz.Viz;
+
+/**
+ * Decodes the data of one baseline from a block of the data file of the LOFAR storage manager. The values are taken from the buffer
+ * with bulk gets through float and short views, in the byte order of the meta data, instead of being assembled byte by byte. The
+ * powers are calculated in the same loop that stores the visibilities. A decoder has scratch buffers, so it is not thread safe.
+ */
+final class VisibilityDecoder {
+    private final int nrChannels;
+    private final int nrCrossPolarizations;
+    private final int nrBytesPerValidSamples;
+    private final ByteOrder byteOrder;
+
+    private final float[] floats; // [nrChannels * nrCrossPolarizations * 2]
+    private final byte[] bytes; // [nrChannels]
+    private final short[] shorts; // [nrChannels]
+
+    VisibilityDecoder(final MSMetaData metaData) {
+        nrChannels = metaData.getNrChannels();
+        nrCrossPolarizations = metaData.getNrCrossPolarizations();
+        nrBytesPerValidSamples = metaData.getNrBytesPerValidSamples();
+        if (nrBytesPerValidSamples != 1 && nrBytesPerValidSamples != 2) {
+            throw new RuntimeException("unsupported nr bytes per nrValidsamples: " + nrBytesPerValidSamples);
+        }
+        byteOrder = metaData.getIsBigEndian() ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+
+        floats = new float[nrChannels * nrCrossPolarizations * 2];
+        bytes = new byte[nrChannels];
+        shorts = new short[nrChannels];
+    }
+
+    ByteOrder getByteOrder() {
+        return byteOrder;
+    }
+
+    /**
+     * @return the number of bytes of the visibilities of one baseline.
+     */
+    int getVisibilitiesSize() {
+        return floats.length * 4;
+    }
+
+    /**
+     * @return the number of bytes of the nrValidSamples of one baseline.
+     */
+    int getNrValidSamplesSize() {
+        return nrChannels * nrBytesPerValidSamples;
+    }
+
+    /**
+     * Decodes the visibilities of one baseline, that start at the given offset in the buffer, which must have the byte order of
+     * this decoder. Changes the position of the buffer.
+     * 
+     * @param vis
+     *            [nrChannels][nrCrossPolarizations][real/imag]
+     * @param powers
+     *            [nrChannels][nrCrossPolarizations], real * real + imag * imag
+     */
+    void decodeVisibilities(final ByteBuffer buffer, final int offset, final float[][][] vis, final float[][] powers) {
+        buffer.position(offset);
+        buffer.asFloatBuffer().get(floats);
+
+        int index = 0;
+        for (int channel = 0; channel < nrChannels; channel++) {
+            final float[][] channelVis = vis[channel];
+            final float[] channelPowers = powers[channel];
+            for (int pol = 0; pol < nrCrossPolarizations; pol++) {
+                final float real = floats[index++];
+                final float imag = floats[index++];
+                channelVis[pol][Viz.REAL] = real;
+                channelVis[pol][Viz.IMAG] = imag;
+                channelPowers[pol] = real * real + imag * imag;
+            }
+        }
+    }
+
+    /**
+     * Decodes the nrValidSamples of one baseline, that start at the given offset in the buffer. Changes the position of the
+     * buffer.
+     */
+    void decodeNrValidSamples(final ByteBuffer buffer, final int offset, final int[] nrValidSamples) {
+        buffer.position(offset);
+        if (nrBytesPerValidSamples == 1) {
+            buffer.get(bytes);
+            for (int channel = 0; channel < nrChannels; channel++) {
+                nrValidSamples[channel] = bytes[channel] & 0xFF;
+            }
+        } else {
+            buffer.asShortBuffer().get(shorts);
+            for (int channel = 0; channel < nrChannels; channel++) {
+                nrValidSamples[channel] = shorts[channel] & 0xFFFF;
+            }
+        }
+    }
+
+    /**
+     * @return the unsigned 32 bit value at the given offset in the buffer.
+     */
+    static long getUInt32(final ByteBuffer buffer, final int offset) {
+        return buffer.getInt(offset) & 0xFFFFFFFFL;
+    }
+}
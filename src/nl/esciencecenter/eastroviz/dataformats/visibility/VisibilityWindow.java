@@ -0,0 +1,126 @@
+/*
+ * Copyright 2013 Netherlands eScience Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.esciencecenter.eastroviz.dataformats.visibility;
+
+/**
+ * The part of a visibility data set that {@link VisibilityData} reads and keeps in memory: a block of seconds, subbands and
+ * channels. All ranges are inclusive, and are clipped to the size of the data set, so {@link Integer#MAX_VALUE} means up to the
+ * end.
+ */
+public final class VisibilityWindow {
+    /** The whole data set. */
+    public static final VisibilityWindow ALL = new VisibilityWindow(0, Integer.MAX_VALUE, 0, Integer.MAX_VALUE, 0,
+            Integer.MAX_VALUE);
+
+    private final int firstSecond;
+    private final int lastSecond;
+    private final int firstSubband;
+    private final int lastSubband;
+    private final int firstChannel;
+    private final int lastChannel;
+
+    public VisibilityWindow(final int firstSecond, final int lastSecond, final int firstSubband, final int lastSubband,
+            final int firstChannel, final int lastChannel) {
+        if (firstSecond < 0 || firstSubband < 0 || firstChannel < 0) {
+            throw new IllegalArgumentException("negative start of window");
+        }
+        if (firstSecond > lastSecond || firstSubband > lastSubband || firstChannel > lastChannel) {
+            throw new IllegalArgumentException("empty window");
+        }
+        this.firstSecond = firstSecond;
+        this.lastSecond = lastSecond;
+        this.firstSubband = firstSubband;
+        this.lastSubband = lastSubband;
+        this.firstChannel = firstChannel;
+        this.lastChannel = lastChannel;
+    }
+
+    /**
+     * @return the same window, with the seconds moved to the given range.
+     */
+    public VisibilityWindow withSeconds(final int first, final int last) {
+        return new VisibilityWindow(first, last, firstSubband, lastSubband, firstChannel, lastChannel);
+    }
+
+    /**
+     * @return the same window, with the subbands moved to the given range.
+     */
+    public VisibilityWindow withSubbands(final int first, final int last) {
+        return new VisibilityWindow(firstSecond, lastSecond, first, last, firstChannel, lastChannel);
+    }
+
+    /**
+     * @return the same window, with the channels moved to the given range.
+     */
+    public VisibilityWindow withChannels(final int first, final int last) {
+        return new VisibilityWindow(firstSecond, lastSecond, firstSubband, lastSubband, first, last);
+    }
+
+    /**
+     * @return the number of seconds in the window, clipped to a data set of nrSeconds seconds.
+     */
+    int getNrSeconds(final int nrSeconds) {
+        return clip(firstSecond, lastSecond, nrSeconds);
+    }
+
+    /**
+     * @return the number of subbands in the window, clipped to a data set of nrSubbands subbands.
+     */
+    int getNrSubbands(final int nrSubbands) {
+        return clip(firstSubband, lastSubband, nrSubbands);
+    }
+
+    /**
+     * @return the number of channels in the window, clipped to a data set of nrChannels channels.
+     */
+    int getNrChannels(final int nrChannels) {
+        return clip(firstChannel, lastChannel, nrChannels);
+    }
+
+    private static int clip(final int first, final int last, final int size) {
+        return Math.max(0, Math.min(last, size - 1) - first + 1);
+    }
+
+    public int getFirstSecond() {
+        return firstSecond;
+    }
+
+    public int getLastSecond() {
+        return lastSecond;
+    }
+
+    public int getFirstSubband() {
+        return firstSubband;
+    }
+
+    public int getLastSubband() {
+        return lastSubband;
+    }
+
+    public int getFirstChannel() {
+        return firstChannel;
+    }
+
+    public int getLastChannel() {
+        return lastChannel;
+    }
+
+    @Override
+    public String toString() {
+        return "seconds " + firstSecond + "-" + lastSecond + ", subbands " + firstSubband + "-" + lastSubband + ", channels "
+                + firstChannel + "-" + lastChannel;
+    }
+}
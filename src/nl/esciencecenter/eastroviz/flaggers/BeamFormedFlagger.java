@@ -21,42 +21,36 @@ public final class BeamFormedFlagger extends Flagger {
         super(sensitivity, SIRValue);
     }
 
-    public void flag(final float[] samples, final boolean[] flagged) {
-        calculateStatistics(samples, flagged); // sets mean, median, stdDev
-        sumThreshold1D(samples, flagged);
+    public BeamFormedFlagger(final float sensitivity, final float SIRValue, final StatisticsType statisticsType) {
+        super(sensitivity, SIRValue, statisticsType);
+    }
+
+    public void flag(final float[] samples, final FlagMask flagged) {
+        Statistics stats = calculateInitialStatistics(samples, flagged, 0);
+        sumThreshold1D(samples, flagged, stats);
 
-        calculateStatistics(samples, flagged); // sets mean, median, stdDev
-        sumThreshold1D(samples, flagged);
+        stats = calculateStatistics(samples, flagged);
+        sumThreshold1D(samples, flagged, stats);
 
         SIROperator(flagged);
 
         //      printNrFlagged(flagged);
     }
 
-    public void flagSmooth(final float[] samples, final boolean[] flagged) {
+    public void flagSmooth(final float[] samples, final FlagMask flagged) {
 
         //      float[] tmp = new float[samples.length];
 
-        calculateStatistics(samples, flagged); // sets mean, median, stdDev
-        sumThreshold1D(samples, flagged);
-
-        calculateStatistics(samples, flagged); // sets mean, median, stdDev
-        sumThreshold1D(samples, flagged);
-
-        float[] tmp = samples.clone();
-        for (int i = 0; i < samples.length; i++) {
-            if (flagged[i]) {
-                tmp[i] = 0.0f;
-            }
-        }
-        float[] smoothed = oneDimensionalGausConvolution(tmp, 3.0f);
-        float[] diff = new float[samples.length];
-        for (int i = 0; i < samples.length; i++) {
-            diff[i] = samples[i] - smoothed[i];
-        }
-
-        calculateStatistics(diff, flagged); // sets mean, median, stdDev
-        sumThreshold1D(diff, flagged);
+        Statistics stats = calculateStatistics(samples, flagged);
+        sumThreshold1D(samples, flagged, stats);
+
+        stats = calculateStatistics(samples, flagged);
+        sumThreshold1D(samples, flagged, stats);
+
+        final float[] diff = smoothedDifference(samples, flagged, 3.0f);
+
+        stats = calculateStatistics(diff, flagged);
+        sumThreshold1D(diff, flagged, stats);
 
         SIROperator(flagged);
 
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2013 Netherlands eScience Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.esciencecenter.eastroviz.flaggers;
+
+import java.util.Arrays;
+
+/**
+ * An immutable copy of a {@link FlagMask} that takes little memory. Usually only a few percent of the samples is flagged, so most
+ * words of a mask are 0. We only store the words that are not 0, together with their index. If that is not smaller than the mask
+ * itself, we store all words.
+ */
+public final class CompressedFlagMask {
+    private static final int BYTES_PER_WORD = 8;
+    private static final int BYTES_PER_INDEX = 4;
+
+    private final long size;
+    private final int nrWords;
+    private final int[] indices; // null if all words are stored
+    private final long[] words;
+
+    private CompressedFlagMask(final long size, final int nrWords, final int[] indices, final long[] words) {
+        this.size = size;
+        this.nrWords = nrWords;
+        this.indices = indices;
+        this.words = words;
+    }
+
+    public static CompressedFlagMask compress(final FlagMask mask) {
+        final long[] src = mask.getWords();
+        int nonZero = 0;
+        for (final long word : src) {
+            if (word != 0L) {
+                nonZero++;
+            }
+        }
+
+        if ((long) nonZero * (BYTES_PER_WORD + BYTES_PER_INDEX) >= (long) src.length * BYTES_PER_WORD) {
+            return new CompressedFlagMask(mask.size(), src.length, null, src.clone());
+        }
+
+        final int[] indices = new int[nonZero];
+        final long[] words = new long[nonZero];
+        int pos = 0;
+        for (int i = 0; i < src.length; i++) {
+            if (src[i] != 0L) {
+                indices[pos] = i;
+                words[pos] = src[i];
+                pos++;
+            }
+        }
+        return new CompressedFlagMask(mask.size(), src.length, indices, words);
+    }
+
+    /**
+     * Overwrites all flags of dest, which must have the same size as the compressed mask, with the compressed flags.
+     */
+    public void decompressTo(final FlagMask dest) {
+        if (dest.size() != size) {
+            throw new IllegalArgumentException("flag masks have different sizes: " + size + " and " + dest.size());
+        }
+        final long[] destWords = dest.getWords();
+        if (indices == null) {
+            System.arraycopy(words, 0, destWords, 0, nrWords);
+            return;
+        }
+        Arrays.fill(destWords, 0L);
+        for (int i = 0; i < indices.length; i++) {
+            destWords[indices[i]] = words[i];
+        }
+    }
+
+    public long size() {
+        return size;
+    }
+
+    /**
+     * @return the approximate amount of memory used by the compressed flags.
+     */
+    public long getSizeInBytes() {
+        final long indexBytes = indices == null ? 0 : (long) indices.length * BYTES_PER_INDEX;
+        return (long) words.length * BYTES_PER_WORD + indexBytes;
+    }
+}
@@ -0,0 +1,252 @@
+/*
+ * Copyright 2013 Netherlands eScience Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.esciencecenter.eastroviz.flaggers;
+
+import java.util.Arrays;
+
+/**
+ * A fixed size set of flags, packed 64 per long. This uses 8 times less memory than a boolean[], and resetting, copying, taking
+ * the union and counting the flags works on whole words at a time. Bits past the size of the mask are always 0. A mask is not
+ * thread safe.
+ */
+public final class FlagMask {
+    static final int BITS_PER_WORD = 64;
+    private static final int ADDRESS_BITS_PER_WORD = 6;
+    private static final long ALL_ONES = 0xFFFFFFFFFFFFFFFFL;
+
+    private final long size;
+    private final long[] words;
+
+    public FlagMask(final long size) {
+        if (size < 0) {
+            throw new IllegalArgumentException("negative size: " + size);
+        }
+        this.size = size;
+        words = new long[nrWords(size)];
+    }
+
+    public FlagMask(final FlagMask other) {
+        size = other.size;
+        words = other.words.clone();
+    }
+
+    public static FlagMask fromBooleans(final boolean[] flags) {
+        final FlagMask mask = new FlagMask(flags.length);
+        for (int i = 0; i < flags.length; i++) {
+            if (flags[i]) {
+                mask.set(i);
+            }
+        }
+        return mask;
+    }
+
+    public boolean[] toBooleans() {
+        final boolean[] res = new boolean[(int) size];
+        for (int i = 0; i < res.length; i++) {
+            res[i] = get(i);
+        }
+        return res;
+    }
+
+    /**
+     * @return the number of words needed to store size flags.
+     */
+    static int nrWords(final long size) {
+        return (int) ((size + BITS_PER_WORD - 1) >>> ADDRESS_BITS_PER_WORD);
+    }
+
+    /**
+     * @return size, rounded up to a multiple of the word size. Useful to let rows of a larger mask start at a word boundary.
+     */
+    public static long wordAligned(final long size) {
+        return (long) nrWords(size) << ADDRESS_BITS_PER_WORD;
+    }
+
+    public long size() {
+        return size;
+    }
+
+    /**
+     * @return the words holding the flags. Flag i is bit (i % 64) of word (i / 64). Changes to the array change the mask.
+     */
+    long[] getWords() {
+        return words;
+    }
+
+    public boolean get(final long index) {
+        return (words[(int) (index >>> ADDRESS_BITS_PER_WORD)] & (1L << index)) != 0;
+    }
+
+    public void set(final long index) {
+        words[(int) (index >>> ADDRESS_BITS_PER_WORD)] |= 1L << index;
+    }
+
+    public void clear(final long index) {
+        words[(int) (index >>> ADDRESS_BITS_PER_WORD)] &= ~(1L << index);
+    }
+
+    public void set(final long index, final boolean value) {
+        if (value) {
+            set(index);
+        } else {
+            clear(index);
+        }
+    }
+
+    /**
+     * Sets the flags from (inclusive) to to (exclusive).
+     */
+    public void set(final long from, final long to) {
+        if (from >= to) {
+            return;
+        }
+        final int startWord = (int) (from >>> ADDRESS_BITS_PER_WORD);
+        final int endWord = (int) ((to - 1) >>> ADDRESS_BITS_PER_WORD);
+        final long firstMask = ALL_ONES << from;
+        final long lastMask = ALL_ONES >>> -to;
+
+        if (startWord == endWord) {
+            words[startWord] |= firstMask & lastMask;
+            return;
+        }
+        words[startWord] |= firstMask;
+        for (int i = startWord + 1; i < endWord; i++) {
+            words[i] = ALL_ONES;
+        }
+        words[endWord] |= lastMask;
+    }
+
+    /**
+     * Clears all flags.
+     */
+    public void clear() {
+        Arrays.fill(words, 0L);
+    }
+
+    /**
+     * Makes this mask equal to other, which must have the same size.
+     */
+    public void copyFrom(final FlagMask other) {
+        checkSameSize(other);
+        System.arraycopy(other.words, 0, words, 0, words.length);
+    }
+
+    /**
+     * Sets every flag that is set in other, which must have the same size.
+     */
+    public void or(final FlagMask other) {
+        checkSameSize(other);
+        final long[] otherWords = other.words;
+        for (int i = 0; i < words.length; i++) {
+            words[i] |= otherWords[i];
+        }
+    }
+
+    /**
+     * @return the number of flags that are set.
+     */
+    public long cardinality() {
+        long count = 0;
+        for (final long word : words) {
+            count += Long.bitCount(word);
+        }
+        return count;
+    }
+
+    /**
+     * Copies dest.size() flags, starting at offset in this mask, to dest.
+     */
+    public void copyTo(final long offset, final FlagMask dest) {
+        checkRange(offset, dest.size);
+        copyBits(words, offset, dest.words, 0, dest.size);
+    }
+
+    /**
+     * Copies all flags of src into this mask, starting at offset.
+     */
+    public void copyFrom(final FlagMask src, final long offset) {
+        checkRange(offset, src.size);
+        copyBits(src.words, 0, words, offset, src.size);
+    }
+
+    private static void copyBits(final long[] src, long srcPos, final long[] dest, long destPos, long length) {
+        if ((srcPos & (BITS_PER_WORD - 1)) == 0 && (destPos & (BITS_PER_WORD - 1)) == 0) {
+            // both aligned, copy the whole words and handle the remainder below
+            final int nrWholeWords = (int) (length >>> ADDRESS_BITS_PER_WORD);
+            System.arraycopy(src, (int) (srcPos >>> ADDRESS_BITS_PER_WORD), dest, (int) (destPos >>> ADDRESS_BITS_PER_WORD),
+                    nrWholeWords);
+            final long copied = (long) nrWholeWords << ADDRESS_BITS_PER_WORD;
+            srcPos += copied;
+            destPos += copied;
+            length -= copied;
+        }
+
+        // copy in chunks that do not cross a word boundary in dest
+        while (length > 0) {
+            final int destShift = (int) (destPos & (BITS_PER_WORD - 1));
+            final int n = (int) Math.min(BITS_PER_WORD - destShift, length);
+            final long value = readBits(src, srcPos, n);
+            final int destWord = (int) (destPos >>> ADDRESS_BITS_PER_WORD);
+            final long mask = (ALL_ONES >>> (BITS_PER_WORD - n)) << destShift;
+            dest[destWord] = (dest[destWord] & ~mask) | ((value << destShift) & mask);
+            srcPos += n;
+            destPos += n;
+            length -= n;
+        }
+    }
+
+    /**
+     * @return the n (1 .. 64) flags starting at pos in the lowest bits of the result.
+     */
+    private static long readBits(final long[] words, final long pos, final int n) {
+        final int word = (int) (pos >>> ADDRESS_BITS_PER_WORD);
+        final int shift = (int) (pos & (BITS_PER_WORD - 1));
+        long value = words[word] >>> shift;
+        if (shift != 0 && shift + n > BITS_PER_WORD) {
+            value |= words[word + 1] << (BITS_PER_WORD - shift);
+        }
+        return value & (ALL_ONES >>> (BITS_PER_WORD - n));
+    }
+
+    private void checkSameSize(final FlagMask other) {
+        if (other.size != size) {
+            throw new IllegalArgumentException("flag masks have different sizes: " + size + " and " + other.size);
+        }
+    }
+
+    private void checkRange(final long offset, final long length) {
+        if (offset < 0 || offset + length > size) {
+            throw new IndexOutOfBoundsException("range " + offset + " .. " + (offset + length) + " outside mask of size " + size);
+        }
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof FlagMask)) {
+            return false;
+        }
+        final FlagMask other = (FlagMask) obj;
+        return size == other.size && Arrays.equals(words, other.words);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Long.valueOf(size).hashCode() + Arrays.hashCode(words);
+    }
+}
@@ -15,180 +15,188 @@
  */
 package nl.esciencecenter.eastroviz.flaggers;
 
-import java.util.Arrays;
-
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * There are three options for statistics. 1. Use medians 2. more robust: use winsorized medians. In this case, we are 10% robust
- * against polluted data. 3. Much better (learned at RFI2016 workshop, talk by Kaushal D. Buch) is to use the STDDEV_MAD. This gives 50%
- * robustness against polluted data.
+ * Base class of the flaggers. The statistics of the samples are calculated by a {@link StatisticsCalculator}, with a statistics
+ * type that is configured per flagger. A flagger has no static mutable state, but it keeps scratch buffers and (for some subclasses)
+ * a history, so an instance must only be used by one thread at a time. To flag in parallel, give every thread its own flaggers.
  */
 public abstract class Flagger {
-    private static StatisticsType statisticsType = StatisticsType.STDDEV_MAD;
     private static final int MAX_ITERS = 5;
     private static final float FIRST_THRESHOLD = 6.0f; // from Andre's code: 6.0f
-    private static final float GAUSSIAN_SCALE_FACTOR = 1.4826f; // Scale value to estimate stddev from the MAD. See https://en.wikipedia.org/wiki/Median_absolute_deviation
 
     private static final Logger logger = LoggerFactory.getLogger(Flagger.class);
 
-    private float mean;
-    private float stdDev;
-    private float median;
     private float baseSensitivity;
     private float SIREtaValue;
+    private final StatisticsCalculator statisticsCalculator;
+    private final Statistics statistics = new Statistics();
+    private final FlaggerWorkspace workspace = new FlaggerWorkspace();
+    private StatisticsCache statisticsCache;
+    private int statisticsCacheCell = -1;
 
     public Flagger(float baseSensitivity, float SIRValue) {
+        this(baseSensitivity, SIRValue, StatisticsType.STDDEV_MAD);
+    }
+
+    public Flagger(float baseSensitivity, float SIRValue, StatisticsType statisticsType) {
         this.baseSensitivity = baseSensitivity;
         this.SIREtaValue = SIRValue;
+        statisticsCalculator = new StatisticsCalculator(statisticsType);
     }
 
-    protected final void calculateStatistics(final float[] samples, final boolean[] flags) {
-        int unflaggedCount = getNrUnflaggedSamples(flags);
-        if (unflaggedCount == 0) {
-            median = 0.0f;
-            mean = 0.0f;
-            stdDev = 0.0f;
-            return;
-        }
-
-        float[] cleanSamples = getCleanSamples(samples, flags, unflaggedCount);
-        Arrays.sort(cleanSamples);
-
-        switch (statisticsType) {
-        case STDDEV_MEDIAN:
-            calculateStatisticsNormal(cleanSamples, flags);
-            break;
-        case STDDEV_WINSORIZED_MEDIAN:
-            calculateWinsorizedStatistics(cleanSamples, flags);
-        case STDDEV_MAD:
-            calculateMADStatistics(cleanSamples, flags);
-            break;
-        }
+    /**
+     * Calculates the statistics of the unflagged samples. The result is a holder owned by this flagger, it is only valid until the
+     * next call. Use {@link #getStatisticsCalculator()} to calculate into a holder of your own.
+     */
+    protected final Statistics calculateStatistics(final float[] samples, final FlagMask flags) {
+        statisticsCalculator.calculate(samples, flags, statistics);
+        return statistics;
     }
 
-    private final void calculateStatisticsNormal(final float[] cleanSamples, final boolean[] flags) {
-        mean = 0.0f;
-        for (float cleanSample : cleanSamples) {
-            mean += cleanSample;
+    /**
+     * Calculates the statistics of the first pass over a cell, when the flags are still the initial flags. These only depend on
+     * the data, so if a {@link StatisticsCache} is set, they are taken from the cache, or calculated and stored in it. The result
+     * is a holder owned by this flagger, like with {@link #calculateStatistics(float[], FlagMask)}.
+     */
+    protected final Statistics calculateInitialStatistics(final float[] samples, final FlagMask flags, final int pol) {
+        final boolean useCache =
+                statisticsCache != null && statisticsCacheCell >= 0
+                        && statisticsCache.getStatisticsType() == statisticsCalculator.getStatisticsType();
+        if (useCache && statisticsCache.get(statisticsCacheCell, pol, statistics)) {
+            return statistics;
         }
-        mean /= cleanSamples.length;
-
-        median = cleanSamples[cleanSamples.length / 2];
 
-        stdDev = 0.0f;
-        for (float cleanSample : cleanSamples) {
-            final float diff = cleanSample - mean;
-            stdDev += diff * diff;
+        statisticsCalculator.calculate(samples, flags, statistics);
+        if (useCache) {
+            statisticsCache.put(statisticsCacheCell, pol, statistics);
         }
-        stdDev /= cleanSamples.length;
-        stdDev = (float) Math.sqrt(stdDev);
+        return statistics;
     }
 
-    private final void calculateWinsorizedStatistics(final float[] cleanSamples, final boolean[] flags) {
-        int lowIndex = (int) Math.floor(0.1 * cleanSamples.length);
-        int highIndex = (int) Math.ceil(0.9 * cleanSamples.length);
-        if (highIndex > 0) {
-            highIndex--;
-        }
-        float lowValue = cleanSamples[lowIndex];
-        float highValue = cleanSamples[highIndex];
-
-        median = cleanSamples[cleanSamples.length / 2];
-
-        // Assume an array of 0 .. 9; low idx = 3; high idx = 7
-        // low vals = 0, 1, 2, 3 -> #= 4
-        // normal:    4, 5, 6    -> #= 3
-        // high vals: 7, 8, 9    -> #= 3
-        
-        // Calculate mean
-        mean = (lowIndex+1) * lowValue;
-        for (int i = lowIndex+1; i < highIndex; i++) {
-            mean += cleanSamples[i];
-        }
-        mean += (cleanSamples.length - highIndex) * highValue;
-        mean /= cleanSamples.length;
-        
-        stdDev = (lowIndex+1) * ((lowValue - mean) * (lowValue - mean)) ;
-        for (int i = lowIndex+1; i < highIndex; i++) {
-            stdDev += (cleanSamples[i] - mean) * (cleanSamples[i] - mean);
-        }
-        stdDev += (cleanSamples.length - highIndex) * ((highValue - mean) * (highValue - mean));
-        stdDev /= cleanSamples.length;
-        stdDev = (float) Math.sqrt(1.54 * stdDev / cleanSamples.length);
-
-        if (logger.isTraceEnabled()) {
-            logger.trace("winsorized stats: unFlaggedCount = " + cleanSamples.length + ", mean = " + mean + ", median = " + median
-                    + ", stddev = " + stdDev);
-        }
+    protected final void sumThreshold1D(final float[] samples, final FlagMask flags, final Statistics statistics) {
+        sumThreshold1D(samples, flags, statistics, baseSensitivity);
     }
 
-    private final void calculateMADStatistics(final float[] cleanSamples, final boolean[] flags) {
-        mean = 0.0f;
-        for (float cleanSample : cleanSamples) {
-            mean += cleanSample;
-        }
-        mean /= cleanSamples.length;
-
-        median = cleanSamples[cleanSamples.length / 2];
+    /**
+     * Same as {@link #sumThreshold1D(float[], FlagMask, Statistics)}, but with the given sensitivity instead of the base
+     * sensitivity of this flagger. A higher number is less sensitive.
+     */
+    protected final void sumThreshold1D(final float[] samples, final FlagMask flags, final Statistics statistics,
+            final float sensitivity) {
+        float factor;
 
-        // Calculate STDDEV_MAD
-        float mad = 0.0f;
-        for (int i = 0; i < cleanSamples.length; i++) {
-            mad += Math.abs(cleanSamples[i] - median);
+        if (statistics.getStdDev() == 0.0f) {
+            factor = sensitivity;
+        } else {
+            factor = statistics.getStdDev() * sensitivity;
         }
-        stdDev = GAUSSIAN_SCALE_FACTOR * (mad / cleanSamples.length);
 
-        if (logger.isTraceEnabled()) {
-            logger.trace("winsorized stats: unFlaggedCount = " + cleanSamples.length + ", mean = " + mean + ", median = " + median
-                    + ", stddev = " + stdDev);
+        int window = 1;
+        for (int iter = 1; iter <= MAX_ITERS; iter++) {
+            final float thresholdI = statistics.getMedian() + calcThresholdI(FIRST_THRESHOLD, window, 1.5f) * factor;
+
+            sumThreshold(samples, flags, window, thresholdI);
+            window *= 2;
         }
     }
 
-    protected final void sumThreshold1D(final float[] samples, final boolean[] flags) {
+    /**
+     * SumThreshold on a 2D array of nrRows x nrColumns samples, stored row by row, for instance [time][channel]. Every iteration
+     * first flags each column (in time), and then each row (in frequency). Like in the LOFAR code, column 0 is not flagged in
+     * time, and the windows in frequency start at column 1.
+     */
+    protected final void sumThreshold2D(final float[] samples, final FlagMask flags, final int nrRows, final int nrColumns,
+            final Statistics statistics) {
         float factor;
 
-        if (stdDev == 0.0f) {
+        if (statistics.getStdDev() == 0.0f) {
             factor = baseSensitivity;
         } else {
-            factor = stdDev * baseSensitivity;
+            factor = statistics.getStdDev() * baseSensitivity;
         }
 
         int window = 1;
         for (int iter = 1; iter <= MAX_ITERS; iter++) {
-            final float thresholdI = median + calcThresholdI(FIRST_THRESHOLD, window, 1.5f) * factor;
+            final float thresholdI = statistics.getMedian() + calcThresholdI(FIRST_THRESHOLD, window, 1.5f) * factor;
 
-            sumThreshold(samples, flags, window, thresholdI);
+            for (int column = 1; column < nrColumns; column++) {
+                sumThreshold(samples, flags, column, nrColumns, nrRows, 0, window, thresholdI);
+            }
+            for (int row = 0; row < nrRows; row++) {
+                sumThreshold(samples, flags, row * nrColumns, 1, nrColumns, 1, window, thresholdI);
+            }
             window *= 2;
         }
     }
 
-    private final void sumThreshold(final float[] samples, final boolean[] flags, final int window, final float threshold) {
-        logger.trace("sumthreshold window = " + window + ", threshold = " + threshold);
+    /**
+     * One SumThreshold pass with a fixed window size. Instead of recomputing the sum of every window, we keep a running sum of
+     * the unflagged samples in the window: the sample that enters is added and the sample that leaves is subtracted. When a
+     * window is flagged, all its samples become flagged, so the running sum restarts from zero. This makes a pass O(n) instead
+     * of O(n * window), and produces the same flags as summing every window separately.
+     */
+    static final void sumThreshold(final float[] samples, final FlagMask flags, final int window, final float threshold) {
+        sumThreshold(samples, flags, 0, 1, samples.length, 1, window, threshold);
+    }
 
-        for (int base = 1; base + window < samples.length; base++) {
-            float sum = 0.0f;
-            int count = 0;
+    /**
+     * The same SumThreshold pass, on the length samples at offset, offset + stride, offset + 2 * stride, ..., of a larger array.
+     * The windows start at position first. With a stride of 1 this flags ranges; with a larger stride it can flag a column of a
+     * 2D array that is stored row by row.
+     */
+    static final void sumThreshold(final float[] samples, final FlagMask flags, final int offset, final int stride,
+            final int length, final int first, final int window, final float threshold) {
+        if (logger.isTraceEnabled()) {
+            logger.trace("sumthreshold window = " + window + ", threshold = " + threshold);
+        }
 
-            for (int pos = base; pos < base + window; pos++) {
-                if (!flags[pos]) {
-                    sum += samples[pos];
-                    count++;
-                }
+        double sum = 0.0;
+        int count = 0;
+
+        // add all samples of the first window except the last one, which is added in the loop below.
+        for (int pos = first; pos < first + window - 1 && pos < length; pos++) {
+            final int index = offset + pos * stride;
+            if (!flags.get(index)) {
+                sum += samples[index];
+                count++;
+            }
+        }
+
+        for (int base = first; base + window < length; base++) {
+            final int enter = offset + (base + window - 1) * stride;
+            if (!flags.get(enter)) {
+                sum += samples[enter];
+                count++;
             }
 
             if (sum >= count * threshold) {
                 // flag all samples in the sequence!
-                for (int pos = base; pos < base + window; pos++) {
-                    flags[pos] = true;
+                if (stride == 1) {
+                    flags.set(offset + base, enter + 1);
+                } else {
+                    for (int pos = base; pos < base + window; pos++) {
+                        flags.set(offset + pos * stride);
+                    }
                 }
+                sum = 0.0;
+                count = 0;
+            }
+
+            final int leave = offset + base * stride;
+            if (!flags.get(leave)) {
+                sum -= samples[leave];
+                count--;
+            }
+            if (count == 0) {
+                sum = 0.0; // avoid accumulating rounding errors in an empty window
             }
         }
     }
 
-    private static final float[] oneDimensionalConvolution(final float[] data, final float[] kernel) {
-        final float[] result = new float[data.length];
+    private static final void oneDimensionalConvolution(final float[] data, final float[] kernel, final float[] result) {
         for (int i = 0; i < data.length; ++i) {
             final int offset = i - kernel.length / 2;
             int start, end;
@@ -213,66 +221,109 @@ public abstract class Flagger {
 
             if (weight != 0.0f) {
                 result[i] = sum / weight;
+            } else {
+                result[i] = 0.0f;
             }
         }
-        return result;
     }
 
     public static final float[] oneDimensionalGausConvolution(final float[] data, final float sigma) {
+        final float[] kernel = gaussianKernel(sigma, gaussianKernelSize(sigma, data.length));
+        final float[] result = new float[data.length];
+        oneDimensionalConvolution(data, kernel, result);
+        return result;
+    }
+
+    /**
+     * Same as {@link #oneDimensionalGausConvolution(float[], float)}, but uses the cached kernel and result buffer of this
+     * flagger. The result is only valid until the next call.
+     */
+    protected final float[] gausConvolution(final float[] data, final float sigma) {
+        final float[] kernel = workspace.getGaussianKernel(sigma, data.length);
+        final float[] result = workspace.getSmoothed(data.length);
+        oneDimensionalConvolution(data, kernel, result);
+        return result;
+    }
+
+    /**
+     * Smooths the samples, with the flagged samples set to 0, and stores the difference between the samples and the smoothed
+     * samples in a buffer of this flagger. The result is only valid until the next call. The masking, the convolution and the
+     * difference are done in a single pass, without intermediate buffers.
+     */
+    protected final float[] smoothedDifference(final float[] samples, final FlagMask flagged, final float sigma) {
+        final float[] kernel = workspace.getGaussianKernel(sigma, samples.length);
+        final float[] diff = workspace.getDiff(samples.length);
+        oneDimensionalDifference(samples, flagged, kernel, diff);
+        return diff;
+    }
+
+    /**
+     * Same as {@link #smoothedDifference(float[], FlagMask, float)}, but the flagged samples are smoothed as well.
+     */
+    protected final float[] smoothedDifference(final float[] samples, final float sigma) {
+        final float[] kernel = workspace.getGaussianKernel(sigma, samples.length);
+        final float[] diff = workspace.getDiff(samples.length);
+        oneDimensionalDifference(samples, null, kernel, diff);
+        return diff;
+    }
+
+    /**
+     * diff = data - the convolution of data with the kernel, where the samples that are set in flags (if not null) count as 0. Gives
+     * exactly the same result as first convolving into a buffer with {@link #oneDimensionalConvolution(float[], float[], float[])}
+     * and subtracting that afterwards.
+     */
+    private static final void oneDimensionalDifference(final float[] data, final FlagMask flags, final float[] kernel,
+            final float[] diff) {
+        for (int i = 0; i < data.length; ++i) {
+            final int offset = i - kernel.length / 2;
+            final int start = offset < 0 ? -offset : 0;
+            final int end = offset + kernel.length > data.length ? data.length - offset : kernel.length;
+
+            float sum = 0.0f;
+            float weight = 0.0f;
+            for (int k = start; k < end; k++) {
+                final float value = flags != null && flags.get(k + offset) ? 0.0f : data[k + offset];
+                sum += value * kernel[k];
+                weight += kernel[k];
+            }
+
+            final float smoothed = weight != 0.0f ? sum / weight : 0.0f;
+            diff[i] = data[i] - smoothed;
+        }
+    }
+
+    static final int gaussianKernelSize(final float sigma, final int dataLength) {
         int kernelSize = (int) Math.round(sigma * 3.0);
         if (kernelSize < 1) {
             kernelSize = 1;
-        } else if (kernelSize > data.length) {
-            kernelSize = data.length;
+        } else if (kernelSize > dataLength) {
+            kernelSize = dataLength;
         }
+        return kernelSize;
+    }
 
+    static final float[] gaussianKernel(final float sigma, final int kernelSize) {
         final float[] kernel = new float[kernelSize];
         for (int i = 0; i < kernel.length; ++i) {
             final float x = i - kernel.length / 2.0f;
             kernel[i] = evaluateGaussian(x, sigma);
         }
-        return oneDimensionalConvolution(data, kernel);
+        return kernel;
     }
 
     private static final float evaluateGaussian(final float x, final float sigma) {
         return (float) (1.0 / (sigma * Math.sqrt(2.0 * Math.PI)) * Math.exp(-0.5 * x * x / sigma));
     }
 
-    private static float[] getCleanSamples(float[] samples, boolean[] flags, int destSize) {
-        if (destSize == samples.length) {
-            return samples.clone();
-        }
-
-        float[] cleanSamples = new float[destSize];
-        int destIndex = 0;
-        for (int i = 0; i < samples.length; i++) {
-            if (!flags[i]) {
-                cleanSamples[destIndex] = samples[i];
-                destIndex++;
-                if (destIndex >= destSize) {
-                    break;
-                }
-            }
-        }
-        return cleanSamples;
-    }
-
-    protected static final int getNrFlaggedSamples(final boolean[] flags) {
-        int count = 0;
-        for (final boolean b : flags) {
-            if (b) {
-                count++;
-            }
-        }
-
-        return count;
+    protected static final int getNrFlaggedSamples(final FlagMask flags) {
+        return (int) flags.cardinality();
     }
 
-    protected static final int getNrUnflaggedSamples(final boolean[] flags) {
-        return flags.length - getNrFlaggedSamples(flags);
+    protected static final int getNrUnflaggedSamples(final FlagMask flags) {
+        return (int) (flags.size() - flags.cardinality());
     }
 
-    protected static final void printNrFlagged(final boolean[] flags) {
+    protected static final void printNrFlagged(final FlagMask flags) {
         final int flagCount = getNrFlaggedSamples(flags);
         logger.info("Flagger: flagged samples for this second: " + flagCount);
     }
@@ -290,127 +341,98 @@ public abstract class Flagger {
         return (float) (Math.log(x) / Math.log(2.0));
     }
 
-    @SuppressWarnings("unused")
-    private final float median(final float arr[]) {
-        return quickSelect(arr, arr.length / 2);
-    }
-
-    private final void swap(final float[] r, final int a, final int b) {
-        final float tmp = r[a];
-        r[a] = r[b];
-        r[b] = tmp;
-    }
-
-    /*
-     *  This Quickselect routine is based on the algorithm described in
-     *  "Numerical recipes in C", Second Edition,
-     *  Cambridge University Press, 1992, Section 8.5, ISBN 0-521-43108-5
+    /**
+     * This is an experimental algorithm that might be slightly faster than the original algorithm by Andre Offringa. Jasper van
+     * de Gronde is preparing an article about it.
+     * 
+     * The flags are processed a word at a time. A word without flags, entered with no credit left, cannot produce any flags if
+     * η < 1: the credit just stays at η - 1. Those words are skipped, which is the common case for clean data.
+     * 
+     * @param flags
+     *            The input array of flags to be dilated that will be overwritten by the dilatation of itself. SIREtaValue is the
+     *            η parameter that specifies the minimum number of good data that any subsequence should have.
      */
-    private final float quickSelect(final float a[], final int n) {
-        int low, high;
-        int median;
-        int middle, ll, hh;
-
-        low = 0;
-        high = n - 1;
-        median = (low + high) / 2;
-        for (;;) {
-            if (high <= low) {
-                return a[median];
-            }
-
-            if (high == low + 1) { /* Two elements only */
-                if (a[low] > a[high]) {
-                    swap(a, low, high);
-                }
-                return a[median];
-            }
+    public void SIROperator(final FlagMask flags) {
+        final long[] words = flags.getWords();
+        final long[] temp = workspace.getSirWords(words.length);
+        final long size = flags.size();
+        final float flaggedWeight = SIREtaValue;
+        final float unflaggedWeight = SIREtaValue - 1.0f;
+        final boolean canSkip = unflaggedWeight < 0.0f;
 
-            /* Find median of low, middle and high items; swap into position low */
-            middle = (low + high) >>> 1;
-            if (a[middle] > a[high]) {
-                swap(a, middle, high);
-            }
-            if (a[low] > a[high]) {
-                swap(a, low, high);
-            }
-            if (a[middle] > a[low]) {
-                swap(a, middle, low);
+        float credit = 0.0f;
+        for (int word = 0; word < words.length; word++) {
+            final long in = words[word];
+            if (in == 0L && canSkip && credit <= 0.0f) {
+                temp[word] = 0L;
+                credit = unflaggedWeight;
+                continue;
             }
-
-            /* Swap low item (now in position middle) into position (low+1) */
-            swap(a, middle, low + 1);
-
-            /* Nibble from each end towards middle, swapping items when stuck */
-            ll = low + 1;
-            hh = high;
-            for (;;) {
-                do {
-                    ll++;
-                } while (a[low] > a[ll]);
-                do {
-                    hh--;
-                } while (a[hh] > a[low]);
-
-                if (hh < ll) {
-                    break;
+            final int nrBits = (int) Math.min(FlagMask.BITS_PER_WORD, size - (long) word * FlagMask.BITS_PER_WORD);
+            long out = 0L;
+            for (int bit = 0; bit < nrBits; bit++) {
+                // credit ← max(0, credit) + w(f [i])
+                final float w = (in & (1L << bit)) != 0L ? flaggedWeight : unflaggedWeight;
+                final float maxcredit0 = credit > 0.0f ? credit : 0.0f;
+                credit = maxcredit0 + w;
+                if (credit >= 0.0f) {
+                    out |= 1L << bit;
                 }
-
-                swap(a, ll, hh);
             }
+            temp[word] = out;
+        }
 
-            /* Swap middle item (in position low) back into correct position */
-            swap(a, low, hh);
-
-            /* Re-set active partition */
-            if (hh <= median) {
-                low = ll;
+        // The same iteration, but now backwards
+        credit = 0.0f;
+        for (int word = words.length - 1; word >= 0; word--) {
+            final long in = words[word];
+            if (in == 0L && canSkip && credit <= 0.0f) {
+                words[word] = temp[word];
+                credit = unflaggedWeight;
+                continue;
             }
-            if (hh >= median) {
-                high = hh - 1;
+            final int nrBits = (int) Math.min(FlagMask.BITS_PER_WORD, size - (long) word * FlagMask.BITS_PER_WORD);
+            long out = 0L;
+            for (int bit = nrBits - 1; bit >= 0; bit--) {
+                final float w = (in & (1L << bit)) != 0L ? flaggedWeight : unflaggedWeight;
+                final float maxcredit0 = credit > 0.0f ? credit : 0.0f;
+                credit = maxcredit0 + w;
+                if (credit >= 0.0f) {
+                    out |= 1L << bit;
+                }
             }
+            words[word] = out | temp[word];
         }
     }
 
-    public final float getMean() {
-        return mean;
+    public final StatisticsCalculator getStatisticsCalculator() {
+        return statisticsCalculator;
     }
 
-    public final float getStdDev() {
-        return stdDev;
+    public final StatisticsType getStatisticsType() {
+        return statisticsCalculator.getStatisticsType();
     }
 
-    public final float getMedian() {
-        return median;
+    public final void setStatisticsType(final StatisticsType statisticsType) {
+        statisticsCalculator.setStatisticsType(statisticsType);
     }
 
     /**
-     * This is an experimental algorithm that might be slightly faster than the original algorithm by Andre Offringa. Jasper van
-     * de Gronde is preparing an article about it.
-     * 
-     * @param flags
-     *            The input array of flags to be dilated that will be overwritten by the dilatation of itself. SIREtaValue is the
-     *            η parameter that specifies the minimum number of good data that any subsequence should have.
+     * Use a cache for the statistics of the first pass. The cache can be shared by the flaggers of different threads.
      */
-    public void SIROperator(boolean[] flags) {
-        boolean[] temp = new boolean[flags.length];
-        float credit = 0.0f;
-        for (int i = 0; i < flags.length; ++i) {
-            // credit ← max(0, credit) + w(f [i])
-            final float w = flags[i] ? SIREtaValue : SIREtaValue - 1.0f;
-            final float maxcredit0 = credit > 0.0f ? credit : 0.0f;
-            credit = maxcredit0 + w;
-            temp[i] = (credit >= 0.0f);
-        }
+    public final void setStatisticsCache(final StatisticsCache statisticsCache) {
+        this.statisticsCache = statisticsCache;
+    }
 
-        // The same iteration, but now backwards
-        credit = 0.0f;
-        for (int i = flags.length - 1; i >= 0; i--) {
-            final float w = flags[i] ? SIREtaValue : SIREtaValue - 1.0f;
-            final float maxcredit0 = credit > 0.0f ? credit : 0.0f;
-            credit = maxcredit0 + w;
-            flags[i] = (credit >= 0.0f) || temp[i];
-        }
+    /**
+     * Set the cell of the statistics cache that the next call to flag works on, or -1 to not use the cache.
+     */
+    public final void setStatisticsCacheCell(final int cell) {
+        this.statisticsCacheCell = cell;
+    }
+
+    final FlaggerWorkspace getWorkspace() {
+        return workspace;
     }
 
     public float getBaseSensitivity() {
@@ -0,0 +1,300 @@
+/*
+ * Copyright 2013 Netherlands eScience Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.esciencecenter.eastroviz.flaggers;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A flagger declared as a sequence of stages. The stages before {@link #union()} run on every polarization, with the flags of that
+ * polarization; the stages after it run once on the union of the flags of all polarizations. For example, the smoothed
+ * SumThreshold flagger is:
+ *
+ * <pre>
+ * new FlaggerPipeline().sumThreshold(1.0f).smoothedDifference(0.5f, false).sumThreshold(1.0f).samples().sumThreshold(0.8f)
+ *         .union().SIR();
+ * </pre>
+ *
+ * A SumThreshold stage thresholds the current target: the samples, or after {@link #smoothedDifference(float, boolean)} the
+ * difference between the samples and the smoothed samples, until {@link #samples()} switches back. Its statistics are calculated
+ * right before it, with the flags so far; a SumThreshold at the start of the pipeline uses the initial statistics, which can be
+ * cached. All stages use the buffers of the flagger that runs the pipeline, so after the first second nothing is allocated. A
+ * history check keeps the history in its stage, so every flagger runs its own {@link #copy()} of the pipeline.
+ */
+public final class FlaggerPipeline {
+    private static final Logger logger = LoggerFactory.getLogger(FlaggerPipeline.class);
+
+    /** Flag a whole second if its median is this many standard deviations above the medians in the history. */
+    static final float HISTORY_FLAGGING_THRESHOLD = 7.0f;
+
+    private final List<Stage> polarizationStages = new ArrayList<Stage>();
+    private final List<Stage> unionStages = new ArrayList<Stage>();
+    private boolean union;
+
+    /**
+     * One step of the pipeline.
+     */
+    private abstract static class Stage {
+        /**
+         * @return the target of the next stage, or null if the rest of the stages should be skipped.
+         */
+        abstract float[] run(Flagger flagger, float[] samples, float[] target, FlagMask flagged, int pol);
+
+        abstract String getName();
+
+        /**
+         * @return a stage that does the same, with state of its own. Stages without state are shared.
+         */
+        Stage copy() {
+            return this;
+        }
+    }
+
+    /**
+     * SumThreshold on the current target, with the base sensitivity of the flagger times sensitivityFactor. A higher number is
+     * less sensitive.
+     */
+    public FlaggerPipeline sumThreshold(final float sensitivityFactor) {
+        final boolean initial = !union && polarizationStages.isEmpty();
+        return add(new Stage() {
+            @Override
+            float[] run(final Flagger flagger, final float[] samples, final float[] target, final FlagMask flagged, final int pol) {
+                final Statistics stats =
+                        initial ? flagger.calculateInitialStatistics(target, flagged, pol) : flagger.calculateStatistics(target,
+                                flagged);
+                if (logger.isTraceEnabled()) {
+                    logger.trace("mean = " + stats.getMean() + ", median = " + stats.getMedian() + ", stdDev = " + stats.getStdDev());
+                }
+                flagger.sumThreshold1D(target, flagged, stats, flagger.getBaseSensitivity() * sensitivityFactor);
+                return target;
+            }
+
+            @Override
+            String getName() {
+                return "sumThreshold(" + sensitivityFactor + ")";
+            }
+        }, true);
+    }
+
+    /**
+     * Smooths the samples with a gaussian with the given sigma, and makes the difference between the samples and the smoothed
+     * samples the target of the next stages. The smoothing and the difference are fused into one pass. If maskFlagged is set, the
+     * flagged samples count as 0 in the smoothing.
+     */
+    public FlaggerPipeline smoothedDifference(final float sigma, final boolean maskFlagged) {
+        return add(new Stage() {
+            @Override
+            float[] run(final Flagger flagger, final float[] samples, final float[] target, final FlagMask flagged, final int pol) {
+                return maskFlagged ? flagger.smoothedDifference(samples, flagged, sigma) : flagger.smoothedDifference(samples, sigma);
+            }
+
+            @Override
+            String getName() {
+                return "smoothedDifference(" + sigma + (maskFlagged ? ", masked" : "") + ")";
+            }
+        }, true);
+    }
+
+    /**
+     * Makes the samples the target of the next stages again.
+     */
+    public FlaggerPipeline samples() {
+        return add(new Stage() {
+            @Override
+            float[] run(final Flagger flagger, final float[] samples, final float[] target, final FlagMask flagged, final int pol) {
+                return samples;
+            }
+
+            @Override
+            String getName() {
+                return "samples";
+            }
+        }, true);
+    }
+
+    /**
+     * The scale-invariant rank operator, which extends the flags. It can be used both before and after the union.
+     */
+    public FlaggerPipeline SIR() {
+        return add(new Stage() {
+            @Override
+            float[] run(final Flagger flagger, final float[] samples, final float[] target, final FlagMask flagged, final int pol) {
+                flagger.SIROperator(flagged);
+                return target;
+            }
+
+            @Override
+            String getName() {
+                return "SIR";
+            }
+        }, false);
+    }
+
+    /**
+     * Compares the median of the unflagged samples with the medians of the earlier seconds, and flags the whole second if it is
+     * more than {@link #HISTORY_FLAGGING_THRESHOLD} standard deviations higher. If so, the rest of the stages of this polarization
+     * are skipped. Otherwise, the second is added to the history. If integrateHistory is set, a SumThreshold on the integrated
+     * powers of the history is done first.
+     *
+     * @param historySize
+     *            the number of seconds in the history, see {@link PostCorrelationFlaggerHistory}.
+     */
+    public FlaggerPipeline historyCheck(final int nrChannels, final int historySize, final boolean integrateHistory) {
+        return add(new HistoryStage(nrChannels, historySize, integrateHistory), true);
+    }
+
+    /**
+     * Ends the stages that run per polarization. The flags of all polarizations are combined, and the next stages run on the
+     * result.
+     */
+    public FlaggerPipeline union() {
+        if (union) {
+            throw new IllegalStateException("the pipeline already has a union");
+        }
+        union = true;
+        return this;
+    }
+
+    private FlaggerPipeline add(final Stage stage, final boolean perPolarization) {
+        if (union) {
+            if (perPolarization) {
+                throw new IllegalStateException(stage.getName() + " needs the samples, it cannot follow the union");
+            }
+            unionStages.add(stage);
+        } else {
+            polarizationStages.add(stage);
+        }
+        return this;
+    }
+
+    public boolean hasUnion() {
+        return union;
+    }
+
+    /**
+     * @return a pipeline with the same stages, that does not share any state with this one, such as the history of a history check.
+     */
+    public FlaggerPipeline copy() {
+        final FlaggerPipeline result = new FlaggerPipeline();
+        for (final Stage stage : polarizationStages) {
+            result.polarizationStages.add(stage.copy());
+        }
+        for (final Stage stage : unionStages) {
+            result.unionStages.add(stage.copy());
+        }
+        result.union = union;
+        return result;
+    }
+
+    /**
+     * Runs the stages before the union on the samples of one polarization.
+     */
+    void flag(final Flagger flagger, final float[] samples, final FlagMask flagged, final int pol) {
+        float[] target = samples;
+        for (int i = 0; i < polarizationStages.size() && target != null; i++) {
+            target = polarizationStages.get(i).run(flagger, samples, target, flagged, pol);
+        }
+    }
+
+    /**
+     * Runs the stages after the union on the combined flags.
+     */
+    void flagUnion(final Flagger flagger, final FlagMask flagged) {
+        for (int i = 0; i < unionStages.size(); i++) {
+            unionStages.get(i).run(flagger, null, null, flagged, -1);
+        }
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder result = new StringBuilder();
+        for (final Stage stage : polarizationStages) {
+            result.append(result.length() == 0 ? "" : " -> ").append(stage.getName());
+        }
+        if (union) {
+            result.append(result.length() == 0 ? "" : " -> ").append("union");
+            for (final Stage stage : unionStages) {
+                result.append(" -> ").append(stage.getName());
+            }
+        }
+        return result.toString();
+    }
+
+    private static final class HistoryStage extends Stage {
+        private final PostCorrelationFlaggerHistory history;
+        private final int nrChannels;
+        private final int historySize;
+        private final boolean integrateHistory;
+        private int second;
+
+        HistoryStage(final int nrChannels, final int historySize, final boolean integrateHistory) {
+            history = new PostCorrelationFlaggerHistory(nrChannels, historySize);
+            this.nrChannels = nrChannels;
+            this.historySize = historySize;
+            this.integrateHistory = integrateHistory;
+        }
+
+        @Override
+        Stage copy() {
+            return new HistoryStage(nrChannels, historySize, integrateHistory);
+        }
+
+        @Override
+        float[] run(final Flagger flagger, final float[] samples, final float[] target, final FlagMask flagged, final int pol) {
+            final boolean enoughHistory = history.getSize(pol) >= PostCorrelationFlaggerHistory.MIN_HISTORY_SIZE;
+            if (integrateHistory && enoughHistory) {
+                final float[] integratedPowers = history.getIntegratedPowers(pol);
+                final Statistics integratedStats = flagger.calculateStatistics(integratedPowers, flagged);
+                flagger.sumThreshold1D(integratedPowers, flagged, integratedStats); // sets flags
+            }
+            final Statistics stats = flagger.calculateStatistics(samples, flagged);
+
+            if (enoughHistory) {
+                final boolean robust = flagger.getStatisticsType() == StatisticsType.STDDEV_MAD_SKETCH;
+                final float meanMedian = robust ? history.getMedianOfMedians(pol) : history.getMeanMedian(pol);
+                final float stdDevOfMedians = robust ? history.getRobustStdDevOfMedians(pol) : history.getStdDevOfMedians(pol);
+                final boolean flagSecond = stats.getMedian() > (meanMedian + HISTORY_FLAGGING_THRESHOLD * stdDevOfMedians);
+
+                if (logger.isTraceEnabled()) {
+                    logger.trace("median = " + stats.getMedian() + ", meanMedian = " + meanMedian + ", factor = "
+                            + (stats.getMedian() / meanMedian) + ", stddev = " + stdDevOfMedians + (flagSecond ? " FLAGGED" : ""));
+                }
+                if (flagSecond) {
+                    flagged.set(0, samples.length);
+                    // add the mean to the history
+                    history.add(pol, second, stats.getMean(), meanMedian, stats.getStdDev(), samples);
+                    return null;
+                }
+            }
+
+            // add the corrected power statistics to the history
+            history.add(pol, second, stats.getMean(), stats.getMedian(), stats.getStdDev(), samples);
+
+            if (pol == 0) {
+                second++;
+            }
+            return target;
+        }
+
+        @Override
+        String getName() {
+            return "historyCheck(" + history.getHistorySize() + (integrateHistory ? ", integrated" : "") + ")";
+        }
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2013 Netherlands eScience Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.esciencecenter.eastroviz.flaggers;
+
+/**
+ * Scratch buffers of a single flagger. A flagger is called once per second (and subband), always with the same number of
+ * samples, so the buffers are only allocated when that number changes. After the first call, flagging does not allocate anymore.
+ * A workspace is not thread safe; every flagger has its own.
+ */
+final class FlaggerWorkspace {
+    private float[] smoothed = new float[0];
+    private float[] diff = new float[0];
+    private float[] powers = new float[0];
+    private long[] sirWords = new long[0];
+    private FlagMask[] polarizationFlags = new FlagMask[0];
+
+    private float[] kernel = new float[0];
+    private float kernelSigma = Float.NaN;
+
+    float[] getSmoothed(final int length) {
+        if (smoothed.length != length) {
+            smoothed = new float[length];
+        }
+        return smoothed;
+    }
+
+    float[] getDiff(final int length) {
+        if (diff.length != length) {
+            diff = new float[length];
+        }
+        return diff;
+    }
+
+    float[] getPowers(final int length) {
+        if (powers.length != length) {
+            powers = new float[length];
+        }
+        return powers;
+    }
+
+    long[] getSirWords(final int nrWords) {
+        if (sirWords.length != nrWords) {
+            sirWords = new long[nrWords];
+        }
+        return sirWords;
+    }
+
+    FlagMask[] getPolarizationFlags(final int nrPolarizations, final long size) {
+        if (polarizationFlags.length != nrPolarizations || (nrPolarizations > 0 && polarizationFlags[0].size() != size)) {
+            polarizationFlags = new FlagMask[nrPolarizations];
+            for (int pol = 0; pol < nrPolarizations; pol++) {
+                polarizationFlags[pol] = new FlagMask(size);
+            }
+        }
+        return polarizationFlags;
+    }
+
+    /**
+     * @return the gaussian kernel for this sigma and data length. It is only recomputed if one of them changes.
+     */
+    float[] getGaussianKernel(final float sigma, final int dataLength) {
+        final int kernelSize = Flagger.gaussianKernelSize(sigma, dataLength);
+        if (kernel.length != kernelSize || kernelSigma != sigma) {
+            kernel = Flagger.gaussianKernel(sigma, kernelSize);
+            kernelSigma = sigma;
+        }
+        return kernel;
+    }
+}
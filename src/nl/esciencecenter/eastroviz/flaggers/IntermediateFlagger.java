@@ -25,29 +25,31 @@ public final class IntermediateFlagger extends Flagger {
         super(sensitivity, SIREtaValue);
     }
 
-    public void flag(final float[][] samples, final boolean[] flagged) {
+    public IntermediateFlagger(final float sensitivity, final float SIREtaValue, final StatisticsType statisticsType) {
+        super(sensitivity, SIREtaValue, statisticsType);
+    }
+
+    public void flag(final float[][] samples, final FlagMask flagged) {
         int nrPols = samples.length;
 
         // initalize flags of both polarizations with initial flags
-        boolean[][] flags = new boolean[nrPols][flagged.length];
+        final FlagMask[] flags = getWorkspace().getPolarizationFlags(nrPols, flagged.size());
         for (int pol = 0; pol < nrPols; pol++) {
-            flags[pol] = flagged.clone();
+            flags[pol].copyFrom(flagged);
         }
 
         for (int pol = 0; pol < nrPols; pol++) {
-            calculateStatistics(samples[pol], flags[pol]); // sets mean, median, stdDev
-            sumThreshold1D(samples[pol], flags[pol]);
+            Statistics stats = calculateInitialStatistics(samples[pol], flags[pol], pol);
+            sumThreshold1D(samples[pol], flags[pol], stats);
 
-            calculateStatistics(samples[pol], flags[pol]); // sets mean, median, stdDev
-            sumThreshold1D(samples[pol], flags[pol]);
+            stats = calculateStatistics(samples[pol], flags[pol]);
+            sumThreshold1D(samples[pol], flags[pol], stats);
         }
 
         // take union of flags of both polarizations
 
         for (int pol = 0; pol < nrPols; pol++) {
-            for (int i = 0; i < flagged.length; i++) {
-                flagged[i] |= flags[pol][i];
-            }
+            flagged.or(flags[pol]);
         }
 
         SIROperator(flagged);
@@ -55,34 +57,28 @@ public final class IntermediateFlagger extends Flagger {
         //      printNrFlagged(flagged);
     }
 
-    public void flagSmooth(final float[] samples, final boolean[] flagged) {
+    public void flagSmooth(final float[] samples, final FlagMask flagged) {
 
         //      float[] tmp = new float[samples.length];
 
-        calculateStatistics(samples, flagged); // sets mean, median, stdDev
-        sumThreshold1D(samples, flagged);
-
-        logger.debug("samples flagged after 1st iter: " + getNrFlaggedSamples(flagged));
+        Statistics stats = calculateStatistics(samples, flagged);
+        sumThreshold1D(samples, flagged, stats);
 
-        calculateStatistics(samples, flagged); // sets mean, median, stdDev
-        sumThreshold1D(samples, flagged);
+        if (logger.isTraceEnabled()) {
+            logger.trace("samples flagged after 1st iter: " + getNrFlaggedSamples(flagged));
+        }
 
-        logger.debug("samples flagged after 2nd iter: " + getNrFlaggedSamples(flagged));
+        stats = calculateStatistics(samples, flagged);
+        sumThreshold1D(samples, flagged, stats);
 
-        float[] tmp = samples.clone();
-        for (int i = 0; i < samples.length; i++) {
-            if (flagged[i]) {
-                tmp[i] = 0.0f;
-            }
-        }
-        float[] smoothed = oneDimensionalGausConvolution(tmp, 2.0f);
-        float[] diff = new float[samples.length];
-        for (int i = 0; i < samples.length; i++) {
-            diff[i] = samples[i] - smoothed[i];
+        if (logger.isTraceEnabled()) {
+            logger.trace("samples flagged after 2nd iter: " + getNrFlaggedSamples(flagged));
         }
 
-        calculateStatistics(diff, flagged); // sets mean, median, stdDev
-        sumThreshold1D(diff, flagged);
+        final float[] diff = smoothedDifference(samples, flagged, 2.0f);
+
+        stats = calculateStatistics(diff, flagged);
+        sumThreshold1D(diff, flagged, stats);
 
         SIROperator(flagged);
 
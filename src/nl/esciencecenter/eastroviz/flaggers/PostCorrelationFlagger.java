@@ -27,20 +27,41 @@ package nl.esciencecenter.eastroviz.flaggers;
 // I = .5XX - .5YY
 // I = .5 (XX - YY)
 
+/**
+ * Flags the data of one second of one subband of a baseline, all channels and polarizations. Every polarization is flagged
+ * separately by {@link #flag(float[], FlagMask, int)}, which runs the stages of the {@link FlaggerPipeline} of this flagger. After
+ * that, the flags of the polarizations are combined, and the stages of the pipeline after the union run on the result. Without a
+ * pipeline, that is just the SIR operator.
+ */
 public abstract class PostCorrelationFlagger extends Flagger {
     private int nrChannels;
+    private final FlaggerPipeline pipeline;
 
     public PostCorrelationFlagger(final int nrChannels, final float sensitivity, final float SIREtaValue) {
+        this(nrChannels, sensitivity, SIREtaValue, new FlaggerPipeline().union().SIR());
+    }
+
+    /**
+     * @param pipeline
+     *            the stages of this flagger. The flagger runs a copy, so the pipeline can be given to several flaggers. A pipeline
+     *            without a union gets one at the end, followed by the SIR operator.
+     */
+    protected PostCorrelationFlagger(final int nrChannels, final float sensitivity, final float SIREtaValue,
+            final FlaggerPipeline pipeline) {
         super(sensitivity, SIREtaValue);
         this.nrChannels = nrChannels;
+        this.pipeline = pipeline.copy();
+        if (!pipeline.hasUnion()) {
+            this.pipeline.union().SIR();
+        }
     }
 
-    public void flag(final float[][] samples, final boolean[] flagged) {
+    public void flag(final float[][] samples, final FlagMask flagged) {
 
-        boolean[][] flags = new boolean[samples[0].length][];
+        final FlagMask[] flags = getWorkspace().getPolarizationFlags(samples[0].length, flagged.size());
         
         for (int pol = 0; pol < samples[0].length; pol++) {
-            flags[pol] = flagged.clone(); // start with flags that are passed in.
+            flags[pol].copyFrom(flagged); // start with flags that are passed in.
             
             final float[] powers = calculatePowers(samples, pol);
             flag(powers, flags[pol], pol);
@@ -48,18 +69,25 @@ public abstract class PostCorrelationFlagger extends Flagger {
 
         // calculate union of flags
         for (int pol = 0; pol < samples[0].length; pol++) {
-            for (int i = 0; i < samples.length; i++) {
-                flagged[i] |= flags[pol][i];
-            }
+            flagged.or(flags[pol]);
         }
 
-        SIROperator(flagged);
+        pipeline.flagUnion(this, flagged);
     }
 
-    protected abstract void flag(final float[] powers, boolean[] flagged, int pol);
+    /**
+     * Flags the powers of one polarization, by running the stages of the pipeline before the union.
+     */
+    protected void flag(final float[] powers, final FlagMask flagged, final int pol) {
+        pipeline.flag(this, powers, flagged, pol);
+    }
+
+    public FlaggerPipeline getPipeline() {
+        return pipeline;
+    }
 
     private float[] calculatePowers(final float[][] samples, final int pol) {
-        final float[] power = new float[nrChannels];
+        final float[] power = getWorkspace().getPowers(nrChannels);
         // calculate powers
         for (int i = 0; i < nrChannels; i++) {
             power[i] = samples[i][pol];
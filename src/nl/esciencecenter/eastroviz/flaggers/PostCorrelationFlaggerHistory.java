@@ -15,45 +15,66 @@
  */
 package nl.esciencecenter.eastroviz.flaggers;
 
-import java.util.ArrayList;
-
 import nl.esciencecenter.eastroviz.Viz;
 
+/**
+ * The history of the last historySize seconds of a post-correlation flagger, per polarization. Every polarization has a ring
+ * buffer of flat arrays: the new second overwrites the oldest one. Running sums of the means, medians and powers are kept, so the
+ * queries do not have to go over the whole history, and adding a second does not allocate. The sums are in double precision, and
+ * they are recomputed from the buffer every time it wraps around, so rounding errors do not build up on long observations.
+ * <p>
+ * For the robust statistics of the medians, a {@link QuantileSketch} of the medians is kept as well, but only after they were
+ * asked for. A long history then costs the same per second as a short one.
+ */
 public class PostCorrelationFlaggerHistory {
     static final int HISTORY_SIZE = 16;
     static final int HISTORY_STEP_SIZE = 1;
     static final int MIN_HISTORY_SIZE = 4; // HISTORY_SIZE;
 
-    static class HistoryElement {
-        @SuppressWarnings("unused")
-        private int second;
-        private float mean;
-        private float median;
-        @SuppressWarnings("unused")
-        private float stdDev;
-        private float[] freqData;
-
-        HistoryElement(final int second, final float mean, final float median, final float stdDev, final float[] freqData) {
-            this.second = second;
-            this.mean = mean;
-            this.median = median;
-            this.stdDev = stdDev;
-            this.freqData = freqData.clone();
-        }
-    }
+    private static final int NR_POLS = Viz.NR_POLARIZATIONS * Viz.NR_POLARIZATIONS;
+
+    // the medians of a long observation usually stay within a factor 1000 of each other, that takes 3500 buckets
+    private static final float SKETCH_ACCURACY = 0.001f;
+    private static final int SKETCH_MAX_NR_BUCKETS = 4096;
+
+    private static final float IQR_TO_STDDEV = 1.349f; // the interquartile range of a normal distribution, in standard deviations
 
-    // history, element 0 is the most recent
-    @SuppressWarnings("unchecked")
-    private ArrayList<HistoryElement> history[] = new ArrayList[Viz.NR_POLARIZATIONS * Viz.NR_POLARIZATIONS];
-    private float meanMean[] = new float[Viz.NR_POLARIZATIONS * Viz.NR_POLARIZATIONS];
-    private float meanMedian[] = new float[Viz.NR_POLARIZATIONS * Viz.NR_POLARIZATIONS];
     private final int nrChannels;
+    private final int historySize;
+
+    // ring buffers, [pol][historySize] and [pol][historySize * nrChannels]
+    private final float[][] means;
+    private final float[][] medians;
+    private final float[][] freqData;
+    private final int[] next = new int[NR_POLS]; // the position the next second is stored at, the oldest one if the buffer is full
+    private final int[] size = new int[NR_POLS];
+
+    // running sums over the history
+    private final double[] sumMean = new double[NR_POLS];
+    private final double[] sumSquaredMean = new double[NR_POLS];
+    private final double[] sumMedian = new double[NR_POLS];
+    private final double[] sumSquaredMedian = new double[NR_POLS];
+    private final double[][] sumPowers; // [pol][nrChannels]
+
+    private final float[] integratedPowers;
+
+    private final QuantileSketch[] medianSketches = new QuantileSketch[NR_POLS]; // null until used
 
     PostCorrelationFlaggerHistory(final int nrChannels) {
-        this.nrChannels = nrChannels;
-        for (int pol = 0; pol < Viz.NR_POLARIZATIONS * Viz.NR_POLARIZATIONS; pol++) {
-            history[pol] = new ArrayList<HistoryElement>();
+        this(nrChannels, HISTORY_SIZE);
+    }
+
+    PostCorrelationFlaggerHistory(final int nrChannels, final int historySize) {
+        if (historySize < 1) {
+            throw new IllegalArgumentException("history size must be at least 1, got " + historySize);
         }
+        this.nrChannels = nrChannels;
+        this.historySize = historySize;
+        this.integratedPowers = new float[nrChannels];
+        means = new float[NR_POLS][historySize];
+        medians = new float[NR_POLS][historySize];
+        freqData = new float[NR_POLS][historySize * nrChannels];
+        sumPowers = new double[NR_POLS][nrChannels];
     }
 
     @edu.umd.cs.findbugs.annotations.SuppressWarnings(value = "INT_BAD_REM_BY_1", justification = "ignore find bugs warning if HISTORY_STEP_SIZE happens to be 1")
@@ -64,73 +85,154 @@ public class PostCorrelationFlaggerHistory {
             return;
         }
 
-        final HistoryElement h = new HistoryElement(second, mean, median, stdDev, freqData);
-        if (history[pol].size() >= HISTORY_SIZE) {
-            meanMean[pol] -= history[pol].get(history[pol].size() - 1).mean;
-            meanMedian[pol] -= history[pol].get(history[pol].size() - 1).median;
-            history[pol].remove(history[pol].size() - 1);
+        final int pos = next[pol];
+        final float[] powers = this.freqData[pol];
+        final double[] sums = sumPowers[pol];
+        final int offset = pos * nrChannels;
+
+        final QuantileSketch sketch = medianSketches[pol];
+        if (size[pol] == historySize) { // remove the oldest second
+            final float oldMean = means[pol][pos];
+            final float oldMedian = medians[pol][pos];
+            if (sketch != null) {
+                sketch.remove(oldMedian);
+            }
+            sumMean[pol] -= oldMean;
+            sumSquaredMean[pol] -= (double) oldMean * oldMean;
+            sumMedian[pol] -= oldMedian;
+            sumSquaredMedian[pol] -= (double) oldMedian * oldMedian;
+            for (int c = 0; c < nrChannels; c++) {
+                sums[c] -= powers[offset + c];
+            }
+        } else {
+            size[pol]++;
+        }
+
+        means[pol][pos] = mean;
+        medians[pol][pos] = median;
+        if (sketch != null) {
+            sketch.add(median);
+        }
+        System.arraycopy(freqData, 0, powers, offset, nrChannels);
+        sumMean[pol] += mean;
+        sumSquaredMean[pol] += (double) mean * mean;
+        sumMedian[pol] += median;
+        sumSquaredMedian[pol] += (double) median * median;
+        for (int c = 0; c < nrChannels; c++) {
+            sums[c] += freqData[c];
+        }
+
+        next[pol] = pos + 1 == historySize ? 0 : pos + 1;
+        if (next[pol] == 0) {
+            recalculateSums(pol);
+        }
+    }
+
+    private void recalculateSums(final int pol) {
+        final double[] sums = sumPowers[pol];
+        final float[] powers = freqData[pol];
+        double meanSum = 0.0;
+        double meanSquaredSum = 0.0;
+        double medianSum = 0.0;
+        double medianSquaredSum = 0.0;
+        for (int c = 0; c < nrChannels; c++) {
+            sums[c] = 0.0;
         }
 
-        history[pol].add(h);
-        meanMean[pol] += mean;
-        meanMedian[pol] += median;
+        for (int i = 0; i < size[pol]; i++) {
+            final float mean = means[pol][i];
+            final float median = medians[pol][i];
+            meanSum += mean;
+            meanSquaredSum += (double) mean * mean;
+            medianSum += median;
+            medianSquaredSum += (double) median * median;
+            final int offset = i * nrChannels;
+            for (int c = 0; c < nrChannels; c++) {
+                sums[c] += powers[offset + c];
+            }
+        }
+
+        sumMean[pol] = meanSum;
+        sumSquaredMean[pol] = meanSquaredSum;
+        sumMedian[pol] = medianSum;
+        sumSquaredMedian[pol] = medianSquaredSum;
     }
 
     float getMeanMean(final int pol) {
-        if (history[pol].size() == 0) {
+        if (size[pol] == 0) {
             return 0.0f;
         }
-        return meanMean[pol] / history[pol].size();
+        return (float) (sumMean[pol] / size[pol]);
     }
 
     float getMeanMedian(final int pol) {
-        if (history[pol].size() == 0) {
+        if (size[pol] == 0) {
             return 0.0f;
         }
-        return meanMedian[pol] / history[pol].size();
+        return (float) (sumMedian[pol] / size[pol]);
     }
 
     float getStdDevOfMeans(final int pol) {
-        final float meanMean = getMeanMean(pol);
-        float stdDev = 0.0f;
-        final ArrayList<HistoryElement> h = history[pol];
+        return stdDev(sumMean[pol], sumSquaredMean[pol], size[pol]);
+    }
+
+    float getStdDevOfMedians(final int pol) {
+        return stdDev(sumMedian[pol], sumSquaredMedian[pol], size[pol]);
+    }
 
-        for (int i = 0; i < h.size(); i++) {
-            final float diff = h.get(i).mean - meanMean;
-            stdDev += diff * diff;
+    private static float stdDev(final double sum, final double sumSquared, final int n) {
+        if (n == 0) {
+            return Float.NaN; // like the sum over an empty history divided by 0
         }
-        stdDev /= h.size();
-        stdDev = (float) Math.sqrt(stdDev);
-        return stdDev;
+        final double mean = sum / n;
+        final double variance = sumSquared / n - mean * mean;
+        return variance > 0.0 ? (float) Math.sqrt(variance) : 0.0f;
     }
 
-    float getStdDevOfMedians(final int pol) {
-        final float meanMedian = getMeanMedian(pol);
-        float stdDev = 0.0f;
-        final ArrayList<HistoryElement> h = history[pol];
+    /**
+     * @return the median of the medians in the history, estimated with a sketch.
+     */
+    float getMedianOfMedians(final int pol) {
+        return getMedianSketch(pol).getMedian();
+    }
+
+    /**
+     * @return the standard deviation of the medians in the history, estimated from their interquartile range. This is robust
+     *         against a quarter of the seconds being polluted.
+     */
+    float getRobustStdDevOfMedians(final int pol) {
+        final QuantileSketch sketch = getMedianSketch(pol);
+        return (sketch.getQuantile(0.75) - sketch.getQuantile(0.25)) / IQR_TO_STDDEV;
+    }
 
-        for (int i = 0; i < h.size(); i++) {
-            final float diff = h.get(i).median - meanMedian;
-            stdDev += diff * diff;
+    private QuantileSketch getMedianSketch(final int pol) {
+        QuantileSketch sketch = medianSketches[pol];
+        if (sketch == null) {
+            sketch = new QuantileSketch(SKETCH_ACCURACY, SKETCH_MAX_NR_BUCKETS);
+            for (int i = 0; i < size[pol]; i++) {
+                sketch.add(medians[pol][i]);
+            }
+            medianSketches[pol] = sketch;
         }
-        stdDev /= h.size();
-        stdDev = (float) Math.sqrt(stdDev);
-        return stdDev;
+        return sketch;
     }
 
     int getSize(final int pol) {
-        return history[pol].size();
+        return size[pol];
     }
 
-    float[] getIntegratedPowers(final int pol) {
-        final float[] res = new float[nrChannels];
-
-        final ArrayList<HistoryElement> h = history[pol];
+    int getHistorySize() {
+        return historySize;
+    }
 
-        for (int i = 0; i < h.size(); i++) {
-            for (int c = 0; c < nrChannels; c++) {
-                res[c] += h.get(i).freqData[c];
-            }
+    /**
+     * @return the sum of the powers in the history. The returned buffer is reused, it is only valid until the next call.
+     */
+    float[] getIntegratedPowers(final int pol) {
+        final float[] res = integratedPowers;
+        final double[] sums = sumPowers[pol];
+        for (int c = 0; c < nrChannels; c++) {
+            res[c] = (float) sums[c];
         }
         return res;
     }
@@ -0,0 +1,28 @@
+/*
+ * Copyright 2013 Netherlands eScience Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.esciencecenter.eastroviz.flaggers;
+
+/**
+ * A post-correlation flagger that only consists of the given {@link FlaggerPipeline}, to try new combinations of stages without
+ * writing a new flagger.
+ */
+public final class PostCorrelationPipelineFlagger extends PostCorrelationFlagger {
+
+    public PostCorrelationPipelineFlagger(final int nrChannels, final float sensitivity, final float SIREtaValue,
+            final FlaggerPipeline pipeline) {
+        super(nrChannels, sensitivity, SIREtaValue, pipeline);
+    }
+}
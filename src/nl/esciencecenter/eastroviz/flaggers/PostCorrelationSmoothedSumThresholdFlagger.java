@@ -15,9 +15,6 @@
  */
 package nl.esciencecenter.eastroviz.flaggers;
 
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
 /*
 Wanneer je informatie hebt in frequentierichting zou je ook kunnen
 overwegen om (iteratief?) te "smoothen" in die richting: dus eerst een
@@ -34,45 +31,12 @@ thresholder en vast niet het eerste algoritme wat je wilt implementeren
 maar het is een idee. Het is niet zoo zwaar om dit te doen.
  */
 public class PostCorrelationSmoothedSumThresholdFlagger extends PostCorrelationSumThresholdFlagger {
-    private static final Logger logger = LoggerFactory.getLogger(PostCorrelationSumThresholdFlagger.class);
 
     public PostCorrelationSmoothedSumThresholdFlagger(final int nrChannels, final float baseSensitivity, final float SIREtaValue) {
-        super(nrChannels, baseSensitivity, SIREtaValue);
-    }
-
-    // we have the data for one second, all frequencies in a subband.
-    // if one of the polarizations exceeds the threshold, flag them all.
-    @Override
-    protected void flag(final float[] powers, final boolean[] flagged, final int pol) {
-
-        calculateStatistics(powers, flagged); // sets mean, median, stdDev
-
-        logger.trace("mean = " + getMean() + ", median = " + getMedian() + ", stdDev = " + getStdDev());
-
-        // first do an insensitive sumthreshold
-        final float originalSensitivity = getBaseSensitivity();
-        setBaseSensitivity(originalSensitivity * 1.0f); // higher number is less sensitive!
-        sumThreshold1D(powers, flagged); // sets flags, and replaces flagged samples with threshold
-
-        // smooth
-        final float[] smoothedPower = oneDimensionalGausConvolution(powers, 0.5f); // 2nd param is sigma, heigth of the gauss curve
-
-        // calculate difference
-        final float[] diff = new float[getNrChannels()];
-        for (int i = 0; i < getNrChannels(); i++) {
-            diff[i] = powers[i] - smoothedPower[i];
-        }
-
-        // flag based on difference
-        calculateStatistics(diff, flagged); // sets mean, median, stdDev                
-        setBaseSensitivity(originalSensitivity * 1.0f); // higher number is less sensitive!
-        sumThreshold1D(diff, flagged);
-
-        // and one final pass on the flagged power
-        calculateStatistics(powers, flagged); // sets mean, median, stdDev
-        setBaseSensitivity(originalSensitivity * 0.80f); // higher number is less sensitive!
-        sumThreshold1D(powers, flagged);
-
-        setBaseSensitivity(originalSensitivity);
+        super(nrChannels, baseSensitivity, SIREtaValue, new FlaggerPipeline()
+                .sumThreshold(1.0f) // first do an insensitive sumthreshold, higher number is less sensitive!
+                .smoothedDifference(0.5f, false) // sigma, height of the gauss curve
+                .sumThreshold(1.0f) // flag based on difference
+                .samples().sumThreshold(0.80f)); // and one final pass on the flagged power
     }
 }
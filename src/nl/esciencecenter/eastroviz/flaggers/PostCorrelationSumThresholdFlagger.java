@@ -18,7 +18,12 @@ package nl.esciencecenter.eastroviz.flaggers;
 public class PostCorrelationSumThresholdFlagger extends PostCorrelationFlagger {
 
     public PostCorrelationSumThresholdFlagger(final int nrChannels, final float baseSensitivity, final float SIREtaValue) { // higher baseSensitivity means less sensitive
-        super(nrChannels, baseSensitivity, SIREtaValue);
+        this(nrChannels, baseSensitivity, SIREtaValue, new FlaggerPipeline().sumThreshold(1.0f).sumThreshold(1.0f).SIR());
+    }
+
+    protected PostCorrelationSumThresholdFlagger(final int nrChannels, final float baseSensitivity, final float SIREtaValue,
+            final FlaggerPipeline pipeline) {
+        super(nrChannels, baseSensitivity, SIREtaValue, pipeline);
     }
 
     
@@ -50,25 +55,5 @@ public class PostCorrelationSumThresholdFlagger extends PostCorrelationFlagger {
      */
     
     
-// FIXME maak weer consistent met BG/p code TODO    
-    
-    
-    
-    
-    
-    
-    // we have the data for one second, all frequencies in a subband.
-    // if one of the polarizations exceeds the threshold, flag them all.
-    @Override
-    protected void flag(final float[] powers, final boolean[] flagged, final int pol) {
-        calculateStatistics(powers, flagged); // sets mean, median, stdDev
-        sumThreshold1D(powers, flagged);
-
-        calculateStatistics(powers, flagged); // sets mean, median, stdDev
-        sumThreshold1D(powers, flagged);
-
-        SIROperator(flagged);
-
-        //        printNrFlagged(flagged);
-    }
+// FIXME maak weer consistent met BG/p code TODO
 }
@@ -25,16 +25,16 @@ public class PostCorrelationThresholdFlagger extends PostCorrelationFlagger {
 
     // we have the data for one second, all frequencies in a subband.
     @Override
-    protected void flag(final float[] powers, final boolean[] flagged, final int pol) {
+    protected void flag(final float[] powers, final FlagMask flagged, final int pol) {
         //                calculateStatistics();
-        calculateStatistics(powers, flagged);
+        Statistics stats = calculateInitialStatistics(powers, flagged, pol);
 
-        final float threshold = getMedian() + cutoffThreshold * getBaseSensitivity() * getStdDev();
+        final float threshold = stats.getMedian() + cutoffThreshold * getBaseSensitivity() * stats.getStdDev();
 
         // if one of the polarizations exceeds the threshold, flag them all.
         for (int channel = 0; channel < getNrChannels(); channel++) {
             if (powers[channel] >= threshold) {
-                flagged[channel] = true;
+                flagged.set(channel);
             }
         }
     }
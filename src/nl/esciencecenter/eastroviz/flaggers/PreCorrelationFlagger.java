@@ -0,0 +1,260 @@
+/*
+ * Copyright 2013 Netherlands eScience Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.esciencecenter.eastroviz.flaggers;
+
+/**
+ * Java version of the real-time pre-correlation flagger of LOFAR (LOFAR-source/PreCorrelationFlagger.cc). It flags the data of
+ * one station and one subband, a block of time steps at a time. There are two passes:
+ * <ul>
+ * <li>In the frequency direction: the powers are integrated in time, in groups of integrationFactor time steps, and the resulting
+ * [group][channel] array is flagged with a 2D SumThreshold.</li>
+ * <li>In the time direction: the powers are integrated over all channels, and the resulting time series is flagged with a 1D
+ * SumThreshold. If a time step is flagged, all its channels are flagged.</li>
+ * </ul>
+ * Both polarizations are flagged separately, and then the union of the flags is taken. Like in the LOFAR code, the SIR operator is
+ * not used. Samples that are already flagged do not count in the integrated powers, and samples flagged in the frequency direction do
+ * not count in the time direction.
+ * <p>
+ * All buffers are allocated up front, flagging a block does not allocate. Only a block with another number of time steps (usually
+ * the last one) reallocates them.
+ */
+public final class PreCorrelationFlagger extends Flagger {
+    /** With at least this many channels, we integrate all time steps of a block; there are enough channels for statistics. */
+    public static final int MINIMUM_NR_CHANNELS_FOR_1D = 256;
+
+    /** With fewer channels, we integrate in time in this many groups per block, and flag in 2D. */
+    private static final int DEFAULT_NR_GROUPS = 16;
+
+    private final int nrChannels;
+    private final int nrPolarizations;
+    private final int integrationFactor;
+    private boolean flagInFrequencyDirection = true;
+    private boolean flagInTimeDirection = true;
+
+    private int nrTimes = -1;
+    private int nrGroups;
+    private float[][] integratedPowersFrequency; // [nrPolarizations][nrGroups * nrChannels]
+    private FlagMask[] integratedFlagsFrequency; // [nrPolarizations], bit group * nrChannels + channel
+    private float[][] integratedPowersTime; // [nrPolarizations][nrTimes]
+    private FlagMask[] integratedFlagsTime; // [nrPolarizations], bit time
+
+    /**
+     * @param nrTimesPerBlock
+     *            the number of time steps that are flagged together, like one integration time of the real-time flagger.
+     * @param integrationFactor
+     *            the number of time steps that are integrated for the frequency direction. Use 0 to choose it like the LOFAR code:
+     *            all time steps of a block if there are many channels, otherwise 1/16 of a block.
+     */
+    public PreCorrelationFlagger(final int nrChannels, final int nrPolarizations, final int nrTimesPerBlock,
+            final int integrationFactor, final float sensitivity, final float SIREtaValue) {
+        this(nrChannels, nrPolarizations, nrTimesPerBlock, integrationFactor, sensitivity, SIREtaValue, StatisticsType.STDDEV_MAD);
+    }
+
+    public PreCorrelationFlagger(final int nrChannels, final int nrPolarizations, final int nrTimesPerBlock,
+            final int integrationFactor, final float sensitivity, final float SIREtaValue, final StatisticsType statisticsType) {
+        super(sensitivity, SIREtaValue, statisticsType);
+        this.nrChannels = nrChannels;
+        this.nrPolarizations = nrPolarizations;
+
+        int defaultIntegrationFactor = Math.max(1, nrTimesPerBlock / DEFAULT_NR_GROUPS);
+        if (nrChannels >= MINIMUM_NR_CHANNELS_FOR_1D) {
+            defaultIntegrationFactor = nrTimesPerBlock;
+        }
+        if (integrationFactor <= 0 || nrTimesPerBlock % integrationFactor != 0) {
+            this.integrationFactor = defaultIntegrationFactor;
+        } else {
+            this.integrationFactor = integrationFactor;
+        }
+
+        allocate(nrTimesPerBlock);
+    }
+
+    private void allocate(final int newNrTimes) {
+        if (newNrTimes == nrTimes) {
+            return;
+        }
+        nrTimes = newNrTimes;
+        nrGroups = (nrTimes + integrationFactor - 1) / integrationFactor;
+
+        integratedPowersFrequency = new float[nrPolarizations][nrGroups * nrChannels];
+        integratedFlagsFrequency = new FlagMask[nrPolarizations];
+        integratedPowersTime = new float[nrPolarizations][nrTimes];
+        integratedFlagsTime = new FlagMask[nrPolarizations];
+        for (int pol = 0; pol < nrPolarizations; pol++) {
+            integratedFlagsFrequency[pol] = new FlagMask(nrGroups * nrChannels);
+            integratedFlagsTime[pol] = new FlagMask(nrTimes);
+        }
+    }
+
+    /**
+     * Flags a block of time steps of one subband.
+     *
+     * @param samples
+     *            the powers, [time][nrPolarizations][nrChannels]. Only the first nrTimes time steps are used.
+     * @param flags
+     *            the flags of every time step, each of nrChannels. On entry, these are the initial flags; the new flags are added.
+     */
+    public void flag(final float[][][] samples, final FlagMask[] flags, final int nrTimes) {
+        allocate(nrTimes);
+
+        if (flagInFrequencyDirection) {
+            flagFrequency(samples, flags);
+        }
+        if (flagInTimeDirection) {
+            flagTime(samples, flags);
+        }
+
+        if (flagInFrequencyDirection) {
+            storeFlagsFrequency(flags);
+        }
+        if (flagInTimeDirection) {
+            storeFlagsTime(flags);
+        }
+    }
+
+    private void flagFrequency(final float[][][] samples, final FlagMask[] flags) {
+        for (int pol = 0; pol < nrPolarizations; pol++) {
+            integratedFlagsFrequency[pol].clear();
+            integratePowersFrequency(samples, flags, pol);
+
+            final Statistics stats = calculateStatistics(integratedPowersFrequency[pol], integratedFlagsFrequency[pol]);
+            sumThreshold2D(integratedPowersFrequency[pol], integratedFlagsFrequency[pol], nrGroups, nrChannels, stats);
+        }
+
+        for (int pol = 1; pol < nrPolarizations; pol++) {
+            integratedFlagsFrequency[0].or(integratedFlagsFrequency[pol]);
+        }
+    }
+
+    /**
+     * Averages the unflagged powers of every channel over groups of integrationFactor time steps. If all samples of a group are
+     * flagged, so is the integrated sample.
+     */
+    private void integratePowersFrequency(final float[][][] samples, final FlagMask[] flags, final int pol) {
+        final float[] powers = integratedPowersFrequency[pol];
+        final FlagMask integratedFlags = integratedFlagsFrequency[pol];
+
+        for (int group = 0; group < nrGroups; group++) {
+            final int start = group * integrationFactor;
+            final int end = Math.min(start + integrationFactor, nrTimes);
+            for (int channel = 0; channel < nrChannels; channel++) {
+                float powerSum = 0.0f;
+                int count = 0;
+                for (int time = start; time < end; time++) {
+                    if (!flags[time].get(channel)) {
+                        powerSum += samples[time][pol][channel];
+                        count++;
+                    }
+                }
+
+                final int index = group * nrChannels + channel;
+                if (count > 0) {
+                    powers[index] = powerSum / count;
+                } else {
+                    powers[index] = 0.0f;
+                    integratedFlags.set(index);
+                }
+            }
+        }
+    }
+
+    private void storeFlagsFrequency(final FlagMask[] flags) {
+        final FlagMask integratedFlags = integratedFlagsFrequency[0];
+        for (int group = 0; group < nrGroups; group++) {
+            final int start = group * integrationFactor;
+            final int end = Math.min(start + integrationFactor, nrTimes);
+            for (int channel = 0; channel < nrChannels; channel++) {
+                if (integratedFlags.get(group * nrChannels + channel)) {
+                    for (int time = start; time < end; time++) {
+                        flags[time].set(channel);
+                    }
+                }
+            }
+        }
+    }
+
+    private void flagTime(final float[][][] samples, final FlagMask[] flags) {
+        for (int pol = 0; pol < nrPolarizations; pol++) {
+            integratedFlagsTime[pol].clear();
+            integratePowersTime(samples, flags, pol);
+
+            final Statistics stats = calculateStatistics(integratedPowersTime[pol], integratedFlagsTime[pol]);
+            sumThreshold1D(integratedPowersTime[pol], integratedFlagsTime[pol], stats);
+        }
+
+        for (int pol = 1; pol < nrPolarizations; pol++) {
+            integratedFlagsTime[0].or(integratedFlagsTime[pol]);
+        }
+    }
+
+    /**
+     * Averages the powers of every time step over the channels. Samples flagged initially, or by the frequency direction, do not
+     * count.
+     */
+    private void integratePowersTime(final float[][][] samples, final FlagMask[] flags, final int pol) {
+        final float[] powers = integratedPowersTime[pol];
+        final FlagMask integratedFlags = integratedFlagsTime[pol];
+        final FlagMask frequencyFlags = flagInFrequencyDirection ? integratedFlagsFrequency[0] : null;
+
+        for (int time = 0; time < nrTimes; time++) {
+            final int groupOffset = (time / integrationFactor) * nrChannels;
+            float powerSum = 0.0f;
+            int count = 0;
+            for (int channel = 0; channel < nrChannels; channel++) {
+                if (!flags[time].get(channel) && (frequencyFlags == null || !frequencyFlags.get(groupOffset + channel))) {
+                    powerSum += samples[time][pol][channel];
+                    count++;
+                }
+            }
+
+            if (count > 0) {
+                powers[time] = powerSum / count;
+            } else {
+                powers[time] = 0.0f;
+                integratedFlags.set(time);
+            }
+        }
+    }
+
+    private void storeFlagsTime(final FlagMask[] flags) {
+        final FlagMask integratedFlags = integratedFlagsTime[0];
+        for (int time = 0; time < nrTimes; time++) {
+            if (integratedFlags.get(time)) {
+                flags[time].set(0, nrChannels);
+            }
+        }
+    }
+
+    public int getIntegrationFactor() {
+        return integrationFactor;
+    }
+
+    public boolean getFlagInFrequencyDirection() {
+        return flagInFrequencyDirection;
+    }
+
+    public void setFlagInFrequencyDirection(final boolean flagInFrequencyDirection) {
+        this.flagInFrequencyDirection = flagInFrequencyDirection;
+    }
+
+    public boolean getFlagInTimeDirection() {
+        return flagInTimeDirection;
+    }
+
+    public void setFlagInTimeDirection(final boolean flagInTimeDirection) {
+        this.flagInTimeDirection = flagInTimeDirection;
+    }
+}
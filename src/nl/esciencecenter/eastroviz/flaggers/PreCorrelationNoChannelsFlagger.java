@@ -0,0 +1,357 @@
+/*
+ * Copyright 2013 Netherlands eScience Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.esciencecenter.eastroviz.flaggers;
+
+import java.util.Arrays;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Java version of the real-time pre-correlation flagger of LOFAR for data without channels
+ * (LOFAR-source/PreCorrelationNoChannelsFlagger.cc). It flags the time series of one station and one subband, a block of
+ * fftSize * integrationFactor time steps at a time. There are two passes:
+ * <ul>
+ * <li>In the frequency direction: the block is cut in integrationFactor chunks of fftSize samples. The power spectra of the chunks
+ * are added, and the integrated spectrum is flagged with SumThreshold. In every chunk, the flagged frequencies are replaced with the
+ * frequency that has the median power, and the chunk is transformed back. This removes periodic interference from the samples.</li>
+ * <li>In the time direction: the cleaned samples are integrated in groups of integrationFactor time steps, and flagged with
+ * SumThreshold. If a group is flagged, all its time steps are flagged.</li>
+ * </ul>
+ * Both polarizations are flagged separately, and then the union of the flags is taken, which is dilated with the SIR operator. The
+ * frequency pass only produces flags for frequencies, not for time steps, so like in the LOFAR code, it only influences the result
+ * through the cleaned samples. The cleaned samples are a private copy; the samples passed in are not changed. The LOFAR flagger
+ * works on complex voltages, here the samples are powers, so we use a real FFT. The mean power ends up in the first frequency bin,
+ * which is never flagged.
+ * <p>
+ * All buffers are allocated up front, flagging a block does not allocate. Only a block with another number of time steps (usually
+ * the last one) reallocates them. If a block is shorter than fftSize, only the time direction is flagged.
+ */
+public final class PreCorrelationNoChannelsFlagger extends Flagger {
+    private static final Logger logger = LoggerFactory.getLogger(PreCorrelationNoChannelsFlagger.class);
+
+    public static final int DEFAULT_FFT_SIZE = 256;
+
+    private static final int DC_BIN = 0;
+
+    private final int fftSize;
+    private final int nrPolarizations;
+    private final int integrationFactor;
+    private boolean flagInFrequencyDirection = true;
+    private boolean flagInTimeDirection = true;
+
+    private final RealFFT fft;
+    private final float[] spectrumReal; // [nrBins]
+    private final float[] spectrumImag; // [nrBins]
+    private final float[] chunkPowers; // [nrBins]
+    private final float[][] integratedPowersFrequency; // [nrPolarizations][nrBins]
+    private final FlagMask[] flagsFrequency; // [nrPolarizations], bit frequency bin
+
+    private int nrTimes = -1;
+    private int nrGroups;
+    private float[][] cleanedSamples; // [nrPolarizations][nrTimes]
+    private float[][] integratedPowersTime; // [nrPolarizations][nrGroups]
+    private FlagMask[] flagsTime; // [nrPolarizations], bit group
+
+    /**
+     * @param fftSize
+     *            the number of time steps that are transformed together, a power of two.
+     * @param integrationFactor
+     *            the number of chunks of fftSize time steps that are integrated in the frequency direction, and the number of time
+     *            steps that are integrated in the time direction.
+     */
+    public PreCorrelationNoChannelsFlagger(final int fftSize, final int nrPolarizations, final int integrationFactor,
+            final float sensitivity, final float SIREtaValue) {
+        this(fftSize, nrPolarizations, integrationFactor, sensitivity, SIREtaValue, StatisticsType.STDDEV_MAD);
+    }
+
+    public PreCorrelationNoChannelsFlagger(final int fftSize, final int nrPolarizations, final int integrationFactor,
+            final float sensitivity, final float SIREtaValue, final StatisticsType statisticsType) {
+        super(sensitivity, SIREtaValue, statisticsType);
+        if (integrationFactor < 1) {
+            throw new IllegalArgumentException("integration factor must be at least 1, got " + integrationFactor);
+        }
+        this.fftSize = fftSize;
+        this.nrPolarizations = nrPolarizations;
+        this.integrationFactor = integrationFactor;
+
+        fft = new RealFFT(fftSize);
+        final int nrBins = fft.getNrBins();
+        spectrumReal = new float[nrBins];
+        spectrumImag = new float[nrBins];
+        chunkPowers = new float[nrBins];
+        integratedPowersFrequency = new float[nrPolarizations][nrBins];
+        flagsFrequency = new FlagMask[nrPolarizations];
+        for (int pol = 0; pol < nrPolarizations; pol++) {
+            flagsFrequency[pol] = new FlagMask(nrBins);
+        }
+
+        allocate(getNrTimesPerBlock());
+    }
+
+    private void allocate(final int newNrTimes) {
+        if (newNrTimes == nrTimes) {
+            return;
+        }
+        nrTimes = newNrTimes;
+        nrGroups = (nrTimes + integrationFactor - 1) / integrationFactor;
+
+        cleanedSamples = new float[nrPolarizations][nrTimes];
+        integratedPowersTime = new float[nrPolarizations][nrGroups];
+        flagsTime = new FlagMask[nrPolarizations];
+        for (int pol = 0; pol < nrPolarizations; pol++) {
+            flagsTime[pol] = new FlagMask(nrGroups);
+        }
+    }
+
+    /**
+     * Flags a block of time steps of one subband.
+     *
+     * @param samples
+     *            the powers, [nrPolarizations][time]. Only the first nrTimes time steps are used.
+     * @param flags
+     *            the flags of the time steps. On entry, these are the initial flags; the new flags are added.
+     */
+    public void flag(final float[][] samples, final FlagMask flags, final int nrTimes) {
+        allocate(nrTimes);
+        copySamples(samples, flags);
+
+        if (flagInFrequencyDirection && nrTimes >= fftSize) {
+            flagFrequency();
+        }
+        if (flagInTimeDirection) {
+            flagTime(flags);
+        }
+    }
+
+    /**
+     * Copies the samples to the cleaned samples. Samples that are flagged initially are replaced with the mean of the unflagged
+     * samples, so a flagged spike does not end up in the spectrum.
+     */
+    private void copySamples(final float[][] samples, final FlagMask flags) {
+        for (int pol = 0; pol < nrPolarizations; pol++) {
+            final float[] src = samples[pol];
+            final float[] dest = cleanedSamples[pol];
+
+            float sum = 0.0f;
+            int count = 0;
+            for (int time = 0; time < nrTimes; time++) {
+                if (!flags.get(time)) {
+                    sum += src[time];
+                    count++;
+                }
+            }
+            final float mean = count > 0 ? sum / count : 0.0f;
+
+            for (int time = 0; time < nrTimes; time++) {
+                dest[time] = flags.get(time) ? mean : src[time];
+            }
+        }
+    }
+
+    private void flagFrequency() {
+        final int nrChunks = nrTimes / fftSize;
+
+        for (int pol = 0; pol < nrPolarizations; pol++) {
+            final float[] powers = integratedPowersFrequency[pol];
+            Arrays.fill(powers, 0.0f);
+            for (int chunk = 0; chunk < nrChunks; chunk++) {
+                fft.forward(cleanedSamples[pol], chunk * fftSize, spectrumReal, spectrumImag);
+                for (int bin = 0; bin < powers.length; bin++) {
+                    powers[bin] += spectrumReal[bin] * spectrumReal[bin] + spectrumImag[bin] * spectrumImag[bin];
+                }
+            }
+
+            // The first bin holds the mean power, it is not interference. Keep it out of the statistics.
+            final FlagMask binFlags = flagsFrequency[pol];
+            binFlags.clear();
+            binFlags.set(DC_BIN);
+
+            // Flag twice, the second time with corrected statistics. Second time only if needed.
+            Statistics stats = calculateStatistics(powers, binFlags);
+            sumThreshold1D(powers, binFlags, stats);
+            if (binFlags.cardinality() > 1) {
+                stats = calculateStatistics(powers, binFlags);
+                sumThreshold1D(powers, binFlags, stats);
+            }
+        }
+
+        final FlagMask binFlags = flagsFrequency[0];
+        for (int pol = 1; pol < nrPolarizations; pol++) {
+            binFlags.or(flagsFrequency[pol]);
+        }
+        SIROperator(binFlags);
+        binFlags.clear(DC_BIN);
+
+        final long flaggedCount = binFlags.cardinality();
+        if (logger.isTraceEnabled()) {
+            logger.trace("frequencies flagged: " + flaggedCount);
+        }
+        if (flaggedCount == 0) {
+            return;
+        }
+
+        for (int pol = 0; pol < nrPolarizations; pol++) {
+            for (int chunk = 0; chunk < nrChunks; chunk++) {
+                replaceFlaggedFrequencies(cleanedSamples[pol], chunk * fftSize, binFlags);
+            }
+        }
+    }
+
+    /**
+     * Does a forward FFT of one chunk, replaces the flagged frequencies with the frequency with the median power, and transforms the
+     * chunk back.
+     */
+    private void replaceFlaggedFrequencies(final float[] samples, final int offset, final FlagMask binFlags) {
+        fft.forward(samples, offset, spectrumReal, spectrumImag);
+
+        final int nrBins = chunkPowers.length;
+        for (int bin = 0; bin < nrBins; bin++) {
+            chunkPowers[bin] = spectrumReal[bin] * spectrumReal[bin] + spectrumImag[bin] * spectrumImag[bin];
+        }
+        final float median = calculateStatistics(chunkPowers, binFlags).getMedian();
+
+        int medianBin = DC_BIN;
+        float bestDistance = Float.MAX_VALUE;
+        for (int bin = DC_BIN + 1; bin < nrBins; bin++) {
+            final float distance = Math.abs(chunkPowers[bin] - median);
+            if (!binFlags.get(bin) && distance < bestDistance) {
+                bestDistance = distance;
+                medianBin = bin;
+            }
+        }
+        if (medianBin == DC_BIN) {
+            return; // all frequencies are flagged, there is nothing to replace them with
+        }
+
+        final float replacementReal = spectrumReal[medianBin];
+        final float replacementImag = spectrumImag[medianBin];
+        for (int bin = DC_BIN + 1; bin < nrBins; bin++) {
+            if (binFlags.get(bin)) {
+                spectrumReal[bin] = replacementReal;
+                spectrumImag[bin] = replacementImag;
+            }
+        }
+
+        // The Nyquist frequency of real data has no imaginary part. Keep the power the same.
+        final int nyquist = nrBins - 1;
+        if (binFlags.get(nyquist)) {
+            spectrumReal[nyquist] = (float) Math.sqrt(chunkPowers[medianBin]);
+            spectrumImag[nyquist] = 0.0f;
+        }
+
+        fft.inverse(spectrumReal, spectrumImag, samples, offset);
+    }
+
+    private void flagTime(final FlagMask flags) {
+        for (int pol = 0; pol < nrPolarizations; pol++) {
+            final FlagMask groupFlags = flagsTime[pol];
+            groupFlags.clear();
+            integratePowersTime(flags, pol);
+
+            // flag twice (if needed)
+            final long initialCount = groupFlags.cardinality();
+            Statistics stats = calculateStatistics(integratedPowersTime[pol], groupFlags);
+            sumThreshold1D(integratedPowersTime[pol], groupFlags, stats);
+            if (groupFlags.cardinality() > initialCount) {
+                stats = calculateStatistics(integratedPowersTime[pol], groupFlags);
+                sumThreshold1D(integratedPowersTime[pol], groupFlags, stats);
+            }
+        }
+
+        final FlagMask groupFlags = flagsTime[0];
+        for (int pol = 1; pol < nrPolarizations; pol++) {
+            groupFlags.or(flagsTime[pol]);
+        }
+        SIROperator(groupFlags);
+
+        if (logger.isTraceEnabled()) {
+            logger.trace("time groups flagged: " + groupFlags.cardinality());
+        }
+
+        for (int group = 0; group < nrGroups; group++) {
+            if (groupFlags.get(group)) {
+                final int start = group * integrationFactor;
+                flags.set(start, Math.min(start + integrationFactor, nrTimes));
+            }
+        }
+    }
+
+    /**
+     * Averages the cleaned powers over groups of integrationFactor time steps. Samples that are flagged initially do not count. If
+     * all samples of a group are flagged, so is the group.
+     */
+    private void integratePowersTime(final FlagMask flags, final int pol) {
+        final float[] samples = cleanedSamples[pol];
+        final float[] powers = integratedPowersTime[pol];
+        final FlagMask groupFlags = flagsTime[pol];
+
+        for (int group = 0; group < nrGroups; group++) {
+            final int start = group * integrationFactor;
+            final int end = Math.min(start + integrationFactor, nrTimes);
+            float powerSum = 0.0f;
+            int count = 0;
+            for (int time = start; time < end; time++) {
+                if (!flags.get(time)) {
+                    powerSum += samples[time];
+                    count++;
+                }
+            }
+
+            if (count > 0) {
+                powers[group] = powerSum / count;
+            } else {
+                powers[group] = 0.0f;
+                groupFlags.set(group);
+            }
+        }
+    }
+
+    /**
+     * @return the samples of the last block after the flagged frequencies were replaced, [nrPolarizations][time].
+     */
+    public float[][] getCleanedSamples() {
+        return cleanedSamples;
+    }
+
+    public int getFFTSize() {
+        return fftSize;
+    }
+
+    public int getIntegrationFactor() {
+        return integrationFactor;
+    }
+
+    public int getNrTimesPerBlock() {
+        return fftSize * integrationFactor;
+    }
+
+    public boolean getFlagInFrequencyDirection() {
+        return flagInFrequencyDirection;
+    }
+
+    public void setFlagInFrequencyDirection(final boolean flagInFrequencyDirection) {
+        this.flagInFrequencyDirection = flagInFrequencyDirection;
+    }
+
+    public boolean getFlagInTimeDirection() {
+        return flagInTimeDirection;
+    }
+
+    public void setFlagInTimeDirection(final boolean flagInTimeDirection) {
+        this.flagInTimeDirection = flagInTimeDirection;
+    }
+}
@@ -0,0 +1,295 @@
+/*
+ * Copyright 2013 Netherlands eScience Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.esciencecenter.eastroviz.flaggers;
+
+import java.util.Arrays;
+
+/**
+ * A streaming estimator for quantiles, in the style of DDSketch (Masson et al., "DDSketch: a fast and fully-mergeable quantile
+ * sketch with relative-error guarantees", VLDB 2019). Values are counted in buckets with logarithmic boundaries: bucket k holds the
+ * values between gamma^(k-1) and gamma^k, with gamma = (1 + accuracy) / (1 - accuracy). Every quantile is estimated within the
+ * relative accuracy of its value. Adding or removing a value is O(1), and sketches with the same accuracy can be merged. A query
+ * only looks at the buckets between the smallest and largest value.
+ * <p>
+ * The memory is bounded: positive and negative values each have a fixed number of buckets. If the values span more buckets than
+ * that, the smallest magnitudes are counted in the lowest bucket, so the low quantiles lose accuracy first. Once that happened, the
+ * buckets do not move down anymore, so a value that is removed is taken from the same bucket it was added to. Only remove values
+ * that were added. After the buckets have been set up, the sketch does not allocate.
+ */
+public final class QuantileSketch {
+    public static final float DEFAULT_ACCURACY = 0.005f;
+    public static final int DEFAULT_MAX_NR_BUCKETS = 2048;
+
+    /** Values with a smaller magnitude are counted as zero. */
+    private static final double MIN_MAGNITUDE = 1.0E-30;
+
+    /**
+     * The buckets of values of one sign, indexed by key - minKey.
+     */
+    private static final class Store {
+        private final int[] counts;
+        private int minKey;
+        private int lowest = Integer.MAX_VALUE; // the range of keys that may have counts
+        private int highest = Integer.MIN_VALUE;
+        private boolean collapsed;
+        private long count;
+
+        Store(final int nrBuckets) {
+            counts = new int[nrBuckets];
+        }
+
+        void add(final int key, final int n) {
+            final int index = makeRoom(key) - minKey;
+            counts[index] += n;
+            count += n;
+            lowest = Math.min(lowest, index + minKey);
+            highest = Math.max(highest, index + minKey);
+        }
+
+        void remove(final int key) {
+            final int index = Math.max(key, minKey) - minKey;
+            if (count == 0 || index >= counts.length || counts[index] == 0) {
+                throw new IllegalArgumentException("removing a value that was not added");
+            }
+            counts[index]--;
+            count--;
+            if (count == 0) {
+                clear();
+            }
+        }
+
+        /**
+         * Moves the buckets so key fits, or collapses the lowest buckets.
+         *
+         * @return the key to count the value in.
+         */
+        private int makeRoom(final int key) {
+            if (count == 0 && !collapsed) {
+                minKey = key - counts.length / 2;
+                return key;
+            }
+            final int maxKey = minKey + counts.length - 1;
+            if (key >= minKey && key <= maxKey) {
+                return key;
+            }
+
+            if (key < minKey) {
+                if (collapsed || highest - key >= counts.length) {
+                    collapsed = true;
+                    return minKey;
+                }
+                final int newMinKey = Math.max(key - (counts.length - 1 - (highest - key)) / 2, highest - counts.length + 1);
+                shift(newMinKey);
+                return key;
+            }
+
+            // key > maxKey: move up, the buckets that fall off are counted in the new lowest bucket.
+            final int newMinKey = key - counts.length + 1;
+            if (lowest < newMinKey) {
+                collapsed = true;
+            }
+            shift(newMinKey);
+            return key;
+        }
+
+        private void shift(final int newMinKey) {
+            final int delta = newMinKey - minKey;
+            if (delta > 0) {
+                int collapsedCount = 0;
+                for (int i = 0; i < Math.min(delta, counts.length); i++) {
+                    collapsedCount += counts[i];
+                }
+                if (delta < counts.length) {
+                    System.arraycopy(counts, delta, counts, 0, counts.length - delta);
+                    Arrays.fill(counts, counts.length - delta, counts.length, 0);
+                } else {
+                    Arrays.fill(counts, 0);
+                }
+                counts[0] += collapsedCount;
+                lowest = Math.max(lowest, newMinKey);
+            } else if (delta < 0) {
+                System.arraycopy(counts, 0, counts, -delta, counts.length + delta);
+                Arrays.fill(counts, 0, -delta, 0);
+            }
+            minKey = newMinKey;
+        }
+
+        int getCount(final int key) {
+            final int index = key - minKey;
+            return index >= 0 && index < counts.length ? counts[index] : 0;
+        }
+
+        void clear() {
+            if (count > 0 || lowest <= highest) {
+                final int from = Math.max(0, lowest - minKey);
+                final int to = Math.min(counts.length, highest - minKey + 1);
+                if (from < to) {
+                    Arrays.fill(counts, from, to, 0);
+                }
+            }
+            lowest = Integer.MAX_VALUE;
+            highest = Integer.MIN_VALUE;
+            collapsed = false;
+            count = 0;
+        }
+    }
+
+    private final float accuracy;
+    private final double gamma;
+    private final double logGamma;
+    private final Store positive;
+    private final Store negative;
+    private long zeroCount;
+
+    public QuantileSketch() {
+        this(DEFAULT_ACCURACY, DEFAULT_MAX_NR_BUCKETS);
+    }
+
+    /**
+     * @param accuracy
+     *            the relative accuracy of the quantiles, for instance 0.01 for 1%.
+     * @param maxNrBuckets
+     *            the number of buckets for positive, and for negative values. These cover values from x to x * gamma^maxNrBuckets.
+     */
+    public QuantileSketch(final float accuracy, final int maxNrBuckets) {
+        if (accuracy <= 0.0f || accuracy >= 1.0f) {
+            throw new IllegalArgumentException("accuracy must be between 0 and 1, got " + accuracy);
+        }
+        this.accuracy = accuracy;
+        gamma = (1.0 + accuracy) / (1.0 - accuracy);
+        logGamma = Math.log(gamma);
+        positive = new Store(maxNrBuckets);
+        negative = new Store(maxNrBuckets);
+    }
+
+    private int key(final double magnitude) {
+        return (int) Math.ceil(Math.log(magnitude) / logGamma);
+    }
+
+    /** The value in the middle of bucket key, within the relative accuracy of all values in it. */
+    private double value(final int key) {
+        return 2.0 * Math.pow(gamma, key) / (gamma + 1.0);
+    }
+
+    public void add(final float value) {
+        if (value > MIN_MAGNITUDE) {
+            positive.add(key(value), 1);
+        } else if (value < -MIN_MAGNITUDE) {
+            negative.add(key(-value), 1);
+        } else {
+            zeroCount++;
+        }
+    }
+
+    /**
+     * Removes a value that was added before.
+     */
+    public void remove(final float value) {
+        if (value > MIN_MAGNITUDE) {
+            positive.remove(key(value));
+        } else if (value < -MIN_MAGNITUDE) {
+            negative.remove(key(-value));
+        } else {
+            if (zeroCount == 0) {
+                throw new IllegalArgumentException("removing a value that was not added");
+            }
+            zeroCount--;
+        }
+    }
+
+    /**
+     * Adds all values of another sketch, which must have the same accuracy.
+     */
+    public void merge(final QuantileSketch other) {
+        if (other.accuracy != accuracy) {
+            throw new IllegalArgumentException("cannot merge sketches with accuracy " + accuracy + " and " + other.accuracy);
+        }
+        mergeStore(positive, other.positive);
+        mergeStore(negative, other.negative);
+        zeroCount += other.zeroCount;
+    }
+
+    private static void mergeStore(final Store dest, final Store src) {
+        if (src.count == 0) {
+            return;
+        }
+        for (int key = src.highest; key >= src.lowest; key--) { // high first, so the buckets do not have to move down
+            final int n = src.getCount(key);
+            if (n > 0) {
+                dest.add(key, n);
+            }
+        }
+    }
+
+    public void clear() {
+        positive.clear();
+        negative.clear();
+        zeroCount = 0;
+    }
+
+    public long getCount() {
+        return positive.count + negative.count + zeroCount;
+    }
+
+    public float getAccuracy() {
+        return accuracy;
+    }
+
+    /**
+     * @return an estimate of the value with rank floor(quantile * (count - 1)) in sorted order, or 0 if the sketch is empty.
+     */
+    public float getQuantile(final double quantile) {
+        final long count = getCount();
+        if (count == 0) {
+            return 0.0f;
+        }
+        return getValueWithRank((long) Math.floor(quantile * (count - 1)));
+    }
+
+    /**
+     * @return an estimate of the value with rank count / 2, the same median as the {@link StatisticsCalculator} uses.
+     */
+    public float getMedian() {
+        final long count = getCount();
+        if (count == 0) {
+            return 0.0f;
+        }
+        return getValueWithRank(count / 2);
+    }
+
+    private float getValueWithRank(final long rank) {
+        long seen = 0;
+        if (negative.count > 0) { // the most negative values have the highest keys
+            for (int key = negative.highest; key >= negative.lowest; key--) {
+                seen += negative.getCount(key);
+                if (seen > rank) {
+                    return (float) -value(key);
+                }
+            }
+        }
+        seen += zeroCount;
+        if (seen > rank) {
+            return 0.0f;
+        }
+        for (int key = positive.lowest; key <= positive.highest; key++) {
+            seen += positive.getCount(key);
+            if (seen > rank) {
+                return (float) value(key);
+            }
+        }
+        return (float) value(positive.highest);
+    }
+}
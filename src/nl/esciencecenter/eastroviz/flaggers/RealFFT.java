@@ -0,0 +1,231 @@
+/*
+ * Copyright 2013 Netherlands eScience Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.esciencecenter.eastroviz.flaggers;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A radix-2 FFT of real data, in single precision. A real FFT of n points is computed with a complex FFT of n/2 points: the even
+ * samples are the real parts, the odd samples the imaginary parts, and afterwards the spectra of the two halves are separated
+ * again. The result is the n/2 + 1 non-negative frequencies of the unnormalized DFT; the inverse transform divides by n, so
+ * inverse(forward(x)) gives x.
+ * <p>
+ * The twiddle factors and the bit reversal permutation only depend on the size. They are computed once per size and shared by all
+ * instances. The transforms themselves do not allocate, but they use work buffers of the instance, so an instance must only be used
+ * by one thread.
+ */
+public final class RealFFT {
+    private static final Map<Integer, Tables> tablesPerSize = new HashMap<Integer, Tables>();
+
+    private static final class Tables {
+        final int[] bitReversed; // [n/2]
+        final float[] cos; // [n/4], twiddle factors of the complex FFT
+        final float[] sin;
+        final float[] splitCos; // [n/2 + 1], twiddle factors to separate the even and odd halves
+        final float[] splitSin;
+
+        Tables(final int size) {
+            final int half = size / 2;
+
+            bitReversed = new int[half];
+            final int nrBits = Integer.numberOfTrailingZeros(half);
+            for (int i = 0; i < half; i++) {
+                bitReversed[i] = nrBits == 0 ? 0 : Integer.reverse(i) >>> (Integer.SIZE - nrBits);
+            }
+
+            cos = new float[half / 2];
+            sin = new float[half / 2];
+            for (int i = 0; i < half / 2; i++) {
+                final double angle = 2.0 * Math.PI * i / half;
+                cos[i] = (float) Math.cos(angle);
+                sin[i] = (float) Math.sin(angle);
+            }
+
+            splitCos = new float[half + 1];
+            splitSin = new float[half + 1];
+            for (int i = 0; i <= half; i++) {
+                final double angle = 2.0 * Math.PI * i / size;
+                splitCos[i] = (float) Math.cos(angle);
+                splitSin[i] = (float) Math.sin(angle);
+            }
+        }
+    }
+
+    private final int size;
+    private final int half;
+    private final Tables tables;
+    private final float[] workReal; // [n/2]
+    private final float[] workImag;
+
+    /**
+     * @param size
+     *            the number of real samples, a power of two, at least 2.
+     */
+    public RealFFT(final int size) {
+        if (size < 2 || Integer.bitCount(size) != 1) {
+            throw new IllegalArgumentException("FFT size must be a power of two, at least 2, got " + size);
+        }
+        this.size = size;
+        half = size / 2;
+        tables = getTables(size);
+        workReal = new float[half];
+        workImag = new float[half];
+    }
+
+    private static Tables getTables(final int size) {
+        synchronized (tablesPerSize) {
+            Tables result = tablesPerSize.get(size);
+            if (result == null) {
+                result = new Tables(size);
+                tablesPerSize.put(size, result);
+            }
+            return result;
+        }
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * @return the number of frequency bins of the forward transform: size / 2 + 1, from 0 to the Nyquist frequency.
+     */
+    public int getNrBins() {
+        return half + 1;
+    }
+
+    /**
+     * Transforms size samples of input, starting at offset, to the frequency domain.
+     *
+     * @param real
+     *            the real parts of the spectrum, at least {@link #getNrBins()} long.
+     * @param imag
+     *            the imaginary parts of the spectrum, at least {@link #getNrBins()} long.
+     */
+    public void forward(final float[] input, final int offset, final float[] real, final float[] imag) {
+        for (int i = 0; i < half; i++) {
+            workReal[i] = input[offset + 2 * i];
+            workImag[i] = input[offset + 2 * i + 1];
+        }
+
+        complexFFT(false);
+
+        final float[] splitCos = tables.splitCos;
+        final float[] splitSin = tables.splitSin;
+        for (int k = 0; k <= half; k++) {
+            final int index = k == half ? 0 : k;
+            final int mirror = k == 0 ? 0 : half - k;
+            final float zr = workReal[index];
+            final float zi = workImag[index];
+            final float cr = workReal[mirror]; // conj(Z[n/2 - k])
+            final float ci = -workImag[mirror];
+
+            // the spectrum of the even samples is (Z[k] + conj(Z[n/2 - k])) / 2, of the odd ones (Z[k] - conj(Z[n/2 - k])) / 2i
+            final float evenReal = 0.5f * (zr + cr);
+            final float evenImag = 0.5f * (zi + ci);
+            final float oddReal = 0.5f * (zi - ci);
+            final float oddImag = -0.5f * (zr - cr);
+
+            // X[k] = even + e^(-2 pi i k / n) * odd
+            final float wr = splitCos[k];
+            final float wi = -splitSin[k];
+            real[k] = evenReal + wr * oddReal - wi * oddImag;
+            imag[k] = evenImag + wr * oddImag + wi * oddReal;
+        }
+    }
+
+    /**
+     * Transforms a spectrum of {@link #getNrBins()} bins back to size real samples, which are stored in output, starting at offset.
+     * The imaginary parts of the first and last bin should be 0, otherwise the spectrum does not belong to real data.
+     */
+    public void inverse(final float[] real, final float[] imag, final float[] output, final int offset) {
+        final float[] splitCos = tables.splitCos;
+        final float[] splitSin = tables.splitSin;
+        for (int k = 0; k < half; k++) {
+            final float xr = real[k];
+            final float xi = imag[k];
+            final float cr = real[half - k]; // conj(X[n/2 - k])
+            final float ci = -imag[half - k];
+
+            final float evenReal = 0.5f * (xr + cr);
+            final float evenImag = 0.5f * (xi + ci);
+
+            // odd = (X[k] - conj(X[n/2 - k])) / 2 * e^(2 pi i k / n)
+            final float dr = 0.5f * (xr - cr);
+            final float di = 0.5f * (xi - ci);
+            final float wr = splitCos[k];
+            final float wi = splitSin[k];
+            final float oddReal = dr * wr - di * wi;
+            final float oddImag = dr * wi + di * wr;
+
+            // Z[k] = even + i * odd
+            workReal[k] = evenReal - oddImag;
+            workImag[k] = evenImag + oddReal;
+        }
+
+        complexFFT(true);
+
+        final float scale = 1.0f / half;
+        for (int i = 0; i < half; i++) {
+            output[offset + 2 * i] = workReal[i] * scale;
+            output[offset + 2 * i + 1] = workImag[i] * scale;
+        }
+    }
+
+    /**
+     * In-place iterative radix-2 FFT of the work buffers, without normalization.
+     */
+    private void complexFFT(final boolean inverse) {
+        final float[] re = workReal;
+        final float[] im = workImag;
+        final int[] bitReversed = tables.bitReversed;
+        final float[] cos = tables.cos;
+        final float[] sin = tables.sin;
+        final float sign = inverse ? 1.0f : -1.0f;
+
+        for (int i = 0; i < half; i++) {
+            final int j = bitReversed[i];
+            if (j > i) {
+                final float tr = re[i];
+                re[i] = re[j];
+                re[j] = tr;
+                final float ti = im[i];
+                im[i] = im[j];
+                im[j] = ti;
+            }
+        }
+
+        for (int length = 2; length <= half; length <<= 1) {
+            final int halfLength = length >>> 1;
+            final int step = half / length;
+            for (int start = 0; start < half; start += length) {
+                for (int k = 0; k < halfLength; k++) {
+                    final float wr = cos[k * step];
+                    final float wi = sign * sin[k * step];
+                    final int a = start + k;
+                    final int b = a + halfLength;
+                    final float tr = re[b] * wr - im[b] * wi;
+                    final float ti = re[b] * wi + im[b] * wr;
+                    re[b] = re[a] - tr;
+                    im[b] = im[a] - ti;
+                    re[a] += tr;
+                    im[a] += ti;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2013 Netherlands eScience Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.esciencecenter.eastroviz.flaggers;
+
+/**
+ * The mean, median and standard deviation of the unflagged samples of one second (and subband). Holders can be reused, so
+ * calculating statistics does not have to allocate.
+ */
+public final class Statistics {
+    private float mean;
+    private float median;
+    private float stdDev;
+
+    public Statistics() {
+    }
+
+    public Statistics(final float mean, final float median, final float stdDev) {
+        set(mean, median, stdDev);
+    }
+
+    void set(final float mean, final float median, final float stdDev) {
+        this.mean = mean;
+        this.median = median;
+        this.stdDev = stdDev;
+    }
+
+    public void copyFrom(final Statistics other) {
+        set(other.mean, other.median, other.stdDev);
+    }
+
+    public float getMean() {
+        return mean;
+    }
+
+    public float getMedian() {
+        return median;
+    }
+
+    public float getStdDev() {
+        return stdDev;
+    }
+
+    @Override
+    public String toString() {
+        return "mean = " + mean + ", median = " + median + ", stdDev = " + stdDev;
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2013 Netherlands eScience Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.esciencecenter.eastroviz.flaggers;
+
+import java.util.Arrays;
+
+/**
+ * Remembers the statistics of the first flagging pass, per cell and polarization. A cell is a block of samples that is flagged
+ * together, usually one time step of one subband. The first pass only looks at the samples and the initial flags, not at the
+ * sensitivity, so when the data is flagged again with another sensitivity, the flaggers can skip the selection work for it. The
+ * data provider that owns the cache must clear it when the data or the initial flags change.
+ * <p>
+ * Different threads may use the cache at the same time, as long as they work on different cells.
+ */
+public final class StatisticsCache {
+    private static final int VALUES_PER_ENTRY = 3;
+
+    private final int nrCells;
+    private final int nrPolarizations;
+    private final StatisticsType statisticsType;
+    private final float[] values; // [cell][pol][mean, median, stdDev]
+    private final boolean[] valid; // [cell][pol], not a FlagMask: threads flagging different cells must not share a word
+
+    public StatisticsCache(final int nrCells, final int nrPolarizations, final StatisticsType statisticsType) {
+        this.nrCells = nrCells;
+        this.nrPolarizations = nrPolarizations;
+        this.statisticsType = statisticsType;
+        values = new float[nrCells * nrPolarizations * VALUES_PER_ENTRY];
+        valid = new boolean[nrCells * nrPolarizations];
+    }
+
+    /**
+     * @return true if the statistics of this cell and polarization are known, in that case they are copied to result.
+     */
+    public boolean get(final int cell, final int pol, final Statistics result) {
+        final int entry = cell * nrPolarizations + pol;
+        if (!valid[entry]) {
+            return false;
+        }
+        final int index = entry * VALUES_PER_ENTRY;
+        result.set(values[index], values[index + 1], values[index + 2]);
+        return true;
+    }
+
+    public void put(final int cell, final int pol, final Statistics statistics) {
+        final int entry = cell * nrPolarizations + pol;
+        final int index = entry * VALUES_PER_ENTRY;
+        values[index] = statistics.getMean();
+        values[index + 1] = statistics.getMedian();
+        values[index + 2] = statistics.getStdDev();
+        valid[entry] = true;
+    }
+
+    public void clear() {
+        Arrays.fill(valid, false);
+    }
+
+    public int getNrCells() {
+        return nrCells;
+    }
+
+    public int getNrPolarizations() {
+        return nrPolarizations;
+    }
+
+    /**
+     * @return the type of statistics in this cache. Flaggers that use another type do not use the cache.
+     */
+    public StatisticsType getStatisticsType() {
+        return statisticsType;
+    }
+}
@@ -0,0 +1,368 @@
+/*
+ * Copyright 2013 Netherlands eScience Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.esciencecenter.eastroviz.flaggers;
+
+import java.util.Arrays;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Calculates the statistics of the unflagged samples. There are four options for statistics. 1. Use medians 2. more robust: use
+ * winsorized medians. In this case, we are 10% robust against polluted data. 3. Much better (learned at RFI2016 workshop, talk by
+ * Kaushal D. Buch) is to use the STDDEV_MAD. This gives 50% robustness against polluted data. 4. STDDEV_MAD_SKETCH estimates the
+ * STDDEV_MAD statistics with a streaming quantile sketch, within its relative accuracy, in linear time.
+ * <p>
+ * The results are written to a {@link Statistics} holder supplied by the caller; the calculator only keeps a scratch buffer for the
+ * clean samples. The sketch does not need that buffer, it reads the unflagged samples in place. A calculator is not thread safe,
+ * every thread (or flagger) should use its own.
+ */
+public final class StatisticsCalculator {
+    private static final float GAUSSIAN_SCALE_FACTOR = 1.4826f; // Scale value to estimate stddev from the MAD. See https://en.wikipedia.org/wiki/Median_absolute_deviation
+
+    private static final Logger logger = LoggerFactory.getLogger(StatisticsCalculator.class);
+
+    private StatisticsType statisticsType;
+    private boolean sortStatistics; // if true, sort the samples instead of using selection. Slower, but useful for validation.
+    private float[] cleanSamples = new float[0];
+    private QuantileSketch sketch; // only for STDDEV_MAD_SKETCH
+
+    public StatisticsCalculator() {
+        this(StatisticsType.STDDEV_MAD);
+    }
+
+    public StatisticsCalculator(final StatisticsType statisticsType) {
+        this.statisticsType = statisticsType;
+    }
+
+    /**
+     * Calculates the statistics of the samples that are not flagged, and stores them in result. If all samples are flagged, all
+     * statistics are 0.
+     */
+    public void calculate(final float[] samples, final FlagMask flags, final Statistics result) {
+        final int unflaggedCount = (int) (flags.size() - flags.cardinality());
+        if (unflaggedCount == 0) {
+            result.set(0.0f, 0.0f, 0.0f);
+            return;
+        }
+        if (statisticsType == StatisticsType.STDDEV_MAD_SKETCH) {
+            calculateSketchStatistics(samples, flags, unflaggedCount, result);
+            return;
+        }
+
+        // only grow the buffer, a flagger can alternate between sample arrays of different lengths
+        if (cleanSamples.length < samples.length) {
+            cleanSamples = new float[samples.length];
+        }
+        getCleanSamples(samples, flags, cleanSamples, unflaggedCount);
+        if (sortStatistics) {
+            Arrays.sort(cleanSamples, 0, unflaggedCount);
+        }
+
+        switch (statisticsType) {
+        case STDDEV_MEDIAN:
+            calculateStatisticsNormal(cleanSamples, unflaggedCount, result);
+            break;
+        case STDDEV_WINSORIZED_MEDIAN:
+            calculateWinsorizedStatistics(cleanSamples, unflaggedCount, result);
+            break;
+        case STDDEV_MAD:
+            calculateMADStatistics(cleanSamples, unflaggedCount, result);
+            break;
+        default:
+            throw new IllegalStateException("unknown statistics type: " + statisticsType);
+        }
+    }
+
+    /**
+     * Same as {@link #calculate(float[], FlagMask, Statistics)}, but returns a new holder.
+     */
+    public Statistics calculate(final float[] samples, final FlagMask flags) {
+        final Statistics result = new Statistics();
+        calculate(samples, flags, result);
+        return result;
+    }
+
+    private void calculateStatisticsNormal(final float[] cleanSamples, final int n, final Statistics result) {
+        float mean = 0.0f;
+        for (int i = 0; i < n; i++) {
+            mean += cleanSamples[i];
+        }
+        mean /= n;
+
+        final float median = orderStatistic(cleanSamples, 0, n - 1, n / 2);
+
+        float stdDev = 0.0f;
+        for (int i = 0; i < n; i++) {
+            final float diff = cleanSamples[i] - mean;
+            stdDev += diff * diff;
+        }
+        stdDev /= n;
+        stdDev = (float) Math.sqrt(stdDev);
+
+        result.set(mean, median, stdDev);
+    }
+
+    private void calculateWinsorizedStatistics(final float[] cleanSamples, final int n, final Statistics result) {
+        int lowIndex = (int) Math.floor(0.1 * n);
+        int highIndex = (int) Math.ceil(0.9 * n);
+        if (highIndex > 0) {
+            highIndex--;
+        }
+
+        // Partition the samples around the median first, then partition the lower and upper halves around the low and high
+        // value. After that, the samples between lowIndex and highIndex are exactly the ones in the middle of the sorted order.
+        final int medianIndex = n / 2;
+        final float median = orderStatistic(cleanSamples, 0, n - 1, medianIndex);
+        float lowValue = lowIndex < medianIndex ? orderStatistic(cleanSamples, 0, medianIndex - 1, lowIndex) : median;
+        float highValue = highIndex > medianIndex ? orderStatistic(cleanSamples, medianIndex + 1, n - 1, highIndex) : median;
+
+        // Assume an array of 0 .. 9; low idx = 3; high idx = 7
+        // low vals = 0, 1, 2, 3 -> #= 4
+        // normal:    4, 5, 6    -> #= 3
+        // high vals: 7, 8, 9    -> #= 3
+
+        // Calculate mean
+        float mean = (lowIndex+1) * lowValue;
+        for (int i = lowIndex+1; i < highIndex; i++) {
+            mean += cleanSamples[i];
+        }
+        mean += (n - highIndex) * highValue;
+        mean /= n;
+
+        float stdDev = (lowIndex+1) * ((lowValue - mean) * (lowValue - mean)) ;
+        for (int i = lowIndex+1; i < highIndex; i++) {
+            stdDev += (cleanSamples[i] - mean) * (cleanSamples[i] - mean);
+        }
+        stdDev += (n - highIndex) * ((highValue - mean) * (highValue - mean));
+        stdDev /= n;
+        stdDev = (float) Math.sqrt(1.54 * stdDev / n);
+
+        result.set(mean, median, stdDev);
+
+        if (logger.isTraceEnabled()) {
+            logger.trace("winsorized stats: unFlaggedCount = " + n + ", " + result);
+        }
+    }
+
+    private void calculateMADStatistics(final float[] cleanSamples, final int n, final Statistics result) {
+        float mean = 0.0f;
+        for (int i = 0; i < n; i++) {
+            mean += cleanSamples[i];
+        }
+        mean /= n;
+
+        final float median = orderStatistic(cleanSamples, 0, n - 1, n / 2);
+
+        // Calculate STDDEV_MAD: the median of the absolute deviations from the median. We don't need the samples anymore, so we
+        // overwrite them with the deviations.
+        for (int i = 0; i < n; i++) {
+            cleanSamples[i] = Math.abs(cleanSamples[i] - median);
+        }
+        if (sortStatistics) {
+            Arrays.sort(cleanSamples, 0, n);
+        }
+        final float mad = orderStatistic(cleanSamples, 0, n - 1, n / 2);
+
+        result.set(mean, median, GAUSSIAN_SCALE_FACTOR * mad);
+
+        if (logger.isTraceEnabled()) {
+            logger.trace("MAD stats: unFlaggedCount = " + n + ", " + result);
+        }
+    }
+
+    /**
+     * The same statistics as {@link #calculateMADStatistics(float[], int, Statistics)}, but the median and the MAD come from a
+     * quantile sketch. That takes two passes over the unflagged samples, one for the median and one for the deviations from it. The
+     * samples are not copied.
+     */
+    private void calculateSketchStatistics(final float[] samples, final FlagMask flags, final int n, final Statistics result) {
+        if (sketch == null) {
+            sketch = new QuantileSketch();
+        }
+
+        sketch.clear();
+        final float mean = addUnflagged(samples, flags, sketch, false, 0.0f) / n;
+        final float median = sketch.getMedian();
+
+        sketch.clear();
+        addUnflagged(samples, flags, sketch, true, median);
+        final float mad = sketch.getMedian();
+
+        result.set(mean, median, GAUSSIAN_SCALE_FACTOR * mad);
+
+        if (logger.isTraceEnabled()) {
+            logger.trace("MAD sketch stats: unFlaggedCount = " + n + ", " + result);
+        }
+    }
+
+    /**
+     * Adds the unflagged samples to the sketch, in order, or with deviations set, their absolute deviations from the median. Walks
+     * over the words of the flags like {@link #getCleanSamples(float[], FlagMask, float[], int)}.
+     * 
+     * @return the sum of the unflagged samples
+     */
+    private static float addUnflagged(final float[] samples, final FlagMask flags, final QuantileSketch sketch,
+            final boolean deviations, final float median) {
+        final long[] words = flags.getWords();
+        float sum = 0.0f;
+        for (int word = 0; word < words.length; word++) {
+            final int base = word * FlagMask.BITS_PER_WORD;
+            final int nrBits = Math.min(FlagMask.BITS_PER_WORD, samples.length - base);
+            long unflagged = ~words[word];
+            if (nrBits < FlagMask.BITS_PER_WORD) {
+                unflagged &= (1L << nrBits) - 1;
+            }
+            while (unflagged != 0L) {
+                final float sample = samples[base + Long.numberOfTrailingZeros(unflagged)];
+                sum += sample;
+                sketch.add(deviations ? Math.abs(sample - median) : sample);
+                unflagged &= unflagged - 1;
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Returns the element with rank k in a[low .. high]. Afterwards, a[low .. k-1] holds the smaller elements and a[k+1 .. high] the
+     * larger ones. If the samples were sorted already (sortStatistics), we can simply index the array.
+     */
+    private float orderStatistic(final float[] a, final int low, final int high, final int k) {
+        if (sortStatistics) {
+            return a[k];
+        }
+        return quickSelect(a, low, high, k);
+    }
+
+    private static void getCleanSamples(final float[] samples, final FlagMask flags, final float[] cleanSamples,
+            final int destSize) {
+        if (destSize == samples.length) {
+            System.arraycopy(samples, 0, cleanSamples, 0, destSize);
+            return;
+        }
+
+        // walk over the words, skipping the flagged samples; a word without flags is copied in one go.
+        final long[] words = flags.getWords();
+        int destIndex = 0;
+        for (int word = 0; word < words.length; word++) {
+            final int base = word * FlagMask.BITS_PER_WORD;
+            final int nrBits = Math.min(FlagMask.BITS_PER_WORD, samples.length - base);
+            if (words[word] == 0L) {
+                System.arraycopy(samples, base, cleanSamples, destIndex, nrBits);
+                destIndex += nrBits;
+                continue;
+            }
+            long unflagged = ~words[word];
+            if (nrBits < FlagMask.BITS_PER_WORD) {
+                unflagged &= (1L << nrBits) - 1;
+            }
+            while (unflagged != 0L) {
+                cleanSamples[destIndex] = samples[base + Long.numberOfTrailingZeros(unflagged)];
+                destIndex++;
+                unflagged &= unflagged - 1;
+            }
+        }
+    }
+
+    private static void swap(final float[] r, final int a, final int b) {
+        final float tmp = r[a];
+        r[a] = r[b];
+        r[b] = tmp;
+    }
+
+    /*
+     *  This Quickselect routine is based on the algorithm described in
+     *  "Numerical recipes in C", Second Edition,
+     *  Cambridge University Press, 1992, Section 8.5, ISBN 0-521-43108-5
+     *  It is generalized to select the element of rank k in the range a[low .. high].
+     */
+    private static float quickSelect(final float a[], int low, int high, final int k) {
+        int middle, ll, hh;
+
+        for (;;) {
+            if (high <= low) {
+                return a[k];
+            }
+
+            if (high == low + 1) { /* Two elements only */
+                if (a[low] > a[high]) {
+                    swap(a, low, high);
+                }
+                return a[k];
+            }
+
+            /* Find median of low, middle and high items; swap into position low */
+            middle = (low + high) >>> 1;
+            if (a[middle] > a[high]) {
+                swap(a, middle, high);
+            }
+            if (a[low] > a[high]) {
+                swap(a, low, high);
+            }
+            if (a[middle] > a[low]) {
+                swap(a, middle, low);
+            }
+
+            /* Swap low item (now in position middle) into position (low+1) */
+            swap(a, middle, low + 1);
+
+            /* Nibble from each end towards middle, swapping items when stuck */
+            ll = low + 1;
+            hh = high;
+            for (;;) {
+                do {
+                    ll++;
+                } while (a[low] > a[ll]);
+                do {
+                    hh--;
+                } while (a[hh] > a[low]);
+
+                if (hh < ll) {
+                    break;
+                }
+
+                swap(a, ll, hh);
+            }
+
+            /* Swap middle item (in position low) back into correct position */
+            swap(a, low, hh);
+
+            /* Re-set active partition */
+            if (hh <= k) {
+                low = ll;
+            }
+            if (hh >= k) {
+                high = hh - 1;
+            }
+        }
+    }
+
+    public StatisticsType getStatisticsType() {
+        return statisticsType;
+    }
+
+    public void setStatisticsType(final StatisticsType statisticsType) {
+        this.statisticsType = statisticsType;
+    }
+
+    public boolean getSortStatistics() {
+        return sortStatistics;
+    }
+
+    public void setSortStatistics(final boolean sortStatistics) {
+        this.sortStatistics = sortStatistics;
+    }
+}
@@ -1,5 +1,12 @@
 package nl.esciencecenter.eastroviz.flaggers;
 
 public enum StatisticsType {
-    STDDEV_MEDIAN, STDDEV_WINSORIZED_MEDIAN, STDDEV_MAD
+    STDDEV_MEDIAN, STDDEV_WINSORIZED_MEDIAN, STDDEV_MAD,
+
+    /**
+     * Like STDDEV_MAD, but the median and the MAD are estimated with a {@link QuantileSketch}, in O(1) per sample, without sorting
+     * or selection. The unflagged samples are read in place, not copied. The history flaggers also use a sketch for the statistics of
+     * their history.
+     */
+    STDDEV_MAD_SKETCH
 }
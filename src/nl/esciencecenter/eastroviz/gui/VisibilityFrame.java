@@ -63,15 +63,11 @@ public final class VisibilityFrame extends GUIFrame {
         pack();
     }
 
-    // If we change the baseline, we have to re-read the input data.
+    // If we change the baseline, the data comes from the baseline cache, or is read again.
     void changeBaseline(final int station1, final int station2) {
-        LOGGER.debug("trying to set baseline to " + VisibilityData.baseline(station1, station2));
+        LOGGER.debug("trying to set stations to (" + station1 + ", " + station2 + ")");
         try {
-            visibilityData =
-                    new VisibilityData(getData().getFileName(), station1, station2, pol, getData().getMaxSequenceNr(), getData()
-                            .getMaxSubbands());
-            setData(visibilityData); // also set in super class
-            visibilityData.read();
+            visibilityData.setStations(station1, station2);
             getSamplePanel().setData(visibilityData);
         } catch (final IOException e) {
             e.printStackTrace();
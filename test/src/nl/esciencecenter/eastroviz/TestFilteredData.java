@@ -16,9 +16,11 @@
 package nl.esciencecenter.eastroviz;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.io.IOException;
+import java.util.Arrays;
 
 import nl.esciencecenter.eastroviz.dataformats.preprocessed.filtered.FilteredData;
 
@@ -35,6 +37,9 @@ public class TestFilteredData {
     static final String INPUT_FILE_NAME =
             "test/fixtures/Flaggertest-01-11-11_dataset_tiny-5_stations-32_subbands-16_channels-flagged/result.filtered";
 
+    static final String INPUT_FILE_NAME_1_CHANNEL =
+            "test/fixtures/Flaggertest-01-11-11_dataset_tiny-5_stations-32_subbands-1_channel-flagged/result.filtered";
+
     @Test
     public void testRead() {
         int integrationFactor = 1;
@@ -59,4 +64,40 @@ public class TestFilteredData {
         assertEquals(NR_SUBBANDS, filteredData.getNrSubbands());
         assertEquals(NR_TIMES, filteredData.getTotalTime());
     }
+
+    private static boolean[][] getFlags(final FilteredData data) {
+        final boolean[][] flags = new boolean[data.getSizeX()][data.getSizeY()];
+        for (int x = 0; x < data.getSizeX(); x++) {
+            for (int y = 0; y < data.getSizeY(); y++) {
+                flags[x][y] = data.isFlagged(x, y);
+            }
+        }
+        return flags;
+    }
+
+    @Test
+    public void testParallelFlaggingIsBitIdentical() throws IOException {
+        for (String fileName : new String[] { INPUT_FILE_NAME, INPUT_FILE_NAME_1_CHANNEL }) {
+            final FilteredData filteredData =
+                    new FilteredData(fileName, 1, Integer.MAX_VALUE, Integer.MAX_VALUE, 0, 0);
+            filteredData.read();
+
+            for (String flagger : filteredData.getFlaggerNames()) {
+                filteredData.setNrFlaggerThreads(1);
+                filteredData.setFlagger(flagger);
+                filteredData.flag();
+                boolean[][] serial = getFlags(filteredData);
+
+                for (int threads = 2; threads <= 8; threads *= 2) {
+                    filteredData.setNrFlaggerThreads(threads);
+                    filteredData.flag();
+                    boolean[][] parallel = getFlags(filteredData);
+                    for (int x = 0; x < serial.length; x++) {
+                        assertTrue(fileName + ", " + flagger + ", " + threads + " threads, time " + x,
+                                Arrays.equals(serial[x], parallel[x]));
+                    }
+                }
+            }
+        }
+    }
 }
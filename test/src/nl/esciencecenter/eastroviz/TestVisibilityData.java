@@ -16,10 +16,13 @@
 package nl.esciencecenter.eastroviz;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
+import java.util.Arrays;
 
 import nl.esciencecenter.eastroviz.dataformats.visibility.VisibilityData;
+import nl.esciencecenter.eastroviz.dataformats.visibility.VisibilityWindow;
 
 import org.junit.After;
 import org.junit.Test;
@@ -61,6 +64,202 @@ public class TestVisibilityData {
         assertEquals(NR_CHANNELS, data[0][0].length);
     }
 
+    private static boolean[][] getFlags(final VisibilityData data) {
+        final boolean[][] flags = new boolean[data.getSizeX()][data.getSizeY()];
+        for (int x = 0; x < data.getSizeX(); x++) {
+            for (int y = 0; y < data.getSizeY(); y++) {
+                flags[x][y] = data.isFlagged(x, y);
+            }
+        }
+        return flags;
+    }
+
+    @Test
+    public void testParallelFlaggingIsBitIdentical() throws IOException {
+        VisibilityData bfd = new VisibilityData(INPUT_FILE_NAME, 0, 1, 0, -1, -1);
+        bfd.read();
+
+        for (String flagger : bfd.getFlaggerNames()) {
+            bfd.setNrFlaggerThreads(1);
+            bfd.setFlagger(flagger);
+            bfd.flag();
+            boolean[][] serial = getFlags(bfd);
+
+            for (int threads = 2; threads <= 8; threads *= 2) {
+                bfd.setNrFlaggerThreads(threads);
+                bfd.flag();
+                boolean[][] parallel = getFlags(bfd);
+                for (int x = 0; x < serial.length; x++) {
+                    assertTrue(flagger + ", " + threads + " threads, time " + x, Arrays.equals(serial[x], parallel[x]));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testCachedStatisticsGiveSameFlags() throws IOException {
+        VisibilityData cached = new VisibilityData(INPUT_FILE_NAME, 0, 1, 0, -1, -1);
+        cached.read();
+
+        for (String flagger : cached.getFlaggerNames()) {
+            cached.setFlagger(flagger);
+            cached.setFlaggerSensitivity(1.0f);
+            cached.flag(); // fills the statistics cache
+
+            for (float sensitivity : new float[] { 0.7f, 1.3f }) {
+                cached.setFlaggerSensitivity(sensitivity); // flags again with the cached statistics
+
+                VisibilityData fresh = new VisibilityData(INPUT_FILE_NAME, 0, 1, 0, -1, -1);
+                fresh.read();
+                fresh.setFlaggerSensitivity(sensitivity);
+                fresh.setFlagger(flagger);
+                fresh.flag();
+
+                boolean[][] expected = getFlags(fresh);
+                boolean[][] actual = getFlags(cached);
+                for (int x = 0; x < expected.length; x++) {
+                    assertTrue(flagger + ", sensitivity " + sensitivity + ", time " + x, Arrays.equals(expected[x], actual[x]));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testRevisitedSettingsUseCachedFlags() throws IOException {
+        VisibilityData bfd = new VisibilityData(INPUT_FILE_NAME, 0, 1, 0, -1, -1);
+        bfd.read();
+        bfd.setFlagger("SumThreshold");
+        boolean[][] first = getFlags(bfd);
+
+        bfd.setFlaggerSensitivity(0.7f);
+        boolean[][] other = getFlags(bfd);
+
+        bfd.setFlaggerSensitivity(1.0f);
+        boolean[][] revisited = getFlags(bfd);
+        for (int x = 0; x < first.length; x++) {
+            assertTrue("time " + x, Arrays.equals(first[x], revisited[x]));
+        }
+
+        bfd.setFlagCacheSize(0);
+        bfd.setFlaggerSensitivity(0.7f);
+        boolean[][] uncached = getFlags(bfd);
+        for (int x = 0; x < other.length; x++) {
+            assertTrue("time " + x, Arrays.equals(other[x], uncached[x]));
+        }
+    }
+
+    private static void assertSameData(final VisibilityData expected, final VisibilityData actual) {
+        assertEquals(expected.getSizeX(), actual.getSizeX());
+        assertEquals(expected.getSizeY(), actual.getSizeY());
+        for (int x = 0; x < expected.getSizeX(); x++) {
+            for (int y = 0; y < expected.getSizeY(); y++) {
+                assertEquals(expected.getPower(x, y), actual.getPower(x, y), 0.0f);
+                assertEquals(expected.getNrValidSamples(x, y), actual.getNrValidSamples(x, y));
+            }
+        }
+    }
+
+    private static void assertSameFlags(final VisibilityData expected, final VisibilityData actual) {
+        assertEquals(expected.getSizeX(), actual.getSizeX());
+        assertEquals(expected.getSizeY(), actual.getSizeY());
+        for (int x = 0; x < expected.getSizeX(); x++) {
+            for (int y = 0; y < expected.getSizeY(); y++) {
+                assertEquals("time " + x + ", frequency " + y, expected.isFlagged(x, y), actual.isFlagged(x, y));
+            }
+        }
+    }
+
+    private static VisibilityData readFlagged(final int station1, final int station2, final VisibilityWindow window,
+            final String flagger, final float sensitivity) throws IOException {
+        VisibilityData data = new VisibilityData(INPUT_FILE_NAME, station1, station2, 0, -1, -1, window);
+        data.read();
+        data.setFlaggerSensitivity(sensitivity);
+        data.setFlagger(flagger);
+        return data;
+    }
+
+    @Test
+    public void testWindow() throws IOException {
+        VisibilityData full = new VisibilityData(INPUT_FILE_NAME, 0, 1, 0, -1, -1);
+        full.read();
+
+        VisibilityWindow window = new VisibilityWindow(10, 29, 1, 2, 4, 11);
+        VisibilityData windowed = new VisibilityData(INPUT_FILE_NAME, 0, 1, 0, -1, -1, window);
+        windowed.read();
+
+        assertEquals(20, windowed.getSizeX());
+        assertEquals(2, windowed.getNrSubbands());
+        assertEquals(8, windowed.getNrChannels()); // channel 0 is not in the window, so all channels are shown
+        assertEquals(20, windowed.getData().length);
+        for (int x = 0; x < windowed.getSizeX(); x++) {
+            for (int y = 0; y < windowed.getSizeY(); y++) {
+                int subband = 1 + y / 8;
+                int channel = 4 + y % 8;
+                int fullY = subband * (NR_CHANNELS - 1) + channel - 1;
+                assertEquals(full.getPower(10 + x, fullY), windowed.getPower(x, y), 0.0f);
+                assertEquals(full.getNrValidSamples(10 + x, fullY), windowed.getNrValidSamples(x, y));
+            }
+        }
+    }
+
+    @Test
+    public void testMovingWindow() throws IOException {
+        VisibilityWindow window = new VisibilityWindow(10, 19, 0, 3, 0, Integer.MAX_VALUE);
+        VisibilityData windowed = new VisibilityData(INPUT_FILE_NAME, 0, 1, 0, -1, -1, window);
+        windowed.read();
+
+        VisibilityWindow[] moves =
+                { window.withSeconds(15, 24), window.withSeconds(5, 24), window.withSeconds(5, 24).withSubbands(2, 5),
+                        window.withSeconds(0, 9).withSubbands(2, 5).withChannels(3, 9), window.withSeconds(30, 39),
+                        VisibilityWindow.ALL };
+        for (VisibilityWindow move : moves) {
+            windowed.setWindow(move);
+
+            VisibilityData expected = new VisibilityData(INPUT_FILE_NAME, 0, 1, 0, -1, -1, move);
+            expected.read();
+            assertSameData(expected, windowed);
+        }
+
+        VisibilityData full = new VisibilityData(INPUT_FILE_NAME, 0, 1, 0, -1, -1);
+        full.read();
+        assertSameData(full, windowed);
+
+        // the flags of earlier sensitivities are of the old window, so they are not reused after moving it
+        VisibilityWindow first = new VisibilityWindow(0, 19, 0, Integer.MAX_VALUE, 0, Integer.MAX_VALUE);
+        VisibilityWindow second = first.withSeconds(20, 39);
+        VisibilityData flagged = readFlagged(0, 1, first, "SumThreshold", 0.8f);
+        flagged.setFlaggerSensitivity(1.0f);
+        flagged.setWindow(second);
+        assertSameFlags(readFlagged(0, 1, second, "SumThreshold", 1.0f), flagged);
+        flagged.setFlaggerSensitivity(0.8f);
+        assertSameFlags(readFlagged(0, 1, second, "SumThreshold", 0.8f), flagged);
+    }
+
+    @Test
+    public void testStationSwitching() throws IOException {
+        int[][] stations = { { 0, 2 }, { 0, 3 }, { 1, 3 }, { 0, 3 }, { 0, 1 }, { 3, 1 } };
+        for (long cacheSize : new long[] { 0, Long.MAX_VALUE }) {
+            VisibilityData switching = new VisibilityData(INPUT_FILE_NAME, 0, 1, 0, -1, -1);
+            switching.setBaselineCacheSize(cacheSize);
+            switching.read();
+            switching.setFlagger("SumThreshold");
+
+            // the data of every baseline is flagged with the selected flagger, also when it comes from the cache
+            for (int[] s : stations) {
+                switching.setStations(s[0], s[1]);
+                assertEquals(s[0], switching.getStation1());
+                assertEquals(s[1], switching.getStation2());
+                assertEquals("SumThreshold", switching.getFlagger());
+
+                VisibilityData expected =
+                        readFlagged(Math.min(s[0], s[1]), Math.max(s[0], s[1]), VisibilityWindow.ALL, "SumThreshold", 1.0f);
+                assertSameData(expected, switching);
+                assertSameFlags(expected, switching);
+            }
+            assertEquals(cacheSize == 0, switching.getNrCachedBaselines() == 0);
+        }
+    }
+
     @Test
     public void testBaseline() throws IOException {
         for (int b = 0; b < 10000; b++) {
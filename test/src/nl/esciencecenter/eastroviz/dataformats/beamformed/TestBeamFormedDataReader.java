@@ -0,0 +1,155 @@
+/*
+ * Copyright 2013 Netherlands eScience Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.esciencecenter.eastroviz.dataformats.beamformed;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TestBeamFormedDataReader {
+
+    static final int NR_SUBBANDS = 3;
+    static final int NR_CHANNELS = 5;
+    static final int NR_SAMPLES_PER_TIME_STEP = 7;
+    static final int NR_TIMES = 12;
+    static final int NR_TIMES_IN_FILE = 9; // plus half a time step, which is not used
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = folder.newFolder("test.beamFormed");
+        new File(dir, "test.h5").createNewFile();
+
+        final int timeStepSize = NR_SAMPLES_PER_TIME_STEP * NR_SUBBANDS * NR_CHANNELS;
+        final ByteBuffer bb = ByteBuffer.allocate((NR_TIMES_IN_FILE * timeStepSize + timeStepSize / 2) * 4);
+        bb.order(ByteOrder.LITTLE_ENDIAN);
+        final Random random = new Random(24);
+        while (bb.hasRemaining()) {
+            // a few samples are flagged
+            bb.putFloat(random.nextInt(50) == 0 ? 0.0f : random.nextFloat() * 100.0f);
+        }
+        final DataOutputStream out = new DataOutputStream(new FileOutputStream(new File(dir, "test.raw")));
+        out.write(bb.array());
+        out.close();
+    }
+
+    private static BeamFormedMetaData createMetaData() {
+        final BeamFormedMetaData m = new BeamFormedMetaData();
+        m.nrSubbands = NR_SUBBANDS;
+        m.nrChannels = NR_CHANNELS;
+        m.nrSamplesPerTimeStep = NR_SAMPLES_PER_TIME_STEP;
+        m.nrTimes = NR_TIMES;
+        return m;
+    }
+
+    private BeamFormedData read(final int nrIntegrationThreads) throws IOException {
+        final BeamFormedDataReader reader = new BeamFormedDataReader(dir.getPath(), Integer.MAX_VALUE, Integer.MAX_VALUE, 1);
+        reader.setNrIntegrationThreads(nrIntegrationThreads);
+        return reader.read(createMetaData(), null);
+    }
+
+    @Test
+    public void testPipelinedMatchesSerial() throws IOException {
+        final BeamFormedData serial = read(0);
+        assertEquals(NR_TIMES_IN_FILE, serial.getSizeX());
+
+        for (final int nrThreads : new int[] { 1, 2, 4 }) {
+            final BeamFormedData pipelined = read(nrThreads);
+            assertEquals(serial.getSizeX(), pipelined.getSizeX());
+            for (int time = 0; time < serial.getSizeX(); time++) {
+                for (int subband = 0; subband < NR_SUBBANDS; subband++) {
+                    assertArrayEquals(serial.getData()[time][subband], pipelined.getData()[time][subband], 0.0f);
+                }
+                for (int y = 0; y < serial.getSizeY(); y++) {
+                    assertEquals(serial.isFlagged(time, y), pipelined.isFlagged(time, y));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testHandlerSeesSamplesInOrder() throws IOException {
+        final List<List<Float>> seen = new ArrayList<List<Float>>();
+        for (final int nrThreads : new int[] { 0, 4 }) {
+            final List<Float> samples = new ArrayList<Float>();
+            final BeamFormedDataReader reader = new BeamFormedDataReader(dir.getPath(), Integer.MAX_VALUE, Integer.MAX_VALUE, 1);
+            reader.setNrIntegrationThreads(nrThreads);
+            final BeamFormedMetaData m = createMetaData();
+            reader.read(m, new BeamFormedSampleHandler() {
+                @Override
+                public void handleSample(final int second, final int minorTime, final int subband, final int channel,
+                        final float sample) {
+                    samples.add(sample);
+                }
+            });
+            assertEquals(NR_TIMES_IN_FILE, m.nrTimes);
+            assertEquals(NR_TIMES_IN_FILE * NR_SAMPLES_PER_TIME_STEP * NR_SUBBANDS * NR_CHANNELS, samples.size());
+            seen.add(samples);
+        }
+        assertEquals(seen.get(0), seen.get(1));
+    }
+
+    @Test
+    public void testBlockHandlerMatchesSampleHandler() throws IOException {
+        final List<Float> expected = new ArrayList<Float>();
+        final BeamFormedDataReader reader = new BeamFormedDataReader(dir.getPath(), Integer.MAX_VALUE, Integer.MAX_VALUE, 1);
+        reader.read(createMetaData(), new BeamFormedSampleHandler() {
+            @Override
+            public void handleSample(final int second, final int minorTime, final int subband, final int channel,
+                    final float sample) {
+                expected.add(sample);
+            }
+        });
+
+        for (final int nrThreads : new int[] { 0, 4 }) {
+            final List<Float> samples = new ArrayList<Float>();
+            reader.setNrIntegrationThreads(nrThreads);
+            reader.readTimeSteps(createMetaData(), new BeamFormedBlockHandler() {
+                @Override
+                public void handleTimeStep(final int second, final long firstSample, final FloatBuffer block, final int nrSamples,
+                        final int nrSubbands, final int nrChannels) {
+                    assertEquals((long) second * NR_SAMPLES_PER_TIME_STEP, firstSample);
+                    assertEquals(NR_SAMPLES_PER_TIME_STEP, nrSamples);
+                    assertEquals(NR_SUBBANDS, nrSubbands);
+                    assertEquals(NR_CHANNELS, nrChannels);
+                    for (int i = 0; i < nrSamples * nrSubbands * nrChannels; i++) {
+                        samples.add(block.get());
+                    }
+                }
+            });
+            assertEquals(expected, samples);
+        }
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2013 Netherlands eScience Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.esciencecenter.eastroviz.dataformats.synthetic;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import nl.esciencecenter.eastroviz.Viz;
+import nl.esciencecenter.eastroviz.dataformats.preprocessed.compressedbeamformed.CompressedBeamFormedData;
+import nl.esciencecenter.eastroviz.dataformats.preprocessed.filtered.FilteredData;
+import nl.esciencecenter.eastroviz.dataformats.visibility.BrokenStationDetector;
+import nl.esciencecenter.eastroviz.dataformats.visibility.MSMetaData;
+import nl.esciencecenter.eastroviz.dataformats.visibility.MSReader;
+import nl.esciencecenter.eastroviz.dataformats.visibility.VisibilityData;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TestSyntheticDataGenerator {
+
+    static final int NR_STATIONS = 6;
+    static final int NR_SUBBANDS = 4;
+    static final int NR_CHANNELS = 16;
+    static final int NR_SECONDS = 10;
+    static final int DEAD_STATION = 2;
+    static final RFIEvent RFI = new RFIEvent(3, 5, 1, 1, 7, 8, 50.0f);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private SyntheticDataGenerator createGenerator() {
+        final SyntheticDataGenerator generator = new SyntheticDataGenerator(NR_STATIONS, NR_SUBBANDS, NR_CHANNELS, NR_SECONDS, 7);
+        generator.addRFI(RFI);
+        return generator;
+    }
+
+    @Test
+    public void testVisibilities() throws IOException {
+        final SyntheticDataGenerator generator = createGenerator();
+        generator.setDeadStation(DEAD_STATION, true);
+        final File dir = new File(folder.getRoot(), "synthetic.visibilities");
+        generator.writeVisibilities(dir);
+
+        final MSMetaData meta = MSReader.getMetaData(dir.getPath());
+        assertEquals(NR_STATIONS, meta.getNrStations());
+        assertEquals(NR_CHANNELS, meta.getNrChannels());
+        assertEquals(4, meta.getNrCrossPolarizations());
+
+        final MSReader reader = new MSReader(dir.getPath());
+        assertEquals(NR_SUBBANDS, reader.getNrSubbands());
+        reader.openSubband(RFI.getFirstSubband());
+        final int baseline = VisibilityData.baseline(0, 1);
+        for (int second = 0; second < NR_SECONDS; second++) {
+            reader.readSecond(baseline);
+            assertEquals(second, reader.getSequenceNr());
+            assertEquals(0, reader.getNrValidSamples(baseline)[0]);
+            assertEquals(SyntheticDataGenerator.INTEGRATION_TIME, reader.getNrValidSamples(baseline)[1]);
+
+            final float[] vis = reader.getVisibilities(baseline)[RFI.getFirstChannel()][0];
+            final float power = vis[Viz.REAL] * vis[Viz.REAL] + vis[Viz.IMAG] * vis[Viz.IMAG];
+            if (RFI.covers(second, RFI.getFirstSubband(), RFI.getFirstChannel())) {
+                assertTrue("second " + second + ", power " + power, power > 10.0f * generator.getNoiseLevel());
+            }
+        }
+        reader.readSecond(baseline);
+        assertTrue(reader.getSequenceNr() < 0);
+        reader.close();
+
+        final BrokenStationDetector detector = new BrokenStationDetector(dir.getPath(), Integer.MAX_VALUE, Integer.MAX_VALUE);
+        detector.detect();
+        for (int station = 0; station < NR_STATIONS; station++) {
+            assertEquals("station " + station, station == DEAD_STATION, detector.isBroken(station));
+        }
+
+        final List<RFIEvent> truth = SyntheticDataGenerator.readGroundTruth(new File(dir, SyntheticDataGenerator.GROUND_TRUTH_FILE));
+        assertEquals(1, truth.size());
+        assertEquals(RFI.toString(), truth.get(0).toString());
+    }
+
+    @Test
+    public void testFiltered() throws IOException {
+        final SyntheticDataGenerator generator = createGenerator();
+        generator.setBandpass(false);
+        final File file = new File(folder.getRoot(), "synthetic.filtered");
+        generator.writePreprocessed(file);
+
+        final FilteredData data = new FilteredData(file.getPath(), 1, Integer.MAX_VALUE, Integer.MAX_VALUE, NR_STATIONS - 1, 0);
+        data.read();
+        assertEquals(NR_STATIONS, data.getNrStations());
+        assertEquals(NR_SECONDS, data.getSizeX());
+        assertEquals(NR_SUBBANDS * NR_CHANNELS, data.getSizeY());
+
+        double clean = 0.0;
+        int nrClean = 0;
+        for (int second = 0; second < NR_SECONDS; second++) {
+            for (int y = 0; y < NR_SUBBANDS * NR_CHANNELS; y++) {
+                final float value = data.getRawValue(second, y);
+                assertFalse(data.isFlagged(second, y));
+                if (RFI.covers(second, y / NR_CHANNELS, y % NR_CHANNELS)) {
+                    assertTrue(value > 10.0f * generator.getNoiseLevel());
+                } else {
+                    clean += value;
+                    nrClean++;
+                }
+            }
+        }
+        assertEquals(generator.getNoiseLevel(), clean / nrClean, 0.2f * generator.getNoiseLevel());
+    }
+
+    @Test
+    public void testCompressedBeamFormed() throws IOException {
+        final SyntheticDataGenerator generator = createGenerator();
+        generator.setTimeStepsPerSecond(4);
+        final File file = new File(folder.getRoot(), "synthetic.compressedBeamFormed");
+        generator.writeCompressedBeamFormed(file);
+        assertTrue(new File(file.getPath() + ".rfi").exists());
+
+        final CompressedBeamFormedData data = new CompressedBeamFormedData(file.getPath(), 4, Integer.MAX_VALUE, Integer.MAX_VALUE);
+        data.read();
+        assertEquals(NR_SECONDS, data.getSizeX());
+        assertEquals(NR_SUBBANDS * NR_CHANNELS, data.getSizeY());
+        final float inRFI = data.getRawValue(RFI.getFirstSecond(), RFI.getFirstSubband() * NR_CHANNELS + RFI.getFirstChannel());
+        final float clean = data.getRawValue(0, 0);
+        assertTrue("rfi " + inRFI + ", clean " + clean, inRFI > 10.0f * clean);
+    }
+}
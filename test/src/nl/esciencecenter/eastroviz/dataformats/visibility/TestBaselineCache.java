@@ -0,0 +1,77 @@
+/*
+ * Copyright 2013 Netherlands eScience Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.esciencecenter.eastroviz.dataformats.visibility;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import nl.esciencecenter.eastroviz.dataformats.FlagCube;
+
+import org.junit.Test;
+
+public class TestBaselineCache {
+
+    static final int NR_TIMES = 8;
+    static final int NR_SUBBANDS = 2;
+    static final int NR_CHANNELS = 4;
+
+    private static BaselineCache.Entry createEntry(final VisibilityWindow window) {
+        return new BaselineCache.Entry(window, new float[NR_TIMES][NR_SUBBANDS][NR_CHANNELS][4],
+                new int[NR_TIMES][NR_SUBBANDS][NR_CHANNELS], new FlagCube(NR_TIMES, NR_SUBBANDS, NR_CHANNELS),
+                new int[NR_SUBBANDS], NR_TIMES);
+    }
+
+    @Test
+    public void testLeastRecentlyUsedIsDropped() {
+        final VisibilityWindow window = VisibilityWindow.ALL;
+        final long entrySize = createEntry(window).getSizeInBytes();
+        final BaselineCache cache = new BaselineCache(2 * entrySize, window);
+        cache.put(0, createEntry(window));
+        cache.put(1, createEntry(window));
+        assertNotNull(cache.get(0, window)); // 1 is now the least recently used
+        cache.put(2, createEntry(window));
+
+        assertEquals(2, cache.getNrEntries());
+        assertEquals(2 * entrySize, cache.getSizeInBytes());
+        assertNotNull(cache.get(0, window));
+        assertNull(cache.get(1, window));
+        assertNotNull(cache.get(2, window));
+
+        cache.setMaxSizeInBytes(entrySize);
+        assertEquals(1, cache.getNrEntries());
+        assertNotNull(cache.get(2, window));
+    }
+
+    @Test
+    public void testOtherWindowIsNotCached() {
+        final VisibilityWindow oldWindow = new VisibilityWindow(0, 9, 0, 1, 0, 3);
+        final VisibilityWindow newWindow = oldWindow.withSeconds(10, 19);
+        final BaselineCache cache = new BaselineCache(Long.MAX_VALUE, oldWindow);
+        cache.put(0, createEntry(oldWindow));
+        cache.setWindow(newWindow);
+        assertEquals(0, cache.getNrEntries());
+
+        // a prefetch that was still running when the window moved
+        cache.put(1, createEntry(oldWindow));
+        assertEquals(0, cache.getNrEntries());
+        assertEquals(0, cache.getSizeInBytes());
+
+        cache.put(1, createEntry(newWindow));
+        assertNotNull(cache.get(1, newWindow));
+        assertNull(cache.get(1, oldWindow));
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2013 Netherlands eScience Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.esciencecenter.eastroviz.dataformats.visibility;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Random;
+
+import nl.esciencecenter.eastroviz.flaggers.FlagMask;
+
+import org.junit.Test;
+
+public class TestBrokenStationDetector {
+
+    static final int NR_STATIONS = 12;
+    static final int NR_CHANNELS = 16;
+    static final int NR_CROSS_POLARIZATIONS = 4;
+    static final int NR_SECONDS = 20;
+    static final int DEAD_STATION = 3;
+    static final int HOT_STATION = 7;
+
+    static final int FIXTURE_NR_STATIONS = 5;
+    static final int FIXTURE_NR_TIMES = 3 * 16;
+    static final String INPUT_FILE_NAME =
+            "test/fixtures/Flaggertest-01-11-11_dataset_tiny-5_stations-32_subbands-16_channels-flagged/result.visibilities";
+
+    @Test
+    public void testDeadAndHotStations() {
+        final Random random = new Random(14);
+        final int nrBaselines = NR_STATIONS * (NR_STATIONS + 1) / 2;
+        final BrokenStationDetector detector =
+                new BrokenStationDetector(NR_STATIONS, NR_CHANNELS, NR_CROSS_POLARIZATIONS, BrokenStationDetector.DEFAULT_THRESHOLD);
+        final float[][][][] vis = new float[nrBaselines][NR_CHANNELS][NR_CROSS_POLARIZATIONS][2];
+        final int[][] nrValidSamples = new int[nrBaselines][NR_CHANNELS];
+
+        for (int second = 0; second < NR_SECONDS; second++) {
+            for (int baseline = 0; baseline < nrBaselines; baseline++) {
+                final int station1 = VisibilityData.baselineToStation1(baseline);
+                final int station2 = VisibilityData.baselineToStation2(baseline);
+                float gain = 1.0f;
+                if (station1 == DEAD_STATION || station2 == DEAD_STATION) {
+                    gain = 0.0f;
+                } else if (station1 == HOT_STATION || station2 == HOT_STATION) {
+                    gain = 5.0f;
+                }
+                for (int channel = 0; channel < NR_CHANNELS; channel++) {
+                    for (int pol = 0; pol < NR_CROSS_POLARIZATIONS; pol++) {
+                        for (int i = 0; i < 2; i++) {
+                            vis[baseline][channel][pol][i] = gain * (10.0f + (float) random.nextGaussian());
+                        }
+                    }
+                    // flagged channels do not count
+                    nrValidSamples[baseline][channel] = channel == 5 && station1 == 0 ? 0 : 768;
+                    if (nrValidSamples[baseline][channel] == 0) {
+                        vis[baseline][channel][0][0] = 1.0E10f;
+                    }
+                }
+            }
+            detector.addSecond(vis, nrValidSamples);
+        }
+
+        assertEquals(NR_SECONDS, detector.getNrSeconds());
+        final FlagMask brokenBaselines = detector.getBrokenBaselines();
+        for (int station = 0; station < NR_STATIONS; station++) {
+            final boolean broken = station == DEAD_STATION || station == HOT_STATION;
+            assertEquals("station " + station, broken, detector.isBroken(station));
+            assertEquals("station " + station, broken, detector.getBrokenStations()[station]);
+        }
+        for (int baseline = 0; baseline < nrBaselines; baseline++) {
+            final int station1 = VisibilityData.baselineToStation1(baseline);
+            final int station2 = VisibilityData.baselineToStation2(baseline);
+            assertEquals("baseline " + baseline, detector.isBroken(station1) || detector.isBroken(station2),
+                    brokenBaselines.get(baseline));
+        }
+        assertTrue(detector.getReport().contains("BROKEN"));
+    }
+
+    @Test
+    public void testReadSecondOfAllBaselines() throws IOException {
+        final MSReader all = new MSReader(INPUT_FILE_NAME);
+        final MSReader one = new MSReader(INPUT_FILE_NAME);
+        all.openSubband(1);
+        final int nrBaselines = all.getMetaData().getNrBaselines();
+
+        for (int second = 0; second < 3; second++) {
+            all.readSecond();
+            for (int baseline = 0; baseline < nrBaselines; baseline++) {
+                one.openSubband(1);
+                for (int i = 0; i <= second; i++) {
+                    one.readSecond(baseline);
+                }
+                assertEquals(one.getSequenceNr(), all.getSequenceNr());
+                assertArrayEquals(one.getNrValidSamples(baseline), all.getNrValidSamples(baseline));
+                for (int channel = 0; channel < all.getMetaData().getNrChannels(); channel++) {
+                    for (int pol = 0; pol < all.getMetaData().getNrCrossPolarizations(); pol++) {
+                        assertArrayEquals(one.getVisibilities(baseline)[channel][pol], all.getAllVisibilities()[baseline][channel][pol],
+                                0.0f);
+                    }
+                }
+                one.close();
+            }
+        }
+        all.close();
+    }
+
+    @Test
+    public void testDetect() throws IOException {
+        final BrokenStationDetector detector = new BrokenStationDetector(INPUT_FILE_NAME, Integer.MAX_VALUE, 4);
+        detector.detect();
+
+        assertEquals(FIXTURE_NR_STATIONS, detector.getNrStations());
+        // not all subbands have all seconds
+        assertTrue(detector.getNrSeconds() > 3 * FIXTURE_NR_TIMES);
+        assertTrue(detector.getNrSeconds() <= 4 * FIXTURE_NR_TIMES);
+        final String[] lines = detector.getReport().split("\n");
+        assertEquals(FIXTURE_NR_STATIONS + 1, lines.length);
+        for (int station = 0; station < detector.getNrStations(); station++) {
+            assertFalse(detector.getNrBrokenSeconds(station) > detector.getNrSeconds());
+        }
+    }
+
+    @Test
+    public void testDetectReadsSameSecondsAsBatch() throws IOException {
+        final int maxSequenceNr = 10;
+        final BrokenStationDetector detector = new BrokenStationDetector(INPUT_FILE_NAME, maxSequenceNr, 4);
+        detector.detect();
+
+        final int[] nrSeconds = new int[1];
+        final BaselineConsumer counter = new BaselineConsumer() {
+            @Override
+            public void addSecond(final int subband, final int timeIndex, final long sequenceNr, final float[][][] visibilities,
+                    final float[][] powers, final int[] nrValidSamples) {
+                nrSeconds[0]++;
+            }
+
+            @Override
+            public void endSubband(final int subband, final int nrTimes) {
+            }
+        };
+        final MSReader reader = new MSReader(INPUT_FILE_NAME);
+        reader.read(new int[] { 0 }, new BaselineConsumer[] { counter }, 4, maxSequenceNr);
+
+        // the second with sequence number maxSequenceNr is included
+        assertEquals(4 * (maxSequenceNr + 1), nrSeconds[0]);
+        assertEquals(nrSeconds[0], detector.getNrSeconds());
+    }
+}
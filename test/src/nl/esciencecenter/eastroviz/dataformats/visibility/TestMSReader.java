@@ -0,0 +1,201 @@
+/*
+ * Copyright 2013 Netherlands eScience Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.esciencecenter.eastroviz.dataformats.visibility;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import nl.esciencecenter.eastroviz.Viz;
+import nl.esciencecenter.eastroviz.dataformats.synthetic.SyntheticDataGenerator;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TestMSReader {
+
+    static final String INPUT_FILE_NAME = TestBrokenStationDetector.INPUT_FILE_NAME;
+    static final int SUBBAND = 3;
+
+    // a second of the fixture is 8704 bytes, so this maps two seconds at a time
+    static final long SMALL_SEGMENT_SIZE = 20000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final class Second {
+        final long sequenceNr;
+        final float[][][][] vis;
+        final int[][] nrValidSamples;
+
+        Second(final MSReader reader) {
+            sequenceNr = reader.getSequenceNr();
+            final int nrBaselines = reader.getMetaData().getNrBaselines();
+            vis = new float[nrBaselines][][][];
+            nrValidSamples = new int[nrBaselines][];
+            for (int baseline = 0; baseline < nrBaselines; baseline++) {
+                final float[][][] v = reader.getVisibilities(baseline);
+                vis[baseline] = new float[v.length][v[0].length][];
+                for (int channel = 0; channel < v.length; channel++) {
+                    for (int pol = 0; pol < v[channel].length; pol++) {
+                        vis[baseline][channel][pol] = v[channel][pol].clone();
+                    }
+                }
+                nrValidSamples[baseline] = reader.getNrValidSamples(baseline).clone();
+            }
+        }
+    }
+
+    private static List<Second> readAll(final MSReader reader) {
+        final List<Second> seconds = new ArrayList<Second>();
+        while (true) {
+            reader.readSecond();
+            if (reader.getSequenceNr() < 0) {
+                return seconds;
+            }
+            seconds.add(new Second(reader));
+        }
+    }
+
+    private static void assertSecondEquals(final Second expected, final MSReader reader, final int baseline) {
+        assertEquals(expected.sequenceNr, reader.getSequenceNr());
+        final float[][][] vis = reader.getVisibilities(baseline);
+        for (int channel = 0; channel < vis.length; channel++) {
+            for (int pol = 0; pol < vis[channel].length; pol++) {
+                assertArrayEquals(expected.vis[baseline][channel][pol], vis[channel][pol], 0.0f);
+            }
+        }
+        assertArrayEquals(expected.nrValidSamples[baseline], reader.getNrValidSamples(baseline));
+    }
+
+    @Test
+    public void testSegmentedMatchesSingleMapping() throws IOException {
+        final MSReader reader = new MSReader(INPUT_FILE_NAME);
+        reader.openSubband(SUBBAND);
+        final List<Second> expected = readAll(reader);
+        assertEquals(reader.getNrSecondsInSubband(), expected.size());
+        reader.close();
+
+        final MSReader segmented = new MSReader(INPUT_FILE_NAME, SMALL_SEGMENT_SIZE);
+        segmented.openSubband(SUBBAND);
+        assertTrue(segmented.getNrSecondsInSubband() > 10);
+        final int nrBaselines = segmented.getMetaData().getNrBaselines();
+        for (int second = 0; second < expected.size(); second++) {
+            final int baseline = second % nrBaselines;
+            segmented.readSecond(baseline);
+            assertSecondEquals(expected.get(second), segmented, baseline);
+        }
+        segmented.readSecond(0);
+        assertTrue(segmented.getSequenceNr() < 0);
+        segmented.close();
+    }
+
+    @Test
+    public void testSeek() throws IOException {
+        final MSReader reader = new MSReader(INPUT_FILE_NAME);
+        reader.openSubband(SUBBAND);
+        final List<Second> expected = readAll(reader);
+        final int nrBaselines = reader.getMetaData().getNrBaselines();
+
+        for (int second = expected.size() - 1; second >= 0; second--) {
+            reader.seek(second);
+            reader.readSecond(nrBaselines - 1);
+            assertSecondEquals(expected.get(second), reader, nrBaselines - 1);
+        }
+
+        // after a seek, reading continues sequentially
+        reader.seek(1);
+        reader.readSecond(0);
+        reader.readSecond(0);
+        assertSecondEquals(expected.get(2), reader, 0);
+        reader.close();
+    }
+
+    @Test
+    public void testSinglePassMatchesPerBaseline() throws IOException {
+        final int[] baselines = { VisibilityData.baseline(0, 0), VisibilityData.baseline(1, 3), VisibilityData.baseline(2, 4) };
+        final VisibilityData[] singlePass = VisibilityData.read(INPUT_FILE_NAME, baselines, Integer.MAX_VALUE, Integer.MAX_VALUE, 3);
+        assertEquals(baselines.length, singlePass.length);
+
+        for (int i = 0; i < baselines.length; i++) {
+            final VisibilityData expected =
+                    new VisibilityData(INPUT_FILE_NAME, VisibilityData.baselineToStation1(baselines[i]),
+                            VisibilityData.baselineToStation2(baselines[i]), 0, Integer.MAX_VALUE, Integer.MAX_VALUE);
+            expected.setNrReaderThreads(1);
+            expected.read();
+
+            assertEquals(expected.getStation1(), singlePass[i].getStation1());
+            assertEquals(expected.getStation2(), singlePass[i].getStation2());
+            assertEquals(expected.getSizeX(), singlePass[i].getSizeX());
+            assertEquals(expected.getSizeY(), singlePass[i].getSizeY());
+            for (int time = 0; time < expected.getSizeX(); time++) {
+                for (int frequency = 0; frequency < expected.getSizeY(); frequency++) {
+                    assertEquals(expected.getPower(time, frequency), singlePass[i].getPower(time, frequency), 0.0f);
+                    assertEquals(expected.getNrValidSamples(time, frequency), singlePass[i].getNrValidSamples(time, frequency));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testByteOrder() throws IOException {
+        final File little = new File(folder.getRoot(), "little.visibilities");
+        final File big = new File(folder.getRoot(), "big.visibilities");
+        final SyntheticDataGenerator generator = new SyntheticDataGenerator(4, 2, 8, 5, 21);
+        generator.writeVisibilities(little);
+        generator.setBigEndianVisibilities(true);
+        generator.writeVisibilities(big);
+
+        final MSReader littleReader = new MSReader(little.getPath());
+        final MSReader bigReader = new MSReader(big.getPath());
+        littleReader.openSubband(1);
+        bigReader.openSubband(1);
+        assertFalse(littleReader.getMetaData().getIsBigEndian());
+        assertTrue(bigReader.getMetaData().getIsBigEndian());
+
+        final List<Second> expected = readAll(littleReader);
+        assertEquals(5, expected.size());
+        for (int second = 0; second < expected.size(); second++) {
+            assertEquals(second, expected.get(second).sequenceNr);
+            assertEquals(0, expected.get(second).nrValidSamples[0][0]);
+            assertEquals(SyntheticDataGenerator.INTEGRATION_TIME, expected.get(second).nrValidSamples[0][1]);
+
+            bigReader.readSecond();
+            for (int baseline = 0; baseline < bigReader.getMetaData().getNrBaselines(); baseline++) {
+                assertSecondEquals(expected.get(second), bigReader, baseline);
+
+                final float[][][] vis = bigReader.getVisibilities(baseline);
+                final float[][] powers = bigReader.getPowers(baseline);
+                for (int channel = 0; channel < vis.length; channel++) {
+                    for (int pol = 0; pol < vis[channel].length; pol++) {
+                        final float real = vis[channel][pol][Viz.REAL];
+                        final float imag = vis[channel][pol][Viz.IMAG];
+                        assertEquals(real * real + imag * imag, powers[channel][pol], 0.0f);
+                    }
+                }
+            }
+        }
+        littleReader.close();
+        bigReader.close();
+    }
+}
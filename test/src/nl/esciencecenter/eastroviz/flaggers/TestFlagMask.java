@@ -0,0 +1,183 @@
+/*
+ * Copyright 2013 Netherlands eScience Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.esciencecenter.eastroviz.flaggers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TestFlagMask {
+
+    static final int[] SIZES = { 0, 1, 63, 64, 65, 127, 128, 200, 1024 };
+    static final float[] SIR_VALUES = { 0.0f, 0.2f, 0.4f, 0.8f, 1.0f };
+
+    /**
+     * The original SIR operator on a boolean[], used as a reference for the word based version.
+     */
+    private static void referenceSIROperator(final boolean[] flags, final float SIREtaValue) {
+        final boolean[] temp = new boolean[flags.length];
+        float credit = 0.0f;
+        for (int i = 0; i < flags.length; ++i) {
+            final float w = flags[i] ? SIREtaValue : SIREtaValue - 1.0f;
+            final float maxcredit0 = credit > 0.0f ? credit : 0.0f;
+            credit = maxcredit0 + w;
+            temp[i] = (credit >= 0.0f);
+        }
+
+        credit = 0.0f;
+        for (int i = flags.length - 1; i >= 0; i--) {
+            final float w = flags[i] ? SIREtaValue : SIREtaValue - 1.0f;
+            final float maxcredit0 = credit > 0.0f ? credit : 0.0f;
+            credit = maxcredit0 + w;
+            flags[i] = (credit >= 0.0f) || temp[i];
+        }
+    }
+
+    private static int count(final boolean[] flags) {
+        int count = 0;
+        for (final boolean b : flags) {
+            if (b) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Test
+    public void testSetGetClear() {
+        final FlagMask mask = new FlagMask(130);
+        mask.set(0);
+        mask.set(63);
+        mask.set(64, true);
+        mask.set(129);
+        assertTrue(mask.get(0) && mask.get(63) && mask.get(64) && mask.get(129));
+        assertFalse(mask.get(1) || mask.get(65) || mask.get(128));
+        assertEquals(4, mask.cardinality());
+
+        mask.clear(63);
+        mask.set(64, false);
+        assertFalse(mask.get(63) || mask.get(64));
+        assertEquals(2, mask.cardinality());
+
+        mask.clear();
+        assertEquals(0, mask.cardinality());
+    }
+
+    @Test
+    public void testSetRange() {
+        for (final int size : SIZES) {
+            for (int from = 0; from <= size; from += 7) {
+                for (int to = from; to <= size; to += 5) {
+                    final FlagMask mask = new FlagMask(size);
+                    mask.set(from, to);
+                    assertEquals(to - from, mask.cardinality());
+                    for (int i = 0; i < size; i++) {
+                        assertEquals(i >= from && i < to, mask.get(i));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testUnionAndCopy() {
+        final Random random = new Random(45);
+        for (final int size : SIZES) {
+            final FlagMask a = TestFlagger.createFlags(random, size, 0.3f);
+            final FlagMask b = TestFlagger.createFlags(random, size, 0.3f);
+            final boolean[] expected = a.toBooleans();
+            final boolean[] other = b.toBooleans();
+            for (int i = 0; i < size; i++) {
+                expected[i] |= other[i];
+            }
+
+            a.or(b);
+            assertTrue(Arrays.equals(expected, a.toBooleans()));
+            assertEquals(count(expected), a.cardinality());
+
+            final FlagMask c = new FlagMask(size);
+            c.copyFrom(a);
+            assertEquals(a, c);
+            assertEquals(a, FlagMask.fromBooleans(expected));
+        }
+    }
+
+    @Test
+    public void testCompressRoundTrip() {
+        final Random random = new Random(48);
+        for (final int size : SIZES) {
+            for (final float fraction : new float[] { 0.0f, 0.001f, 0.5f }) {
+                final FlagMask mask = TestFlagger.createFlags(random, size, fraction);
+                final CompressedFlagMask compressed = CompressedFlagMask.compress(mask);
+                assertTrue(compressed.getSizeInBytes() <= 8L * FlagMask.nrWords(size));
+
+                final FlagMask restored = TestFlagger.createFlags(random, size, 0.5f);
+                compressed.decompressTo(restored);
+                assertEquals(mask, restored);
+            }
+        }
+    }
+
+    @Test
+    public void testRangeCopy() {
+        final Random random = new Random(46);
+        final int size = 500;
+        for (int offset = 0; offset < 140; offset += 3) {
+            for (final int length : new int[] { 0, 1, 16, 63, 64, 65, 256 }) {
+                final FlagMask big = TestFlagger.createFlags(random, size, 0.5f);
+                final boolean[] bigBefore = big.toBooleans();
+
+                final FlagMask part = TestFlagger.createFlags(random, length, 0.5f);
+                big.copyTo(offset, part);
+                for (int i = 0; i < length; i++) {
+                    assertEquals(bigBefore[offset + i], part.get(i));
+                }
+
+                // change the part, and write it back; only the range may change
+                final FlagMask changed = TestFlagger.createFlags(random, length, 0.5f);
+                big.copyFrom(changed, offset);
+                for (int i = 0; i < size; i++) {
+                    final boolean expected = i >= offset && i < offset + length ? changed.get(i - offset) : bigBefore[i];
+                    assertEquals("offset " + offset + ", length " + length + ", i " + i, expected, big.get(i));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testSIROperatorMatchesReference() {
+        final Random random = new Random(47);
+        for (final float sir : SIR_VALUES) {
+            final BeamFormedFlagger flagger = new BeamFormedFlagger(1.0f, sir);
+            for (final int size : SIZES) {
+                for (final float flaggedFraction : TestFlagger.FLAGGED_FRACTIONS) {
+                    final FlagMask flags = TestFlagger.createFlags(random, size, flaggedFraction);
+                    final boolean[] expected = flags.toBooleans();
+
+                    referenceSIROperator(expected, sir);
+                    flagger.SIROperator(flags);
+                    assertTrue("sir = " + sir + ", size = " + size, Arrays.equals(expected, flags.toBooleans()));
+                    assertEquals(count(expected), flags.cardinality());
+                }
+            }
+        }
+    }
+}
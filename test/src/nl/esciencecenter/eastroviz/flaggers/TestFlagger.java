@@ -0,0 +1,251 @@
+/*
+ * Copyright 2013 Netherlands eScience Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.esciencecenter.eastroviz.flaggers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+public class TestFlagger {
+
+    static final int[] NR_CHANNELS = { 16, 256, 1024 };
+    static final float[] FLAGGED_FRACTIONS = { 0.0f, 0.05f, 0.3f };
+    static final int NR_RUNS = 20;
+
+    /**
+     * The original SumThreshold, which sums every window from scratch. Used as a reference for the sliding window version.
+     */
+    private static void referenceSumThreshold(final float[] samples, final boolean[] flags, final int window,
+            final float threshold) {
+        for (int base = 1; base + window < samples.length; base++) {
+            float sum = 0.0f;
+            int count = 0;
+
+            for (int pos = base; pos < base + window; pos++) {
+                if (!flags[pos]) {
+                    sum += samples[pos];
+                    count++;
+                }
+            }
+
+            if (sum >= count * threshold) {
+                for (int pos = base; pos < base + window; pos++) {
+                    flags[pos] = true;
+                }
+            }
+        }
+    }
+
+    static float[] createSamples(final Random random, final int nrChannels) {
+        final float[] samples = new float[nrChannels];
+        for (int i = 0; i < nrChannels; i++) {
+            samples[i] = 10.0f + (float) random.nextGaussian();
+        }
+
+        // add some RFI of various widths
+        for (int rfi = 0; rfi < nrChannels / 16; rfi++) {
+            final int start = random.nextInt(nrChannels);
+            final int width = 1 + random.nextInt(8);
+            final float strength = 2.0f + 10.0f * random.nextFloat();
+            for (int i = start; i < start + width && i < nrChannels; i++) {
+                samples[i] += strength;
+            }
+        }
+        return samples;
+    }
+
+    static FlagMask createFlags(final Random random, final int nrChannels, final float flaggedFraction) {
+        final FlagMask flags = new FlagMask(nrChannels);
+        for (int i = 0; i < nrChannels; i++) {
+            flags.set(i, random.nextFloat() < flaggedFraction);
+        }
+        return flags;
+    }
+
+    @Test
+    public void testSumThresholdMatchesReference() {
+        final Random random = new Random(42);
+
+        for (final int nrChannels : NR_CHANNELS) {
+            for (final float flaggedFraction : FLAGGED_FRACTIONS) {
+                for (int run = 0; run < NR_RUNS; run++) {
+                    final float[] samples = createSamples(random, nrChannels);
+                    final FlagMask flags = createFlags(random, nrChannels, flaggedFraction);
+                    final boolean[] expected = flags.toBooleans();
+
+                    for (int window = 1; window <= 16; window *= 2) {
+                        final float threshold = 11.0f + 4.0f / window;
+                        referenceSumThreshold(samples, expected, window, threshold);
+                        Flagger.sumThreshold(samples, flags, window, threshold);
+                        assertTrue("nrChannels = " + nrChannels + ", window = " + window, Arrays.equals(expected, flags.toBooleans()));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testSumThresholdShortInput() {
+        for (int length = 0; length < 20; length++) {
+            final float[] samples = new float[length];
+            for (int i = 0; i < length; i++) {
+                samples[i] = i % 3 == 0 ? 100.0f : 1.0f;
+            }
+
+            for (int window = 1; window <= 16; window *= 2) {
+                final boolean[] expected = new boolean[length];
+                final FlagMask flags = new FlagMask(length);
+                referenceSumThreshold(samples, expected, window, 10.0f);
+                Flagger.sumThreshold(samples, flags, window, 10.0f);
+                assertTrue(Arrays.equals(expected, flags.toBooleans()));
+            }
+        }
+    }
+
+    @Test
+    public void testSelectionStatisticsMatchSortedStatistics() {
+        final Random random = new Random(43);
+        final StatisticsCalculator sorted = new StatisticsCalculator();
+        final StatisticsCalculator selected = new StatisticsCalculator();
+        sorted.setSortStatistics(true);
+        final Statistics sortedStats = new Statistics();
+        final Statistics selectedStats = new Statistics();
+
+        for (final StatisticsType type : StatisticsType.values()) {
+            sorted.setStatisticsType(type);
+            selected.setStatisticsType(type);
+
+            for (final int nrChannels : NR_CHANNELS) {
+                for (final float flaggedFraction : FLAGGED_FRACTIONS) {
+                    for (int run = 0; run < NR_RUNS; run++) {
+                        final float[] samples = createSamples(random, nrChannels);
+                        final FlagMask flags = createFlags(random, nrChannels, flaggedFraction);
+
+                        sorted.calculate(samples, flags, sortedStats);
+                        selected.calculate(samples, flags, selectedStats);
+
+                        final String msg = type + ", nrChannels = " + nrChannels;
+                        assertEquals(msg, sortedStats.getMedian(), selectedStats.getMedian(), 0.0f);
+                        assertEquals(msg, sortedStats.getMean(), selectedStats.getMean(), 1.0E-4f * Math.abs(sortedStats.getMean()));
+                        assertEquals(msg, sortedStats.getStdDev(), selectedStats.getStdDev(),
+                                1.0E-4f * Math.abs(sortedStats.getStdDev()));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testMADStatistics() {
+        final float[] samples = { 1.0f, 9.0f, 2.0f, 100.0f, 4.0f, 6.0f, 2.0f };
+        final FlagMask flags = new FlagMask(samples.length);
+
+        // sorted: 1 2 2 4 6 9 100, median 4; deviations sorted: 0 2 2 2 3 5 96, MAD 2
+        final Statistics stats = new StatisticsCalculator(StatisticsType.STDDEV_MAD).calculate(samples, flags);
+        assertEquals(4.0f, stats.getMedian(), 0.0f);
+        assertEquals(1.4826f * 2.0f, stats.getStdDev(), 1.0E-6f);
+
+        // the samples themselves are not changed
+        assertEquals(100.0f, samples[3], 0.0f);
+    }
+
+    @Test
+    public void testSketchStatisticsAreWithinAccuracy() {
+        final Random random = new Random(44);
+        final StatisticsCalculator exact = new StatisticsCalculator(StatisticsType.STDDEV_MAD);
+        final StatisticsCalculator sketched = new StatisticsCalculator(StatisticsType.STDDEV_MAD_SKETCH);
+        final float accuracy = new QuantileSketch().getAccuracy();
+
+        for (final int nrChannels : NR_CHANNELS) {
+            for (final float flaggedFraction : FLAGGED_FRACTIONS) {
+                final float[] samples = createSamples(random, nrChannels);
+                final FlagMask flags = createFlags(random, nrChannels, flaggedFraction);
+                final float[] original = samples.clone();
+
+                final Statistics expected = exact.calculate(samples, flags);
+                final Statistics actual = sketched.calculate(samples, flags);
+
+                final String msg = "nrChannels = " + nrChannels + ", flagged " + flaggedFraction;
+                assertEquals(msg, expected.getMean(), actual.getMean(), 1.0E-4f * Math.abs(expected.getMean()));
+                assertEquals(msg, expected.getMedian(), actual.getMedian(), accuracy * Math.abs(expected.getMedian()));
+                // the deviations are taken from the estimated median, so its error adds to that of the MAD
+                assertEquals(msg, expected.getStdDev(), actual.getStdDev(),
+                        2 * accuracy * (Math.abs(expected.getMedian()) + Math.abs(expected.getStdDev())));
+                assertTrue(msg, Arrays.equals(original, samples));
+            }
+        }
+    }
+
+    /**
+     * Flags the same cells serially and from a pool of threads, every thread with its own flagger of a different statistics
+     * type. The flaggers share no state, so the results must be identical.
+     */
+    @Test
+    public void testConcurrentFlaggersMatchSerial() throws Exception {
+        final int nrCells = 64;
+        final int nrChannels = 256;
+        final Random random = new Random(48);
+        final float[][] samples = new float[nrCells][];
+        for (int cell = 0; cell < nrCells; cell++) {
+            samples[cell] = createSamples(random, nrChannels);
+        }
+
+        final StatisticsType[] types = StatisticsType.values();
+        final FlagMask[][] expected = new FlagMask[types.length][nrCells];
+        for (int t = 0; t < types.length; t++) {
+            final BeamFormedFlagger flagger = new BeamFormedFlagger(1.0f, 0.4f);
+            flagger.setStatisticsType(types[t]);
+            for (int cell = 0; cell < nrCells; cell++) {
+                expected[t][cell] = new FlagMask(nrChannels);
+                flagger.flagSmooth(samples[cell], expected[t][cell]);
+            }
+        }
+
+        final ExecutorService pool = Executors.newFixedThreadPool(types.length);
+        try {
+            final List<Future<FlagMask[]>> results = new ArrayList<Future<FlagMask[]>>();
+            for (final StatisticsType type : types) {
+                results.add(pool.submit(new Callable<FlagMask[]>() {
+                    @Override
+                    public FlagMask[] call() {
+                        final BeamFormedFlagger flagger = new BeamFormedFlagger(1.0f, 0.4f, type);
+                        final FlagMask[] flags = new FlagMask[nrCells];
+                        for (int cell = 0; cell < nrCells; cell++) {
+                            flags[cell] = new FlagMask(nrChannels);
+                            flagger.flagSmooth(samples[cell], flags[cell]);
+                        }
+                        return flags;
+                    }
+                }));
+            }
+            for (int t = 0; t < types.length; t++) {
+                assertTrue(types[t].toString(), Arrays.equals(expected[t], results.get(t).get()));
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright 2013 Netherlands eScience Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.esciencecenter.eastroviz.flaggers;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that the flaggers do not allocate memory once they are warmed up.
+ */
+public class TestFlaggerAllocation {
+
+    static final int NR_CHANNELS = 256;
+    static final int NR_POLARIZATIONS = 2;
+    static final int NR_CROSS_POLARIZATIONS = NR_POLARIZATIONS * NR_POLARIZATIONS;
+    static final int WARMUP_ITERATIONS = 2000;
+    static final int ITERATIONS = 1000;
+
+    // Allow a little slack for the measurement itself.
+    static final long MAX_ALLOCATED_BYTES = 1024;
+
+    private com.sun.management.ThreadMXBean threadBean;
+
+    private final Random random = new Random(44);
+    private float[][] polarizationSamples; // [nrPolarizations][nrChannels]
+    private float[][] crossPolarizationSamples; // [nrChannels][nrCrossPolarizations]
+    private float[] samples;
+    private FlagMask flags;
+
+    private interface FlagCall {
+        void flag();
+    }
+
+    @Before
+    public void setUp() {
+        final java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        threadBean = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue(threadBean.isThreadAllocatedMemorySupported());
+        threadBean.setThreadAllocatedMemoryEnabled(true);
+
+        samples = TestFlagger.createSamples(random, NR_CHANNELS);
+        polarizationSamples = new float[NR_POLARIZATIONS][];
+        for (int pol = 0; pol < NR_POLARIZATIONS; pol++) {
+            polarizationSamples[pol] = TestFlagger.createSamples(random, NR_CHANNELS);
+        }
+        crossPolarizationSamples = new float[NR_CHANNELS][NR_CROSS_POLARIZATIONS];
+        for (int pol = 0; pol < NR_CROSS_POLARIZATIONS; pol++) {
+            final float[] s = TestFlagger.createSamples(random, NR_CHANNELS);
+            for (int channel = 0; channel < NR_CHANNELS; channel++) {
+                crossPolarizationSamples[channel][pol] = s[channel];
+            }
+        }
+        flags = new FlagMask(NR_CHANNELS);
+    }
+
+    private long measure(final FlagCall call) {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            call.flag();
+        }
+
+        final long threadId = Thread.currentThread().getId();
+        final long before = threadBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < ITERATIONS; i++) {
+            call.flag();
+        }
+        return threadBean.getThreadAllocatedBytes(threadId) - before;
+    }
+
+    private void assertNoAllocation(final String name, final FlagCall call) {
+        final long allocated = measure(call);
+        assertTrue(name + " allocated " + allocated + " bytes in " + ITERATIONS + " calls", allocated <= MAX_ALLOCATED_BYTES);
+    }
+
+    @Test
+    public void testIntermediateFlagger() {
+        final IntermediateFlagger flagger = new IntermediateFlagger(1.0f, 0.4f);
+        assertNoAllocation("IntermediateFlagger.flag", new FlagCall() {
+            @Override
+            public void flag() {
+                flags.clear(random.nextInt(NR_CHANNELS));
+                flagger.flag(polarizationSamples, flags);
+            }
+        });
+        assertNoAllocation("IntermediateFlagger.flagSmooth", new FlagCall() {
+            @Override
+            public void flag() {
+                flags.clear(random.nextInt(NR_CHANNELS));
+                flagger.flagSmooth(samples, flags);
+            }
+        });
+    }
+
+    @Test
+    public void testBeamFormedFlagger() {
+        final BeamFormedFlagger flagger = new BeamFormedFlagger(1.0f, 0.4f);
+        assertNoAllocation("BeamFormedFlagger.flag", new FlagCall() {
+            @Override
+            public void flag() {
+                flags.clear(random.nextInt(NR_CHANNELS));
+                flagger.flag(samples, flags);
+            }
+        });
+        assertNoAllocation("BeamFormedFlagger.flagSmooth", new FlagCall() {
+            @Override
+            public void flag() {
+                flags.clear(random.nextInt(NR_CHANNELS));
+                flagger.flagSmooth(samples, flags);
+            }
+        });
+    }
+
+    @Test
+    public void testPostCorrelationFlaggers() {
+        final PostCorrelationFlagger[] flaggers =
+                { new PostCorrelationThresholdFlagger(NR_CHANNELS, 1.0f, 0.4f),
+                        new PostCorrelationSumThresholdFlagger(NR_CHANNELS, 1.0f, 0.4f),
+                        new PostCorrelationSmoothedSumThresholdFlagger(NR_CHANNELS, 1.0f, 0.4f),
+                        new PostCorrelationHistorySumThresholdFlagger(NR_CHANNELS, 1.0f, 0.4f),
+                        new PostCorrelationHistorySmoothedSumThresholdFlagger(NR_CHANNELS, 1.0f, 0.4f),
+                        new PostCorrelationPipelineFlagger(NR_CHANNELS, 1.0f, 0.4f, new FlaggerPipeline().sumThreshold(1.0f)
+                                .smoothedDifference(2.0f, true).sumThreshold(1.0f).SIR()) };
+
+        for (final PostCorrelationFlagger flagger : flaggers) {
+            assertNoAllocation(flagger.getClass().getSimpleName(), new FlagCall() {
+                @Override
+                public void flag() {
+                    flags.clear(random.nextInt(NR_CHANNELS));
+                    flagger.flag(crossPolarizationSamples, flags);
+                }
+            });
+        }
+    }
+
+    @Test
+    public void testPreCorrelationFlagger() {
+        final int nrTimes = 64;
+        final int nrChannels = 16;
+        final float[][][] blockSamples = new float[nrTimes][NR_POLARIZATIONS][];
+        final FlagMask[] blockFlags = new FlagMask[nrTimes];
+        for (int time = 0; time < nrTimes; time++) {
+            for (int pol = 0; pol < NR_POLARIZATIONS; pol++) {
+                blockSamples[time][pol] = TestFlagger.createSamples(random, nrChannels);
+            }
+            blockFlags[time] = new FlagMask(nrChannels);
+        }
+
+        final PreCorrelationFlagger flagger = new PreCorrelationFlagger(nrChannels, NR_POLARIZATIONS, nrTimes, 0, 1.0f, 0.4f);
+        assertNoAllocation("PreCorrelationFlagger.flag", new FlagCall() {
+            @Override
+            public void flag() {
+                for (int time = 0; time < nrTimes; time++) {
+                    blockFlags[time].clear();
+                }
+                flagger.flag(blockSamples, blockFlags, nrTimes);
+            }
+        });
+    }
+
+    @Test
+    public void testPreCorrelationNoChannelsFlagger() {
+        final int fftSize = 64;
+        final int integrationFactor = 4;
+        final int nrTimes = fftSize * integrationFactor;
+        final float[][] blockSamples = new float[NR_POLARIZATIONS][];
+        for (int pol = 0; pol < NR_POLARIZATIONS; pol++) {
+            blockSamples[pol] = TestFlagger.createSamples(random, nrTimes);
+            for (int time = 0; time < nrTimes; time++) {
+                blockSamples[pol][time] += 5.0f * (float) Math.cos(2.0 * Math.PI * time / 8); // so frequencies are replaced
+            }
+        }
+        final FlagMask blockFlags = new FlagMask(nrTimes);
+
+        final PreCorrelationNoChannelsFlagger flagger =
+                new PreCorrelationNoChannelsFlagger(fftSize, NR_POLARIZATIONS, integrationFactor, 1.0f, 0.4f);
+        assertNoAllocation("PreCorrelationNoChannelsFlagger.flag", new FlagCall() {
+            @Override
+            public void flag() {
+                blockFlags.clear();
+                flagger.flag(blockSamples, blockFlags, nrTimes);
+            }
+        });
+
+        final RealFFT fft = new RealFFT(fftSize);
+        final float[] real = new float[fft.getNrBins()];
+        final float[] imag = new float[fft.getNrBins()];
+        final float[] result = new float[fftSize];
+        assertNoAllocation("RealFFT", new FlagCall() {
+            @Override
+            public void flag() {
+                fft.forward(blockSamples[0], 0, real, imag);
+                fft.inverse(real, imag, result, 0);
+            }
+        });
+    }
+
+    @Test
+    public void testHistoryFlaggersWithSketch() {
+        final int historySize = 1000;
+        final PostCorrelationFlagger[] flaggers =
+                { new PostCorrelationHistorySumThresholdFlagger(NR_CHANNELS, 1.0f, 0.4f, historySize),
+                        new PostCorrelationHistorySmoothedSumThresholdFlagger(NR_CHANNELS, 1.0f, 0.4f, historySize) };
+
+        for (final PostCorrelationFlagger flagger : flaggers) {
+            flagger.setStatisticsType(StatisticsType.STDDEV_MAD_SKETCH);
+            assertNoAllocation(flagger.getClass().getSimpleName() + " with sketch", new FlagCall() {
+                @Override
+                public void flag() {
+                    flags.clear(random.nextInt(NR_CHANNELS));
+                    flagger.flag(crossPolarizationSamples, flags);
+                }
+            });
+        }
+    }
+
+    @Test
+    public void testStatistics() {
+        final BeamFormedFlagger flagger = new BeamFormedFlagger(1.0f, 0.4f);
+        for (final StatisticsType type : StatisticsType.values()) {
+            flagger.setStatisticsType(type);
+            assertNoAllocation("calculateStatistics " + type, new FlagCall() {
+                @Override
+                public void flag() {
+                    flags.set(random.nextInt(NR_CHANNELS), random.nextBoolean());
+                    flagger.calculateStatistics(samples, flags);
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2013 Netherlands eScience Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.esciencecenter.eastroviz.flaggers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TestFlaggerPipeline {
+
+    static final int NR_CROSS_POLARIZATIONS = 4;
+    static final float[] SIGMAS = { 0.5f, 2.0f, 3.0f };
+
+    /**
+     * The smoothed SumThreshold flagger as it was written before the pipeline, with a separate convolution and difference. Used as
+     * a reference for the pipeline.
+     */
+    private static final class ReferenceSmoothedSumThresholdFlagger extends PostCorrelationFlagger {
+        ReferenceSmoothedSumThresholdFlagger(final int nrChannels, final float baseSensitivity, final float SIREtaValue) {
+            super(nrChannels, baseSensitivity, SIREtaValue);
+        }
+
+        @Override
+        protected void flag(final float[] powers, final FlagMask flagged, final int pol) {
+            Statistics stats = calculateInitialStatistics(powers, flagged, pol);
+            final float originalSensitivity = getBaseSensitivity();
+            sumThreshold1D(powers, flagged, stats);
+
+            final float[] smoothedPower = oneDimensionalGausConvolution(powers, 0.5f);
+            final float[] diff = new float[powers.length];
+            for (int i = 0; i < powers.length; i++) {
+                diff[i] = powers[i] - smoothedPower[i];
+            }
+
+            stats = calculateStatistics(diff, flagged);
+            sumThreshold1D(diff, flagged, stats);
+
+            stats = calculateStatistics(powers, flagged);
+            setBaseSensitivity(originalSensitivity * 0.80f);
+            sumThreshold1D(powers, flagged, stats);
+            setBaseSensitivity(originalSensitivity);
+        }
+    }
+
+    private static float[][] createCrossPolarizationSamples(final Random random, final int nrChannels) {
+        final float[][] samples = new float[nrChannels][NR_CROSS_POLARIZATIONS];
+        for (int pol = 0; pol < NR_CROSS_POLARIZATIONS; pol++) {
+            final float[] s = TestFlagger.createSamples(random, nrChannels);
+            for (int channel = 0; channel < nrChannels; channel++) {
+                samples[channel][pol] = s[channel];
+            }
+        }
+        return samples;
+    }
+
+    @Test
+    public void testSmoothedDifferenceMatchesConvolution() {
+        final Random random = new Random(51);
+
+        for (final int nrChannels : TestFlagger.NR_CHANNELS) {
+            final PostCorrelationFlagger flagger = new PostCorrelationPipelineFlagger(nrChannels, 1.0f, 0.4f, new FlaggerPipeline());
+            for (final float flaggedFraction : TestFlagger.FLAGGED_FRACTIONS) {
+                for (final float sigma : SIGMAS) {
+                    final float[] samples = TestFlagger.createSamples(random, nrChannels);
+                    final FlagMask flags = TestFlagger.createFlags(random, nrChannels, flaggedFraction);
+
+                    final float[] smoothed = Flagger.oneDimensionalGausConvolution(samples, sigma);
+                    final float[] diff = flagger.smoothedDifference(samples, sigma);
+                    for (int i = 0; i < nrChannels; i++) {
+                        assertEquals(samples[i] - smoothed[i], diff[i], 0.0f);
+                    }
+
+                    final float[] masked = samples.clone();
+                    for (int i = 0; i < nrChannels; i++) {
+                        if (flags.get(i)) {
+                            masked[i] = 0.0f;
+                        }
+                    }
+                    final float[] maskedSmoothed = Flagger.oneDimensionalGausConvolution(masked, sigma);
+                    final float[] maskedDiff = flagger.smoothedDifference(samples, flags, sigma);
+                    for (int i = 0; i < nrChannels; i++) {
+                        assertEquals(samples[i] - maskedSmoothed[i], maskedDiff[i], 0.0f);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testSmoothedSumThresholdMatchesReference() {
+        final Random random = new Random(52);
+
+        for (final int nrChannels : TestFlagger.NR_CHANNELS) {
+            for (final float sensitivity : new float[] { 0.7f, 1.0f }) {
+                final PostCorrelationFlagger reference = new ReferenceSmoothedSumThresholdFlagger(nrChannels, sensitivity, 0.4f);
+                final PostCorrelationFlagger flagger = new PostCorrelationSmoothedSumThresholdFlagger(nrChannels, sensitivity, 0.4f);
+
+                for (int run = 0; run < TestFlagger.NR_RUNS; run++) {
+                    final float[][] samples = createCrossPolarizationSamples(random, nrChannels);
+                    final FlagMask expected = TestFlagger.createFlags(random, nrChannels, 0.05f);
+                    final FlagMask flags = new FlagMask(nrChannels);
+                    flags.copyFrom(expected);
+
+                    reference.flag(samples, expected);
+                    flagger.flag(samples, flags);
+                    assertTrue("nrChannels = " + nrChannels, Arrays.equals(expected.toBooleans(), flags.toBooleans()));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testConfiguredPipeline() {
+        final int nrChannels = 256;
+        final Random random = new Random(53);
+        final FlaggerPipeline pipeline =
+                new FlaggerPipeline().sumThreshold(1.0f).smoothedDifference(2.0f, true).sumThreshold(1.0f).samples()
+                        .historyCheck(nrChannels, PostCorrelationFlaggerHistory.HISTORY_SIZE, false).union().SIR();
+        assertEquals("sumThreshold(1.0) -> smoothedDifference(2.0, masked) -> sumThreshold(1.0) -> samples -> historyCheck("
+                + PostCorrelationFlaggerHistory.HISTORY_SIZE + ") -> union -> SIR", pipeline.toString());
+
+        final PostCorrelationFlagger flagger = new PostCorrelationPipelineFlagger(nrChannels, 1.0f, 0.4f, pipeline);
+        for (int second = 0; second < 2 * PostCorrelationFlaggerHistory.MIN_HISTORY_SIZE; second++) {
+            final FlagMask flags = new FlagMask(nrChannels);
+            flagger.flag(createCrossPolarizationSamples(random, nrChannels), flags);
+            assertTrue(flags.cardinality() > 0);
+        }
+
+        // a second with much more power than the history is flagged completely
+        final float[][] samples = createCrossPolarizationSamples(random, nrChannels);
+        for (int channel = 0; channel < nrChannels; channel++) {
+            samples[channel][0] *= 100.0f;
+        }
+        final FlagMask flags = new FlagMask(nrChannels);
+        flagger.flag(samples, flags);
+        assertEquals(nrChannels, flags.cardinality());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testNoSamplesAfterUnion() {
+        new FlaggerPipeline().sumThreshold(1.0f).union().sumThreshold(1.0f);
+    }
+
+    @Test
+    public void testDefaultUnion() {
+        final FlaggerPipeline pipeline = new FlaggerPipeline().sumThreshold(1.0f);
+        final PostCorrelationFlagger flagger = new PostCorrelationPipelineFlagger(16, 1.0f, 0.4f, pipeline);
+        assertEquals("sumThreshold(1.0) -> union -> SIR", flagger.getPipeline().toString());
+        assertEquals("sumThreshold(1.0)", pipeline.toString());
+    }
+
+    @Test
+    public void testSharedPipeline() {
+        final int nrChannels = 64;
+        final Random random = new Random(71);
+        final FlaggerPipeline pipeline =
+                new FlaggerPipeline().sumThreshold(1.0f).historyCheck(nrChannels, PostCorrelationFlaggerHistory.HISTORY_SIZE, false);
+        final PostCorrelationFlagger first = new PostCorrelationPipelineFlagger(nrChannels, 1.0f, 0.4f, pipeline);
+        final PostCorrelationFlagger second = new PostCorrelationPipelineFlagger(nrChannels, 1.0f, 0.4f, pipeline);
+        for (int i = 0; i < 2 * PostCorrelationFlaggerHistory.MIN_HISTORY_SIZE; i++) {
+            first.flag(createCrossPolarizationSamples(random, nrChannels), new FlagMask(nrChannels));
+        }
+
+        // the history of the first flagger is not used by the second one, so this loud second is not flagged completely
+        final float[][] samples = createCrossPolarizationSamples(random, nrChannels);
+        for (int channel = 0; channel < nrChannels; channel++) {
+            samples[channel][0] *= 100.0f;
+        }
+        final FlagMask flags = new FlagMask(nrChannels);
+        second.flag(samples, flags);
+        assertTrue(flags.cardinality() < nrChannels);
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2013 Netherlands eScience Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.esciencecenter.eastroviz.flaggers;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TestPostCorrelationFlaggerHistory {
+
+    static final int NR_CHANNELS = 16;
+    static final int NR_SECONDS = 5 * PostCorrelationFlaggerHistory.HISTORY_SIZE + 3;
+
+    @Test
+    public void testKeepsTheLastSeconds() {
+        final Random random = new Random(5);
+        final PostCorrelationFlaggerHistory history = new PostCorrelationFlaggerHistory(NR_CHANNELS);
+        final float[] means = new float[NR_SECONDS];
+        final float[] medians = new float[NR_SECONDS];
+        final float[][] powers = new float[NR_SECONDS][];
+        final int pol = 1;
+
+        for (int second = 0; second < NR_SECONDS; second++) {
+            means[second] = 100.0f + 10.0f * random.nextFloat();
+            medians[second] = 90.0f + 10.0f * random.nextFloat();
+            powers[second] = TestFlagger.createSamples(random, NR_CHANNELS);
+            history.add(pol, second, means[second], medians[second], 1.0f, powers[second]);
+
+            final int size = Math.min(second + 1, PostCorrelationFlaggerHistory.HISTORY_SIZE);
+            assertEquals(size, history.getSize(pol));
+            assertEquals(0, history.getSize(0));
+
+            final int first = second + 1 - size;
+            double meanMean = 0.0;
+            double meanMedian = 0.0;
+            final double[] integrated = new double[NR_CHANNELS];
+            for (int i = first; i <= second; i++) {
+                meanMean += means[i];
+                meanMedian += medians[i];
+                for (int c = 0; c < NR_CHANNELS; c++) {
+                    integrated[c] += powers[i][c];
+                }
+            }
+            meanMean /= size;
+            meanMedian /= size;
+
+            double varianceMeans = 0.0;
+            double varianceMedians = 0.0;
+            for (int i = first; i <= second; i++) {
+                varianceMeans += (means[i] - meanMean) * (means[i] - meanMean);
+                varianceMedians += (medians[i] - meanMedian) * (medians[i] - meanMedian);
+            }
+
+            assertEquals("second " + second, meanMean, history.getMeanMean(pol), 1.0E-3);
+            assertEquals("second " + second, meanMedian, history.getMeanMedian(pol), 1.0E-3);
+            assertEquals("second " + second, Math.sqrt(varianceMeans / size), history.getStdDevOfMeans(pol), 1.0E-3);
+            assertEquals("second " + second, Math.sqrt(varianceMedians / size), history.getStdDevOfMedians(pol), 1.0E-3);
+
+            final float[] result = history.getIntegratedPowers(pol);
+            for (int c = 0; c < NR_CHANNELS; c++) {
+                assertEquals("second " + second + ", channel " + c, integrated[c], result[c], 1.0E-3);
+            }
+        }
+    }
+
+    @Test
+    public void testRobustStatisticsOfLongHistory() {
+        final Random random = new Random(6);
+        final int historySize = 1000;
+        final PostCorrelationFlaggerHistory history = new PostCorrelationFlaggerHistory(NR_CHANNELS, historySize);
+        final float[] powers = new float[NR_CHANNELS];
+        final int pol = 0;
+
+        for (int second = 0; second < 3 * historySize; second++) {
+            // the first seconds have a much higher level, they must have left the history; 10% outliers in the rest
+            float median = 100.0f + (float) random.nextGaussian();
+            if (second < historySize) {
+                median += 1000.0f;
+            } else if (second % 10 == 0) {
+                median *= 100.0f;
+            }
+            history.add(pol, second, median, median, 1.0f, powers);
+            if (second == historySize / 2) {
+                history.getMedianOfMedians(pol); // the sketch is created from the history in the middle of the run
+            }
+        }
+
+        assertEquals(historySize, history.getSize(pol));
+        assertEquals(100.0f, history.getMedianOfMedians(pol), 0.5f);
+        assertEquals(1.0f, history.getRobustStdDevOfMedians(pol), 0.2f);
+    }
+}
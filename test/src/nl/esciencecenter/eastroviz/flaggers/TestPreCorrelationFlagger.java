@@ -0,0 +1,129 @@
+/*
+ * Copyright 2013 Netherlands eScience Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.esciencecenter.eastroviz.flaggers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TestPreCorrelationFlagger {
+
+    static final int NR_TIMES = 256;
+    static final int NR_CHANNELS = 32;
+    static final int NR_POLARIZATIONS = 2;
+    static final int RFI_CHANNEL = 13;
+    static final int RFI_TIME = 100;
+
+    private final Random random = new Random(49);
+
+    private float[][][] createBlock() {
+        final float[][][] samples = new float[NR_TIMES][NR_POLARIZATIONS][NR_CHANNELS];
+        for (int time = 0; time < NR_TIMES; time++) {
+            for (int pol = 0; pol < NR_POLARIZATIONS; pol++) {
+                for (int channel = 0; channel < NR_CHANNELS; channel++) {
+                    samples[time][pol][channel] = 10.0f + (float) random.nextGaussian();
+                }
+            }
+        }
+        return samples;
+    }
+
+    private static FlagMask[] createFlags(final int nrTimes) {
+        final FlagMask[] flags = new FlagMask[nrTimes];
+        for (int time = 0; time < nrTimes; time++) {
+            flags[time] = new FlagMask(NR_CHANNELS);
+        }
+        return flags;
+    }
+
+    @Test
+    public void testNarrowBandRFIIsFlaggedInFrequency() {
+        final float[][][] samples = createBlock();
+        for (int time = 0; time < NR_TIMES; time++) {
+            samples[time][0][RFI_CHANNEL] += 20.0f;
+        }
+        final FlagMask[] flags = createFlags(NR_TIMES);
+
+        final PreCorrelationFlagger flagger = new PreCorrelationFlagger(NR_CHANNELS, NR_POLARIZATIONS, NR_TIMES, 0, 1.0f, 0.4f);
+        flagger.flag(samples, flags, NR_TIMES);
+
+        for (int time = 0; time < NR_TIMES; time++) {
+            assertTrue("time " + time, flags[time].get(RFI_CHANNEL));
+            assertFalse("time " + time, flags[time].get(RFI_CHANNEL + 4));
+        }
+    }
+
+    @Test
+    public void testBroadBandRFIIsFlaggedInTime() {
+        final float[][][] samples = createBlock();
+        for (int channel = 0; channel < NR_CHANNELS; channel++) {
+            samples[RFI_TIME][1][channel] += 10.0f;
+        }
+        final FlagMask[] flags = createFlags(NR_TIMES);
+
+        final PreCorrelationFlagger flagger = new PreCorrelationFlagger(NR_CHANNELS, NR_POLARIZATIONS, NR_TIMES, 0, 1.0f, 0.4f);
+        flagger.setFlagInFrequencyDirection(false);
+        flagger.flag(samples, flags, NR_TIMES);
+
+        assertEquals(NR_CHANNELS, flags[RFI_TIME].cardinality());
+        assertEquals(0, flags[RFI_TIME + 10].cardinality());
+    }
+
+    @Test
+    public void testInitialFlagsAreKept() {
+        final float[][][] samples = createBlock();
+        final FlagMask[] flags = createFlags(NR_TIMES);
+        for (int time = 0; time < NR_TIMES; time++) {
+            flags[time].set(0); // like in LOFAR data, channel 0 is always flagged
+            samples[time][0][0] = 1.0E6f;
+        }
+
+        final PreCorrelationFlagger flagger = new PreCorrelationFlagger(NR_CHANNELS, NR_POLARIZATIONS, NR_TIMES, 0, 1.0f, 0.4f);
+        flagger.flag(samples, flags, NR_TIMES);
+
+        long flagged = 0;
+        for (int time = 0; time < NR_TIMES; time++) {
+            assertTrue(flags[time].get(0));
+            flagged += flags[time].cardinality();
+        }
+        // the flagged channel 0 does not make the other channels look bad
+        assertTrue("flagged " + flagged, flagged < NR_TIMES * 2);
+    }
+
+    @Test
+    public void testShortBlock() {
+        final float[][][] samples = createBlock();
+        final FlagMask[] flags = createFlags(NR_TIMES);
+        final int nrTimes = NR_TIMES / 3;
+        for (int time = 0; time < nrTimes; time++) {
+            samples[time][0][RFI_CHANNEL] += 20.0f;
+        }
+
+        final PreCorrelationFlagger flagger = new PreCorrelationFlagger(NR_CHANNELS, NR_POLARIZATIONS, NR_TIMES, 0, 1.0f, 0.4f);
+        flagger.flag(samples, flags, nrTimes);
+
+        for (int time = 0; time < nrTimes; time++) {
+            assertTrue("time " + time, flags[time].get(RFI_CHANNEL));
+        }
+        for (int time = nrTimes; time < NR_TIMES; time++) {
+            assertEquals(0, flags[time].cardinality());
+        }
+    }
+}
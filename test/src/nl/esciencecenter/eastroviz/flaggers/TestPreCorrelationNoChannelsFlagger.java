@@ -0,0 +1,135 @@
+/*
+ * Copyright 2013 Netherlands eScience Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.esciencecenter.eastroviz.flaggers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TestPreCorrelationNoChannelsFlagger {
+
+    static final int FFT_SIZE = 64;
+    static final int INTEGRATION_FACTOR = 4;
+    static final int NR_TIMES = FFT_SIZE * INTEGRATION_FACTOR;
+    static final int NR_POLARIZATIONS = 2;
+    static final int RFI_TIME = 100;
+    static final int RFI_PERIOD = 8;
+
+    private final Random random = new Random(31);
+
+    private float[][] createBlock() {
+        final float[][] samples = new float[NR_POLARIZATIONS][NR_TIMES];
+        for (int pol = 0; pol < NR_POLARIZATIONS; pol++) {
+            for (int time = 0; time < NR_TIMES; time++) {
+                samples[pol][time] = 10.0f + (float) random.nextGaussian();
+            }
+        }
+        return samples;
+    }
+
+    private static float powerAt(final float[] samples, final int frequency) {
+        final RealFFT fft = new RealFFT(FFT_SIZE);
+        final float[] real = new float[fft.getNrBins()];
+        final float[] imag = new float[fft.getNrBins()];
+        fft.forward(samples, 0, real, imag);
+        return real[frequency] * real[frequency] + imag[frequency] * imag[frequency];
+    }
+
+    @Test
+    public void testBroadBandRFIIsFlaggedInTime() {
+        final float[][] samples = createBlock();
+        samples[1][RFI_TIME] += 20.0f;
+        final FlagMask flags = new FlagMask(NR_TIMES);
+
+        final PreCorrelationNoChannelsFlagger flagger =
+                new PreCorrelationNoChannelsFlagger(FFT_SIZE, NR_POLARIZATIONS, INTEGRATION_FACTOR, 1.0f, 0.4f);
+        flagger.flag(samples, flags, NR_TIMES);
+
+        final int groupStart = RFI_TIME / INTEGRATION_FACTOR * INTEGRATION_FACTOR;
+        for (int time = groupStart; time < groupStart + INTEGRATION_FACTOR; time++) {
+            assertTrue("time " + time, flags.get(time));
+        }
+        assertFalse(flags.get(RFI_TIME + 40));
+    }
+
+    @Test
+    public void testPeriodicRFIIsRemoved() {
+        final float[][] samples = createBlock();
+        final int frequency = FFT_SIZE / RFI_PERIOD;
+        for (int time = 0; time < NR_TIMES; time++) {
+            samples[0][time] += 5.0f * (float) Math.cos(2.0 * Math.PI * time / RFI_PERIOD);
+        }
+        final float before = powerAt(samples[0], frequency);
+        final FlagMask flags = new FlagMask(NR_TIMES);
+
+        final PreCorrelationNoChannelsFlagger flagger =
+                new PreCorrelationNoChannelsFlagger(FFT_SIZE, NR_POLARIZATIONS, INTEGRATION_FACTOR, 1.0f, 0.4f);
+        flagger.setFlagInTimeDirection(false);
+        flagger.flag(samples, flags, NR_TIMES);
+
+        final float after = powerAt(flagger.getCleanedSamples()[0], frequency);
+        assertTrue("power before " + before + ", after " + after, after < before / 100.0f);
+        assertEquals(0, flags.cardinality());
+
+        // the mean power is kept
+        float mean = 0.0f;
+        for (int time = 0; time < NR_TIMES; time++) {
+            mean += flagger.getCleanedSamples()[0][time];
+        }
+        assertEquals(10.0f, mean / NR_TIMES, 0.5f);
+    }
+
+    @Test
+    public void testInitialFlagsAreKept() {
+        final float[][] samples = createBlock();
+        final FlagMask flags = new FlagMask(NR_TIMES);
+        for (int time = 0; time < NR_TIMES; time += 16) {
+            flags.set(time);
+            samples[0][time] = 1.0E6f;
+        }
+
+        final PreCorrelationNoChannelsFlagger flagger =
+                new PreCorrelationNoChannelsFlagger(FFT_SIZE, NR_POLARIZATIONS, INTEGRATION_FACTOR, 1.0f, 0.4f);
+        flagger.flag(samples, flags, NR_TIMES);
+
+        for (int time = 0; time < NR_TIMES; time += 16) {
+            assertTrue(flags.get(time));
+        }
+        // the flagged spikes do not make the other samples look bad
+        assertTrue("flagged " + flags.cardinality(), flags.cardinality() < NR_TIMES / 4);
+    }
+
+    @Test
+    public void testShortBlock() {
+        final float[][] samples = createBlock();
+        final int nrTimes = FFT_SIZE / 2;
+        samples[0][10] += 20.0f;
+        final FlagMask flags = new FlagMask(NR_TIMES);
+
+        final PreCorrelationNoChannelsFlagger flagger =
+                new PreCorrelationNoChannelsFlagger(FFT_SIZE, NR_POLARIZATIONS, 1, 1.0f, 0.4f);
+        flagger.flag(samples, flags, nrTimes);
+
+        assertTrue(flags.get(10));
+        for (int time = nrTimes; time < NR_TIMES; time++) {
+            assertFalse(flags.get(time));
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2013 Netherlands eScience Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.esciencecenter.eastroviz.flaggers;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TestQuantileSketch {
+
+    static final double[] QUANTILES = { 0.0, 0.1, 0.25, 0.5, 0.75, 0.9, 1.0 };
+
+    private final Random random = new Random(23);
+
+    private static void assertQuantiles(final String msg, final float[] values, final int from, final int to,
+            final QuantileSketch sketch) {
+        final float[] sorted = Arrays.copyOfRange(values, from, to);
+        Arrays.sort(sorted);
+        assertEquals(msg, sorted.length, sketch.getCount());
+        for (final double q : QUANTILES) {
+            final float expected = sorted[(int) Math.floor(q * (sorted.length - 1))];
+            assertEquals(msg + ", quantile " + q, expected, sketch.getQuantile(q), sketch.getAccuracy() * Math.abs(expected));
+        }
+        final float median = sorted[sorted.length / 2];
+        assertEquals(msg + ", median", median, sketch.getMedian(), sketch.getAccuracy() * Math.abs(median));
+    }
+
+    @Test
+    public void testQuantilesAreWithinAccuracy() {
+        final float[] values = new float[10000];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = (float) (random.nextGaussian() * 10.0);
+        }
+        values[17] = 0.0f;
+
+        final QuantileSketch sketch = new QuantileSketch();
+        for (final float value : values) {
+            sketch.add(value);
+        }
+        assertQuantiles("gaussian", values, 0, values.length, sketch);
+    }
+
+    @Test
+    public void testRemove() {
+        final float[] values = new float[2000];
+        final QuantileSketch sketch = new QuantileSketch();
+        for (int i = 0; i < values.length; i++) {
+            values[i] = 100.0f + (float) random.nextGaussian() + (i < values.length / 2 ? 50.0f : 0.0f);
+            sketch.add(values[i]);
+        }
+        for (int i = 0; i < values.length / 2; i++) {
+            sketch.remove(values[i]);
+        }
+        assertQuantiles("after remove", values, values.length / 2, values.length, sketch);
+    }
+
+    @Test
+    public void testMerge() {
+        final float[] values = new float[3000];
+        final QuantileSketch a = new QuantileSketch();
+        final QuantileSketch b = new QuantileSketch();
+        for (int i = 0; i < values.length; i++) {
+            values[i] = (float) Math.exp(random.nextGaussian() * 1.5); // fits in the buckets, nothing is collapsed
+            if (i % 3 == 0) {
+                a.add(values[i]);
+            } else {
+                b.add(values[i]);
+            }
+        }
+        a.merge(b);
+        assertQuantiles("merged", values, 0, values.length, a);
+    }
+
+    @Test
+    public void testCollapseKeepsHighQuantiles() {
+        final QuantileSketch sketch = new QuantileSketch(0.01f, 64);
+        final float[] values = new float[1001];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = (float) Math.pow(10.0, i / 100.0); // 1 .. 1E10, many more buckets than 64
+            sketch.add(values[i]);
+        }
+        assertEquals(values.length, sketch.getCount());
+        assertEquals(values[values.length - 1], sketch.getQuantile(1.0), 0.01f * values[values.length - 1]);
+        assertEquals(values[990], sketch.getQuantile(0.99), 0.01f * values[990]);
+
+        // the collapsed values can be removed again
+        for (final float value : values) {
+            sketch.remove(value);
+        }
+        assertEquals(0, sketch.getCount());
+    }
+
+    @Test
+    public void testEmptyAndClear() {
+        final QuantileSketch sketch = new QuantileSketch();
+        assertEquals(0.0f, sketch.getMedian(), 0.0f);
+        sketch.add(5.0f);
+        sketch.add(-3.0f);
+        sketch.clear();
+        assertEquals(0, sketch.getCount());
+        sketch.add(7.0f);
+        assertEquals(7.0f, sketch.getMedian(), 7.0f * sketch.getAccuracy());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRemoveMissingValue() {
+        final QuantileSketch sketch = new QuantileSketch();
+        sketch.add(1.0f);
+        sketch.remove(1000.0f);
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2013 Netherlands eScience Center
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.esciencecenter.eastroviz.flaggers;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TestRealFFT {
+
+    private final Random random = new Random(17);
+
+    @Test
+    public void testMatchesDFT() {
+        for (int size = 2; size <= 128; size *= 2) {
+            final float[] samples = TestFlagger.createSamples(random, size);
+            final RealFFT fft = new RealFFT(size);
+            final float[] real = new float[fft.getNrBins()];
+            final float[] imag = new float[fft.getNrBins()];
+            fft.forward(samples, 0, real, imag);
+
+            for (int k = 0; k < fft.getNrBins(); k++) {
+                double expectedReal = 0.0;
+                double expectedImag = 0.0;
+                for (int i = 0; i < size; i++) {
+                    final double angle = -2.0 * Math.PI * k * i / size;
+                    expectedReal += samples[i] * Math.cos(angle);
+                    expectedImag += samples[i] * Math.sin(angle);
+                }
+                assertEquals("size " + size + ", bin " + k, expectedReal, real[k], 1.0E-3 * size);
+                assertEquals("size " + size + ", bin " + k, expectedImag, imag[k], 1.0E-3 * size);
+            }
+        }
+    }
+
+    @Test
+    public void testRoundTrip() {
+        final int size = 256;
+        final int offset = 10;
+        final float[] samples = TestFlagger.createSamples(random, size + offset);
+        final float[] result = new float[size + offset];
+        final RealFFT fft = new RealFFT(size);
+        final float[] real = new float[fft.getNrBins()];
+        final float[] imag = new float[fft.getNrBins()];
+
+        fft.forward(samples, offset, real, imag);
+        fft.inverse(real, imag, result, offset);
+
+        for (int i = 0; i < offset; i++) {
+            assertEquals(0.0f, result[i], 0.0f);
+        }
+        for (int i = offset; i < size + offset; i++) {
+            assertEquals("sample " + i, samples[i], result[i], 1.0E-4f);
+        }
+    }
+
+    @Test
+    public void testSingleFrequency() {
+        final int size = 64;
+        final int frequency = 5;
+        final float[] samples = new float[size];
+        for (int i = 0; i < size; i++) {
+            samples[i] = 3.0f + (float) Math.cos(2.0 * Math.PI * frequency * i / size);
+        }
+        final RealFFT fft = new RealFFT(size);
+        final float[] real = new float[fft.getNrBins()];
+        final float[] imag = new float[fft.getNrBins()];
+        fft.forward(samples, 0, real, imag);
+
+        for (int k = 0; k < fft.getNrBins(); k++) {
+            final float expected = k == 0 ? 3.0f * size : k == frequency ? size / 2.0f : 0.0f;
+            assertEquals("bin " + k, expected, real[k], 1.0E-3f);
+            assertEquals("bin " + k, 0.0f, imag[k], 1.0E-3f);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSizeMustBePowerOfTwo() {
+        new RealFFT(48);
+    }
+}